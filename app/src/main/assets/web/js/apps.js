@@ -91,13 +91,31 @@ function installApk() {
     statusObj.innerHTML = '<i class="fas fa-spinner fa-spin"></i> Đang cài đặt... (Có thể mất vài phút)';
     statusObj.className = 'status show info';
 
-    fetch('/api/apps/install', {
+    const output = document.getElementById('installOutput');
+    output.textContent = '';
+    output.style.display = 'none';
+    const append = (text) => {
+        output.style.display = '';
+        output.textContent += text + '\n';
+        output.scrollTop = output.scrollHeight;
+    };
+
+    // pm output arrives as Server-Sent Events while the install runs
+    let result = null;
+    fetch('/api/apps/install/stream', {
         method: 'POST',
         body: formData
     })
-        .then(r => r.json())
-        .then(data => {
-            if (data.status === 'success') {
+        .then(r => {
+            if (!r.ok) return r.text().then(text => { throw new Error(text); });
+            return readSse(r, (event, data) => {
+                if (event === 'stdout') append(data);
+                else if (event === 'stderr') append('[stderr] ' + data);
+                else if (event === 'exit') result = JSON.parse(data);
+            });
+        })
+        .then(() => {
+            if (result && result.success) {
                 statusObj.innerHTML = '<i class="fas fa-check-circle"></i> Cài đặt thành công!';
                 statusObj.className = 'status show success';
                 input.value = ''; // clear
@@ -107,7 +125,9 @@ function installApk() {
                     loadApps();
                 }, 3000);
             } else {
-                statusObj.innerHTML = '<i class="fas fa-times-circle"></i> Lỗi: ' + data.message;
+                const reason = !result ? 'mất kết nối'
+                    : result.truncated ? 'quá nhiều output' : `exit code ${result.exitCode}`;
+                statusObj.innerHTML = '<i class="fas fa-times-circle"></i> Lỗi: ' + reason;
                 statusObj.className = 'status show error';
             }
         })
@@ -397,6 +397,8 @@ function loadMusicLedSyncStatus() {
                     const sensVal = document.getElementById('sensitivity-val');
                     if (sensVal) sensVal.textContent = sens.value;
                 }
+                const beatMap = document.getElementById('beatMapToggle');
+                if (beatMap) beatMap.checked = !!data.data.beatMap;
                 const bright = document.getElementById('musicBrightness');
                 if (bright) {
                     bright.value = data.data.brightness || 128;
@@ -437,3 +439,64 @@ function setMusicLedSettings() {
         fetch('/api/music-led/settings', { method: 'POST', headers: { 'Content-Type': 'application/json' }, body: JSON.stringify(settings) }).catch(console.error);
     }, 300);
 }
+
+function setBeatMapEnabled() {
+    const beatMap = document.getElementById('beatMapToggle').checked;
+    fetch('/api/music-led/settings', { method: 'POST', headers: { 'Content-Type': 'application/json' }, body: JSON.stringify({ beatMap }) })
+        .then(r => r.json()).then(data => data.status === 'success' ? showStatus('Beat map: ' + (beatMap ? 'on' : 'off'), 'success', 'fa-check') : showStatus('Lỗi', 'error', 'fa-times'));
+}
+
+/* Live spectrum (SSE, byte-packed frames - see SpectrumStream.java) */
+var spectrumSource = null;
+var spectrumLevels = [];
+var spectrumBeatAt = 0;
+var spectrumBpm = 0;
+
+function toggleSpectrumView() {
+    const on = document.getElementById('spectrumToggle').checked;
+    const canvas = document.getElementById('spectrumCanvas');
+    canvas.style.display = on ? 'block' : 'none';
+    if (spectrumSource) { spectrumSource.close(); spectrumSource = null; }
+    if (!on) { document.getElementById('spectrumInfo').textContent = ''; return; }
+
+    spectrumSource = new EventSource('/api/music-led/spectrum/stream?rate=15');
+    spectrumSource.onmessage = e => {
+        const bin = atob(e.data);
+        const flags = bin.charCodeAt(0);
+        spectrumBpm = bin.charCodeAt(1);
+        if (flags & 1) {
+            const n = bin.charCodeAt(2);
+            spectrumLevels = [];
+            for (let i = 0; i < n; i++) spectrumLevels.push(bin.charCodeAt(3 + i));
+        } else {
+            const n = spectrumLevels.length, maskBytes = (n + 7) >> 3;
+            let pos = 2 + maskBytes;
+            for (let i = 0; i < n; i++) {
+                if (bin.charCodeAt(2 + (i >> 3)) & (1 << (i & 7))) spectrumLevels[i] = bin.charCodeAt(pos++);
+            }
+        }
+        if (flags & 2) spectrumBeatAt = Date.now();
+        drawSpectrum();
+    };
+    spectrumSource.onerror = () => {
+        document.getElementById('spectrumInfo').textContent = 'Reconnecting...';
+    };
+}
+
+function drawSpectrum() {
+    const canvas = document.getElementById('spectrumCanvas');
+    if (canvas.width !== canvas.clientWidth) canvas.width = canvas.clientWidth;
+    const ctx = canvas.getContext('2d'), w = canvas.width, h = canvas.height;
+    ctx.clearRect(0, 0, w, h);
+    const n = spectrumLevels.length;
+    if (n) {
+        const bw = w / n;
+        const beat = Date.now() - spectrumBeatAt < 150;
+        ctx.fillStyle = beat ? '#ff6b6b' : '#4dabf7';
+        for (let i = 0; i < n; i++) {
+            const bh = spectrumLevels[i] / 255 * h;
+            ctx.fillRect(i * bw + 1, h - bh, bw - 2, bh);
+        }
+    }
+    document.getElementById('spectrumInfo').textContent = spectrumBpm ? spectrumBpm + ' BPM' : '';
+}
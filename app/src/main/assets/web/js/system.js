@@ -175,20 +175,34 @@ function executeShell() {
 
     const output = document.getElementById('shellOutput');
     output.textContent = 'Đang thực thi...';
-
-    fetch('/api/system/shell', {
+    let started = false;
+
+    const append = (text) => {
+        if (!started) {
+            output.textContent = '';
+            started = true;
+        }
+        output.textContent += text + '\n';
+        output.scrollTop = output.scrollHeight;
+    };
+
+    // Output arrives as Server-Sent Events while the command is still running
+    fetch('/api/system/shell/stream', {
         method: 'POST',
         headers: { 'Content-Type': 'application/json' },
-        body: JSON.stringify({ command })
+        body: JSON.stringify({ command, privileged: true })
     })
-        .then(r => r.json())
-        .then(data => {
-            let result = '';
-            if (data.stdout) result += data.stdout;
-            if (data.stderr) result += '\n[stderr]\n' + data.stderr;
-            result += `\n[exit code: ${data.exitCode}]`;
-            output.textContent = result.trim();
-        })
+        .then(r => readSse(r, (event, data) => {
+            if (event === 'stdout') {
+                append(data);
+            } else if (event === 'stderr') {
+                append('[stderr] ' + data);
+            } else if (event === 'exit') {
+                const result = JSON.parse(data);
+                if (result.truncated) append('[output truncated]');
+                append(`[exit code: ${result.exitCode}]`);
+            }
+        }))
         .catch(err => {
             output.textContent = 'Error: ' + err.message;
         });
@@ -123,6 +123,38 @@ function postJson(url, data, successMsg = "Success") {
         });
 }
 
+/**
+ * Read a Server-Sent Events response from fetch() (POST streams cannot use
+ * EventSource), calling onEvent(event, data) for every event.
+ */
+function readSse(response, onEvent) {
+    const reader = response.body.getReader();
+    const decoder = new TextDecoder();
+    let buffer = '';
+
+    const handleEvent = (raw) => {
+        let event = 'message';
+        const data = [];
+        raw.split('\n').forEach(line => {
+            if (line.startsWith('event: ')) event = line.substring(7);
+            else if (line.startsWith('data: ')) data.push(line.substring(6));
+        });
+        if (data.length) onEvent(event, data.join('\n'));
+    };
+
+    const pump = () => reader.read().then(({ done, value }) => {
+        if (done) return;
+        buffer += decoder.decode(value, { stream: true });
+        let idx;
+        while ((idx = buffer.indexOf('\n\n')) >= 0) {
+            handleEvent(buffer.substring(0, idx));
+            buffer = buffer.substring(idx + 2);
+        }
+        return pump();
+    });
+    return pump();
+}
+
 function getFileIcon(name) {
     const ext = name.split('.').pop().toLowerCase();
     const icons = {
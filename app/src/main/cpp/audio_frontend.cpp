@@ -0,0 +1,79 @@
+/**
+ * Audio front-end JNI Interface for Android
+ *
+ * One call per capture frame: RMS level, libfvad decision and, when the
+ * wake word detector needs them, the samples copied into its short[].
+ * Reads the frame in place from a direct ByteBuffer.
+ *
+ * Copyright (c) 2024 PhicommR1 Project
+ */
+
+#include <jni.h>
+#include <android/log.h>
+#include <cmath>
+#include <cstdint>
+
+#include "vad_handle.h"
+
+#define LOG_TAG "AudioFrontEnd"
+#define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
+
+// VAD result codes, in the low 2 bits of the return value (must match AudioFrontEnd.java)
+static constexpr int VAD_SILENCE = 0;
+static constexpr int VAD_SPEECH = 1;
+static constexpr int VAD_NOT_RUN = 2;
+static constexpr int VAD_ERROR = 3;
+
+extern "C" {
+
+/**
+ * Analyze one frame
+ * @param vadHandle Handle from VadDetector.nativeInitVad, or 0 to skip VAD
+ * @param frame Direct buffer of raw PCM bytes (little-endian 16-bit) from index 0
+ * @param length Number of bytes
+ * @param samplesOut Receives the samples when not null
+ * @return (rms << 2) | VAD result code, or -1 if the frame is unusable
+ */
+JNIEXPORT jint JNICALL
+Java_com_phicomm_r1manager_server_voicebot_AudioFrontEnd_nativeAnalyze(
+        JNIEnv* env,
+        jclass clazz,
+        jlong vadHandle,
+        jobject frame,
+        jint length,
+        jshortArray samplesOut) {
+
+    const int16_t* samples = static_cast<const int16_t*>(env->GetDirectBufferAddress(frame));
+    if (!samples || length <= 0 || env->GetDirectBufferCapacity(frame) < length) {
+        LOGE("Frame is not a direct buffer of %d bytes", length);
+        return -1;
+    }
+    int numSamples = length / 2;
+
+    int64_t sum = 0;
+    for (int i = 0; i < numSamples; i++) {
+        int32_t s = samples[i];
+        sum += s * s;
+    }
+    int rms = static_cast<int>(std::sqrt(static_cast<double>(sum / numSamples)));
+
+    int vad = VAD_NOT_RUN;
+    if (vadHandle != 0) {
+        VadHandle* handle = reinterpret_cast<VadHandle*>(vadHandle);
+        if (handle->initialized && handle->vad
+                && (numSamples == 160 || numSamples == 320 || numSamples == 480)) {
+            int result = fvad_process(handle->vad, samples, numSamples);
+            vad = result < 0 ? VAD_ERROR : (result == 1 ? VAD_SPEECH : VAD_SILENCE);
+        } else {
+            vad = VAD_ERROR;
+        }
+    }
+
+    if (samplesOut && env->GetArrayLength(samplesOut) >= numSamples) {
+        env->SetShortArrayRegion(samplesOut, 0, numSamples, samples);
+    }
+
+    return (rms << 2) | vad;
+}
+
+} // extern "C"
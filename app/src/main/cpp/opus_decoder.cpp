@@ -26,12 +26,18 @@ Java_com_phicomm_r1manager_server_voicebot_OpusDecoder_nativeInitDecoder(JNIEnv
     return (jlong)(intptr_t)decoder;
 }
 
+/**
+ * Direct ByteBuffer variant: decodes straight from and into native memory,
+ * without pinning or copying Java arrays. An input_size of 0 (input_buffer
+ * may then be null) runs packet loss concealment for max_output_size bytes.
+ * @return Decoded PCM length in bytes, or -1 on error
+ */
 JNIEXPORT jint JNICALL
-Java_com_phicomm_r1manager_server_voicebot_OpusDecoder_nativeDecodeBytes(JNIEnv *env, jobject thiz,
+Java_com_phicomm_r1manager_server_voicebot_OpusDecoder_nativeDecodeDirect(JNIEnv *env, jobject thiz,
                                                         jlong decoder_handle,
-                                                        jbyteArray input_buffer,
+                                                        jobject input_buffer,
                                                         jint input_size,
-                                                        jbyteArray output_buffer,
+                                                        jobject output_buffer,
                                                         jint max_output_size) {
     OpusDecoder *decoder = (OpusDecoder*)(intptr_t)decoder_handle;
     if (decoder == nullptr) {
@@ -39,22 +45,24 @@ Java_com_phicomm_r1manager_server_voicebot_OpusDecoder_nativeDecodeBytes(JNIEnv
         return -1;
     }
 
-    jbyte *input = env->GetByteArrayElements(input_buffer, nullptr);
-    jbyte *output = env->GetByteArrayElements(output_buffer, nullptr);
-
-    int frame_size = max_output_size / 2; // 16-bit PCM
-    int result = opus_decode(decoder, (unsigned char*)input, input_size,
-                             (opus_int16*)output, frame_size, 0);
-
-    env->ReleaseByteArrayElements(input_buffer, input, JNI_ABORT);
-    env->ReleaseByteArrayElements(output_buffer, output, 0);
+    void *input = input_size > 0 ? env->GetDirectBufferAddress(input_buffer) : nullptr;
+    void *output = env->GetDirectBufferAddress(output_buffer);
+    if ((input_size > 0 && (input == nullptr || env->GetDirectBufferCapacity(input_buffer) < input_size))
+        || output == nullptr
+        || env->GetDirectBufferCapacity(output_buffer) < max_output_size) {
+        LOGE("Decode needs direct buffers of sufficient capacity");
+        return -1;
+    }
 
+    // A null packet makes opus_decode conceal a lost frame
+    int result = opus_decode(decoder, (const unsigned char*)input, input_size,
+                             (opus_int16*)output, max_output_size / 2, 0);
     if (result < 0) {
         LOGE("Decoding failed: %s", opus_strerror(result));
         return -1;
     }
 
-    return result * 2; // 返回字节数（每个样本2字节）
+    return result * 2; // Bytes, 2 per sample
 }
 
 JNIEXPORT void JNICALL
@@ -7,9 +7,6 @@
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 
-// Opus编码器句柄
-static OpusEncoder *encoderHandle = nullptr;
-
 extern "C" {
 
 JNIEXPORT jlong JNICALL
@@ -24,21 +21,73 @@ Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeInitEncoder(JNIEnv
         return 0;
     }
 
-    opus_encoder_ctl(encoder, OPUS_SET_BITRATE(64000));  // 64 kbps
-    opus_encoder_ctl(encoder, OPUS_SET_COMPLEXITY(10));  // 0-10, 10 is highest quality
+    // Bitrate, complexity, VBR, DTX and FEC are set through nativeConfigure
     opus_encoder_ctl(encoder, OPUS_SET_SIGNAL(OPUS_SIGNAL_VOICE)); // Hint encoder it's voice
-    opus_encoder_ctl(encoder, OPUS_SET_VBR(1));          // Variable Bitrate
 
     LOGI("Opus encoder initialized: sample_rate=%d, channels=%d", sample_rate, channels);
     return (jlong) (intptr_t) encoder;
 }
 
+/**
+ * Apply the encoder tuning. Takes effect from the next encoded frame.
+ * @return OPUS_OK, or the error of the first setting that was rejected
+ */
 JNIEXPORT jint JNICALL
-Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeEncodeBytes(JNIEnv *env, jobject thiz,
+Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeConfigure(JNIEnv *env, jobject thiz,
                                                         jlong encoder_handle,
-                                                        jbyteArray input_buffer,
+                                                        jint complexity, jint bitrate,
+                                                        jboolean vbr, jboolean dtx,
+                                                        jboolean inband_fec,
+                                                        jint packet_loss_percent) {
+    OpusEncoder *encoder = (OpusEncoder *) (intptr_t) encoder_handle;
+    if (encoder == nullptr) {
+        LOGE("Encoder handle is null");
+        return OPUS_BAD_ARG;
+    }
+
+    int results[] = {
+            opus_encoder_ctl(encoder, OPUS_SET_COMPLEXITY(complexity)),
+            opus_encoder_ctl(encoder, OPUS_SET_BITRATE(bitrate)),
+            opus_encoder_ctl(encoder, OPUS_SET_VBR(vbr ? 1 : 0)),
+            opus_encoder_ctl(encoder, OPUS_SET_DTX(dtx ? 1 : 0)),
+            opus_encoder_ctl(encoder, OPUS_SET_INBAND_FEC(inband_fec ? 1 : 0)),
+            opus_encoder_ctl(encoder, OPUS_SET_PACKET_LOSS_PERC(packet_loss_percent)),
+    };
+    for (int result : results) {
+        if (result != OPUS_OK) {
+            LOGE("Encoder setting rejected: %s", opus_strerror(result));
+            return result;
+        }
+    }
+
+    LOGI("Opus encoder configured: complexity=%d, bitrate=%d, vbr=%d, dtx=%d, fec=%d, loss=%d%%",
+         complexity, bitrate, vbr, dtx, inband_fec, packet_loss_percent);
+    return OPUS_OK;
+}
+
+/**
+ * Whether libopus was built with its NEON code paths (R1_OPUS_NEON)
+ */
+JNIEXPORT jboolean JNICALL
+Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeIsNeonBuild(JNIEnv *env, jclass clazz) {
+#ifdef R1_OPUS_NEON
+    return JNI_TRUE;
+#else
+    return JNI_FALSE;
+#endif
+}
+
+/**
+ * Direct ByteBuffer variant: encodes straight from and into native memory,
+ * without pinning or copying Java arrays.
+ * @return Packet length in bytes, or -1 on error
+ */
+JNIEXPORT jint JNICALL
+Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeEncodeDirect(JNIEnv *env, jobject thiz,
+                                                        jlong encoder_handle,
+                                                        jobject input_buffer,
                                                         jint input_size,
-                                                        jbyteArray output_buffer,
+                                                        jobject output_buffer,
                                                         jint max_output_size) {
     OpusEncoder *encoder = (OpusEncoder *) (intptr_t) encoder_handle;
     if (encoder == nullptr) {
@@ -46,18 +95,17 @@ Java_com_phicomm_r1manager_server_voicebot_OpusEncoder_nativeEncodeBytes(JNIEnv
         return -1;
     }
 
-    jbyte *input = env->GetByteArrayElements(input_buffer, nullptr);
-    jbyte *output = env->GetByteArrayElements(output_buffer, nullptr);
-
-    opus_int16 *pcm = (opus_int16 *) input;
-    int frame_size = input_size / 2; // 16位samples的数量
+    void *input = env->GetDirectBufferAddress(input_buffer);
+    void *output = env->GetDirectBufferAddress(output_buffer);
+    if (input == nullptr || output == nullptr
+        || env->GetDirectBufferCapacity(input_buffer) < input_size
+        || env->GetDirectBufferCapacity(output_buffer) < max_output_size) {
+        LOGE("Encode needs direct buffers of sufficient capacity");
+        return -1;
+    }
 
-    int result = opus_encode(encoder, pcm, frame_size,
+    int result = opus_encode(encoder, (const opus_int16 *) input, input_size / 2,
                              (unsigned char *) output, max_output_size);
-
-    env->ReleaseByteArrayElements(input_buffer, input, JNI_ABORT);
-    env->ReleaseByteArrayElements(output_buffer, output, 0);
-
     if (result < 0) {
         LOGE("Encoding failed: %s", opus_strerror(result));
         return -1;
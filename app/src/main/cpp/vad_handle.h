@@ -0,0 +1,22 @@
+/**
+ * VAD handle shared by the VAD and audio front-end JNI code
+ *
+ * Copyright (c) 2024 PhicommR1 Project
+ */
+
+#ifndef VAD_HANDLE_H
+#define VAD_HANDLE_H
+
+extern "C" {
+#include "fvad.h"
+}
+
+// VAD handle structure for multi-instance support
+struct VadHandle {
+    Fvad* vad;
+    int sample_rate;
+    int mode;
+    bool initialized;
+};
+
+#endif // VAD_HANDLE_H
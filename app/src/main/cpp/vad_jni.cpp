@@ -12,9 +12,7 @@
 #include <cstdlib>
 #include <cstring>
 
-extern "C" {
-#include "fvad.h"
-}
+#include "vad_handle.h"
 
 #define LOG_TAG "VadJNI"
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
@@ -27,13 +25,6 @@ static constexpr int VAD_FRAME_MS_30 = 30;
 static constexpr int VAD_FRAME_SAMPLES_30 = (VAD_SAMPLE_RATE * VAD_FRAME_MS_30) / 1000; // 480 samples
 static constexpr int VAD_MODE_VERY_AGGRESSIVE = 3;
 
-// VAD handle structure for multi-instance support
-struct VadHandle {
-    Fvad* vad;
-    int sample_rate;
-    int mode;
-    bool initialized;
-};
 
 extern "C" {
 
@@ -199,6 +190,56 @@ Java_com_phicomm_r1manager_server_voicebot_VadDetector_nativeIsSpeechBytes(
     return result;
 }
 
+/**
+ * Process audio frame from a direct ByteBuffer (no array pinning or copy)
+ * @param nativeHandle Handle returned from nativeInitVad
+ * @param audioBuffer Direct buffer of raw PCM bytes (little-endian 16-bit)
+ * @param offset Start offset in the buffer
+ * @param length Number of bytes (must be 320/640/960 for 10/20/30ms)
+ * @return 1 if speech detected, 0 if silence, -1 on error
+ */
+JNIEXPORT jint JNICALL
+Java_com_phicomm_r1manager_server_voicebot_VadDetector_nativeIsSpeechDirect(
+        JNIEnv* env,
+        jobject thiz,
+        jlong nativeHandle,
+        jobject audioBuffer,
+        jint offset,
+        jint length) {
+
+    if (nativeHandle == 0) {
+        LOGE("Invalid native handle (null)");
+        return -1;
+    }
+
+    VadHandle* handle = reinterpret_cast<VadHandle*>(nativeHandle);
+    if (!handle->initialized || !handle->vad) {
+        LOGE("VAD not properly initialized");
+        return -1;
+    }
+
+    int numSamples = length / 2;
+    if (numSamples != 160 && numSamples != 320 && numSamples != 480) {
+        LOGE("Invalid byte length: %d (samples=%d, expected 160/320/480)", length, numSamples);
+        return -1;
+    }
+
+    jbyte* bytes = static_cast<jbyte*>(env->GetDirectBufferAddress(audioBuffer));
+    if (!bytes || offset < 0 || env->GetDirectBufferCapacity(audioBuffer) < offset + length) {
+        LOGE("Audio buffer is not direct or too small");
+        return -1;
+    }
+
+    const int16_t* samples = reinterpret_cast<const int16_t*>(bytes + offset);
+    int result = fvad_process(handle->vad, samples, numSamples);
+    if (result < 0) {
+        LOGE("VAD processing error");
+        return -1;
+    }
+
+    return result;
+}
+
 /**
  * Reset VAD state (call when starting new utterance detection)
  * @param nativeHandle Handle returned from nativeInitVad
@@ -7,8 +7,13 @@ import com.phicomm.r1manager.server.model.xiaozhi.MqttConfig;
 import com.google.gson.reflect.TypeToken;
 
 import com.phicomm.r1manager.server.model.xiaozhi.XiaozhiBotProfile;
+import com.phicomm.r1manager.server.voicebot.EndpointingConfig;
+import com.phicomm.r1manager.server.voicebot.JitterBufferConfig;
+import com.phicomm.r1manager.server.voicebot.OpusEncoderConfig;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class XiaozhiConfig {
@@ -22,6 +27,14 @@ public class XiaozhiConfig {
     private static final String KEY_BOT_PROFILES = "bot_profiles";
     private static final String KEY_ACTIVE_BOT_ID = "active_bot_id";
     private static final String KEY_VOICE_BOT_ENABLED = "voice_bot_enabled";
+    private static final String KEY_SPEAKING_LED_FOLLOWS_VOICE = "speaking_led_follows_voice";
+    private static final String KEY_LISTEN_MODE = "listen_mode";
+    private static final String KEY_FULL_DUPLEX = "full_duplex";
+
+    // Listen modes of the Xiaozhi protocol
+    public static final String LISTEN_MODE_AUTO = "auto";
+    public static final String LISTEN_MODE_MANUAL = "manual";
+    public static final String LISTEN_MODE_REALTIME = "realtime";
 
     // Defaults
     private static final String DEFAULT_WS_URL = "wss://api.tenclass.net/xiaozhi/v1/";
@@ -188,6 +201,110 @@ public class XiaozhiConfig {
         prefs.edit().putBoolean(KEY_VOICE_BOT_ENABLED, enabled).commit();
     }
 
+    /**
+     * Whether the speaking LEDs follow the level of the assistant's voice
+     * instead of breathing at a fixed pace.
+     */
+    public boolean isSpeakingLedFollowsVoice() {
+        return prefs.getBoolean(KEY_SPEAKING_LED_FOLLOWS_VOICE, false);
+    }
+
+    public void setSpeakingLedFollowsVoice(boolean enabled) {
+        prefs.edit().putBoolean(KEY_SPEAKING_LED_FOLLOWS_VOICE, enabled).apply();
+    }
+
+    /**
+     * Full duplex: the mic stays open while TTS plays, and speech over it
+     * (past the echo gate) interrupts the reply.
+     */
+    public boolean isFullDuplex() {
+        return prefs.getBoolean(KEY_FULL_DUPLEX, false);
+    }
+
+    public void setFullDuplex(boolean enabled) {
+        prefs.edit().putBoolean(KEY_FULL_DUPLEX, enabled).apply();
+    }
+
+    /**
+     * Listen mode sent with "listen start". In auto and manual mode the
+     * device sends "listen stop" as soon as its own endpointing fires; in
+     * realtime mode it keeps streaming and leaves turn-taking to the server.
+     */
+    public String getListenMode() {
+        return prefs.getString(KEY_LISTEN_MODE, LISTEN_MODE_AUTO);
+    }
+
+    /**
+     * @return False if the mode is not one of the LISTEN_MODE_* values
+     */
+    public boolean setListenMode(String mode) {
+        if (!LISTEN_MODE_AUTO.equals(mode) && !LISTEN_MODE_MANUAL.equals(mode)
+                && !LISTEN_MODE_REALTIME.equals(mode)) {
+            return false;
+        }
+        prefs.edit().putString(KEY_LISTEN_MODE, mode).apply();
+        return true;
+    }
+
+    /**
+     * Endpointing tuning under the EndpointingConfig key names. Unset keys
+     * take the defaults.
+     */
+    public EndpointingConfig getEndpointingConfig() {
+        return EndpointingConfig.DEFAULT.with(getTuning(EndpointingConfig.DEFAULT.toMap()));
+    }
+
+    public void setEndpointingConfig(EndpointingConfig endpointing) {
+        setTuning(endpointing.toMap());
+    }
+
+    /**
+     * TTS jitter buffer tuning under the JitterBufferConfig key names.
+     */
+    public JitterBufferConfig getJitterBufferConfig() {
+        return JitterBufferConfig.DEFAULT.with(getTuning(JitterBufferConfig.DEFAULT.toMap()));
+    }
+
+    public void setJitterBufferConfig(JitterBufferConfig jitterBuffer) {
+        setTuning(jitterBuffer.toMap());
+    }
+
+    /**
+     * Uplink Opus encoder tuning under the OpusEncoderConfig key names.
+     */
+    public OpusEncoderConfig getOpusEncoderConfig() {
+        return OpusEncoderConfig.DEFAULT.with(getTuning(OpusEncoderConfig.DEFAULT.toMap()));
+    }
+
+    public void setOpusEncoderConfig(OpusEncoderConfig encoder) {
+        setTuning(encoder.toMap());
+    }
+
+    /**
+     * Stored values of the given tuning keys. They are written as strings;
+     * endpointing and jitter buffer values saved as ints by earlier versions
+     * read back the same.
+     */
+    private Map<String, String> getTuning(Map<String, String> defaults) {
+        Map<String, ?> all = prefs.getAll();
+        Map<String, String> stored = new HashMap<>();
+        for (String key : defaults.keySet()) {
+            Object value = all.get(key);
+            if (value != null) {
+                stored.put(key, String.valueOf(value));
+            }
+        }
+        return stored;
+    }
+
+    private void setTuning(Map<String, String> values) {
+        SharedPreferences.Editor editor = prefs.edit();
+        for (Map.Entry<String, String> entry : values.entrySet()) {
+            editor.putString(entry.getKey(), entry.getValue());
+        }
+        editor.apply();
+    }
+
     public XiaozhiBotProfile getActiveProfile() {
         String activeId = getActiveBotId();
         List<XiaozhiBotProfile> profiles = getBotProfiles();
@@ -5,6 +5,7 @@ import com.phicomm.r1manager.util.AppLog;
 import org.java_websocket.client.WebSocketClient;
 import org.java_websocket.handshake.ServerHandshake;
 import org.json.JSONObject;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
@@ -201,6 +202,15 @@ public class HardwareClient extends WebSocketClient {
         }
     }
 
+    /**
+     * Runs several commands in one shell message, so the daemon starts one
+     * shell for the whole sequence instead of one per command, and waits for
+     * the daemon's reply.
+     */
+    public JSONObject sendShellBatch(List<String> commands, String typeId, long timeoutMs) {
+        return sendShellCommand(joinCommands(commands), typeId, timeoutMs);
+    }
+
     // ==================== New Control Methods ====================
 
     public void reboot() {
@@ -443,7 +453,29 @@ public class HardwareClient extends WebSocketClient {
         }
     }
 
-    public void sendShell(String command, String typeId) {
+    /**
+     * Fire-and-forget variant of {@link #sendShellBatch(List, String, long)}.
+     */
+    public void sendShellBatch(List<String> commands, String typeId) {
+        sendShell(joinCommands(commands), typeId);
+    }
+
+    private static String joinCommands(List<String> commands) {
+        StringBuilder script = new StringBuilder();
+        for (String command : commands) {
+            if (script.length() > 0)
+                script.append(" ; ");
+            script.append(command);
+        }
+        return script.toString();
+    }
+
+    /**
+     * Fire-and-forget shell command.
+     *
+     * @return false if the daemon could not be reached and nothing was sent
+     */
+    public boolean sendShell(String command, String typeId) {
         if (ensureConnection()) {
             try {
                 JSONObject json = new JSONObject();
@@ -451,9 +483,11 @@ public class HardwareClient extends WebSocketClient {
                 json.put("shell", command);
                 json.put("type_id", typeId != null ? typeId : "shell_cmd");
                 send(json.toString());
+                return true;
             } catch (Exception e) {
                 AppLog.e(TAG, "Error sending shell", e);
             }
         }
+        return false;
     }
 }
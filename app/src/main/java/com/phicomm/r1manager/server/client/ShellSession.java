@@ -0,0 +1,290 @@
+package com.phicomm.r1manager.server.client;
+
+import com.phicomm.r1manager.server.model.dto.CommonDto;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ShellSession - Long-lived local "sh" process for sequential commands.
+ *
+ * Instead of fork-exec'ing "sh -c" for every command, commands are written to
+ * the stdin of one persistent shell. Each command is framed by an end marker
+ * on stdout (carrying the exit code) and on stderr, so output can be split
+ * per command.
+ *
+ * Every command runs in its own subshell, so a "cd", "export", "set -e" or
+ * "exit" only affects that command, as it did with "sh -c". The subshell is
+ * a plain fork of the running shell; nothing is exec'd for it.
+ *
+ * Commands run one at a time, so the session is only for short, known
+ * commands (e.g. "am force-stop" when the hardware daemon is down); a slow
+ * one holds up every other caller. Arbitrary commands go through
+ * ShellStream.runLocal instead. A command that times out is killed together
+ * with the shell and everything it started; the next command starts a fresh
+ * session.
+ */
+public class ShellSession {
+
+    private static final String TAG = "ShellSession";
+    private static final String MARKER_PREFIX = "__R1_EOC_";
+    private static final String PID_MARKER = "__R1_PID_";
+    private static final long START_TIMEOUT_MS = 2000;
+    private static ShellSession instance;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private Process process;
+    private int shellPid = -1;
+    private Writer stdin;
+    private BlockingQueue<Line> lines;
+
+    public static synchronized ShellSession getInstance() {
+        if (instance == null) {
+            instance = new ShellSession();
+        }
+        return instance;
+    }
+
+    /**
+     * Run a command in the session and wait for its end markers.
+     *
+     * @param command   Shell command line (stdin is redirected from /dev/null)
+     * @param timeoutMs Maximum time to wait for the command to finish
+     */
+    public synchronized CommonDto.ShellResult execute(String command, long timeoutMs) {
+        CommonDto.ShellResult result = new CommonDto.ShellResult();
+        StringBuilder stdout = new StringBuilder();
+        StringBuilder stderr = new StringBuilder();
+        result.exitCode = -1;
+
+        try {
+            ensureStarted();
+
+            String marker = MARKER_PREFIX + sequence.incrementAndGet();
+            BlockingQueue<Line> queue = lines;
+            stdin.write(frame(command, marker));
+            stdin.flush();
+
+            boolean stdoutDone = false;
+            boolean stderrDone = false;
+            long deadline = System.currentTimeMillis() + timeoutMs;
+
+            while (!stdoutDone || !stderrDone) {
+                long remaining = deadline - System.currentTimeMillis();
+                Line line = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) : null;
+                if (line == null) {
+                    AppLog.w(TAG, "Command timed out after " + timeoutMs + "ms, restarting shell: " + command);
+                    stderr.append("Timed out after ").append(timeoutMs).append("ms\n");
+                    // Destroying the shell alone would leave the command's subshell running
+                    killTree(shellPid);
+                    destroy();
+                    break;
+                }
+                if (line.text == null) {
+                    // Shell died underneath us
+                    result.exitCode = exitValueOf(process);
+                    destroy();
+                    break;
+                }
+
+                int idx = line.text.indexOf(marker);
+                String text = idx >= 0 ? line.text.substring(0, idx) : line.text;
+                if (idx < 0 || !text.isEmpty()) {
+                    // Output without a trailing newline shares its line with the marker
+                    (line.stderr ? stderr : stdout).append(text).append("\n");
+                }
+
+                if (idx >= 0) {
+                    if (line.stderr) {
+                        stderrDone = true;
+                    } else {
+                        stdoutDone = true;
+                        result.exitCode = parseExitCode(line.text.substring(idx + marker.length()));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            destroy();
+            stderr.append("Interrupted\n");
+        } catch (Exception e) {
+            AppLog.e(TAG, "Shell session error", e);
+            destroy();
+            stderr.append(e.getMessage()).append("\n");
+        }
+
+        result.stdout = stdout.toString();
+        result.stderr = stderr.toString();
+        result.success = (result.exitCode == 0);
+        return result;
+    }
+
+    /**
+     * Tear down the shell process. The next command starts a new one.
+     */
+    public synchronized void destroy() {
+        if (process != null) {
+            try {
+                stdin.close();
+            } catch (Exception ignored) {
+            }
+            process.destroy();
+            process = null;
+            shellPid = -1;
+            stdin = null;
+            lines = null;
+        }
+    }
+
+    public synchronized boolean isAlive() {
+        return process != null;
+    }
+
+    // ==================== Internals ====================
+
+    private void ensureStarted() throws Exception {
+        if (process != null) {
+            return;
+        }
+
+        ProcessBuilder pb = new ProcessBuilder("sh");
+        process = pb.start();
+        stdin = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+
+        // Fresh queue per process so stale readers of a dead shell cannot leak lines into a new one
+        lines = new LinkedBlockingQueue<>();
+        startReader(process.getInputStream(), false, lines);
+        startReader(process.getErrorStream(), true, lines);
+
+        // The shell's pid, to find what it started if a command has to be killed
+        stdin.write("echo \"" + PID_MARKER + "$$\"\n");
+        stdin.flush();
+        Line line = lines.poll(START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        if (line != null && line.text != null && line.text.startsWith(PID_MARKER)) {
+            shellPid = parseExitCode(line.text.substring(PID_MARKER.length()));
+        } else {
+            AppLog.w(TAG, "Shell session did not report its pid");
+        }
+        AppLog.i(TAG, "Shell session started, pid " + shellPid);
+    }
+
+    /**
+     * Kill a process and everything below it. The whole tree is read from
+     * /proc first, so nothing escapes by being reparented while we kill.
+     */
+    private static void killTree(int pid) {
+        if (pid <= 0) {
+            return;
+        }
+        Map<Integer, List<Integer>> children = readChildren();
+        List<Integer> tree = new ArrayList<>();
+        tree.add(pid);
+        for (int i = 0; i < tree.size(); i++) {
+            List<Integer> below = children.get(tree.get(i));
+            if (below != null) {
+                tree.addAll(below);
+            }
+        }
+        for (int p : tree) {
+            android.os.Process.killProcess(p);
+        }
+    }
+
+    /**
+     * Children of every process, by parent pid, from /proc/<pid>/stat.
+     */
+    private static Map<Integer, List<Integer>> readChildren() {
+        Map<Integer, List<Integer>> children = new HashMap<>();
+        File[] entries = new File("/proc").listFiles();
+        if (entries == null) {
+            return children;
+        }
+        for (File entry : entries) {
+            String name = entry.getName();
+            if (name.isEmpty() || !Character.isDigit(name.charAt(0))) {
+                continue;
+            }
+            try (BufferedReader reader = new BufferedReader(new FileReader(new File(entry, "stat")))) {
+                String stat = reader.readLine();
+                // "pid (comm) state ppid ...", where comm may contain spaces
+                String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+                Integer ppid = Integer.valueOf(fields[1]);
+                List<Integer> list = children.get(ppid);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    children.put(ppid, list);
+                }
+                list.add(Integer.valueOf(name));
+            } catch (Exception e) {
+                // Process exited while we were reading
+            }
+        }
+        return children;
+    }
+
+    private void startReader(final InputStream stream, final boolean isStderr, final BlockingQueue<Line> queue) {
+        ThreadManager.getInstance().executeIO(() -> {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                String text;
+                while ((text = reader.readLine()) != null) {
+                    queue.offer(new Line(isStderr, text));
+                }
+            } catch (Exception e) {
+                // Stream closed by destroy()
+            }
+            queue.offer(new Line(isStderr, null));
+        });
+    }
+
+    private static String frame(String command, String marker) {
+        // The subshell keeps compound commands intact and their side effects
+        // contained; the end markers report its exit code
+        return "( " + command + "\n) </dev/null\n"
+                + "echo \"" + marker + " $?\"\n"
+                + "echo \"" + marker + "\" >&2\n";
+    }
+
+    private static int parseExitCode(String tail) {
+        try {
+            return Integer.parseInt(tail.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static int exitValueOf(Process p) {
+        try {
+            return p != null ? p.waitFor() : -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        }
+    }
+
+    private static class Line {
+        final boolean stderr;
+        final String text; // null = end of stream
+
+        Line(boolean stderr, String text) {
+            this.stderr = stderr;
+            this.text = text;
+        }
+    }
+}
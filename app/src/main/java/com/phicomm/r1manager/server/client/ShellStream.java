@@ -0,0 +1,327 @@
+package com.phicomm.r1manager.server.client;
+
+import com.phicomm.r1manager.server.model.dto.CommonDto;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShellStream - Runs long-running commands with incremental output.
+ *
+ * Local mode runs the command in its own "sh -c" process. stdout and stderr
+ * are drained by two threads at once, so a chatty stderr can no longer fill
+ * its pipe and stall the child while we are still reading stdout. Output is
+ * capped and the process is killed on timeout or when the cap is exceeded.
+ *
+ * Privileged mode goes through the hardware daemon, which only answers once
+ * the command has finished. The command's output is redirected to a log file
+ * that is tailed locally, so lines still arrive while it runs (stderr is
+ * merged into stdout on that path). A command that times out or is cancelled
+ * is killed on the daemon side and its log removed.
+ */
+public class ShellStream {
+
+    private static final String TAG = "ShellStream";
+    private static final String EXIT_MARKER = "__R1_EXIT_";
+    private static final long TAIL_POLL_MS = 100;
+
+    public static final int DEFAULT_MAX_OUTPUT_BYTES = 256 * 1024;
+
+    /**
+     * Receives command output incrementally, one line at a time.
+     */
+    public interface OutputListener {
+        void onStdout(String line);
+
+        void onStderr(String line);
+    }
+
+    /**
+     * Output listener that can also abort the command, e.g. when the HTTP
+     * client streaming the output has gone away.
+     */
+    public interface StreamListener extends OutputListener {
+        boolean isCancelled();
+    }
+
+    private ShellStream() {
+    }
+
+    /**
+     * Run a command locally, streaming lines to the listener as they arrive.
+     */
+    public static CommonDto.ShellResult runLocal(String command, long timeoutMs, int maxOutputBytes,
+            OutputListener listener) {
+        final Collector collector = new Collector(maxOutputBytes, listener);
+        CommonDto.ShellResult result = new CommonDto.ShellResult();
+        result.exitCode = -1;
+
+        Process process = null;
+        try {
+            process = new ProcessBuilder("sh", "-c", command).start();
+            process.getOutputStream().close();
+            collector.process = process;
+
+            CountDownLatch drained = new CountDownLatch(2);
+            drain(process.getInputStream(), false, collector, drained);
+            drain(process.getErrorStream(), true, collector, drained);
+
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            boolean done = false;
+            while (!done && !collector.isStopped()) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    AppLog.w(TAG, "Command timed out after " + timeoutMs + "ms: " + command);
+                    collector.fail("Timed out after " + timeoutMs + "ms");
+                    break;
+                }
+                done = drained.await(Math.min(remaining, 1000), TimeUnit.MILLISECONDS);
+                collector.checkCancelled();
+            }
+
+            if (done) {
+                result.exitCode = process.waitFor();
+            } else {
+                process.destroy();
+                drained.await(1000, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            collector.fail("Interrupted");
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error running command", e);
+            collector.fail(e.getMessage());
+        } finally {
+            if (process != null) {
+                process.destroy();
+            }
+        }
+
+        return collector.finish(result);
+    }
+
+    /**
+     * Run a command through the hardware daemon, tailing its output file.
+     *
+     * The command runs in a background subshell whose pid is written next to
+     * the log, so it can be killed (with its children) on timeout or cancel;
+     * the log is deleted either way.
+     *
+     * @param logFile A file both the daemon and this app can access (e.g. on /sdcard)
+     * @return The result, or null if the daemon could not be reached and
+     *         nothing was run
+     */
+    public static CommonDto.ShellResult runPrivileged(String command, File logFile, long timeoutMs,
+            int maxOutputBytes, OutputListener listener) {
+        String path = logFile.getAbsolutePath();
+        File pidFile = new File(path + ".pid");
+        logFile.delete();
+        pidFile.delete();
+
+        // Unique per run, and matched anywhere in a line: output without a
+        // trailing newline shares its last line with the marker
+        String exitMarker = EXIT_MARKER + Long.toHexString(System.nanoTime()) + "_";
+        String wrapped = "( " + command + "\n) > " + path + " 2>&1 </dev/null &\n"
+                + "echo $$ $! > " + pidFile.getAbsolutePath() + "\n"
+                + "wait $!\n"
+                + "echo \"" + exitMarker + "$?\" >> " + path;
+        if (!HardwareClient.getInstance().sendShell(wrapped, "shell_stream")) {
+            return null;
+        }
+
+        Collector collector = new Collector(maxOutputBytes, listener);
+        CommonDto.ShellResult result = new CommonDto.ShellResult();
+        result.exitCode = -1;
+
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        long offset = 0;
+        boolean finished = false;
+
+        try {
+            while (!finished && !collector.isStopped()) {
+                if (System.currentTimeMillis() > deadline) {
+                    collector.fail("Timed out after " + timeoutMs + "ms");
+                    break;
+                }
+
+                byte[] chunk = logFile.exists() && logFile.length() > offset ? readFrom(logFile, offset) : null;
+                int end = chunk != null ? lastNewline(chunk) : -1;
+                if (end >= 0) {
+                    // Only consume whole lines so multi-byte characters are never split
+                    offset += end + 1;
+                    for (String line : new String(chunk, 0, end, "UTF-8").split("\n", -1)) {
+                        int idx = line.indexOf(exitMarker);
+                        if (idx > 0) {
+                            collector.line(false, line.substring(0, idx));
+                        }
+                        if (idx >= 0) {
+                            result.exitCode = parseExitCode(line.substring(idx + exitMarker.length()));
+                            finished = true;
+                            break;
+                        }
+                        collector.line(false, line);
+                    }
+                } else {
+                    Thread.sleep(TAIL_POLL_MS);
+                    collector.checkCancelled();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            collector.fail("Interrupted");
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error tailing " + path, e);
+            collector.fail(e.getMessage());
+        } finally {
+            if (!finished) {
+                killPrivileged(path, pidFile.getAbsolutePath());
+            }
+            logFile.delete();
+            pidFile.delete();
+        }
+
+        return collector.finish(result);
+    }
+
+    /**
+     * Kill a privileged command started by runPrivileged(): first the
+     * daemon's wrapper shell, so it cannot append to the log any more, then
+     * the command's subshell and everything below it. Removes the files.
+     */
+    private static void killPrivileged(String path, String pidPath) {
+        AppLog.w(TAG, "Killing privileged command logging to " + path);
+        String script = "kt() { for f in /proc/[0-9]*/stat; do read p c s pp rest < $f; "
+                + "[ \"$pp\" = \"$1\" ] && kt $p; done 2>/dev/null; kill -9 $1 2>/dev/null; }\n"
+                // The pid file may not be written yet if we gave up right away
+                + "for i in 1 2 3 4 5; do [ -s " + pidPath + " ] && break; sleep 1; done\n"
+                + "if [ -s " + pidPath + " ]; then read w c < " + pidPath + "; kill -9 $w 2>/dev/null; kt $c; fi\n"
+                + "rm -f " + path + " " + pidPath;
+        HardwareClient.getInstance().sendShell(script, "shell_stream_kill");
+    }
+
+    private static void drain(final InputStream stream, final boolean isStderr, final Collector collector,
+            final CountDownLatch drained) {
+        ThreadManager.getInstance().executeIO(() -> {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    collector.line(isStderr, line);
+                }
+            } catch (Exception e) {
+                // Stream closed by destroy()
+            } finally {
+                drained.countDown();
+            }
+        });
+    }
+
+    private static byte[] readFrom(File file, long offset) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(offset);
+            byte[] chunk = new byte[(int) Math.min(raf.length() - offset, 64 * 1024)];
+            raf.readFully(chunk);
+            return chunk;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int lastNewline(byte[] chunk) {
+        for (int i = chunk.length - 1; i >= 0; i--) {
+            if (chunk[i] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int parseExitCode(String text) {
+        try {
+            return Integer.parseInt(text.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Accumulates output from both streams, enforces the byte cap and
+     * serializes listener callbacks.
+     */
+    private static class Collector {
+        private final int maxBytes;
+        private final OutputListener listener;
+        private final StringBuilder stdout = new StringBuilder();
+        private final StringBuilder stderr = new StringBuilder();
+        private int totalBytes = 0;
+        private boolean truncated = false;
+        private volatile boolean stopped = false;
+        volatile Process process;
+
+        Collector(int maxBytes, OutputListener listener) {
+            this.maxBytes = maxBytes;
+            this.listener = listener;
+        }
+
+        synchronized void line(boolean isStderr, String text) {
+            if (truncated) {
+                return;
+            }
+            totalBytes += text.length() + 1;
+            if (totalBytes > maxBytes) {
+                truncated = true;
+                stopped = true;
+                AppLog.w(TAG, "Output exceeded " + maxBytes + " bytes, stopping command");
+                if (process != null) {
+                    process.destroy();
+                }
+                return;
+            }
+
+            (isStderr ? stderr : stdout).append(text).append('\n');
+            if (listener != null) {
+                if (isStderr) {
+                    listener.onStderr(text);
+                } else {
+                    listener.onStdout(text);
+                }
+                checkCancelled();
+            }
+        }
+
+        synchronized void checkCancelled() {
+            if (!stopped && listener instanceof StreamListener && ((StreamListener) listener).isCancelled()) {
+                stopped = true;
+                if (process != null) {
+                    process.destroy();
+                }
+            }
+        }
+
+        synchronized void fail(String message) {
+            stopped = true;
+            line(true, message != null ? message : "Error");
+        }
+
+        boolean isStopped() {
+            return stopped;
+        }
+
+        synchronized CommonDto.ShellResult finish(CommonDto.ShellResult result) {
+            result.stdout = stdout.toString();
+            result.stderr = stderr.toString();
+            result.truncated = truncated;
+            result.success = (result.exitCode == 0 && !truncated);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.phicomm.r1manager.server.client;
+
+import com.phicomm.r1manager.server.model.dto.CommonDto;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.SseEmitter;
+
+import org.json.JSONObject;
+
+/**
+ * SseShellListener - Pushes ShellStream output to an SSE stream.
+ *
+ * Lines go out as "stdout"/"stderr" events, and finish() sends one "exit"
+ * event with the result before closing the stream. While the command is
+ * quiet a keep-alive comment is written every few seconds; that write is
+ * what notices a client that went away, which cancels the command.
+ */
+public class SseShellListener implements ShellStream.StreamListener {
+
+    private static final String TAG = "SseShellListener";
+    private static final long KEEPALIVE_MS = 2000;
+
+    private final SseEmitter emitter;
+    private long lastKeepAlive = System.currentTimeMillis();
+
+    public SseShellListener(SseEmitter emitter) {
+        this.emitter = emitter;
+    }
+
+    @Override
+    public void onStdout(String line) {
+        emitter.send("stdout", line);
+    }
+
+    @Override
+    public void onStderr(String line) {
+        emitter.send("stderr", line);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        long now = System.currentTimeMillis();
+        if (now - lastKeepAlive >= KEEPALIVE_MS) {
+            lastKeepAlive = now;
+            emitter.comment("keep-alive");
+        }
+        return emitter.isClosed();
+    }
+
+    /**
+     * Send the "exit" event ({exitCode, success, truncated}) and close the stream.
+     */
+    public void finish(CommonDto.ShellResult result) {
+        try {
+            JSONObject exit = new JSONObject();
+            exit.put("exitCode", result.exitCode);
+            exit.put("success", result.success);
+            exit.put("truncated", result.truncated);
+            emitter.send("exit", exit.toString());
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error sending exit event", e);
+        }
+        emitter.close();
+    }
+}
@@ -3,7 +3,10 @@ package com.phicomm.r1manager.server.controller;
 import android.content.Context;
 import com.phicomm.r1manager.server.annotation.*;
 import com.phicomm.r1manager.server.model.ApiResponse;
+import com.phicomm.r1manager.server.client.SseShellListener;
 import com.phicomm.r1manager.server.manager.AppManager;
+import com.phicomm.r1manager.util.SseEmitter;
+import com.phicomm.r1manager.util.ThreadManager;
 import fi.iki.elonen.NanoHTTPD;
 import fi.iki.elonen.NanoHTTPD.IHTTPSession;
 import fi.iki.elonen.NanoHTTPD.Response;
@@ -86,20 +89,7 @@ public class AppsController {
     @PostMapping("/install")
     public ApiResponse<String> installApp(IHTTPSession session) {
         try {
-            Map<String, String> files = new HashMap<>();
-            session.parseBody(files);
-            String tempPath = null;
-            if (files.containsKey("file"))
-                tempPath = files.get("file");
-            else {
-                for (String key : files.keySet()) {
-                    if (!"postData".equals(key)) {
-                        tempPath = files.get(key);
-                        break;
-                    }
-                }
-            }
-
+            String tempPath = receiveUpload(session);
             if (tempPath != null && appManager.installApp(tempPath)) {
                 return ApiResponse.successMessage("App installed");
             }
@@ -109,6 +99,54 @@ public class AppsController {
         }
     }
 
+    /**
+     * Same upload as /install, with the output of "pm install" streamed as
+     * Server-Sent Events while it runs (see SystemController /shell/stream).
+     */
+    @PostMapping("/install/stream")
+    public Response installAppStream(IHTTPSession session) {
+        final String tempPath;
+        try {
+            tempPath = receiveUpload(session);
+        } catch (Exception e) {
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain",
+                    "Upload failed: " + e.getMessage());
+        }
+        if (tempPath == null) {
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "No file uploaded");
+        }
+
+        // The upload's temp file lives until this response has been sent
+        SseEmitter emitter = new SseEmitter();
+        ThreadManager.getInstance().executeIO(() -> {
+            SseShellListener listener = new SseShellListener(emitter);
+            listener.finish(appManager.installApp(tempPath, listener));
+        });
+
+        Response response = NanoHTTPD.newChunkedResponse(Response.Status.OK, SseEmitter.MIME_TYPE,
+                emitter.getInputStream());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    /**
+     * Parse a multipart upload and return the temp path of its file ("file"
+     * field, else the first file), or null if there is none.
+     */
+    private String receiveUpload(IHTTPSession session) throws Exception {
+        Map<String, String> files = new HashMap<>();
+        session.parseBody(files);
+        if (files.containsKey("file")) {
+            return files.get("file");
+        }
+        for (String key : files.keySet()) {
+            if (!"postData".equals(key)) {
+                return files.get(key);
+            }
+        }
+        return null;
+    }
+
     public static class PackageRequest {
         @com.google.gson.annotations.SerializedName("package")
         public String pkg;
@@ -4,11 +4,26 @@ import android.content.Context;
 import com.phicomm.r1manager.server.annotation.*;
 import com.phicomm.r1manager.server.model.ApiResponse;
 import com.phicomm.r1manager.server.service.MusicLedSyncService;
-import com.phicomm.r1manager.server.service.MusicLedSyncService.LedMode;
+import com.phicomm.r1manager.server.service.OnsetBenchmark;
+import com.phicomm.r1manager.server.service.AudioVisualizerService;
+import com.phicomm.r1manager.server.service.BeatMap;
+import com.phicomm.r1manager.server.service.LedEffectRenderer;
+import com.phicomm.r1manager.server.service.LedEffectSimulator;
+import com.phicomm.r1manager.server.service.LedMode;
+import com.phicomm.r1manager.server.service.SpectrumStream;
+import com.phicomm.r1manager.server.service.TraceRecorder;
+import com.phicomm.r1manager.util.SseEmitter;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
 import com.phicomm.r1manager.server.service.MusicLedSyncService.LedSyncSettings;
+import com.phicomm.r1manager.server.manager.BeatMapCache;
+import com.phicomm.r1manager.server.manager.LedManager;
 import com.phicomm.r1manager.server.manager.MusicServiceManager;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,6 +61,9 @@ public class MusicLedController {
         status.put("mode", settings.mode.name());
         status.put("sensitivity", settings.sensitivity);
         status.put("brightness", settings.brightness);
+        status.put("beatMap", settings.beatMap);
+        status.put("params", settings.params);
+        status.put("activePreset", settings.activePreset);
 
         return ApiResponse.success(status);
     }
@@ -113,9 +131,271 @@ public class MusicLedController {
         if (req.brightness != null) {
             service.setBrightness(req.brightness);
         }
+        if (req.beatMap != null) {
+            service.setBeatMapEnabled(req.beatMap);
+        }
+        if (req.speed != null || req.meteorTail != null || req.waveWidth != null || req.spiralLength != null) {
+            LedEffectRenderer.Params current = service.getSettings().params;
+            service.setEffectParams(new LedEffectRenderer.Params(
+                    req.speed != null ? req.speed : current.speed,
+                    req.meteorTail != null ? req.meteorTail : current.meteorTail,
+                    req.waveWidth != null ? req.waveWidth : current.waveWidth,
+                    req.spiralLength != null ? req.spiralLength : current.spiralLength));
+        }
         return ApiResponse.successMessage("Settings updated");
     }
 
+    /**
+     * Named presets of mode, sensitivity, brightness and effect parameters,
+     * plus how many settings writes the batching saved.
+     */
+    @GetMapping("/presets")
+    public ApiResponse<Map<String, Object>> getPresets() {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        Map<String, Object> result = new HashMap<>();
+        result.put("activePreset", service.getSettings().activePreset);
+        result.put("presets", service.getPresets());
+        result.put("store", service.getSettingsStoreStats());
+        return ApiResponse.success(result);
+    }
+
+    @PostMapping("/presets/save")
+    public ApiResponse<String> savePreset(@RequestBody PresetRequest req) {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        if (req == null || req.name == null || req.name.trim().isEmpty()) {
+            return ApiResponse.error("Preset name is required");
+        }
+        service.savePreset(req.name.trim());
+        return ApiResponse.successMessage("Preset saved: " + req.name.trim());
+    }
+
+    @PostMapping("/presets/apply")
+    public ApiResponse<String> applyPreset(@RequestBody PresetRequest req) {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        if (req == null || req.name == null) {
+            return ApiResponse.error("Preset name is required");
+        }
+        if (!service.applyPreset(req.name.trim())) {
+            return ApiResponse.error("Preset not found: " + req.name);
+        }
+        return ApiResponse.successMessage("Preset applied: " + req.name.trim());
+    }
+
+    @PostMapping("/presets/delete")
+    public ApiResponse<String> deletePreset(@RequestBody PresetRequest req) {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        if (req == null || req.name == null) {
+            return ApiResponse.error("Preset name is required");
+        }
+        if (!service.deletePreset(req.name.trim())) {
+            return ApiResponse.error("Preset not found: " + req.name);
+        }
+        return ApiResponse.successMessage("Preset deleted: " + req.name.trim());
+    }
+
+    @GetMapping("/beatmap")
+    public ApiResponse<Map<String, Object>> getBeatMapStatus() {
+        Map<String, Object> status = BeatMapCache.getInstance().getStats();
+        MusicLedSyncService service = getService();
+        BeatMap current = service != null ? service.getCurrentBeatMap() : null;
+        status.put("currentTrackMapped", current != null);
+        if (current != null) {
+            status.put("currentBpm", current.getBpm());
+            status.put("currentBeats", current.getBeatCount());
+        }
+        return ApiResponse.success(status);
+    }
+
+    /**
+     * Latency compensation: how far music sync frames are delayed and where
+     * the numbers come from, plus the last calibration run.
+     */
+    @GetMapping("/latency")
+    public ApiResponse<Map<String, Object>> getLatency() {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        return ApiResponse.success(service.getLatencyStatus());
+    }
+
+    @PostMapping("/latency")
+    public ApiResponse<Map<String, Object>> updateLatency(@RequestBody LatencyRequest req) {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        if (req == null) {
+            return ApiResponse.error("Request body is required");
+        }
+
+        if (req.resetCalibration != null && req.resetCalibration) {
+            service.resetCalibration();
+        }
+        if (req.offsetMs != null) {
+            service.setLatencyOffsetMs(req.offsetMs);
+        }
+        return ApiResponse.success(service.getLatencyStatus());
+    }
+
+    /**
+     * Play a click track and measure the capture-to-output latency. The LEDs
+     * flash where the clicks are expected (with the current offset), so the
+     * offset can be adjusted by eye while it runs.
+     */
+    @PostMapping("/calibration/start")
+    public ApiResponse<String> startCalibration() {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        String error = service.startCalibration();
+        if (error != null) {
+            return ApiResponse.error(error);
+        }
+        return ApiResponse.successMessage("Calibration started");
+    }
+
+    @PostMapping("/calibration/stop")
+    public ApiResponse<String> stopCalibration() {
+        MusicLedSyncService service = getService();
+        if (service == null) {
+            return ApiResponse.error("Music LED service not available");
+        }
+        service.stopCalibration();
+        return ApiResponse.successMessage("Calibration stopping");
+    }
+
+    @GetMapping("/metrics")
+    public ApiResponse<Map<String, Object>> getMetrics() {
+        return ApiResponse.success(LedManager.getInstance().getFrameMetrics());
+    }
+
+    /**
+     * Live band levels and beats as Server-Sent Events (byte-packed frames,
+     * see SpectrumStream). The visualizer runs while at least one stream or
+     * the LED sync is listening and audio is playing.
+     */
+    @GetMapping("/spectrum/stream")
+    public Response streamSpectrum(@RequestParam(value = "rate", defaultValue = "15") int rate) {
+        AudioVisualizerService visualizer = MusicServiceManager.getInstance().getAudioVisualizerService();
+        if (visualizer == null) {
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.SERVICE_UNAVAILABLE, "text/plain",
+                    "Visualizer service not available");
+        }
+
+        SseEmitter emitter = new SseEmitter();
+        new SpectrumStream(visualizer, emitter, rate).start();
+
+        Response response = NanoHTTPD.newChunkedResponse(Response.Status.OK, SseEmitter.MIME_TYPE,
+                emitter.getInputStream());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
+    /**
+     * Score the beat detector offline. Without files the built-in synthetic
+     * tracks are used; otherwise a 16-bit WAV on the device and a text file of
+     * reference beat times (seconds, one per line).
+     */
+    @PostMapping("/onset-benchmark")
+    public ApiResponse<List<OnsetBenchmark.Result>> runOnsetBenchmark(@RequestBody OnsetBenchmarkRequest req) {
+        if (req == null) {
+            req = new OnsetBenchmarkRequest();
+        }
+        int captureSize = req.captureSize != null ? req.captureSize : 128;
+        int captureRate = req.captureRate != null ? req.captureRate : 20;
+        if (Integer.bitCount(captureSize) != 1 || captureSize < 128 || captureSize > 1024) {
+            return ApiResponse.error("captureSize must be a power of two between 128 and 1024");
+        }
+        if (captureRate <= 0 || captureRate > 100) {
+            return ApiResponse.error("captureRate must be between 1 and 100");
+        }
+
+        if (req.wavPath == null || req.wavPath.isEmpty()) {
+            return ApiResponse.success(OnsetBenchmark.runSynthetic(captureSize, captureRate));
+        }
+        if (req.beatsPath == null || req.beatsPath.isEmpty()) {
+            return ApiResponse.error("beatsPath is required with wavPath");
+        }
+
+        try {
+            OnsetBenchmark.Result result = OnsetBenchmark.evaluateFiles(new File(req.wavPath),
+                    new File(req.beatsPath), captureSize, captureRate);
+            return ApiResponse.success(Collections.singletonList(result));
+        } catch (IOException e) {
+            return ApiResponse.error("Benchmark failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Record live captures to a trace file on the device, for replaying
+     * through the effect simulator.
+     */
+    @PostMapping("/trace/record")
+    public ApiResponse<String> recordTrace(@RequestBody TraceRecordRequest req) {
+        AudioVisualizerService visualizer = MusicServiceManager.getInstance().getAudioVisualizerService();
+        if (visualizer == null) {
+            return ApiResponse.error("Visualizer service not available");
+        }
+        if (req == null || req.path == null || req.path.isEmpty()) {
+            return ApiResponse.error("path is required");
+        }
+        int seconds = req.seconds != null ? req.seconds : 30;
+        if (seconds <= 0 || seconds > 600) {
+            return ApiResponse.error("seconds must be between 1 and 600");
+        }
+
+        try {
+            new TraceRecorder(visualizer, new File(req.path), seconds * 1000L).start();
+            return ApiResponse.successMessage("Recording " + seconds + " s of captures to " + req.path);
+        } catch (IOException e) {
+            return ApiResponse.error("Cannot record trace: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Run the LED effects offline over a trace or WAV file and report frame
+     * rate, command rate and render cost per mode. With outDir a text
+     * timeline and a PNG strip are written per mode.
+     */
+    @PostMapping("/effect-sim")
+    public ApiResponse<List<LedEffectSimulator.Result>> runEffectSimulation(@RequestBody EffectSimRequest req) {
+        if (req == null || req.input == null || req.input.isEmpty()) {
+            return ApiResponse.error("input is required");
+        }
+        LedMode mode = null;
+        if (req.mode != null && !req.mode.isEmpty() && !"ALL".equalsIgnoreCase(req.mode)) {
+            try {
+                mode = LedMode.valueOf(req.mode.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                return ApiResponse.error("Invalid mode: " + req.mode);
+            }
+        }
+        // Default to the round trip measured on this device
+        long roundTripMs = req.roundTripMs != null ? req.roundTripMs
+                : LedManager.getInstance().getFrameLatencyMs() * 2;
+        File outDir = req.outDir != null && !req.outDir.isEmpty() ? new File(req.outDir) : null;
+
+        try {
+            return ApiResponse.success(LedEffectSimulator.runAll(new File(req.input), mode, roundTripMs, outDir));
+        } catch (IOException e) {
+            return ApiResponse.error("Simulation failed: " + e.getMessage());
+        }
+    }
+
     // Helper methods
     private String getModeDisplayName(LedMode mode) {
         switch (mode) {
@@ -163,5 +443,38 @@ public class MusicLedController {
     public static class SettingsRequest {
         public Float sensitivity;
         public Integer brightness;
+        public Boolean beatMap;
+        public Float speed;
+        public Integer meteorTail;
+        public Integer waveWidth;
+        public Integer spiralLength;
+    }
+
+    public static class PresetRequest {
+        public String name;
+    }
+
+    public static class LatencyRequest {
+        public Long offsetMs;
+        public Boolean resetCalibration;
+    }
+
+    public static class TraceRecordRequest {
+        public String path;
+        public Integer seconds;
+    }
+
+    public static class EffectSimRequest {
+        public String input;
+        public String mode;
+        public Long roundTripMs;
+        public String outDir;
+    }
+
+    public static class OnsetBenchmarkRequest {
+        public String wavPath;
+        public String beatsPath;
+        public Integer captureSize;
+        public Integer captureRate;
     }
 }
@@ -4,6 +4,9 @@ import android.content.Context;
 import com.phicomm.r1manager.server.annotation.*;
 import com.phicomm.r1manager.server.model.ApiResponse;
 import com.phicomm.r1manager.server.manager.SystemManager;
+import com.phicomm.r1manager.util.SseEmitter;
+import fi.iki.elonen.NanoHTTPD;
+import fi.iki.elonen.NanoHTTPD.Response;
 
 @RestController
 @RequestMapping("/api/system")
@@ -44,7 +47,26 @@ public class SystemController {
         return ApiResponse.success(systemManager.executeShell(req.command));
     }
 
+    /**
+     * Streams output line by line as Server-Sent Events while the command runs.
+     */
+    @PostMapping("/shell/stream")
+    public Response streamShell(@RequestBody ShellRequest req) {
+        if (req == null || req.command == null || req.command.isEmpty()) {
+            return NanoHTTPD.newFixedLengthResponse(Response.Status.BAD_REQUEST, "text/plain", "No command provided");
+        }
+
+        SseEmitter emitter = new SseEmitter();
+        systemManager.streamShell(req.command, req.privileged, emitter);
+
+        Response response = NanoHTTPD.newChunkedResponse(Response.Status.OK, SseEmitter.MIME_TYPE,
+                emitter.getInputStream());
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+    }
+
     public static class ShellRequest {
         public String command;
+        public boolean privileged; // Run through the hardware daemon (system user)
     }
 }
@@ -12,6 +12,8 @@ import com.phicomm.r1manager.server.manager.XiaozhiManager;
 import com.phicomm.r1manager.server.model.ApiResponse;
 import com.phicomm.r1manager.server.model.xiaozhi.OtaResult;
 import com.phicomm.r1manager.server.model.xiaozhi.XiaozhiBotProfile;
+import com.phicomm.r1manager.server.service.OpusEncoderBenchmark;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -51,6 +53,47 @@ public class XiaozhiController {
         return ApiResponse.success(data);
     }
 
+    @GetMapping("/latency")
+    public ApiResponse<Map<String, Object>> getLatency() {
+        return ApiResponse.success(xiaozhiManager.getLatencyStats());
+    }
+
+    @PostMapping("/latency/reset")
+    public ApiResponse<String> resetLatency() {
+        xiaozhiManager.resetLatencyStats();
+        return ApiResponse.successMessage("Latency stats reset");
+    }
+
+    @GetMapping("/playback")
+    public ApiResponse<Map<String, Object>> getPlayback() {
+        return ApiResponse.success(xiaozhiManager.getPlaybackStats());
+    }
+
+    /**
+     * Time the uplink Opus encoder per 60 ms frame across settings. Without
+     * a WAV (16 kHz, 16-bit) a synthetic speech-like signal is used.
+     */
+    @PostMapping("/encoder/benchmark")
+    public ApiResponse<OpusEncoderBenchmark.Report> runEncoderBenchmark(@RequestBody EncoderBenchmarkRequest req) {
+        if (req == null) {
+            req = new EncoderBenchmarkRequest();
+        }
+        int seconds = req.seconds != null ? req.seconds : 10;
+        int passes = req.passes != null ? req.passes : 2;
+        if (seconds <= 0 || seconds > 60) {
+            return ApiResponse.error("seconds must be between 1 and 60");
+        }
+        if (passes <= 0 || passes > 10) {
+            return ApiResponse.error("passes must be between 1 and 10");
+        }
+
+        try {
+            return ApiResponse.success(xiaozhiManager.runEncoderBenchmark(req.wavPath, seconds, passes));
+        } catch (IOException e) {
+            return ApiResponse.error("Benchmark failed: " + e.getMessage());
+        }
+    }
+
     @GetMapping("/config")
     public ApiResponse<Map<String, String>> getConfig() {
         XiaozhiConfig config = XiaozhiConfig.getInstance(context);
@@ -61,6 +104,12 @@ public class XiaozhiController {
         data.put("uuid", config.getUuid());
         data.put("transport_type", config.getTransportType());
         data.put("voice_bot_enabled", String.valueOf(config.isVoiceBotEnabled()));
+        data.put("speaking_led_follows_voice", String.valueOf(config.isSpeakingLedFollowsVoice()));
+        data.put("listen_mode", config.getListenMode());
+        data.put("full_duplex", String.valueOf(config.isFullDuplex()));
+        data.putAll(config.getEndpointingConfig().toMap());
+        data.putAll(config.getJitterBufferConfig().toMap());
+        data.putAll(config.getOpusEncoderConfig().toMap());
         return ApiResponse.success(data);
     }
 
@@ -119,4 +168,10 @@ public class XiaozhiController {
         }
         return ApiResponse.error("Bot ID required");
     }
+
+    public static class EncoderBenchmarkRequest {
+        public String wavPath;
+        public Integer seconds;
+        public Integer passes;
+    }
 }
@@ -8,6 +8,7 @@ import com.phicomm.r1manager.server.annotation.RequestMapping;
 import com.phicomm.r1manager.server.annotation.RequestParam;
 import com.phicomm.r1manager.server.annotation.RestController;
 import com.phicomm.r1manager.server.model.ApiResponse;
+import com.phicomm.r1manager.server.manager.BeatMapCache;
 import com.phicomm.r1manager.server.manager.ZingMp3Manager;
 import com.phicomm.r1manager.server.client.ZingMp3Client;
 import org.json.JSONObject;
@@ -57,7 +58,8 @@ public class ZingMp3Controller {
     }
 
     @GetMapping("/proxy")
-    public NanoHTTPD.Response streamProxy(@RequestParam("url") String targetUrl) {
+    public NanoHTTPD.Response streamProxy(@RequestParam("url") String targetUrl,
+            @RequestParam("id") String songId) {
         if (targetUrl == null || targetUrl.isEmpty()) {
             return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.BAD_REQUEST, "text/plain",
                     "URL required");
@@ -95,7 +97,8 @@ public class ZingMp3Controller {
                         "Upstream error: " + responseCode);
             }
 
-            InputStream inputStream = conn.getInputStream();
+            // Copy the bytes for beat map analysis while they pass through
+            InputStream inputStream = BeatMapCache.getInstance().tee(songId, conn.getInputStream());
             String mimeType = conn.getContentType();
             if (mimeType == null)
                 mimeType = "audio/mpeg";
@@ -9,8 +9,8 @@ import com.phicomm.r1manager.util.AppLog;
 
 import com.phicomm.r1manager.server.model.dto.CommonDto;
 import com.phicomm.r1manager.server.client.HardwareClient;
-
-import org.json.JSONObject;
+import com.phicomm.r1manager.server.client.ShellSession;
+import com.phicomm.r1manager.server.client.ShellStream;
 
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -24,6 +24,8 @@ import android.os.Environment;
 public class AppManager {
 
     private static final String TAG = "AppManager";
+    private static final long INSTALL_TIMEOUT_MS = 5 * 60 * 1000; // Large APKs can take minutes
+    private static final int INSTALL_MAX_OUTPUT_BYTES = 16 * 1024;
 
     private Context context;
     private PackageManager pm;
@@ -140,9 +142,8 @@ public class AppManager {
                 client.sendShellCommand(cmd);
                 return true;
             } else {
-                // Fallback to Runtime.exec (might fail if not system)
-                Runtime.getRuntime().exec(new String[] { "sh", "-c", cmd });
-                return true; // Assume sent
+                // Fallback to local shell session (might fail if not system)
+                return ShellSession.getInstance().execute(cmd, 5000).success;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Error stopping app " + packageName, e);
@@ -179,43 +180,58 @@ public class AppManager {
     }
 
     /**
-     * Install an APK from path
+     * Install an APK from path, waiting for the result.
      */
     public boolean installApp(String path) {
+        return installApp(path, null).success;
+    }
+
+    /**
+     * Install an APK from path with "pm install" through the hardware daemon,
+     * streaming its output to the listener (may be null) as it arrives. The
+     * install is killed after INSTALL_TIMEOUT_MS or once it has printed more
+     * than INSTALL_MAX_OUTPUT_BYTES.
+     *
+     * @return The result; only successful if pm reported "Success"
+     */
+    public CommonDto.ShellResult installApp(String path, ShellStream.OutputListener listener) {
         // NanoHTTPD temp files are in private cache, which 'system' user might not face
         // access to.
         // We copy to /sdcard/r1helper_temp.apk to ensure access.
-        String tempSdPath = Environment.getExternalStorageDirectory().getAbsolutePath() + "/r1helper_temp.apk";
+        java.io.File sdcard = Environment.getExternalStorageDirectory();
+        java.io.File tempSdFile = new java.io.File(sdcard, "r1helper_temp.apk");
+        CommonDto.ShellResult result = null;
         try {
-            copyFile(new java.io.File(path), new java.io.File(tempSdPath));
-
-            // Allow time for flush?
-            Thread.sleep(500);
-
-            String cmd = "pm install -r " + tempSdPath;
-            HardwareClient client = HardwareClient.getInstance();
-            if (client != null) {
-                // Wait up to 120 seconds for installation
-                JSONObject response = client.sendShellCommand(cmd, 120000);
-
-                // Cleanup
-                new java.io.File(tempSdPath).delete();
-
-                // Check if successful if possible, but for now return true if command sent
-                if (response != null && response.has("data")) {
-                    String output = response.getString("data");
-                    if (output.contains("Success"))
-                        return true;
-                }
-                return false; // Actually check response content
+            copyFile(new java.io.File(path), tempSdFile);
+
+            String cmd = "pm install -r " + tempSdFile.getAbsolutePath();
+            java.io.File logFile = new java.io.File(sdcard,
+                    "r1helper_install_" + System.currentTimeMillis() + ".log");
+            result = ShellStream.runPrivileged(cmd, logFile, INSTALL_TIMEOUT_MS, INSTALL_MAX_OUTPUT_BYTES, listener);
+            if (result == null) {
+                // Installing needs the system user; the app's own shell cannot do it
+                result = failedInstall("Hardware service unreachable", listener);
+            } else if (result.success && !result.stdout.contains("Success")) {
+                result.success = false;
             }
         } catch (Exception e) {
             AppLog.e(TAG, "Error installing app from " + path, e);
+            result = failedInstall(e.getMessage(), listener);
         } finally {
-            // Cleanup just in case
-            new java.io.File(tempSdPath).delete();
+            tempSdFile.delete();
         }
-        return false;
+        return result;
+    }
+
+    private static CommonDto.ShellResult failedInstall(String message, ShellStream.OutputListener listener) {
+        CommonDto.ShellResult result = new CommonDto.ShellResult();
+        result.exitCode = -1;
+        result.stdout = "";
+        result.stderr = message + "\n";
+        if (listener != null) {
+            listener.onStderr(message);
+        }
+        return result;
     }
 
     private void copyFile(java.io.File src, java.io.File dst) throws java.io.IOException {
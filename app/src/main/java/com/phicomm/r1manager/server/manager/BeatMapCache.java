@@ -0,0 +1,388 @@
+package com.phicomm.r1manager.server.manager;
+
+import android.os.Process;
+import com.phicomm.r1manager.App;
+import com.phicomm.r1manager.server.model.Song;
+import com.phicomm.r1manager.server.service.BeatMap;
+import com.phicomm.r1manager.server.service.BeatMapAnalyzer;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * BeatMapCache - Beat maps of played tracks, analyzed in the background and
+ * kept on disk with LRU eviction.
+ *
+ * Tracks get analyzed from two places: Zing streams are copied to a
+ * temporary file while the proxy serves them (see {@link #tee}), local files
+ * are analyzed in place. Keys are song ids, or a hash of path, size and
+ * modification time for local files.
+ */
+public class BeatMapCache {
+
+    private static final String TAG = "BeatMapCache";
+    private static volatile BeatMapCache instance;
+
+    private static final int MAX_ENTRIES = 200;
+    private static final long MAX_DISK_BYTES = 4L * 1024 * 1024;
+    private static final int MEMORY_ENTRIES = 4;
+    private static final long MAX_CAPTURE_BYTES = 40L * 1024 * 1024;
+    private static final String SUFFIX = ".bmap";
+
+    private final File dir;
+    private final File partialDir;
+    private volatile boolean enabled = false;
+
+    // Guarded by this
+    private final Map<String, BeatMap> memory = new LinkedHashMap<String, BeatMap>(8, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BeatMap> eldest) {
+            return size() > MEMORY_ENTRIES;
+        }
+    };
+    private final Set<String> inProgress = new HashSet<>();
+
+    private BeatMapCache() {
+        dir = new File(App.getInstance().getCacheDir(), "beatmaps");
+        partialDir = new File(dir, "partial");
+        partialDir.mkdirs();
+        // Captures interrupted by a restart are useless
+        File[] stale = partialDir.listFiles();
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    public static BeatMapCache getInstance() {
+        if (instance == null) {
+            synchronized (BeatMapCache.class) {
+                if (instance == null) {
+                    instance = new BeatMapCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * New tracks are only analyzed while enabled; existing maps stay readable.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Cache key of a song, or null if it cannot be identified.
+     */
+    public static String keyForSong(Song song) {
+        if (song == null) {
+            return null;
+        }
+        if (song.getId() != null && !song.getId().isEmpty()) {
+            return song.getId();
+        }
+        File file = localFile(song);
+        if (file != null) {
+            String identity = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+            return "file_" + Integer.toHexString(identity.hashCode());
+        }
+        return null;
+    }
+
+    /**
+     * The file behind a song played from local storage, or null for streams.
+     */
+    public static File localFile(Song song) {
+        String url = song != null ? song.getStreamUrl() : null;
+        if (url == null) {
+            return null;
+        }
+        if (url.startsWith("file://")) {
+            url = url.substring("file://".length());
+        }
+        if (!url.startsWith("/")) {
+            return null;
+        }
+        File file = new File(url);
+        return file.isFile() ? file : null;
+    }
+
+    /**
+     * Cached map for a key, or null.
+     */
+    public synchronized BeatMap get(String key) {
+        if (key == null) {
+            return null;
+        }
+        BeatMap map = memory.get(key);
+        if (map != null) {
+            return map;
+        }
+
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            map = BeatMap.read(in);
+            file.setLastModified(System.currentTimeMillis()); // LRU by modification time
+            memory.put(key, map);
+            return map;
+        } catch (IOException e) {
+            AppLog.w(TAG, "Dropping unreadable beat map " + file.getName() + ": " + e.getMessage());
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Analyze a local file in the background, unless already cached or running.
+     */
+    public void analyzeLocal(String key, File audio) {
+        if (enabled && begin(key)) {
+            ThreadManager.getInstance().executeIO(() -> analyze(key, audio, false));
+        }
+    }
+
+    /**
+     * Wrap a stream that is being served to the player so its bytes are also
+     * written to a temporary file. When the stream is read to the end the
+     * file is analyzed and deleted; if the reader stops early the copy is
+     * discarded. Returns upstream unchanged when there is nothing to do.
+     */
+    public InputStream tee(String key, InputStream upstream) {
+        if (!enabled || key == null || key.isEmpty() || !begin(key)) {
+            return upstream;
+        }
+        try {
+            File partial = new File(partialDir, fileName(key) + ".part");
+            return new CaptureInputStream(upstream, key, partial);
+        } catch (IOException e) {
+            AppLog.w(TAG, "Cannot capture stream for " + key + ": " + e.getMessage());
+            finish(key);
+            return upstream;
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        File[] files = listMaps();
+        long bytes = 0;
+        for (File file : files) {
+            bytes += file.length();
+        }
+        stats.put("enabled", enabled);
+        stats.put("entries", files.length);
+        stats.put("bytes", bytes);
+        stats.put("analyzing", inProgress.size());
+        return stats;
+    }
+
+    // ==================== Internals ====================
+
+    /**
+     * Claim a key for analysis. False if it is cached or already being analyzed.
+     */
+    private synchronized boolean begin(String key) {
+        if (inProgress.contains(key) || memory.containsKey(key) || fileFor(key).isFile()) {
+            return false;
+        }
+        inProgress.add(key);
+        return true;
+    }
+
+    private synchronized void finish(String key) {
+        inProgress.remove(key);
+    }
+
+    private void analyze(String key, File audio, boolean deleteAfter) {
+        int priority = Process.getThreadPriority(Process.myTid());
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        try {
+            long start = System.currentTimeMillis();
+            BeatMap map = BeatMapAnalyzer.analyzeFile(audio);
+            put(key, map);
+            AppLog.i(TAG, "Beat map for " + key + ": " + map.getBeatCount() + " beats, " + map.getBpm()
+                    + " BPM, " + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+            AppLog.w(TAG, "Beat map analysis failed for " + key + ": " + e.getMessage());
+        } finally {
+            if (deleteAfter) {
+                audio.delete();
+            }
+            finish(key);
+            Process.setThreadPriority(priority);
+        }
+    }
+
+    private synchronized void put(String key, BeatMap map) throws IOException {
+        File file = fileFor(key);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            map.write(out);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Cannot store beat map " + file.getName());
+        }
+        memory.put(key, map);
+        evict();
+    }
+
+    /**
+     * Remove least recently used maps beyond the entry and size limits.
+     */
+    private void evict() {
+        File[] files = listMaps();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (files.length <= MAX_ENTRIES && total <= MAX_DISK_BYTES) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        int count = files.length;
+        for (File file : files) {
+            if (count <= MAX_ENTRIES && total <= MAX_DISK_BYTES) {
+                break;
+            }
+            total -= file.length();
+            count--;
+            file.delete();
+        }
+        memory.clear(); // Cheap to reload; avoids tracking which entries were evicted
+    }
+
+    private File[] listMaps() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        return files != null ? files : new File[0];
+    }
+
+    private File fileFor(String key) {
+        return new File(dir, fileName(key) + SUFFIX);
+    }
+
+    private static String fileName(String key) {
+        return key.replaceAll("[^A-Za-z0-9_-]", "_");
+    }
+
+    /**
+     * Copies everything read through it into a file; hands the file to the
+     * analyzer on end of stream, discards it on early close or overflow.
+     */
+    private class CaptureInputStream extends FilterInputStream {
+        private final String key;
+        private final File file;
+        private OutputStream copy;
+        private long copied = 0;
+
+        CaptureInputStream(InputStream in, String key, File file) throws IOException {
+            super(in);
+            this.key = key;
+            this.file = file;
+            this.copy = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b < 0) {
+                complete();
+            } else {
+                capture(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n < 0) {
+                complete();
+            } else {
+                capture(buffer, offset, n);
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            abort();
+            super.close();
+        }
+
+        private void capture(byte[] buffer, int offset, int length) {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.write(buffer, offset, length);
+                copied += length;
+                if (copied > MAX_CAPTURE_BYTES) {
+                    AppLog.w(TAG, "Stream for " + key + " too large to analyze");
+                    abort();
+                }
+            } catch (IOException e) {
+                AppLog.w(TAG, "Capture failed for " + key + ": " + e.getMessage());
+                abort();
+            }
+        }
+
+        private void complete() {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.close();
+            } catch (IOException e) {
+                abort();
+                return;
+            }
+            copy = null;
+            ThreadManager.getInstance().executeIO(() -> analyze(key, file, true));
+        }
+
+        private void abort() {
+            if (copy == null) {
+                return;
+            }
+            try {
+                copy.close();
+            } catch (IOException ignored) {
+            }
+            copy = null;
+            file.delete();
+            finish(key);
+        }
+    }
+}
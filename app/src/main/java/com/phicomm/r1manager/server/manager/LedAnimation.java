@@ -0,0 +1,224 @@
+package com.phicomm.r1manager.server.manager;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * LedAnimation - Keyframe animation precompiled into a fixed frame table.
+ *
+ * Keyframes are interpolated once when the animation is built: colors and
+ * brightness are blended between keys, masks switch at each key. Playing an
+ * animation is then a table lookup that returns a ready-made frame with its
+ * shell commands already formatted, so the frame scheduler does no work per
+ * tick beyond picking an entry.
+ *
+ * Every frame that reaches the hardware is a daemon round trip and a
+ * lights_test fork, so slow animations use a coarser frame table and reuse
+ * the previous frame until the change would be visible. The scheduler skips
+ * a frame identical to the last one sent.
+ */
+public class LedAnimation {
+
+    // Breathing over a second or more looks smooth at 10 FPS
+    private static final long BREATHING_FRAME_MS = 100;
+    // Smallest brightness / color channel change worth a frame
+    private static final int VISIBLE_STEP = 6;
+
+    private final LedFrameScheduler.Frame[] frames;
+    private final long frameMs;
+    private final boolean loop;
+
+    private LedAnimation(LedFrameScheduler.Frame[] frames, long frameMs, boolean loop) {
+        this.frames = frames;
+        this.frameMs = frameMs;
+        this.loop = loop;
+    }
+
+    /**
+     * Frame to show after the animation has been running for elapsedMs.
+     * One-shot animations hold their last frame once finished.
+     */
+    public LedFrameScheduler.Frame frameAt(long elapsedMs) {
+        int index = (int) (Math.max(0, elapsedMs) / frameMs);
+        if (loop) {
+            index %= frames.length;
+        } else if (index >= frames.length) {
+            index = frames.length - 1;
+        }
+        return frames[index];
+    }
+
+    public boolean isFinished(long elapsedMs) {
+        return !loop && elapsedMs >= getDurationMs();
+    }
+
+    public boolean isLooping() {
+        return loop;
+    }
+
+    public long getDurationMs() {
+        return frames.length * frameMs;
+    }
+
+    // ==================== Presets ====================
+
+    /**
+     * Ring brightness rising and falling between two levels.
+     */
+    public static LedAnimation breathing(int minBrightness, int maxBrightness, long periodMs, String tag) {
+        return new Builder(tag)
+                .key(0, 0, 0, LedLayout.RING_ALL, maxBrightness)
+                .key(periodMs / 2, 0, 0, LedLayout.RING_ALL, minBrightness)
+                .key(periodMs, 0, 0, LedLayout.RING_ALL, maxBrightness)
+                .eased()
+                .frameMs(BREATHING_FRAME_MS)
+                .minStep(VISIBLE_STEP)
+                .loop()
+                .build();
+    }
+
+    /**
+     * A block of lit ring LEDs rotating once per period.
+     */
+    public static LedAnimation spinner(int length, int brightness, long periodMs, String tag) {
+        Builder builder = new Builder(tag);
+        long block = (1L << length) - 1;
+        for (int step = 0; step < LedLayout.RING_LEDS; step++) {
+            // Rotate the block within the 24 ring bits
+            long mask = ((block << step) | (block >>> (LedLayout.RING_LEDS - step)))
+                    & ((1L << LedLayout.RING_LEDS) - 1);
+            builder.key(periodMs * step / LedLayout.RING_LEDS, 0, 0, mask << LedLayout.RING_SHIFT, brightness);
+        }
+        return builder.key(periodMs, 0, 0, block << LedLayout.RING_SHIFT, brightness).loop().build();
+    }
+
+    /**
+     * One-shot ring fade, holding the final level.
+     */
+    public static LedAnimation fade(int fromBrightness, int toBrightness, long durationMs, String tag) {
+        return new Builder(tag)
+                .key(0, 0, 0, LedLayout.RING_ALL, fromBrightness)
+                .key(durationMs, 0, 0, LedLayout.RING_ALL, toBrightness)
+                .build();
+    }
+
+    /**
+     * Static ring level, as a single-frame animation.
+     */
+    public static LedAnimation solid(int brightness, String tag) {
+        return new Builder(tag).key(0, 0, 0, LedLayout.RING_ALL, brightness).build();
+    }
+
+    // ==================== Builder ====================
+
+    public static class Builder {
+        private static final long DEFAULT_FRAME_MS = 33;
+
+        private final String tag;
+        private final List<long[]> keys = new ArrayList<>();
+        private long frameMs = DEFAULT_FRAME_MS;
+        private boolean loop = false;
+        private boolean eased = false;
+        private int minStep = 0;
+
+        public Builder(String tag) {
+            this.tag = tag;
+        }
+
+        /**
+         * Add a keyframe. A mask of 0 leaves that part of the hardware untouched.
+         *
+         * @param timeMs       Offset from the start, keys must be added in order
+         * @param internalMask Internal LED mask (15 bits)
+         * @param color        Internal LED color, 0xRRGGBB
+         * @param ringMask     Ring LED mask (24 bits shifted left by 15)
+         * @param brightness   Ring brightness 0-255
+         */
+        public Builder key(long timeMs, long internalMask, int color, long ringMask, int brightness) {
+            keys.add(new long[] { timeMs, internalMask, color, ringMask, brightness });
+            return this;
+        }
+
+        public Builder frameMs(long frameMs) {
+            this.frameMs = Math.max(1, frameMs);
+            return this;
+        }
+
+        /** Repeat from the first frame after the last key. */
+        public Builder loop() {
+            this.loop = true;
+            return this;
+        }
+
+        /** Smoothstep between keys instead of linear blending. */
+        public Builder eased() {
+            this.eased = true;
+            return this;
+        }
+
+        /**
+         * Repeat the previous frame until brightness or a color channel has
+         * moved by at least this much, so near-identical frames are not sent.
+         */
+        public Builder minStep(int levels) {
+            this.minStep = Math.max(0, levels);
+            return this;
+        }
+
+        public LedAnimation build() {
+            if (keys.isEmpty()) {
+                throw new IllegalStateException("Animation needs at least one keyframe");
+            }
+
+            long duration = keys.get(keys.size() - 1)[0];
+            // The last key of a loop is the same instant as the first one
+            int count = (int) Math.max(1, loop ? duration / frameMs : duration / frameMs + 1);
+            LedFrameScheduler.Frame[] frames = new LedFrameScheduler.Frame[count];
+
+            int k = 0;
+            for (int i = 0; i < count; i++) {
+                long t = i * frameMs;
+                while (k < keys.size() - 1 && keys.get(k + 1)[0] <= t) {
+                    k++;
+                }
+                long[] from = keys.get(k);
+                long[] to = k < keys.size() - 1 ? keys.get(k + 1) : from;
+                float f = to[0] > from[0] ? (float) (t - from[0]) / (to[0] - from[0]) : 0;
+                if (eased) {
+                    f = f * f * (3 - 2 * f);
+                }
+
+                LedFrameScheduler.Frame frame = new LedFrameScheduler.Frame(from[1],
+                        lerpColor((int) from[2], (int) to[2], f), from[3], lerp((int) from[4], (int) to[4], f), tag);
+                // A one-shot animation always ends on its exact final frame
+                boolean last = !loop && i == count - 1;
+                frames[i] = i > 0 && !last && !visiblyDifferent(frames[i - 1], frame) ? frames[i - 1] : frame;
+            }
+            return new LedAnimation(frames, frameMs, loop);
+        }
+
+        private boolean visiblyDifferent(LedFrameScheduler.Frame a, LedFrameScheduler.Frame b) {
+            if (a.internalMask != b.internalMask || a.ringMask != b.ringMask) {
+                return true;
+            }
+            int step = Math.abs(a.brightness - b.brightness);
+            for (int shift = 0; shift <= 16; shift += 8) {
+                step = Math.max(step, Math.abs(((a.color >> shift) & 0xff) - ((b.color >> shift) & 0xff)));
+            }
+            return step >= Math.max(1, minStep);
+        }
+    }
+
+    // ==================== Blending ====================
+
+    static int lerp(int a, int b, float f) {
+        return Math.round(a + (b - a) * f);
+    }
+
+    static int lerpColor(int a, int b, float f) {
+        int r = lerp((a >> 16) & 0xff, (b >> 16) & 0xff, f);
+        int g = lerp((a >> 8) & 0xff, (b >> 8) & 0xff, f);
+        int bl = lerp(a & 0xff, b & 0xff, f);
+        return (r << 16) | (g << 8) | bl;
+    }
+}
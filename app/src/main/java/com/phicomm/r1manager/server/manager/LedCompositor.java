@@ -0,0 +1,262 @@
+package com.phicomm.r1manager.server.manager;
+
+import java.util.ArrayDeque;
+
+/**
+ * LedCompositor - Priority layers feeding the single LED frame scheduler.
+ *
+ * Each layer holds either an animation or the latest frame pushed by a
+ * producer (music sync). When the scheduler asks for a frame, layers are
+ * stacked from lowest to highest priority: a higher layer replaces the parts
+ * (internal / ring) it defines and lets the lower layers show through
+ * elsewhere. While a layer fades in or out its parts are blended over what is
+ * below it.
+ *
+ * Frames can be pushed ahead of time with a due time; they are held back
+ * until then, which lets producers line LED output up with delayed audio.
+ *
+ * Once the last layer is gone a single "all off" frame is emitted.
+ */
+public class LedCompositor implements LedFrameScheduler.FrameSource {
+
+    /**
+     * Layers in ascending priority.
+     */
+    public enum Layer {
+        IDLE,
+        MUSIC,
+        VOICE
+    }
+
+    private static final LedFrameScheduler.Frame OFF = new LedFrameScheduler.Frame(
+            LedLayout.INTERNAL_ALL, 0x000000, LedLayout.RING_ALL, 0x00, "OFF_ALL");
+    private static final int MAX_PENDING = 32;
+
+    private static class PendingFrame {
+        final long dueAt;
+        final LedFrameScheduler.Frame frame;
+
+        PendingFrame(long dueAt, LedFrameScheduler.Frame frame) {
+            this.dueAt = dueAt;
+            this.frame = frame;
+        }
+    }
+
+    private static class LayerState {
+        LedAnimation animation;
+        LedFrameScheduler.Frame frame;
+        final ArrayDeque<PendingFrame> pending = new ArrayDeque<>();
+        long startedAt;
+        long fadeStart;
+        long fadeMs;
+        boolean fadingOut;
+
+        float opacity(long now) {
+            if (fadeMs <= 0) {
+                return fadingOut ? 0 : 1;
+            }
+            float f = Math.min(1, (float) (now - fadeStart) / fadeMs);
+            return fadingOut ? 1 - f : f;
+        }
+
+        boolean isAnimating(long now) {
+            return (animation != null && !animation.isFinished(now - startedAt)) || now - fadeStart < fadeMs
+                    || !pending.isEmpty();
+        }
+
+        /**
+         * Make the newest frame that is due current, dropping the ones it replaces.
+         */
+        void promotePending(long now) {
+            while (!pending.isEmpty() && pending.peekFirst().dueAt <= now) {
+                frame = pending.pollFirst().frame;
+            }
+        }
+    }
+
+    private final LayerState[] layers = new LayerState[Layer.values().length];
+    private boolean showing = false;
+    private volatile boolean animating = false;
+
+    /**
+     * Run an animation on a layer, fading it in over what is below.
+     */
+    public synchronized void play(Layer layer, LedAnimation animation, long fadeInMs) {
+        long now = System.currentTimeMillis();
+        LayerState state = new LayerState();
+        state.animation = animation;
+        state.startedAt = now;
+        LayerState previous = layers[layer.ordinal()];
+        // Replacing a visible animation cuts over directly, a new layer fades in
+        state.fadeStart = now;
+        state.fadeMs = previous != null && !previous.fadingOut ? 0 : fadeInMs;
+        layers[layer.ordinal()] = state;
+        animating = true;
+    }
+
+    /**
+     * Replace a layer's content with a single frame (no transition).
+     */
+    public synchronized void setFrame(Layer layer, LedFrameScheduler.Frame frame) {
+        frameState(layer).frame = frame;
+    }
+
+    /**
+     * Queue a frame for a layer that becomes visible at dueAtMs. Due times
+     * must not go backwards; frames already in the past show immediately.
+     */
+    public synchronized void setFrameAt(Layer layer, LedFrameScheduler.Frame frame, long dueAtMs) {
+        LayerState state = frameState(layer);
+        if (dueAtMs <= System.currentTimeMillis() && state.pending.isEmpty()) {
+            state.frame = frame;
+            return;
+        }
+        if (state.pending.size() >= MAX_PENDING) {
+            state.pending.pollFirst();
+        }
+        state.pending.addLast(new PendingFrame(dueAtMs, frame));
+        animating = true;
+    }
+
+    private LayerState frameState(Layer layer) {
+        LayerState state = layers[layer.ordinal()];
+        if (state == null || state.animation != null || state.fadingOut) {
+            state = new LayerState();
+            layers[layer.ordinal()] = state;
+        }
+        return state;
+    }
+
+    /**
+     * Remove a layer, fading it out over what is below.
+     */
+    public synchronized void clear(Layer layer, long fadeOutMs) {
+        LayerState state = layers[layer.ordinal()];
+        if (state == null) {
+            return;
+        }
+        if (fadeOutMs <= 0) {
+            layers[layer.ordinal()] = null;
+            return;
+        }
+        if (!state.fadingOut) {
+            long now = System.currentTimeMillis();
+            // Start from the current opacity if it was still fading in
+            float opacity = state.opacity(now);
+            state.fadingOut = true;
+            state.fadeMs = fadeOutMs;
+            state.fadeStart = now - (long) ((1 - opacity) * fadeOutMs);
+            animating = true;
+        }
+    }
+
+    /**
+     * Remove every layer. The topmost one fades out, the rest go immediately.
+     *
+     * @param fadeOutMs 0 also skips the final "all off" frame, for callers
+     *                  that switch the LEDs off themselves
+     */
+    public synchronized void clearAll(long fadeOutMs) {
+        int top = -1;
+        for (int i = layers.length - 1; i >= 0; i--) {
+            if (layers[i] != null) {
+                top = i;
+                break;
+            }
+        }
+        for (int i = 0; i < layers.length; i++) {
+            if (i != top || fadeOutMs <= 0) {
+                layers[i] = null;
+            }
+        }
+        if (top >= 0 && fadeOutMs > 0) {
+            clear(Layer.values()[top], fadeOutMs);
+        }
+        if (fadeOutMs <= 0) {
+            showing = false;
+        }
+    }
+
+    public synchronized boolean hasLayer(Layer layer) {
+        LayerState state = layers[layer.ordinal()];
+        return state != null && !state.fadingOut;
+    }
+
+    @Override
+    public boolean isAnimating() {
+        return animating;
+    }
+
+    @Override
+    public synchronized LedFrameScheduler.Frame composeFrame(long now) {
+        LedFrameScheduler.Frame result = null;
+        boolean stillAnimating = false;
+
+        for (int i = 0; i < layers.length; i++) {
+            LayerState state = layers[i];
+            if (state == null) {
+                continue;
+            }
+
+            float opacity = state.opacity(now);
+            if (state.fadingOut && opacity <= 0) {
+                layers[i] = null;
+                continue;
+            }
+            state.promotePending(now);
+            stillAnimating |= state.isAnimating(now);
+
+            LedFrameScheduler.Frame frame = state.animation != null
+                    ? state.animation.frameAt(now - state.startedAt)
+                    : state.frame;
+            if (frame != null) {
+                result = blend(result, frame, opacity);
+            }
+        }
+        animating = stillAnimating;
+
+        if (result != null) {
+            showing = true;
+            return result;
+        }
+        if (showing) {
+            showing = false;
+            return OFF;
+        }
+        return null;
+    }
+
+    /**
+     * Stack frame over base. Parts the top frame does not define come from
+     * base; parts it does define are blended with base (or black) by opacity.
+     */
+    static LedFrameScheduler.Frame blend(LedFrameScheduler.Frame base, LedFrameScheduler.Frame top,
+            float opacity) {
+        boolean opaque = opacity >= 1;
+        if (base == null && opaque) {
+            return top;
+        }
+        if (opaque && top.internalMask != 0 && top.ringMask != 0) {
+            return top;
+        }
+
+        long internalMask = base != null ? base.internalMask : 0;
+        int color = base != null ? base.color : 0;
+        if (top.internalMask != 0) {
+            int below = internalMask != 0 ? color : 0;
+            // While blending the lower layer's LEDs stay lit, crossfading with the top color
+            internalMask = opaque ? top.internalMask : top.internalMask | internalMask;
+            color = opaque ? top.color : LedAnimation.lerpColor(below, top.color, opacity);
+        }
+
+        long ringMask = base != null ? base.ringMask : 0;
+        int brightness = base != null ? base.brightness : 0;
+        if (top.ringMask != 0) {
+            int below = ringMask != 0 ? brightness : 0;
+            ringMask = opaque ? top.ringMask : top.ringMask | ringMask;
+            brightness = opaque ? top.brightness : LedAnimation.lerp(below, top.brightness, opacity);
+        }
+
+        return new LedFrameScheduler.Frame(internalMask, color, ringMask, brightness, top.tag);
+    }
+}
@@ -0,0 +1,91 @@
+package com.phicomm.r1manager.server.manager;
+
+/**
+ * LedFramePacing - How fast LED frames may go out, given the measured round
+ * trip to the hardware daemon.
+ *
+ * The smoothed round trip sets the minimum interval between frames and how
+ * many segments (lights_test commands) a frame may use: both while it stays
+ * under the latency budget, one above it, alternating between internal and
+ * ring. Holds no clock and does no I/O, so LedFrameScheduler and
+ * LedEffectSimulator pace frames with the same rules.
+ *
+ * Not thread-safe for writers; the getters may be read from any thread.
+ */
+public class LedFramePacing {
+
+    public static final long MIN_INTERVAL_MS = 33; // ~30 FPS ceiling
+    public static final long MAX_INTERVAL_MS = 250; // 4 FPS floor
+    public static final long LATENCY_BUDGET_MS = 40; // Round trip above this drops to one segment
+
+    public static final int SEGMENT_INTERNAL = 1;
+    public static final int SEGMENT_RING = 2;
+
+    private static final float INTERVAL_HEADROOM = 1.25f;
+    private static final float LATENCY_SMOOTHING = 0.2f;
+    private static final float SEGMENT_RECOVERY = 0.6f; // Back to two segments below this share of the budget
+
+    private volatile float smoothedLatencyMs = MIN_INTERVAL_MS;
+    private volatile long intervalMs = MIN_INTERVAL_MS;
+    private volatile int segments = 2;
+    private boolean preferRing = false;
+
+    /**
+     * Choose which of the changed segments to send with the next frame.
+     *
+     * @return SEGMENT_* flags, 0 if neither changed
+     */
+    public int selectSegments(boolean internalChanged, boolean ringChanged) {
+        if (internalChanged && ringChanged && segments < 2) {
+            int segment = preferRing ? SEGMENT_RING : SEGMENT_INTERNAL;
+            preferRing = !preferRing;
+            return segment;
+        }
+        return (internalChanged ? SEGMENT_INTERNAL : 0) | (ringChanged ? SEGMENT_RING : 0);
+    }
+
+    /**
+     * Account for a frame that took latencyMs to be answered.
+     *
+     * @return true if the number of segments per frame changed
+     */
+    public boolean onRoundTrip(long latencyMs) {
+        float smoothed = smoothedLatencyMs + LATENCY_SMOOTHING * (latencyMs - smoothedLatencyMs);
+        smoothedLatencyMs = smoothed;
+
+        long interval = (long) (smoothed * INTERVAL_HEADROOM);
+        intervalMs = Math.max(MIN_INTERVAL_MS, Math.min(MAX_INTERVAL_MS, interval));
+
+        int newSegments = segments;
+        if (smoothed > LATENCY_BUDGET_MS) {
+            newSegments = 1;
+        } else if (smoothed < LATENCY_BUDGET_MS * SEGMENT_RECOVERY) {
+            newSegments = 2;
+        }
+        if (newSegments == segments) {
+            return false;
+        }
+        segments = newSegments;
+        return true;
+    }
+
+    /**
+     * Wait after a frame was answered before the next may go out; the round
+     * trip already took part of the interval.
+     */
+    public long delayAfter(long latencyMs) {
+        return Math.max(0, intervalMs - latencyMs);
+    }
+
+    public float getSmoothedLatencyMs() {
+        return smoothedLatencyMs;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+}
@@ -0,0 +1,299 @@
+package com.phicomm.r1manager.server.manager;
+
+import com.phicomm.r1manager.server.client.HardwareClient;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LedFrameScheduler - Paces LED frames to what the hardware daemon can keep up with.
+ *
+ * This is the only path animated LED output takes. Frames are pulled from a
+ * {@link FrameSource} whenever one is due: after a producer signalled new
+ * content, or continuously while the source is animating. At most one frame
+ * is on the wire at a time; content signalled again before it was pulled is
+ * counted as a dropped frame. Each frame is sent with a unique type_id and
+ * the daemon's reply is awaited, so the round trip is measured instead of
+ * assumed.
+ *
+ * The round trip drives the frame rate and how many segments (lights_test
+ * commands) a frame may use, see {@link LedFramePacing}. The segments of a
+ * frame go to the daemon as one batch, but every lights_test is still a fork
+ * on its side, which is why under load only one is sent per frame. Segments
+ * whose value has not changed since the last send are skipped.
+ */
+public class LedFrameScheduler {
+
+    private static final String TAG = "LedFrameScheduler";
+
+    private static final long RESPONSE_TIMEOUT_MS = 1000;
+
+    /**
+     * Supplies the frames to send.
+     */
+    public interface FrameSource {
+        /**
+         * Build the frame to show now, or null if there is nothing to show.
+         */
+        Frame composeFrame(long nowMs);
+
+        /**
+         * True while frames change over time without new content being signalled.
+         */
+        boolean isAnimating();
+    }
+
+    /**
+     * One LED frame. A mask of 0 leaves that part of the hardware untouched.
+     * The shell commands are formatted once, when the frame is created.
+     */
+    public static class Frame {
+        public final long internalMask;
+        public final int color; // 0xRRGGBB
+        public final long ringMask;
+        public final int brightness; // 0-255
+        public final String tag;
+        final String internalCommand;
+        final String ringCommand;
+
+        public Frame(long internalMask, int color, long ringMask, int brightness, String tag) {
+            this.internalMask = internalMask;
+            this.color = color & 0xffffff;
+            this.ringMask = ringMask;
+            this.brightness = Math.max(0, Math.min(255, brightness));
+            this.tag = tag;
+            this.internalCommand = internalMask != 0
+                    ? "lights_test set " + Long.toHexString(internalMask) + " " + toHex(this.color, 6)
+                    : null;
+            this.ringCommand = ringMask != 0
+                    ? "lights_test set " + Long.toHexString(ringMask) + " " + toHex(this.brightness, 2)
+                    : null;
+        }
+
+        private static String toHex(int value, int digits) {
+            String hex = Integer.toHexString(value);
+            StringBuilder sb = new StringBuilder(digits);
+            for (int i = hex.length(); i < digits; i++) {
+                sb.append('0');
+            }
+            return sb.append(hex).toString();
+        }
+    }
+
+    private final HardwareClient hardwareClient;
+    private final FrameSource source;
+    private final LedFramePacing pacing = new LedFramePacing();
+    private final Object lock = new Object();
+
+    // Guarded by lock
+    private boolean dirty = false;
+    private long nextSendAt = 0;
+    private String lastInternal;
+    private String lastRing;
+
+    private volatile long lastLatencyMs = 0;
+
+    // Metrics
+    private volatile long framesSubmitted = 0;
+    private volatile long framesSent = 0;
+    private volatile long framesDropped = 0;
+    private volatile long framesUnchanged = 0;
+    private volatile long timeouts = 0;
+    private volatile float achievedFps = 0;
+    private long fpsWindowStart = System.currentTimeMillis();
+    private int fpsWindowFrames = 0;
+
+    private long sequence = 0;
+
+    public LedFrameScheduler(HardwareClient hardwareClient, FrameSource source) {
+        this.hardwareClient = hardwareClient;
+        this.source = source;
+        ThreadManager.getInstance().executeIO(this::runLoop);
+    }
+
+    /**
+     * Signal that the source has new content (or started animating).
+     * Content signalled again before the previous one was sent counts as a
+     * dropped frame.
+     */
+    public void requestFrame() {
+        synchronized (lock) {
+            framesSubmitted++;
+            if (dirty) {
+                framesDropped++;
+            }
+            dirty = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Discard signalled content, e.g. before turning all LEDs off.
+     */
+    public void cancelPending() {
+        synchronized (lock) {
+            dirty = false;
+        }
+    }
+
+    /**
+     * Forget what was last sent. Must be called when something else writes the
+     * LEDs directly, otherwise an unchanged segment would be skipped wrongly.
+     */
+    public void invalidate() {
+        synchronized (lock) {
+            lastInternal = null;
+            lastRing = null;
+        }
+    }
+
+    /**
+     * Smoothed round trip of one frame to the hardware daemon.
+     */
+    public long getLatencyMs() {
+        return Math.round(pacing.getSmoothedLatencyMs());
+    }
+
+    public Map<String, Object> getMetrics() {
+        float fps;
+        synchronized (lock) {
+            // No frames for a while means the window was never closed
+            fps = System.currentTimeMillis() - fpsWindowStart > 2000 ? 0 : achievedFps;
+        }
+
+        Map<String, Object> metrics = new HashMap<>();
+        metrics.put("achievedFps", Math.round(fps * 10) / 10.0f);
+        long intervalMs = pacing.getIntervalMs();
+        metrics.put("targetFps", Math.round(10000.0f / intervalMs) / 10.0f);
+        metrics.put("intervalMs", intervalMs);
+        metrics.put("segments", pacing.getSegments());
+        metrics.put("latencyMs", Math.round(pacing.getSmoothedLatencyMs()));
+        metrics.put("lastLatencyMs", lastLatencyMs);
+        metrics.put("framesSubmitted", framesSubmitted);
+        metrics.put("framesSent", framesSent);
+        metrics.put("framesDropped", framesDropped);
+        metrics.put("framesUnchanged", framesUnchanged);
+        metrics.put("timeouts", timeouts);
+        return metrics;
+    }
+
+    // ==================== Sender ====================
+
+    private void runLoop() {
+        while (true) {
+            List<String> segments;
+            try {
+                awaitDue();
+                Frame frame = source.composeFrame(System.currentTimeMillis());
+                segments = frame != null ? buildSegments(frame) : null;
+            } catch (InterruptedException e) {
+                AppLog.w(TAG, "Frame scheduler interrupted, stopping");
+                return;
+            } catch (Exception e) {
+                AppLog.e(TAG, "Error composing LED frame", e);
+                segments = null;
+            }
+            if (segments == null) {
+                synchronized (lock) {
+                    // Nothing new: don't spin while an animation holds the same frame
+                    nextSendAt = System.currentTimeMillis() + LedFramePacing.MIN_INTERVAL_MS;
+                }
+                continue;
+            }
+
+            long start = System.nanoTime();
+            JSONObject response = hardwareClient.sendShellBatch(segments, "LED_FRAME_" + (++sequence),
+                    RESPONSE_TIMEOUT_MS);
+            long latency = (System.nanoTime() - start) / 1000000;
+            onFrameDone(latency, response != null);
+        }
+    }
+
+    /**
+     * Block until new content was signalled (or the source is animating) and
+     * the frame interval has elapsed.
+     */
+    private void awaitDue() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                if (!dirty && !source.isAnimating()) {
+                    lock.wait(LedFramePacing.MAX_INTERVAL_MS);
+                    continue;
+                }
+                long wait = nextSendAt - System.currentTimeMillis();
+                if (wait > 0) {
+                    lock.wait(wait);
+                    continue;
+                }
+                break;
+            }
+            dirty = false;
+        }
+    }
+
+    /**
+     * Pick the lights_test commands to send for a frame.
+     *
+     * @return the commands, or null if the frame had nothing new
+     */
+    private List<String> buildSegments(Frame frame) {
+        synchronized (lock) {
+            String internal = frame.internalCommand;
+            String ring = frame.ringCommand;
+            int selected = pacing.selectSegments(internal != null && !internal.equals(lastInternal),
+                    ring != null && !ring.equals(lastRing));
+            if (selected == 0) {
+                framesUnchanged++;
+                return null;
+            }
+
+            boolean sendInternal = (selected & LedFramePacing.SEGMENT_INTERNAL) != 0;
+            boolean sendRing = (selected & LedFramePacing.SEGMENT_RING) != 0;
+
+            if (sendInternal) {
+                lastInternal = internal;
+            }
+            if (sendRing) {
+                lastRing = ring;
+            }
+            if (sendInternal && sendRing) {
+                return Arrays.asList(internal, ring);
+            }
+            return Collections.singletonList(sendInternal ? internal : ring);
+        }
+    }
+
+    private void onFrameDone(long latencyMs, boolean answered) {
+        if (!answered) {
+            timeouts++;
+            latencyMs = RESPONSE_TIMEOUT_MS;
+            invalidate();
+        }
+
+        lastLatencyMs = latencyMs;
+        if (pacing.onRoundTrip(latencyMs)) {
+            AppLog.d(TAG, "Latency " + Math.round(pacing.getSmoothedLatencyMs()) + "ms, segments per frame: "
+                    + pacing.getSegments());
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (lock) {
+            nextSendAt = now + pacing.delayAfter(latencyMs);
+            framesSent++;
+            fpsWindowFrames++;
+            long elapsed = now - fpsWindowStart;
+            if (elapsed >= 1000) {
+                achievedFps = fpsWindowFrames * 1000.0f / elapsed;
+                fpsWindowFrames = 0;
+                fpsWindowStart = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.phicomm.r1manager.server.manager;
+
+/**
+ * LedLayout - How the R1's LEDs map onto the lights_test mask: bits 0-14 are
+ * the 15 internal RGB LEDs, bits 15-38 the 24 brightness-only ring LEDs.
+ */
+public final class LedLayout {
+
+    public static final int INTERNAL_LEDS = 15;
+    public static final int RING_LEDS = 24;
+    public static final int RING_SHIFT = INTERNAL_LEDS;
+
+    public static final long INTERNAL_ALL = (1L << INTERNAL_LEDS) - 1; // 0x7fff
+    public static final long RING_ALL = ((1L << RING_LEDS) - 1) << RING_SHIFT; // 0x7fffff8000
+
+    private LedLayout() {
+    }
+}
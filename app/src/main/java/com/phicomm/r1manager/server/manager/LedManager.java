@@ -3,16 +3,36 @@ package com.phicomm.r1manager.server.manager;
 import com.phicomm.r1manager.util.AppLog;
 import com.phicomm.r1manager.server.client.HardwareClient;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Centralized manager for R1 LED hardware control.
  * Handles shell commands, state gating, and visual feedback orchestration.
+ *
+ * Animated output (voice status, music sync) goes through priority layers
+ * composited into one frame stream, so status animations and music effects
+ * never compete for the hardware channel.
  */
 public class LedManager {
     private static final String TAG = "LedManager";
+    private static final long STATUS_FADE_MS = 250;
+
+    // Precompiled status animations
+    private static final LedAnimation WAKE_FLASH = LedAnimation.fade(0xff, 0x80, 400, "WAKE_LIGHT");
+    private static final LedAnimation CONNECTING = LedAnimation.spinner(6, 0xc0, 1200, "CONNECTING");
+    private static final LedAnimation LISTENING = LedAnimation.breathing(0x30, 0x80, 2400, "LISTENING");
+    private static final LedAnimation SPEAKING = LedAnimation.breathing(0xa0, 0xff, 1200, "SPEAKING");
+    private static final int SPEAKING_MIN_BRIGHTNESS = 0x30;
+    // Voice levels are quantized so small wobbles give identical frames, which
+    // the scheduler does not send
+    private static final int SPEAKING_LEVEL_STEP = 0x10;
+
     private static LedManager instance;
     private final HardwareClient hardwareClient;
+    private final LedCompositor compositor;
+    private final LedFrameScheduler frameScheduler;
     private final List<LedActivitySource> activitySources = new ArrayList<>();
 
     /**
@@ -24,6 +44,8 @@ public class LedManager {
 
     private LedManager() {
         this.hardwareClient = HardwareClient.getInstance();
+        this.compositor = new LedCompositor();
+        this.frameScheduler = new LedFrameScheduler(hardwareClient, compositor);
     }
 
     public static synchronized LedManager getInstance() {
@@ -53,6 +75,7 @@ public class LedManager {
      * Set internal LEDs using hex mask and color.
      */
     public void setInternalLed(String maskHex, String colorHex, String tag) {
+        frameScheduler.invalidate();
         hardwareClient.sendShell("lights_test set " + maskHex + " " + colorHex, tag != null ? tag : "LED_INT");
     }
 
@@ -60,6 +83,7 @@ public class LedManager {
      * Set ring LEDs using hex mask and brightness (00-ff).
      */
     public void setRingLed(String maskHex, String brightnessHex, String tag) {
+        frameScheduler.invalidate();
         hardwareClient.sendShell("lights_test set " + maskHex + " " + brightnessHex, tag != null ? tag : "LED_RING");
     }
 
@@ -68,8 +92,75 @@ public class LedManager {
      */
     public void turnOffAll() {
         AppLog.i(TAG, "Turning off all LEDs");
-        setInternalLed("7fff", "000000", "OFF_INT");
-        setRingLed("7fffff8000", "00", "OFF_RING");
+        compositor.clearAll(0);
+        frameScheduler.cancelPending();
+        setLeds("7fff", "000000", "7fffff8000", "00", "OFF_ALL");
+    }
+
+    /**
+     * Set internal and ring LEDs in a single hardware message.
+     */
+    public void setLeds(String internalMask, String colorHex, String ringMask, String brightnessHex, String tag) {
+        frameScheduler.invalidate();
+        hardwareClient.sendShellBatch(Arrays.asList(
+                "lights_test set " + internalMask + " " + colorHex,
+                "lights_test set " + ringMask + " " + brightnessHex), tag != null ? tag : "LED_ALL");
+    }
+
+    /**
+     * Submit a music sync frame. Frames are paced by the measured hardware
+     * round trip, so callers can submit at their own rate; frames that cannot
+     * be sent in time are dropped. A mask of 0 leaves that part untouched.
+     *
+     * @param color      Internal LED color, 0xRRGGBB
+     * @param brightness Ring brightness 0-255
+     */
+    public void submitFrame(long internalMask, int color, long ringMask, int brightness, String tag) {
+        compositor.setFrame(LedCompositor.Layer.MUSIC,
+                new LedFrameScheduler.Frame(internalMask, color, ringMask, brightness, tag));
+        frameScheduler.requestFrame();
+    }
+
+    /**
+     * Submit a music sync frame to be shown at a wall clock time (ms), e.g.
+     * when the audio it was computed from will actually be heard.
+     */
+    public void submitFrameAt(long internalMask, int color, long ringMask, int brightness, String tag,
+            long displayAtMs) {
+        compositor.setFrameAt(LedCompositor.Layer.MUSIC,
+                new LedFrameScheduler.Frame(internalMask, color, ringMask, brightness, tag), displayAtMs);
+        frameScheduler.requestFrame();
+    }
+
+    /**
+     * Estimated time from sending a frame until the LEDs change: half the
+     * smoothed hardware round trip.
+     */
+    public long getFrameLatencyMs() {
+        return frameScheduler.getLatencyMs() / 2;
+    }
+
+    /**
+     * Play an animation on a layer. Higher layers cover the parts they define.
+     */
+    public void play(LedCompositor.Layer layer, LedAnimation animation, long fadeInMs) {
+        compositor.play(layer, animation, fadeInMs);
+        frameScheduler.requestFrame();
+    }
+
+    /**
+     * Remove a layer, revealing the layers below it.
+     */
+    public void clearLayer(LedCompositor.Layer layer, long fadeOutMs) {
+        compositor.clear(layer, fadeOutMs);
+        frameScheduler.requestFrame();
+    }
+
+    /**
+     * Frame rate, latency and dropped-frame metrics of the animation path.
+     */
+    public Map<String, Object> getFrameMetrics() {
+        return frameScheduler.getMetrics();
     }
 
     /**
@@ -90,25 +181,64 @@ public class LedManager {
     public void checkAndGatedStop() {
         if (!isAnythingActive()) {
             AppLog.d(TAG, "Gated stop triggered: All services idle");
-            turnOffAll();
+            // Fade out whatever is showing; the compositor switches everything off after it
+            compositor.clearAll(STATUS_FADE_MS);
+            frameScheduler.requestFrame();
         }
     }
 
     /**
-     * Show listening indicator - green ring.
+     * Wake word feedback - bright ring flash settling to the listening level.
+     */
+    public void showWake() {
+        AppLog.d(TAG, "LED: Wake flash");
+        play(LedCompositor.Layer.VOICE, WAKE_FLASH, 0);
+    }
+
+    /**
+     * Show connecting indicator - spinning ring.
+     * Called while a requested conversation waits for the server.
+     */
+    public void showConnecting() {
+        AppLog.d(TAG, "LED: Connecting (spinner)");
+        play(LedCompositor.Layer.VOICE, CONNECTING, STATUS_FADE_MS);
+    }
+
+    /**
+     * Show listening indicator - slow breathing ring.
      * Called when the device is actively listening for speech.
      */
     public void showListening() {
-        AppLog.d(TAG, "LED: Listening mode (green ring)");
-        setRingLed("7fffff8000", "80", "LISTENING");
+        AppLog.d(TAG, "LED: Listening mode (breathing ring)");
+        play(LedCompositor.Layer.VOICE, LISTENING, STATUS_FADE_MS);
     }
 
     /**
-     * Show speaking indicator - bright ring.
+     * Show speaking indicator - bright, faster breathing ring.
      * Called when the device is speaking (TTS playing).
      */
     public void showSpeaking() {
         AppLog.d(TAG, "LED: Speaking mode (bright ring)");
-        setRingLed("7fffff8000", "ff", "SPEAKING");
+        play(LedCompositor.Layer.VOICE, SPEAKING, STATUS_FADE_MS);
+    }
+
+    /**
+     * Speaking indicator driven by the voice level (0.0 - 1.0) instead of the
+     * breathing animation, shown at displayAtMs. Replaces showSpeaking() until
+     * the status is cleared.
+     */
+    public void showSpeakingLevel(float level, long displayAtMs) {
+        int brightness = LedAnimation.lerp(SPEAKING_MIN_BRIGHTNESS, 0xff, Math.max(0, Math.min(1, level)));
+        brightness = Math.min(0xff, Math.round((float) brightness / SPEAKING_LEVEL_STEP) * SPEAKING_LEVEL_STEP);
+        compositor.setFrameAt(LedCompositor.Layer.VOICE, new LedFrameScheduler.Frame(0, 0,
+                LedLayout.RING_ALL, brightness, "SPEAKING_LEVEL"), displayAtMs);
+        frameScheduler.requestFrame();
+    }
+
+    /**
+     * Remove the voice status indicator, revealing music sync (if any).
+     */
+    public void clearStatus() {
+        clearLayer(LedCompositor.Layer.VOICE, STATUS_FADE_MS);
     }
 }
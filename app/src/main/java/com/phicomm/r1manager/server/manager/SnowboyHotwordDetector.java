@@ -1,14 +1,13 @@
 package com.phicomm.r1manager.server.manager;
 
 import android.content.Context;
+import com.phicomm.r1manager.server.voicebot.VoiceTurnTracer;
 import com.phicomm.r1manager.util.AppLog;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 
 import ai.kitt.snowboy.SnowboyDetect;
 
@@ -78,17 +77,18 @@ public class SnowboyHotwordDetector {
         return outFile.getAbsolutePath();
     }
 
-    public boolean detect(byte[] pcmData) {
+    /**
+     * @param samples 16-bit samples, as filled in by AudioFrontEnd
+     * @param count   Number of samples to use
+     */
+    public boolean detect(short[] samples, int count) {
         if (detector == null)
             return false;
 
-        // Convert byte[] to short[]
-        short[] audioData = new short[pcmData.length / 2];
-        ByteBuffer.wrap(pcmData).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(audioData);
-
         // runDetection is lowercase in r1-helper wrapper
-        int result = detector.runDetection(audioData, audioData.length);
+        int result = detector.runDetection(samples, count);
         if (result >= 1) {
+            VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.WAKE);
             AppLog.i(TAG, "Hotword Detected! result=" + result);
             return true;
         } else if (result == -1) {
@@ -10,6 +10,10 @@ import com.phicomm.r1manager.util.AppLog;
 import com.phicomm.r1manager.server.model.dto.CommonDto;
 import com.phicomm.r1manager.server.model.dto.SystemDto;
 import com.phicomm.r1manager.server.client.HardwareClient;
+import com.phicomm.r1manager.server.client.ShellStream;
+import com.phicomm.r1manager.server.client.SseShellListener;
+import com.phicomm.r1manager.util.SseEmitter;
+import com.phicomm.r1manager.util.ThreadManager;
 
 import org.json.JSONObject;
 
@@ -25,6 +29,7 @@ import java.util.List;
 public class SystemManager {
 
     private static final String TAG = "SystemManager";
+    private static final long STREAM_TIMEOUT_MS = 5 * 60 * 1000;
 
     private Context context;
     private AudioManager audioManager;
@@ -252,42 +257,44 @@ public class SystemManager {
                 }
             }
         } catch (Exception e) {
-            AppLog.e(TAG, "HardwareClient execution failed, falling back to Runtime", e);
+            AppLog.e(TAG, "HardwareClient execution failed, falling back to local shell", e);
         }
 
-        try {
-            AppLog.i(TAG, "Executing via Runtime: " + command);
-            Process process = Runtime.getRuntime().exec(new String[] { "sh", "-c", command });
-
-            BufferedReader stdoutReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-            BufferedReader stderrReader = new BufferedReader(new InputStreamReader(process.getErrorStream()));
-
-            StringBuilder stdout = new StringBuilder();
-            StringBuilder stderr = new StringBuilder();
-            String line;
-
-            while ((line = stdoutReader.readLine()) != null)
-                stdout.append(line).append("\n");
-            while ((line = stderrReader.readLine()) != null)
-                stderr.append(line).append("\n");
-
-            stdoutReader.close();
-            stderrReader.close();
-
-            int exitCode = process.waitFor();
+        // Fallback: a process of its own, so a slow command cannot hold up the
+        // shared ShellSession the short hardware commands use
+        AppLog.i(TAG, "Executing locally: " + command);
+        return ShellStream.runLocal(command, 10000, ShellStream.DEFAULT_MAX_OUTPUT_BYTES, null);
+    }
 
-            result.stdout = stdout.toString();
-            result.stderr = stderr.toString();
-            result.exitCode = exitCode;
-            result.success = (exitCode == 0);
-        } catch (Exception e) {
-            AppLog.e(TAG, "Error executing command", e);
-            result.stdout = "";
-            result.stderr = e.getMessage();
-            result.exitCode = -1;
-            result.success = false;
-        }
-        return result;
+    /**
+     * Run a command in the background and push its output to an SSE stream:
+     * "stdout"/"stderr" events per line, then one "exit" event with the result.
+     * Privileged commands go through the hardware daemon, others run locally;
+     * like executeShell(), a privileged command runs locally when the daemon
+     * cannot be reached.
+     */
+    public void streamShell(final String command, final boolean privileged, final SseEmitter emitter) {
+        ThreadManager.getInstance().executeIO(() -> {
+            SseShellListener listener = new SseShellListener(emitter);
+
+            AppLog.i(TAG, "Streaming " + (privileged ? "via HardwareClient" : "locally") + ": " + command);
+            CommonDto.ShellResult result = null;
+            if (privileged) {
+                java.io.File logFile = new java.io.File(Environment.getExternalStorageDirectory(),
+                        "r1helper_shell_" + System.currentTimeMillis() + ".log");
+                result = ShellStream.runPrivileged(command, logFile, STREAM_TIMEOUT_MS,
+                        ShellStream.DEFAULT_MAX_OUTPUT_BYTES, listener);
+                if (result == null) {
+                    AppLog.w(TAG, "Hardware service unreachable, streaming locally: " + command);
+                    emitter.send("stderr", "Hardware service unreachable, running locally");
+                }
+            }
+            if (result == null) {
+                result = ShellStream.runLocal(command, STREAM_TIMEOUT_MS,
+                        ShellStream.DEFAULT_MAX_OUTPUT_BYTES, listener);
+            }
+            listener.finish(result);
+        });
     }
 
     // ==================== Volume ====================
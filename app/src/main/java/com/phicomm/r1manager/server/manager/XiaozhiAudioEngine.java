@@ -1,20 +1,33 @@
 package com.phicomm.r1manager.server.manager;
 
+import com.phicomm.r1manager.server.service.AudioVisualizerService;
 import com.phicomm.r1manager.util.AppLog;
 import com.phicomm.r1manager.server.voicebot.AudioRecorder;
-import com.phicomm.r1manager.server.voicebot.OpusDecoder;
+import com.phicomm.r1manager.server.voicebot.EchoReference;
 import com.phicomm.r1manager.server.voicebot.OpusEncoder;
+import com.phicomm.r1manager.server.voicebot.OpusEncoderConfig;
 import com.phicomm.r1manager.server.voicebot.OpusStreamPlayer;
+import com.phicomm.r1manager.server.voicebot.VoiceTurnTracer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Map;
 
 /**
  * Manages Audio recording, encoding, decoding, and playback for Xiaozhi Service.
  *
- * Uses VAD-based endpointing to detect complete sentences (speech -> 800ms silence)
- * before sending to server. This prevents Whisper hallucination from background noise.
+ * Uses VAD-based endpointing to detect complete sentences (speech -> hangover silence,
+ * see EndpointingConfig) before sending to server. This prevents Whisper hallucination from background noise.
  *
  * Audio Flow:
  *   Mic -> AudioRecorder -> VAD State Machine -> onSentenceFinished()
  *                                             -> OpusEncoder -> Server
+ *
+ * The capture session (AudioRecord, VAD and pre-roll ring) is opened once and
+ * stays open across wake word and conversation mode; the mode only decides
+ * where frames are routed, so no audio is lost when a wake word starts a
+ * conversation.
  */
 public class XiaozhiAudioEngine {
     private static final String TAG = "XiaozhiAudioEngine";
@@ -37,17 +50,25 @@ public class XiaozhiAudioEngine {
 
     private AudioRecorder recorder;
     private OpusEncoder encoder;
-    private OpusDecoder decoder;
     private OpusStreamPlayer player;
+    private AudioVisualizerService.AudioDataListener playbackLevelListener;
+    // Playback level for the recorder's echo gate, so VAD works during TTS
+    private final EchoReference echoReference = new EchoReference();
 
     private SnowboyHotwordDetector hotwordDetector;
     private Runnable wakeCallback;
     private SentenceListener sentenceListener;
     private volatile boolean isWakeDetectionMode = false;
+    // Set on the recording thread when the wake word fires, consumed by the next mode switch
+    private volatile boolean wakeDetected = false;
     private android.content.Context context;
 
-    // Buffer to accumulate 2 VAD frames (30ms each) into 1 Opus frame (60ms)
-    private byte[] frameAccumulator = new byte[OPUS_FRAME_BYTES];
+    // Buffer to accumulate 2 VAD frames (30ms each) into 1 Opus frame (60ms).
+    // The recorder's frames are only valid during the callback, so this copy
+    // is the one place capture audio is kept. Direct, so the encoder reads
+    // it in place.
+    private final ByteBuffer frameAccumulator =
+            ByteBuffer.allocateDirect(OPUS_FRAME_BYTES).order(ByteOrder.nativeOrder());
     private int accumulatorOffset = 0;
 
     /**
@@ -65,7 +86,7 @@ public class XiaozhiAudioEngine {
         void onAudioFrame(byte[] encodedFrame);
 
         /**
-         * Called when a complete sentence is finished (speech followed by 800ms silence).
+         * Called when a complete sentence is finished (speech followed by the hangover silence).
          * All frames have already been sent via onAudioFrame.
          * This is a notification only - no audio data.
          */
@@ -75,6 +96,12 @@ public class XiaozhiAudioEngine {
          * Called when speech starts.
          */
         void onSpeechStart();
+
+        /**
+         * True while frames are being sent. Speech heard otherwise (e.g. echo
+         * of the reply that got past the gate) is not encoded at all.
+         */
+        boolean isStreaming();
     }
 
     public XiaozhiAudioEngine(android.content.Context context) {
@@ -113,18 +140,21 @@ public class XiaozhiAudioEngine {
     private void startRecorderInternal() {
         if (!com.phicomm.r1manager.config.XiaozhiConfig.getInstance(context).isVoiceBotEnabled()) {
             AppLog.w(TAG, "Voice Bot is DISABLED. Recording skipped.");
+            if (recorder != null && recorder.isRecording()) {
+                recorder.stopRecording();
+            }
             return;
         }
 
-        // Opus encoder uses 60ms frames (server requirement)
+        // Opus encoder uses 60ms frames (server requirement). Its tuning may
+        // have changed through the config API; the encoding thread picks it up
+        // before the next frame.
+        OpusEncoderConfig encoderConfig = com.phicomm.r1manager.config.XiaozhiConfig.getInstance(context)
+                .getOpusEncoderConfig();
         if (encoder == null) {
-            encoder = new OpusEncoder(RECORD_SAMPLE_RATE, RECORD_CHANNELS, OPUS_FRAME_SIZE_MS);
-        }
-
-        // Stop existing recorder when switching modes to ensure VAD is properly initialized
-        if (recorder != null && recorder.isRecording()) {
-            AppLog.d(TAG, "Stopping recorder to switch modes...");
-            recorder.stopRecording();
+            encoder = new OpusEncoder(RECORD_SAMPLE_RATE, RECORD_CHANNELS, OPUS_FRAME_SIZE_MS, encoderConfig);
+        } else {
+            encoder.setConfig(encoderConfig);
         }
 
         // Create new recorder if needed
@@ -132,110 +162,188 @@ public class XiaozhiAudioEngine {
             recorder = new AudioRecorder(RECORD_SAMPLE_RATE, RECORD_CHANNELS, VAD_FRAME_SIZE_MS);
         }
 
-        // Reset frame accumulator
-        accumulatorOffset = 0;
-
-        // 1. Raw Listener -> Wake Word Detection (parallel path)
-        recorder.setRawListener(pcmData -> {
-            if (isWakeDetectionMode) {
-                if (hotwordDetector != null && hotwordDetector.detect(pcmData)) {
-                    if (wakeCallback != null) {
-                        try {
-                            wakeCallback.run();
-                        } catch (Exception e) {
-                            AppLog.e(TAG, "Wake callback error", e);
-                        }
-                    }
-                }
-            }
-        });
+        // Endpointing tuning may have changed through the config API since the last start
+        recorder.setEndpointingConfig(com.phicomm.r1manager.config.XiaozhiConfig.getInstance(context)
+                .getEndpointingConfig());
+        recorder.setEchoReference(isWakeDetectionMode ? null : echoReference);
+
+        // 1. Raw Listener -> Wake Word Detection. Only set in wake mode, so the
+        // recorder skips copying out samples otherwise.
+        recorder.setRawListener(isWakeDetectionMode ? wakeListener : null);
 
         // 2. VAD Sentence Listener -> Buffer 2x30ms frames, encode as 60ms, send
-        if (!isWakeDetectionMode && sentenceListener != null) {
-            AppLog.i(TAG, "Setting VAD sentence listener for conversation mode");
-            recorder.setVadSentenceListener(new AudioRecorder.VadSentenceListener() {
-                @Override
-                public void onAudioFrame(byte[] pcmFrame) {
-                    // Accumulate 30ms VAD frames into 60ms Opus frames
-                    if (encoder != null && sentenceListener != null) {
-                        // Copy frame to accumulator
-                        System.arraycopy(pcmFrame, 0, frameAccumulator, accumulatorOffset, VAD_FRAME_BYTES);
-                        accumulatorOffset += VAD_FRAME_BYTES;
-
-                        // When we have 60ms worth of audio, encode and send
-                        if (accumulatorOffset >= OPUS_FRAME_BYTES) {
-                            byte[] encoded = encoder.encode(frameAccumulator);
-                            if (encoded != null) {
-                                sentenceListener.onAudioFrame(encoded);
-                            }
-                            accumulatorOffset = 0;
-                        }
+        recorder.setVadSentenceListener(!isWakeDetectionMode && sentenceListener != null ? vadListener : null);
+
+        if (recorder.isRecording()) {
+            // The capture session stays open across modes; switching only
+            // reroutes frames and resets the VAD. Right after a wake word, the
+            // frames captured since it stay available as pre-roll.
+            boolean afterWake = !isWakeDetectionMode && wakeDetected;
+            recorder.requestVadReset(afterWake);
+            AppLog.d(TAG, "Capture session kept open" + (afterWake ? ", pre-roll from wake word" : ""));
+        } else {
+            accumulatorOffset = 0;
+            recorder.startRecording();
+        }
+        wakeDetected = false;
+
+        if (!isWakeDetectionMode) {
+            VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.RECORDER_START);
+        }
+    }
+
+    /**
+     * End the conversation stream. The capture session stays open for the
+     * next mode; release() closes the mic.
+     */
+    public synchronized void stopRecording() {
+        if (recorder != null) {
+            recorder.setVadSentenceListener(null);
+            recorder.setEchoReference(null);
+            AppLog.i(TAG, "Recording stopped");
+        }
+    }
+
+    // Recording thread: runs the wake word detector on every frame in wake mode
+    private final AudioRecorder.AudioDataListener wakeListener = (frame, samples) -> {
+        if (isWakeDetectionMode) {
+            if (hotwordDetector != null && hotwordDetector.detect(samples, samples.length)) {
+                // Audio after this frame is the user's request
+                wakeDetected = true;
+                recorder.markPreRollStart();
+                if (wakeCallback != null) {
+                    try {
+                        wakeCallback.run();
+                    } catch (Exception e) {
+                        AppLog.e(TAG, "Wake callback error", e);
                     }
                 }
-
-                @Override
-                public void onSpeechStart() {
-                    // Reset accumulator on speech start
+            }
+        }
+    };
+
+    // Recording thread: streams the frames of each sentence as Opus
+    private final AudioRecorder.VadSentenceListener vadListener = new AudioRecorder.VadSentenceListener() {
+        @Override
+        public void onAudioFrame(ByteBuffer pcmFrame) {
+            // Accumulate 30ms VAD frames into 60ms Opus frames
+            if (encoder != null && sentenceListener != null) {
+                if (!sentenceListener.isStreaming()) {
                     accumulatorOffset = 0;
-                    if (sentenceListener != null) {
-                        sentenceListener.onSpeechStart();
+                    return;
+                }
+                // Copy frame to accumulator
+                frameAccumulator.position(accumulatorOffset);
+                frameAccumulator.put(pcmFrame);
+                accumulatorOffset += VAD_FRAME_BYTES;
+
+                // When we have 60ms worth of audio, encode and send
+                if (accumulatorOffset >= OPUS_FRAME_BYTES) {
+                    byte[] encoded = encoder.encode(frameAccumulator);
+                    if (encoded != null) {
+                        sentenceListener.onAudioFrame(encoded);
                     }
+                    accumulatorOffset = 0;
                 }
+            }
+        }
 
-                @Override
-                public void onSentenceComplete() {
-                    // Flush any remaining audio in accumulator
-                    if (accumulatorOffset > 0 && encoder != null && sentenceListener != null) {
-                        // Pad with silence if needed
-                        java.util.Arrays.fill(frameAccumulator, accumulatorOffset, OPUS_FRAME_BYTES, (byte) 0);
-                        byte[] encoded = encoder.encode(frameAccumulator);
-                        if (encoded != null) {
-                            sentenceListener.onAudioFrame(encoded);
-                        }
-                        accumulatorOffset = 0;
-                    }
-                    if (sentenceListener != null) {
-                        sentenceListener.onSentenceComplete();
-                    }
+        @Override
+        public void onSpeechStart() {
+            // Reset accumulator on speech start
+            accumulatorOffset = 0;
+            if (sentenceListener != null) {
+                sentenceListener.onSpeechStart();
+            }
+        }
+
+        @Override
+        public void onSentenceComplete() {
+            // Flush any remaining audio in accumulator
+            if (accumulatorOffset > 0 && encoder != null && sentenceListener != null) {
+                // Pad with silence if needed
+                for (int i = accumulatorOffset; i < OPUS_FRAME_BYTES; i++) {
+                    frameAccumulator.put(i, (byte) 0);
                 }
-            });
-        } else {
-            // Wake mode - clear VAD listener
-            recorder.setVadSentenceListener(null);
+                byte[] encoded = encoder.encode(frameAccumulator);
+                if (encoded != null) {
+                    sentenceListener.onAudioFrame(encoded);
+                }
+                accumulatorOffset = 0;
+            }
+            if (sentenceListener != null) {
+                sentenceListener.onSentenceComplete();
+            }
         }
+    };
 
-        recorder.startRecording();
+    public synchronized void playAudio(byte[] opusData) {
+        ensurePlayerInitialized();
+        player.queuePacket(opusData);
     }
 
-    public synchronized void stopRecording() {
-        if (recorder != null) {
-            recorder.stopRecording();
-            AppLog.i(TAG, "Recording stopped");
+    /**
+     * A TTS reply begins. Picks up jitter buffer tuning changed through the
+     * config API and prebuffers the new stream up to the target depth.
+     */
+    public synchronized void beginPlaybackStream() {
+        ensurePlayerInitialized();
+        player.setJitterBufferConfig(com.phicomm.r1manager.config.XiaozhiConfig.getInstance(context)
+                .getJitterBufferConfig());
+        player.startStream();
+    }
+
+    /**
+     * Cut the TTS reply off (barge-in); nothing queued is played.
+     */
+    public synchronized void flushPlayback() {
+        if (player != null) {
+            player.flush();
         }
     }
 
-    public synchronized void playAudio(byte[] opusData) {
-        ensurePlayerInitialized();
-        if (decoder != null && player != null) {
-            byte[] pcm = decoder.decode(opusData);
-            if (pcm != null) {
-                player.play(pcm);
-            }
+    /**
+     * The TTS reply is complete; the rest plays out without concealment.
+     */
+    public synchronized void endPlaybackStream() {
+        if (player != null) {
+            player.endStream();
         }
     }
 
-    public synchronized void waitForPlaybackCompletion() {
+    public synchronized Map<String, Object> getPlaybackStats() {
+        return player != null ? player.getStats() : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * Receive levels of the played TTS audio (see PcmLevelTap); null stops
+     * the analysis.
+     */
+    public synchronized void setPlaybackLevelListener(AudioVisualizerService.AudioDataListener listener) {
+        this.playbackLevelListener = listener;
         if (player != null) {
-            player.waitForPlaybackCompletion();
+            player.setLevelListener(listener);
         }
     }
 
-    private void ensurePlayerInitialized() {
-        if (decoder == null) {
-            decoder = new OpusDecoder(PLAY_SAMPLE_RATE, PLAY_CHANNELS, PLAY_FRAME_SIZE_MS);
+    /**
+     * Run the callback on the main thread once the last sample of the TTS
+     * reply ended with endPlaybackStream() has been played.
+     */
+    public synchronized void onPlaybackComplete(Runnable callback) {
+        if (player != null) {
+            player.onPlaybackComplete(callback);
+        } else {
+            callback.run();
         }
+    }
+
+    private void ensurePlayerInitialized() {
         if (player == null) {
-            player = new OpusStreamPlayer(PLAY_SAMPLE_RATE, PLAY_CHANNELS, PLAY_FRAME_SIZE_MS);
+            player = new OpusStreamPlayer(PLAY_SAMPLE_RATE, PLAY_CHANNELS, PLAY_FRAME_SIZE_MS,
+                    com.phicomm.r1manager.config.XiaozhiConfig.getInstance(context).getJitterBufferConfig());
+            player.setLevelListener(playbackLevelListener);
+            player.setEchoReference(echoReference);
             player.start();
         }
     }
@@ -253,10 +361,6 @@ public class XiaozhiAudioEngine {
             encoder.release();
             encoder = null;
         }
-        if (decoder != null) {
-            decoder.release();
-            decoder = null;
-        }
         AppLog.i(TAG, "Audio engine released");
     }
 
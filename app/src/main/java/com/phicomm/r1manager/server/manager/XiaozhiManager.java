@@ -5,10 +5,21 @@ import com.phicomm.r1manager.config.XiaozhiConfig;
 import com.phicomm.r1manager.server.client.XiaozhiOtaClient;
 import com.phicomm.r1manager.server.model.xiaozhi.OtaResult;
 import com.phicomm.r1manager.server.model.xiaozhi.XiaozhiBotProfile;
+import com.phicomm.r1manager.server.service.OpusEncoderBenchmark;
 import com.phicomm.r1manager.server.service.XiaozhiService;
+import com.phicomm.r1manager.server.voicebot.EndpointingConfig;
+import com.phicomm.r1manager.server.voicebot.JitterBufferConfig;
+import com.phicomm.r1manager.server.voicebot.OpusEncoderConfig;
+import com.phicomm.r1manager.server.voicebot.VoiceTurnTracer;
 import com.phicomm.r1manager.util.AppLog;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -16,6 +27,10 @@ import java.util.UUID;
  * Thins out XiaozhiController by handling conversation and OTA orchestration.
  */
 public class XiaozhiManager {
+    // Settings besides the endpointing, jitter buffer and encoder ones that the service reads as it goes
+    private static final Set<String> TUNING_KEYS = new HashSet<>(Arrays.asList(
+            "speaking_led_follows_voice", "full_duplex", "listen_mode"));
+
     private final Context context;
     private final XiaozhiOtaClient otaClient;
 
@@ -41,6 +56,32 @@ public class XiaozhiManager {
         return service != null ? service.getStatus() : "Service not available";
     }
 
+    public Map<String, Object> getLatencyStats() {
+        return VoiceTurnTracer.getInstance().getStats();
+    }
+
+    public void resetLatencyStats() {
+        VoiceTurnTracer.getInstance().reset();
+    }
+
+    public Map<String, Object> getPlaybackStats() {
+        XiaozhiService service = MusicServiceManager.getXiaozhiService();
+        return service != null ? service.getPlaybackStats() : Collections.<String, Object>emptyMap();
+    }
+
+    /**
+     * Time the uplink encoder across settings, based on the configured
+     * ones. Without a WAV path a synthetic signal of the given length is used.
+     */
+    public OpusEncoderBenchmark.Report runEncoderBenchmark(String wavPath, int seconds, int passes)
+            throws IOException {
+        OpusEncoderConfig configured = XiaozhiConfig.getInstance(context).getOpusEncoderConfig();
+        if (wavPath == null || wavPath.isEmpty()) {
+            return OpusEncoderBenchmark.runSynthetic(seconds, configured, passes);
+        }
+        return OpusEncoderBenchmark.runFile(new File(wavPath), configured, passes);
+    }
+
     public void updateConfig(Map<String, String> body) {
         XiaozhiConfig config = XiaozhiConfig.getInstance(context);
         XiaozhiBotProfile active = config.getActiveProfile();
@@ -51,7 +92,37 @@ public class XiaozhiManager {
             // If we toggled, we definitely need to reload service, which happens at the end
         }
 
-        if (active == null) {
+        if (body.containsKey("speaking_led_follows_voice")) {
+            // Read on every speaking turn, no reload needed
+            config.setSpeakingLedFollowsVoice(Boolean.parseBoolean(body.get("speaking_led_follows_voice")));
+        }
+
+        if (body.containsKey("full_duplex")) {
+            // Read on every speech start, no reload needed
+            config.setFullDuplex(Boolean.parseBoolean(body.get("full_duplex")));
+        }
+
+        if (body.containsKey("listen_mode")) {
+            // Used from the next "listen start"; unknown modes are ignored
+            config.setListenMode(body.get("listen_mode"));
+        }
+
+        if (hasEndpointingKey(body)) {
+            // Applied whenever recording starts, no reload needed
+            config.setEndpointingConfig(config.getEndpointingConfig().with(body));
+        }
+
+        if (hasAnyKey(body, JitterBufferConfig.DEFAULT.toMap().keySet())) {
+            // Applied at the start of every TTS reply, no reload needed
+            config.setJitterBufferConfig(config.getJitterBufferConfig().with(body));
+        }
+
+        if (hasAnyKey(body, OpusEncoderConfig.DEFAULT.toMap().keySet())) {
+            // Applied whenever recording starts, no reload needed
+            config.setOpusEncoderConfig(config.getOpusEncoderConfig().with(body));
+        }
+
+        if (active == null || isTuningOnly(body)) {
             return;
         }
 
@@ -139,6 +210,35 @@ public class XiaozhiManager {
         }
     }
 
+    private boolean hasEndpointingKey(Map<String, String> body) {
+        return hasAnyKey(body, EndpointingConfig.DEFAULT.toMap().keySet());
+    }
+
+    /**
+     * True if every key is one the running service picks up by itself, so
+     * there is no reason to drop the conversation and reconnect.
+     */
+    private boolean isTuningOnly(Map<String, String> body) {
+        for (String key : body.keySet()) {
+            if (!TUNING_KEYS.contains(key)
+                    && !EndpointingConfig.DEFAULT.toMap().containsKey(key)
+                    && !JitterBufferConfig.DEFAULT.toMap().containsKey(key)
+                    && !OpusEncoderConfig.DEFAULT.toMap().containsKey(key)) {
+                return false;
+            }
+        }
+        return !body.isEmpty();
+    }
+
+    private boolean hasAnyKey(Map<String, String> body, Iterable<String> keys) {
+        for (String key : keys) {
+            if (body.containsKey(key)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private void replaceProfileInList(XiaozhiConfig config, XiaozhiBotProfile active) {
         List<XiaozhiBotProfile> profiles = config.getBotProfiles();
         for (int i = 0; i < profiles.size(); i++) {
@@ -70,8 +70,9 @@ public class ZingMp3Manager {
 
         // Proxy Mode logic
         int localPort = AppConfig.getInstance(App.getInstance()).getPort();
-        String finalUrl = String.format("http://127.0.0.1:%d/api/zing/proxy?url=%s",
-                localPort, URLEncoder.encode(streamUrl, "UTF-8"));
+        String finalUrl = String.format("http://127.0.0.1:%d/api/zing/proxy?url=%s&id=%s",
+                localPort, URLEncoder.encode(streamUrl, "UTF-8"),
+                URLEncoder.encode(id != null ? id : "", "UTF-8"));
 
         Song song = new Song();
         song.setId(id);
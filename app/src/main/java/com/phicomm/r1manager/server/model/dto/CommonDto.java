@@ -24,6 +24,7 @@ public class CommonDto {
         public String stderr;
         public int exitCode;
         public boolean success;
+        public boolean truncated; // Output cap reached, command was stopped
     }
 
     public static class VolumeInfo {
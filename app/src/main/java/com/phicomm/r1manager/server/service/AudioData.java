@@ -0,0 +1,37 @@
+package com.phicomm.r1manager.server.service;
+
+/**
+ * Audio data container, one per Visualizer capture. Instances are reused:
+ * listeners must copy any values they want to keep after onAudioData
+ * returns. No Android dependencies, so the analysis and LED effects can run
+ * off the device (see LedEffectSimulator).
+ */
+public class AudioData {
+    public float amplitude; // 0.0 - 1.0
+    public float bass; // Low frequency (20-250 Hz)
+    public float mid; // Mid frequency (250-4000 Hz)
+    public float treble; // High frequency (4000-20000 Hz)
+    public boolean beatDetected; // True when beat is detected
+    public float bpm; // Estimated tempo, 0 until confident
+    public float onsetStrength; // Spectral flux of this capture relative to the beat threshold
+    public final float[] bands = new float[SpectrumAnalyzer.NUM_BANDS]; // Log-spaced, 0.0 - 1.0
+    public int bandCount; // Valid entries in bands (coarse FFTs merge bands)
+    public long timestamp;
+
+    public AudioData() {
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    public void copyFrom(AudioData other) {
+        amplitude = other.amplitude;
+        bass = other.bass;
+        mid = other.mid;
+        treble = other.treble;
+        beatDetected = other.beatDetected;
+        bpm = other.bpm;
+        onsetStrength = other.onsetStrength;
+        bandCount = other.bandCount;
+        System.arraycopy(other.bands, 0, bands, 0, other.bandCount);
+        timestamp = other.timestamp;
+    }
+}
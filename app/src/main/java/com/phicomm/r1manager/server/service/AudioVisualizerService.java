@@ -8,36 +8,73 @@ import android.content.IntentFilter;
 import android.media.audiofx.Visualizer;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Process;
 import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
 
-import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.phicomm.r1manager.server.manager.LedManager;
 import com.phicomm.r1manager.server.manager.MusicServiceManager;
 
 /**
  * Service to analyze audio output and provide visualization data for LED sync
+ *
+ * The Visualizer is created and driven from a dedicated analysis thread, so
+ * its capture callbacks and the analysis never run on the main looper. Each
+ * listener has a one-slot mailbox delivered on its own pool thread: a slow
+ * listener only skips captures, it never delays the analysis or the others.
  */
 public class AudioVisualizerService extends Service implements LedManager.LedActivitySource {
 
     private static final String TAG = "AudioVisualizerService";
-    private static final int CAPTURE_RATE_MILLIS = 50; // 20 FPS
-    private static final int FFT_SIZE = 128; // Small size for performance
+    private static final int DEFAULT_RATE_HZ = 20;
+    private static final int DEFAULT_CAPTURE_SIZE = 128;
+    private static final long STATS_LOG_INTERVAL_MS = 5000;
 
+    public static final String SOURCE_PLAYER = "player";
+    public static final String SOURCE_BLUETOOTH = "bluetooth";
+
+    // Visualizer, capture settings and analysis state belong to the analysis thread
+    private HandlerThread analysisThread;
+    private Handler analysisHandler;
     private Visualizer visualizer;
-    private boolean isEnabled = false;
-    private boolean isAudioPlaying = false;
-    private Handler handler = new Handler();
+    private int captureRate = 0; // milliHertz
+    private int captureSize = 0;
+    private volatile boolean isEnabled = false;
+    private volatile boolean isAudioPlaying = false;
+
+    // Wanted capture settings, decided under the service lock and applied on the analysis thread
+    private volatile int wantedRate = 0; // milliHertz, 0 = released
+    private volatile int wantedSize = 0;
+    private final Runnable applyCaptureRunnable = this::applyCapture;
 
-    private List<AudioDataListener> listeners = new ArrayList<>();
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Set<String> playingSources = new HashSet<>();
 
-    // Beat detection
-    private float lastBass = 0;
-    private long lastBeatTime = 0;
-    private static final float BEAT_THRESHOLD = 0.3f;
-    private static final long BEAT_MIN_INTERVAL = 200; // ms
+    private final Visualizer.OnDataCaptureListener captureListener = new Visualizer.OnDataCaptureListener() {
+        @Override
+        public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
+            // Not used
+        }
+
+        @Override
+        public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
+            processAudioData(fft, samplingRate);
+        }
+    };
+
+    // Analysis reuses everything it touches; results are copied into the mailboxes
+    private final SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+    private final OnsetDetector onsetDetector = new OnsetDetector();
+    private final AudioData analysis = new AudioData();
+    private long lastStatsLog = 0;
 
     private final IBinder binder = new LocalBinder();
 
@@ -47,22 +84,6 @@ public class AudioVisualizerService extends Service implements LedManager.LedAct
         }
     }
 
-    /**
-     * Audio data container
-     */
-    public static class AudioData {
-        public float amplitude; // 0.0 - 1.0
-        public float bass; // Low frequency (20-250 Hz)
-        public float mid; // Mid frequency (250-4000 Hz)
-        public float treble; // High frequency (4000-20000 Hz)
-        public boolean beatDetected; // True when beat is detected
-        public long timestamp;
-
-        public AudioData() {
-            this.timestamp = System.currentTimeMillis();
-        }
-    }
-
     /**
      * Listener interface for audio data updates
      */
@@ -75,9 +96,15 @@ public class AudioVisualizerService extends Service implements LedManager.LedAct
         super.onCreate();
         AppLog.d(TAG, "AudioVisualizerService created");
 
+        analysisThread = new HandlerThread("VisualizerAnalysis", Process.THREAD_PRIORITY_AUDIO);
+        analysisThread.start();
+        analysisHandler = new Handler(analysisThread.getLooper());
+
         // Register with manager
         MusicServiceManager.registerAudioVisualizerService(this);
         LedManager.getInstance().registerActivitySource(this);
+        registerReceiver(audioStateReceiver,
+                new IntentFilter("com.phicomm.r1manager.BLUETOOTH_AUDIO_PLAYING_STATE_CHANGED"));
     }
 
     @Override
@@ -96,79 +123,27 @@ public class AudioVisualizerService extends Service implements LedManager.LedAct
         super.onDestroy();
         AppLog.d(TAG, "AudioVisualizerService destroyed");
         LedManager.getInstance().unregisterActivitySource(this);
-        disable();
+        unregisterReceiver(audioStateReceiver);
+        analysisHandler.post(this::release);
+        analysisThread.quitSafely();
     }
 
     /**
-     * Enable audio visualization
+     * Capture parameters a listener needs. The visualizer runs at the highest
+     * rate and largest size requested by any registered listener.
      */
-    public boolean enable() {
-        if (isEnabled) {
-            AppLog.d(TAG, "Visualizer already enabled");
-            return true;
-        }
+    public static class CaptureRequest {
+        public final int rateHz;
+        public final int captureSize;
 
-        try {
-            // Create visualizer on audio session 0 (mix output)
-            visualizer = new Visualizer(0);
-            visualizer.setCaptureSize(FFT_SIZE);
-            visualizer.setDataCaptureListener(
-                    new Visualizer.OnDataCaptureListener() {
-                        @Override
-                        public void onWaveFormDataCapture(Visualizer visualizer, byte[] waveform, int samplingRate) {
-                            // Not used
-                        }
-
-                        @Override
-                        public void onFftDataCapture(Visualizer visualizer, byte[] fft, int samplingRate) {
-                            // AppLog.v(TAG, "FFT Capture: " + fft.length + " bytes");
-                            processAudioData(fft, samplingRate);
-                        }
-                    },
-                    Visualizer.getMaxCaptureRate(),
-                    false,
-                    true // Enable FFT
-            );
-
-            visualizer.setEnabled(true);
-            isEnabled = true;
-
-            AppLog.d(TAG, "Visualizer enabled successfully");
-            return true;
-
-        } catch (Exception e) {
-            AppLog.e(TAG, "Error enabling visualizer", e);
-            return false;
+        public CaptureRequest(int rateHz, int captureSize) {
+            this.rateHz = rateHz;
+            this.captureSize = captureSize;
         }
     }
 
     /**
-     * Disable audio visualization
-     */
-    public boolean disable() {
-        if (!isEnabled) {
-            return true;
-        }
-
-        try {
-            if (visualizer != null) {
-                visualizer.setEnabled(false);
-                visualizer.release();
-                visualizer = null;
-            }
-
-            isEnabled = false;
-            AppLog.d(TAG, "Visualizer disabled");
-            return true;
-
-        } catch (Exception e) {
-            AppLog.e(TAG, "Error disabling visualizer", e);
-            return false;
-        }
-    }
-
-    /**
-     * Check if visualizer is enabled
+     * Check if the visualizer is currently capturing
      */
     public boolean isEnabled() {
         return isEnabled;
@@ -179,104 +154,250 @@ public class AudioVisualizerService extends Service implements LedManager.LedAct
     }
 
     /**
-     * Add audio data listener
+     * Report whether an audio source is playing. Capture only runs while at
+     * least one source plays and someone is listening.
+     *
+     * @param source Identifies the reporter, e.g. {@link #SOURCE_PLAYER}
      */
-    public void addListener(AudioDataListener listener) {
-        if (!listeners.contains(listener)) {
-            listeners.add(listener);
+    public synchronized void setAudioPlaying(String source, boolean playing) {
+        boolean changed = playing ? playingSources.add(source) : playingSources.remove(source);
+        if (!changed) {
+            return;
         }
+        isAudioPlaying = !playingSources.isEmpty();
+        AppLog.d(TAG, "Audio source " + source + (playing ? " playing" : " stopped") + ", any playing: "
+                + isAudioPlaying);
+        updateCapture();
     }
 
     /**
-     * Remove audio data listener
+     * Add audio data listener with the default capture parameters
      */
-    public void removeListener(AudioDataListener listener) {
-        listeners.remove(listener);
+    public void addListener(AudioDataListener listener) {
+        addListener(listener, new CaptureRequest(DEFAULT_RATE_HZ, DEFAULT_CAPTURE_SIZE));
     }
 
     /**
-     * Process FFT data into frequency bands
+     * Add audio data listener, or update the capture parameters it needs.
+     * The listener is called on a pool thread, never concurrently with itself.
      */
+    public synchronized void addListener(AudioDataListener listener, CaptureRequest request) {
+        Subscriber subscriber = findSubscriber(listener);
+        if (subscriber == null) {
+            subscribers.add(new Subscriber(listener, request));
+        } else {
+            subscriber.request = request;
+        }
+        updateCapture();
+    }
+
     /**
-     * Process FFT data into frequency bands
+     * Remove audio data listener
      */
-    private void processAudioData(byte[] fft, int samplingRate) {
-        if (fft == null || fft.length == 0) {
-            // AppLog.w(TAG, "Empty FFT data");
-            return;
+    public synchronized void removeListener(AudioDataListener listener) {
+        Subscriber subscriber = findSubscriber(listener);
+        if (subscriber != null) {
+            subscribers.remove(subscriber);
+        }
+        updateCapture();
+    }
+
+    private Subscriber findSubscriber(AudioDataListener listener) {
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.listener == listener) {
+                return subscriber;
+            }
         }
+        return null;
+    }
 
-        AudioData data = new AudioData();
+    /**
+     * Decide the capture the listeners and playback state call for: none
+     * when nobody listens or nothing plays, otherwise the negotiated rate and
+     * size. The Visualizer itself is changed on the analysis thread.
+     */
+    private void updateCapture() {
+        if (subscribers.isEmpty() || !isAudioPlaying) {
+            wantedRate = 0;
+            wantedSize = 0;
+        } else {
+            int rateHz = 1;
+            int size = 0;
+            for (Subscriber subscriber : subscribers) {
+                rateHz = Math.max(rateHz, subscriber.request.rateHz);
+                size = Math.max(size, subscriber.request.captureSize);
+            }
+            // Rate in milliHertz as the Visualizer API expects, within what the device supports
+            int[] sizeRange = Visualizer.getCaptureSizeRange();
+            wantedSize = Math.max(sizeRange[0], Math.min(sizeRange[1], Integer.highestOneBit(Math.max(1, size))));
+            wantedRate = Math.min(rateHz * 1000, Visualizer.getMaxCaptureRate());
+        }
 
-        // Calculate energy in bands
-        float[] magn = new float[fft.length / 2];
-        float totalEnergy = 0;
+        if (analysisHandler != null) {
+            analysisHandler.removeCallbacks(applyCaptureRunnable);
+            analysisHandler.post(applyCaptureRunnable);
+        }
+    }
 
-        for (int i = 0; i < fft.length / 2; i++) {
-            byte real = fft[2 * i];
-            byte imag = fft[2 * i + 1];
-            magn[i] = (float) Math.hypot(real, imag);
-            totalEnergy += magn[i];
+    /**
+     * Bring the Visualizer in line with the wanted settings (analysis thread)
+     */
+    private void applyCapture() {
+        int rate = wantedRate;
+        int size = wantedSize;
+        if (rate == 0) {
+            release();
+        } else if (visualizer == null || rate != captureRate || size != captureSize) {
+            acquire(rate, size);
         }
+    }
 
-        // Calculate average amplitude (0-1)
-        data.amplitude = Math.min(1.0f, totalEnergy / (fft.length * 32.0f));
+    private void acquire(int rate, int size) {
+        try {
+            if (visualizer == null) {
+                // Create visualizer on audio session 0 (mix output)
+                visualizer = new Visualizer(0);
+            } else {
+                // Size and rate can only change while the capture is stopped
+                visualizer.setEnabled(false);
+            }
+            visualizer.setCaptureSize(size);
+            visualizer.setDataCaptureListener(captureListener, rate, false, true);
+            visualizer.setEnabled(true);
 
-        // Define frequency bands (approximate for 44.1kHz / 1024 FFT)
-        int bassEnd = fft.length / 20; // ~1100Hz
-        int midEnd = fft.length / 5; // ~4400Hz
+            captureRate = rate;
+            captureSize = size;
+            isEnabled = true;
+            AppLog.d(TAG, "Visualizer capturing " + size + " samples at " + rate / 1000f + " Hz");
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error enabling visualizer", e);
+            release();
+        }
+    }
 
-        // Calculate band energies
-        float bassEnergy = 0;
-        for (int i = 0; i < bassEnd; i++)
-            bassEnergy += magn[i];
+    private void release() {
+        if (visualizer == null) {
+            return;
+        }
 
-        float midEnergy = 0;
-        for (int i = bassEnd; i < midEnd; i++)
-            midEnergy += magn[i];
+        try {
+            visualizer.setEnabled(false);
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error disabling visualizer", e);
+        }
+        visualizer.release();
+        visualizer = null;
+        captureRate = 0;
+        captureSize = 0;
+        isEnabled = false;
+        // The next capture starts after a gap; old flux history would fake an onset
+        onsetDetector.reset();
+        AppLog.d(TAG, "Visualizer released");
+    }
 
-        float trebleEnergy = 0;
-        for (int i = midEnd; i < magn.length; i++)
-            trebleEnergy += magn[i];
+    /**
+     * Process FFT data into frequency bands (analysis thread)
+     */
+    private void processAudioData(byte[] fft, int samplingRate) {
+        if (fft == null || fft.length == 0) {
+            return;
+        }
 
-        // Normalize (heuristic scaling)
-        data.bass = Math.min(1.0f, bassEnergy / (bassEnd * 32.0f) * 3.0f);
-        data.mid = Math.min(1.0f, midEnergy / ((midEnd - bassEnd) * 32.0f) * 3.0f);
-        data.treble = Math.min(1.0f, trebleEnergy / ((magn.length - midEnd) * 32.0f) * 3.0f);
+        AudioData data = analysis;
+        analyzer.analyze(fft, samplingRate, data);
 
-        // Beat detection (simple energy threshold)
-        data.beatDetected = data.bass > 0.6f;
+        // Beat detection (spectral flux against an adaptive threshold)
+        float binHz = samplingRate / 1000f / fft.length;
+        data.beatDetected = onsetDetector.process(analyzer.getMagnitudes(), fft.length / 2, binHz, data.timestamp);
+        data.bpm = onsetDetector.getBpm();
+        float threshold = onsetDetector.getThreshold();
+        data.onsetStrength = threshold > 0 ? onsetDetector.getFlux() / threshold : 0;
 
-        // Log audio stats every ~100 frames to avoid spamming
-        if (System.currentTimeMillis() % 1000 < 50) {
-            AppLog.d(TAG, String.format("Audio Stats - Amp: %.2f, Bass: %.2f, Mid: %.2f, Treble: %.2f",
-                    data.amplitude, data.bass, data.mid, data.treble));
+        for (Subscriber subscriber : subscribers) {
+            subscriber.offer(data);
         }
 
-        notifyListeners(data);
+        if (data.timestamp - lastStatsLog >= STATS_LOG_INTERVAL_MS) {
+            lastStatsLog = data.timestamp;
+            StringBuilder skipped = new StringBuilder();
+            for (Subscriber subscriber : subscribers) {
+                skipped.append(' ').append(subscriber.listener.getClass().getSimpleName()).append('=')
+                        .append(subscriber.takeSkipped());
+            }
+            AppLog.d(TAG, "Audio Stats - Amp: " + data.amplitude + ", Bass: " + data.bass + ", Mid: " + data.mid
+                    + ", Treble: " + data.treble + ", BPM: " + data.bpm + ", Skipped:" + skipped);
+        }
     }
 
     /**
-     * Notify all listeners with audio data
+     * A listener with a one-slot mailbox. offer() overwrites the slot; a pool
+     * task delivers whatever is in it, so captures arriving while the
+     * listener is busy are skipped rather than queued. A beat in a skipped
+     * capture is carried into the next one.
      */
-    private void notifyListeners(final AudioData data) {
-        handler.post(new Runnable() {
-            @Override
-            public void run() {
-                for (AudioDataListener listener : listeners) {
-                    try {
-                        listener.onAudioData(data);
-                    } catch (Exception e) {
-                        AppLog.e(TAG, "Error notifying listener", e);
+    private static class Subscriber implements Runnable {
+        final AudioDataListener listener;
+        volatile CaptureRequest request;
+
+        // Guarded by this: latest is written by the analysis thread, delivering
+        // is only touched by the delivery task while the listener runs
+        private AudioData latest = new AudioData();
+        private AudioData delivering = new AudioData();
+        private boolean hasNew = false;
+        private int skipped = 0;
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+        Subscriber(AudioDataListener listener, CaptureRequest request) {
+            this.listener = listener;
+            this.request = request;
+        }
+
+        void offer(AudioData data) {
+            synchronized (this) {
+                boolean pendingBeat = hasNew && latest.beatDetected;
+                if (hasNew) {
+                    skipped++;
+                }
+                latest.copyFrom(data);
+                latest.beatDetected |= pendingBeat;
+                hasNew = true;
+            }
+            if (scheduled.compareAndSet(false, true)) {
+                ThreadManager.getInstance().executeAudio(this);
+            }
+        }
+
+        synchronized int takeSkipped() {
+            int count = skipped;
+            skipped = 0;
+            return count;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (this) {
+                    if (!hasNew) {
+                        scheduled.set(false);
+                        return;
                     }
+                    AudioData swap = delivering;
+                    delivering = latest;
+                    latest = swap;
+                    hasNew = false;
+                }
+                try {
+                    listener.onAudioData(delivering);
+                } catch (Exception e) {
+                    AppLog.e(TAG, "Error notifying listener", e);
                 }
             }
-        });
+        }
     }
 
     @Override
     public boolean isLedActivityActive() {
-        return isAudioPlaying;
+        return isEnabled;
     }
 
     /**
@@ -287,14 +408,9 @@ public class AudioVisualizerService extends Service implements LedManager.LedAct
         public void onReceive(Context context, Intent intent) {
             if ("com.phicomm.r1manager.BLUETOOTH_AUDIO_PLAYING_STATE_CHANGED".equals(intent.getAction())) {
                 boolean playing = intent.getBooleanExtra("playing", false);
-                isAudioPlaying = playing;
-                AppLog.d(TAG, "Audio playing state changed: " + playing);
+                setAudioPlaying(SOURCE_BLUETOOTH, playing);
 
-                // Reset beat detection when audio stops
                 if (!playing) {
-                    lastBass = 0;
-                    lastBeatTime = 0;
-
                     // Notify LED manager
                     com.phicomm.r1manager.server.manager.LedManager.getInstance().checkAndGatedStop();
                 }
@@ -0,0 +1,126 @@
+package com.phicomm.r1manager.server.service;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * BeatMap - Precomputed loudness envelope and beat times of one track.
+ *
+ * The envelope holds one byte per hop (0 = -60 dBFS or quieter, 255 = full
+ * scale); beats are stored as ascending offsets from the start of the
+ * track. A three minute song takes a few kilobytes.
+ */
+public class BeatMap {
+
+    private static final int MAGIC = 0x424d4150; // "BMAP"
+    private static final int VERSION = 1;
+    static final float ENVELOPE_FLOOR_DB = -60f; // Level of envelope value 0
+
+    private final int hopMs;
+    private final byte[] envelope;
+    private final int[] beatsMs;
+    private final float bpm;
+
+    public BeatMap(int hopMs, byte[] envelope, int[] beatsMs, float bpm) {
+        this.hopMs = hopMs;
+        this.envelope = envelope;
+        this.beatsMs = beatsMs;
+        this.bpm = bpm;
+    }
+
+    public int getDurationMs() {
+        return envelope.length * hopMs;
+    }
+
+    public int getBeatCount() {
+        return beatsMs.length;
+    }
+
+    public float getBpm() {
+        return bpm;
+    }
+
+    /**
+     * Loudness at a playback position, 0.0 - 1.0.
+     */
+    public float loudnessAt(long positionMs) {
+        if (envelope.length == 0 || positionMs < 0) {
+            return 0;
+        }
+        int index = (int) Math.min(envelope.length - 1, positionMs / hopMs);
+        return (envelope[index] & 0xff) / 255f;
+    }
+
+    /**
+     * Linear RMS level at a playback position, 0.0 - 1.0, for use in place
+     * of the visualizer's amplitude.
+     */
+    public float amplitudeAt(long positionMs) {
+        float loudness = loudnessAt(positionMs);
+        return loudness > 0 ? (float) Math.pow(10, (1 - loudness) * ENVELOPE_FLOOR_DB / 20) : 0;
+    }
+
+    /**
+     * Whether a beat falls in (fromMs, toMs].
+     */
+    public boolean hasBeatIn(long fromMs, long toMs) {
+        if (toMs <= fromMs) {
+            return false;
+        }
+        int i = firstBeatAfter(fromMs);
+        return i < beatsMs.length && beatsMs[i] <= toMs;
+    }
+
+    private int firstBeatAfter(long positionMs) {
+        int low = 0;
+        int high = beatsMs.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (beatsMs[mid] <= positionMs) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // ==================== Serialization ====================
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeShort(hopMs);
+        out.writeFloat(bpm);
+        out.writeInt(envelope.length);
+        out.write(envelope);
+        out.writeInt(beatsMs.length);
+        for (int beat : beatsMs) {
+            out.writeInt(beat);
+        }
+    }
+
+    public static BeatMap read(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a beat map");
+        }
+        int hopMs = in.readUnsignedShort();
+        float bpm = in.readFloat();
+        int envelopeLength = in.readInt();
+        if (hopMs == 0 || envelopeLength < 0 || envelopeLength > 1 << 20) {
+            throw new IOException("Corrupt beat map");
+        }
+        byte[] envelope = new byte[envelopeLength];
+        in.readFully(envelope);
+        int beatCount = in.readInt();
+        if (beatCount < 0 || beatCount > envelopeLength) {
+            throw new IOException("Corrupt beat map");
+        }
+        int[] beats = new int[beatCount];
+        for (int i = 0; i < beatCount; i++) {
+            beats[i] = in.readInt();
+        }
+        return new BeatMap(hopMs, envelope, beats, bpm);
+    }
+}
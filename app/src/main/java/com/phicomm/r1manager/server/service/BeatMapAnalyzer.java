@@ -0,0 +1,216 @@
+package com.phicomm.r1manager.server.service;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * BeatMapAnalyzer - Builds a BeatMap from a whole audio file ahead of playback.
+ *
+ * The file is decoded with MediaCodec and mixed down to mono. Every hop the
+ * last WINDOW samples go through the same OnsetDetector used live (with
+ * magnitudes on the Visualizer's 8-bit scale, so thresholds carry over) and
+ * the hop's RMS becomes one envelope byte. Runs on a background thread; a
+ * typical song takes a few seconds of CPU once, instead of FFT work for
+ * every capture during playback.
+ */
+public class BeatMapAnalyzer {
+
+    public static final int HOP_MS = 20;
+    private static final int WINDOW = 1024;
+    private static final long MAX_DURATION_US = 15 * 60 * 1000000L;
+    private static final long DEQUEUE_TIMEOUT_US = 10000;
+
+    private BeatMapAnalyzer() {
+    }
+
+    /**
+     * Decode and analyze an audio file MediaExtractor can read (mp3, m4a, ...).
+     */
+    public static BeatMap analyzeFile(File file) throws IOException {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try {
+            extractor.setDataSource(file.getAbsolutePath());
+            MediaFormat format = null;
+            for (int i = 0; i < extractor.getTrackCount(); i++) {
+                MediaFormat candidate = extractor.getTrackFormat(i);
+                String mime = candidate.getString(MediaFormat.KEY_MIME);
+                if (mime != null && mime.startsWith("audio/")) {
+                    extractor.selectTrack(i);
+                    format = candidate;
+                    break;
+                }
+            }
+            if (format == null) {
+                throw new IOException("No audio track in " + file.getName());
+            }
+
+            int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+            int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+            codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.configure(format, null, null, 0);
+            codec.start();
+
+            Builder builder = null;
+            short[] mono = new short[0];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean inputDone = false;
+            while (true) {
+                if (!inputDone) {
+                    int in = codec.dequeueInputBuffer(DEQUEUE_TIMEOUT_US);
+                    if (in >= 0) {
+                        int size = extractor.readSampleData(codec.getInputBuffer(in), 0);
+                        if (size < 0 || extractor.getSampleTime() > MAX_DURATION_US) {
+                            codec.queueInputBuffer(in, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        } else {
+                            codec.queueInputBuffer(in, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
+                }
+
+                int out = codec.dequeueOutputBuffer(info, DEQUEUE_TIMEOUT_US);
+                if (out == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat outputFormat = codec.getOutputFormat();
+                    sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                } else if (out >= 0) {
+                    if (builder == null) {
+                        builder = new Builder(sampleRate);
+                    }
+                    ByteBuffer buffer = codec.getOutputBuffer(out);
+                    buffer.position(info.offset);
+                    buffer.limit(info.offset + info.size);
+                    ShortBuffer pcm = buffer.order(ByteOrder.nativeOrder()).asShortBuffer();
+
+                    int frames = pcm.remaining() / channels;
+                    if (mono.length < frames) {
+                        mono = new short[frames];
+                    }
+                    for (int f = 0; f < frames; f++) {
+                        int sum = 0;
+                        for (int c = 0; c < channels; c++) {
+                            sum += pcm.get();
+                        }
+                        mono[f] = (short) (sum / channels);
+                    }
+                    builder.feed(mono, frames);
+
+                    codec.releaseOutputBuffer(out, false);
+                    if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        break;
+                    }
+                }
+            }
+
+            if (builder == null) {
+                throw new IOException("No audio decoded from " + file.getName());
+            }
+            return builder.build();
+        } catch (IllegalStateException e) {
+            throw new IOException("Decoder failed on " + file.getName(), e);
+        } finally {
+            if (codec != null) {
+                try {
+                    codec.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                codec.release();
+            }
+            extractor.release();
+        }
+    }
+
+    /**
+     * Accumulates mono PCM and produces the map. Independent of the decoder,
+     * so the analysis can be run on any PCM source.
+     */
+    public static class Builder {
+        private final int sampleRate;
+        private final int hopSamples;
+        private final short[] window = new short[WINDOW]; // Ring buffer of the latest samples
+        private int windowPos = 0;
+        private int windowFill = 0;
+        private int hopFill = 0;
+        private double hopEnergy = 0;
+        private long samplesSeen = 0;
+
+        private final double[] re = new double[WINDOW];
+        private final double[] im = new double[WINDOW];
+        private final float[] magnitudes = new float[WINDOW / 2];
+        private final OnsetDetector detector = new OnsetDetector();
+        private final ByteArrayOutputStream envelope = new ByteArrayOutputStream();
+        private final List<Integer> beats = new ArrayList<>();
+
+        public Builder(int sampleRate) {
+            this.sampleRate = sampleRate;
+            this.hopSamples = Math.max(1, sampleRate * HOP_MS / 1000);
+        }
+
+        public void feed(short[] pcm, int count) {
+            for (int i = 0; i < count; i++) {
+                short sample = pcm[i];
+                window[windowPos] = sample;
+                windowPos = (windowPos + 1) % WINDOW;
+                if (windowFill < WINDOW) {
+                    windowFill++;
+                }
+                hopEnergy += (double) sample * sample;
+                samplesSeen++;
+
+                if (++hopFill == hopSamples) {
+                    endHop();
+                }
+            }
+        }
+
+        public BeatMap build() {
+            byte[] env = envelope.toByteArray();
+            int[] beatsMs = new int[beats.size()];
+            for (int i = 0; i < beatsMs.length; i++) {
+                beatsMs[i] = beats.get(i);
+            }
+            return new BeatMap(HOP_MS, env, beatsMs, detector.getBpm());
+        }
+
+        private void endHop() {
+            double rms = Math.sqrt(hopEnergy / hopFill) / 32768.0;
+            double db = rms > 0 ? 20 * Math.log10(rms) : BeatMap.ENVELOPE_FLOOR_DB;
+            float level = (float) Math.max(0, Math.min(1, 1 - db / BeatMap.ENVELOPE_FLOOR_DB));
+            envelope.write(Math.round(level * 255));
+            hopFill = 0;
+            hopEnergy = 0;
+
+            if (windowFill < WINDOW) {
+                return;
+            }
+            // Same scale as a Visualizer capture: 8-bit input, magnitudes times 2/n
+            for (int i = 0; i < WINDOW; i++) {
+                re[i] = window[(windowPos + i) % WINDOW] >> 8;
+                im[i] = 0;
+            }
+            Fft.transform(re, im);
+            double scale = 2.0 / WINDOW;
+            for (int k = 0; k < magnitudes.length; k++) {
+                magnitudes[k] = (float) (Math.min(127, Math.hypot(re[k], im[k]) * scale));
+            }
+
+            // The attack entered the window during the last hop
+            long timeMs = (samplesSeen - hopSamples / 2) * 1000 / sampleRate;
+            if (detector.process(magnitudes, magnitudes.length, (float) sampleRate / WINDOW, timeMs)) {
+                beats.add((int) timeMs);
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import com.phicomm.r1manager.util.AppLog;
 
 import com.google.android.exoplayer2.SimpleExoPlayer;
@@ -51,7 +52,7 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
 
     // Volume and Speed
     private int volume = 80; // 0-100
-    private float playbackSpeed = 1.0f; // 0.5x - 2.0x
+    private volatile float playbackSpeed = 1.0f; // 0.5x - 2.0x
 
     // Cached Player State (for thread-safe access)
     private volatile boolean isPaused = false;
@@ -59,6 +60,7 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
     private volatile int currentPlaybackState = Player.STATE_IDLE;
     private volatile long cachedDuration = 0;
     private volatile long cachedPosition = 0;
+    private volatile long positionAnchorTime = 0; // elapsedRealtime when cachedPosition was read
     private volatile long lastPositionUpdate = 0;
 
     public static final int MODE_SEQUENCE = 0;
@@ -120,6 +122,7 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
                 @Override
                 public void onPlayerStateChanged(boolean playWhenReady, int playbackState) {
                     currentPlaybackState = playbackState;
+                    anchorPosition();
 
                     switch (playbackState) {
                         case Player.STATE_READY:
@@ -145,6 +148,8 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
                         isPlaying = false;
                     }
 
+                    reportAudioPlaying(isPlaying);
+
                     // Notify LED manager if stopped
                     if (wasPlaying && !isPlaying) {
                         com.phicomm.r1manager.server.manager.LedManager.getInstance().checkAndGatedStop();
@@ -161,7 +166,7 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
                 public void onPositionDiscontinuity(int reason) {
                     // Update position when seek or auto transition happens
                     if (exoPlayer != null) {
-                        cachedPosition = exoPlayer.getCurrentPosition();
+                        anchorPosition();
                         // Also update current index if it changed automatically (e.g. playlist
                         // transition)
                         int windowIndex = exoPlayer.getCurrentWindowIndex();
@@ -366,10 +371,16 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
 
     public int getCurrentPosition() {
         // Return cached position + estimated delta if playing
-        // Or simply post a request to update cache (too slow for RT)
-        // For now, let's rely on regular updates or return last known
         // Important: DO NOT call exoPlayer directly here!
-        return (int) cachedPosition;
+        long position = cachedPosition;
+        if (isPlaying && positionAnchorTime > 0) {
+            position += (long) ((SystemClock.elapsedRealtime() - positionAnchorTime) * playbackSpeed);
+            long duration = cachedDuration;
+            if (duration > 0 && position > duration) {
+                position = duration;
+            }
+        }
+        return (int) position;
     }
 
     public int getDuration() {
@@ -419,8 +430,11 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
         mainHandler.post(new Runnable() {
             @Override
             public void run() {
-                if (exoPlayer != null)
+                if (exoPlayer != null) {
+                    // Extrapolation switches rate here, so restart it from the true position
+                    anchorPosition();
                     exoPlayer.setPlaybackParameters(new PlaybackParameters(newSpeed));
+                }
             }
         });
     }
@@ -621,12 +635,33 @@ public class ExoPlayerService implements LedManager.LedActivitySource {
                     exoPlayer.release();
                     exoPlayer = null;
                 }
+                reportAudioPlaying(false);
             }
         });
     }
 
     // Helpers
 
+    /**
+     * Read the true position as the base for extrapolation (main thread)
+     */
+    private void anchorPosition() {
+        if (exoPlayer != null) {
+            cachedPosition = exoPlayer.getCurrentPosition();
+            positionAnchorTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Let the visualizer capture only while the player actually outputs audio
+     */
+    private void reportAudioPlaying(boolean playing) {
+        AudioVisualizerService visualizer = MusicServiceManager.getInstance().getAudioVisualizerService();
+        if (visualizer != null) {
+            visualizer.setAudioPlaying(AudioVisualizerService.SOURCE_PLAYER, playing);
+        }
+    }
+
     private int getSmartShuffleIndex() {
         if (playlist.size() <= 1)
             return 0;
@@ -0,0 +1,55 @@
+package com.phicomm.r1manager.server.service;
+
+/**
+ * Fft - Plain radix-2 FFT for offline analysis (benchmark and beat maps).
+ * At runtime the Visualizer delivers spectra already transformed.
+ */
+final class Fft {
+
+    private Fft() {
+    }
+
+    /**
+     * In-place iterative radix-2 FFT; n must be a power of two.
+     */
+    static void transform(double[] re, double[] im) {
+        int n = re.length;
+        for (int i = 1, j = 0; i < n; i++) {
+            int bit = n >> 1;
+            for (; (j & bit) != 0; bit >>= 1) {
+                j ^= bit;
+            }
+            j ^= bit;
+            if (i < j) {
+                double t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int len = 2; len <= n; len <<= 1) {
+            double angle = -2 * Math.PI / len;
+            double wRe = Math.cos(angle);
+            double wIm = Math.sin(angle);
+            for (int i = 0; i < n; i += len) {
+                double curRe = 1;
+                double curIm = 0;
+                for (int j = 0; j < len / 2; j++) {
+                    int a = i + j;
+                    int b = a + len / 2;
+                    double tRe = re[b] * curRe - im[b] * curIm;
+                    double tIm = re[b] * curIm + im[b] * curRe;
+                    re[b] = re[a] - tRe;
+                    im[b] = im[a] - tIm;
+                    re[a] += tRe;
+                    im[a] += tIm;
+                    double nextRe = curRe * wRe - curIm * wIm;
+                    curIm = curRe * wIm + curIm * wRe;
+                    curRe = nextRe;
+                }
+            }
+        }
+    }
+}
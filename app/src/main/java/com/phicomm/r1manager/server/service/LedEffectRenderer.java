@@ -0,0 +1,338 @@
+package com.phicomm.r1manager.server.service;
+
+import com.phicomm.r1manager.server.manager.LedLayout;
+
+/**
+ * LedEffectRenderer - Turns analyzed audio into music sync LED frames.
+ *
+ * Pure Java and independent of the hardware: frames go to a FrameSink, which
+ * is LedManager on the device and an in-memory model in LedEffectSimulator.
+ * Holds the animation state of the effects, so one instance serves one
+ * stream of captures.
+ *
+ * Animations advance by the time between captures (their timestamps), not
+ * per capture, so their speed does not depend on the capture rate. Step
+ * sizes are per STEP_MS, the fixed update interval they were tuned for.
+ */
+public class LedEffectRenderer {
+
+    /**
+     * Receives rendered frames. Masks and values as in LedFrameScheduler.Frame.
+     */
+    public interface FrameSink {
+        void submit(long internalMask, int color, long ringMask, int brightness, String tag);
+    }
+
+    /**
+     * Per-effect tuning. Immutable so a whole set can be swapped atomically.
+     */
+    public static class Params {
+        public static final Params DEFAULT = new Params(1.0f, 5, 8, 8);
+
+        public final float speed; // Animation speed multiplier, 0.1 - 5.0
+        public final int meteorTail; // METEOR: lit ring LEDs behind the head, 1 - 24
+        public final int waveWidth; // WAVE: lit ring LEDs in the chase, 1 - 24
+        public final int spiralLength; // SPIRAL: lit LEDs in the 39-LED sequence, 1 - 39
+
+        public Params(float speed, int meteorTail, int waveWidth, int spiralLength) {
+            this.speed = Math.max(0.1f, Math.min(5.0f, speed));
+            this.meteorTail = Math.max(1, Math.min(24, meteorTail));
+            this.waveWidth = Math.max(1, Math.min(24, waveWidth));
+            this.spiralLength = Math.max(1, Math.min(39, spiralLength));
+        }
+
+        /**
+         * Copy with out of range values clamped, for instances made by Gson.
+         */
+        public Params normalized() {
+            return new Params(speed, meteorTail, waveWidth, spiralLength);
+        }
+    }
+
+    private static final float STEP_MS = 50;
+    private static final float MAX_STEPS = 4; // After a gap, catch up at most this much
+
+    private FrameSink sink;
+    private int brightness;
+    private Params params = Params.DEFAULT;
+
+    // Animation state
+    private long lastCaptureAt = -1;
+    private float steps = 1; // STEP_MS units since the previous capture
+    private float hue = 0; // For rainbow effect
+    private boolean lastBeatState = false;
+    private float meteorPos = 0;
+
+    /**
+     * Render one capture.
+     *
+     * @param beat        Whether to treat this capture as a beat
+     * @param sensitivity 0.0 - 1.0, boosts levels 1x to 20x
+     * @param brightness  0 - 100
+     * @param params      Effect tuning, null for the defaults
+     */
+    public void render(LedMode mode, AudioData data, boolean beat, float sensitivity, int brightness,
+            Params params, FrameSink sink) {
+        this.sink = sink;
+        this.brightness = brightness;
+        this.params = params != null ? params : Params.DEFAULT;
+
+        if (lastCaptureAt >= 0) {
+            steps = Math.max(0, Math.min(MAX_STEPS, (data.timestamp - lastCaptureAt) / STEP_MS));
+        }
+        lastCaptureAt = data.timestamp;
+
+        // Apply sensitivity (Boost 1x to 20x)
+        float boost = 1.0f + (sensitivity * 19.0f);
+        float adjustedAmplitude = Math.min(1.0f, data.amplitude * boost);
+        float adjustedBass = Math.min(1.0f, data.bass * boost);
+        float adjustedMid = Math.min(1.0f, data.mid * boost);
+        float adjustedTreble = Math.min(1.0f, data.treble * boost);
+
+        // Process based on mode
+        switch (mode) {
+            case SPECTRUM:
+                updateSpectrumMode(adjustedBass, adjustedMid, adjustedTreble);
+                break;
+            case PULSE:
+                updatePulseMode(beat, adjustedAmplitude);
+                break;
+            case WAVE:
+                updateWaveMode(adjustedAmplitude);
+                break;
+            case RAINBOW:
+                updateRainbowMode(adjustedAmplitude);
+                break;
+            case PARTY:
+                updatePartyMode(beat, adjustedBass, adjustedMid, adjustedTreble);
+                break;
+            case METEOR:
+                updateMeteorMode(adjustedAmplitude);
+                break;
+            case VORTEX:
+                updateVortexMode(beat, adjustedAmplitude);
+                break;
+            case SPIRAL:
+                updateSpiralMode(adjustedAmplitude);
+                break;
+        }
+    }
+
+    /**
+     * SPECTRUM mode: VU Meter (Internal) + Frequency Color (Ring)
+     */
+    private void updateSpectrumMode(float bass, float mid, float treble) {
+        float total = (bass + mid + treble) / 3.0f;
+        int ledCount = (int) (total * 15);
+        if (ledCount < 0)
+            ledCount = 0;
+
+        long maskInt = (1L << ledCount) - 1;
+        int r = (int) (bass * 255);
+        int g = (int) (mid * 255);
+        int b = (int) (treble * 255);
+
+        // Ring: Middle glow
+        int ringBri = (int) (total * 255 * brightness / 100);
+        submit(maskInt, packRgb(r, g, b), LedLayout.RING_ALL, ringBri, "VU");
+    }
+
+    /**
+     * PULSE mode: Brightness pulses with beat
+     */
+    private void updatePulseMode(boolean beatDetected, float amplitude) {
+        int bri = (int) (amplitude * 255 * brightness / 100);
+        if (beatDetected) {
+            bri = (int) (255 * brightness / 100);
+            // Flash both
+            submit(LedLayout.INTERNAL_ALL, 0xffffff, LedLayout.RING_ALL, 0xff, "PULSE_BEAT");
+        } else {
+            // Fade out
+            submit(LedLayout.INTERNAL_ALL, packRgb(bri, bri, bri), LedLayout.RING_ALL, bri / 2, "PULSE_FADE");
+        }
+        lastBeatState = beatDetected;
+    }
+
+    /**
+     * SPIRAL mode: Continuous rotation through all 39 LEDs
+     */
+    private float spiralPos = 0;
+
+    private void updateSpiralMode(float amplitude) {
+        // Move position based on volume
+        spiralPos = (spiralPos + (1.0f + amplitude * 3.0f) * params.speed * steps) % 39;
+
+        long maskInt = 0;
+        long maskRing = 0;
+
+        // Light up a run of LEDs across the 39-LED sequence
+        for (int i = 0; i < params.spiralLength; i++) {
+            int pos = ((int) spiralPos + i) % 39;
+            if (pos < 15) {
+                maskInt |= (1L << pos);
+            } else {
+                maskRing |= (1L << (pos - 15 + 15)); // Still needs 15-bit shift for hardware
+            }
+        }
+
+        hue = (hue + 2 * params.speed * steps) % 360;
+        int[] rgb = hsvToRgb(hue, 1.0f, 1.0f);
+
+        submit(maskInt, packRgb(rgb[0], rgb[1], rgb[2]), maskRing, 0xff, "SPIRAL");
+    }
+
+    /**
+     * WAVE mode: Smooth Circular chase on Ring LED + Rainbow Wave on Internal
+     */
+    private float ringPos = 0;
+
+    private void updateWaveMode(float amplitude) {
+        hue = (hue + (5 + amplitude * 10) * params.speed * steps) % 360;
+        int[] rgb = hsvToRgb(hue, 1.0f, (float) brightness / 100);
+
+        // Smoother Ring chase: a block of LEDs rotating
+        ringPos = (ringPos + steps) % 24;
+        long ringMask = 0;
+        for (int i = 0; i < params.waveWidth; i++) {
+            int pos = ((int) ringPos + i) % 24;
+            ringMask |= (1L << (pos + 15));
+        }
+        submit(LedLayout.INTERNAL_ALL, packRgb(rgb[0], rgb[1], rgb[2]), ringMask, (int) (amplitude * 255), "WAVE");
+    }
+
+    /**
+     * Smoother METEOR mode (Anti-flicker)
+     */
+    private void updateMeteorMode(float amplitude) {
+        // Slower base speed, capped max speed to prevent flickering
+        meteorPos = (meteorPos + (0.3f + Math.min(amplitude, 0.8f) * 1.5f) * params.speed * steps) % 24;
+        int head = (int) meteorPos;
+        long ringMask = 0;
+
+        for (int i = 0; i < params.meteorTail; i++) {
+            int pos = (head - i + 24) % 24;
+            ringMask |= (1L << (pos + 15));
+        }
+
+        // Background internal glow
+        int[] rgb = hsvToRgb(hue, 0.5f, amplitude * 0.3f);
+        submit(LedLayout.INTERNAL_ALL, packRgb(rgb[0], rgb[1], rgb[2]), ringMask, 0xff, "METEOR");
+        hue = (hue + params.speed * steps) % 360;
+    }
+
+    /**
+     * VORTEX mode: Rotating internal pattern + Beat flash ring
+     */
+    private float vortexPos = 0;
+
+    private void updateVortexMode(boolean beatDetected, float amplitude) {
+        int ringBri;
+        if (beatDetected) {
+            // A beat jumps ahead once, whatever the capture rate
+            vortexPos = (vortexPos + 3) % 15;
+            ringBri = 0xff;
+        } else {
+            vortexPos = (vortexPos + steps) % 15;
+            ringBri = 0x22;
+        }
+
+        // Rotate 3-LED block internally
+        long maskInt = 0;
+        for (int i = 0; i < 3; i++) {
+            maskInt |= (1L << (((int) vortexPos + i) % 15));
+        }
+
+        hue = (hue + 10 * params.speed * steps) % 360;
+        int[] rgb = hsvToRgb(hue, 1.0f, amplitude);
+        submit(maskInt, packRgb(rgb[0], rgb[1], rgb[2]), LedLayout.RING_ALL, ringBri, "VORTEX");
+    }
+
+    /**
+     * RAINBOW mode: Rainbow cycle on Internal, Glow on Ring
+     */
+    private void updateRainbowMode(float amplitude) {
+        hue = (hue + (5 + amplitude * 10) * params.speed * steps) % 360;
+        int[] rgb = hsvToRgb(hue, 1.0f, (float) brightness / 100);
+
+        // Ring glow
+        int ringBri = (int) (amplitude * 255 * brightness / 100);
+        submit(LedLayout.INTERNAL_ALL, packRgb(rgb[0], rgb[1], rgb[2]), LedLayout.RING_ALL, ringBri, "RAINBOW");
+    }
+
+    /**
+     * PARTY mode: Fast Ring Rotation + Strobe effect on beat
+     */
+    private void updatePartyMode(boolean beatDetected, float bass, float mid, float treble) {
+        if (beatDetected) {
+            // Strobe
+            submit(LedLayout.INTERNAL_ALL, 0xffffff, LedLayout.RING_ALL, 0xff, "PARTY_STROBE");
+        } else {
+            // Random colors internal
+            int r = (int) (bass * 255);
+            int g = (int) (mid * 255);
+            int b = (int) (treble * 255);
+
+            // Fast rotation ring
+            ringPos = (ringPos + 2 * steps) % 24;
+            long mask = 0; // 4 LED block, wrapping around the ring
+            for (int i = 0; i < 4; i++) {
+                mask |= 1L << (15 + ((int) ringPos + i) % 24);
+            }
+            submit(LedLayout.INTERNAL_ALL, packRgb(r, g, b), mask, 0xff, "PARTY");
+        }
+    }
+
+    private void submit(long internalMask, int color, long ringMask, int brightness, String tag) {
+        sink.submit(internalMask, color, ringMask, brightness, tag);
+    }
+
+    /**
+     * Pack 0-255 channels into 0xRRGGBB
+     */
+    private static int packRgb(int r, int g, int b) {
+        return (Math.max(0, Math.min(255, r)) << 16) | (Math.max(0, Math.min(255, g)) << 8)
+                | Math.max(0, Math.min(255, b));
+    }
+
+    /**
+     * Convert HSV to RGB
+     */
+    private int[] hsvToRgb(float h, float s, float v) {
+        float c = v * s;
+        float x = c * (1 - Math.abs((h / 60) % 2 - 1));
+        float m = v - c;
+
+        float r, g, b;
+        if (h < 60) {
+            r = c;
+            g = x;
+            b = 0;
+        } else if (h < 120) {
+            r = x;
+            g = c;
+            b = 0;
+        } else if (h < 180) {
+            r = 0;
+            g = c;
+            b = x;
+        } else if (h < 240) {
+            r = 0;
+            g = x;
+            b = c;
+        } else if (h < 300) {
+            r = x;
+            g = 0;
+            b = c;
+        } else {
+            r = c;
+            g = 0;
+            b = x;
+        }
+
+        return new int[] {
+                (int) ((r + m) * 255),
+                (int) ((g + m) * 255),
+                (int) ((b + m) * 255)
+        };
+    }
+}
@@ -0,0 +1,521 @@
+package com.phicomm.r1manager.server.service;
+
+import com.phicomm.r1manager.server.manager.LedFramePacing;
+import com.phicomm.r1manager.server.manager.LedLayout;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * LedEffectSimulator - Runs the music sync effects without an R1.
+ *
+ * Captures come from a recorded trace (see {@link TraceRecorder}) or a WAV
+ * file cut into Visualizer-style captures as in OnsetBenchmark. They are
+ * rendered by LedEffectRenderer into an in-memory model of the 15 internal
+ * and 24 ring LEDs, paced by {@link LedFramePacing} for a given hardware
+ * round trip as LedFrameScheduler paces real frames: frames arriving faster
+ * than the frame interval replace each other, unchanged segments are not
+ * sent, and above the latency budget only one segment goes out per frame.
+ *
+ * Reported per mode: render cost and allocations per capture (allocations
+ * only where the JVM can count them, i.e. a desktop HotSpot JVM, not the
+ * device), frames and lights_test commands per second, dropped and unchanged
+ * frames. The LED states can be written as a text timeline or a PNG strip
+ * (time left to right, internal LEDs on top, ring below).
+ *
+ * Everything on the simulation path is free of Android dependencies, so it
+ * also runs on a plain JVM:
+ * {@code ./gradlew :app:ledEffectSim --args="<input.wav|trace.txt> [MODE|ALL] [outDir] [roundTripMs]"}
+ */
+public class LedEffectSimulator {
+
+    // Captures as MusicLedSyncService requests them
+    private static final int CAPTURE_SIZE = 1024;
+    private static final int CAPTURE_RATE_HZ = 20;
+
+    private static final int PNG_ROW_HEIGHT = 4;
+    private static final int PNG_MAX_WIDTH = 8000;
+    private static final String LEVELS = " .:-=+*#%@";
+
+    public static class Options {
+        public LedMode mode = LedMode.SPECTRUM;
+        public float sensitivity = 0.7f;
+        public int brightness = 80;
+        public long roundTripMs = 25;
+        public LedEffectRenderer.Params params = LedEffectRenderer.Params.DEFAULT;
+    }
+
+    public static class Result {
+        public String mode;
+        public int captures;
+        public long durationMs;
+        public float renderMicrosPerCapture;
+        public long bytesPerCapture; // -1 where allocations cannot be counted
+        public int framesRendered;
+        public int framesSent;
+        public int framesDropped;
+        public int framesUnchanged;
+        public int commands;
+        public float framesPerSecond;
+        public float commandsPerSecond;
+    }
+
+    /**
+     * State of every LED after a frame was sent.
+     */
+    public static class Snapshot {
+        public final long timeMs;
+        public final int[] internal; // 0xRRGGBB per LED
+        public final int[] ring; // Brightness 0-255 per LED
+
+        Snapshot(long timeMs, int[] internal, int[] ring) {
+            this.timeMs = timeMs;
+            this.internal = internal.clone();
+            this.ring = ring.clone();
+        }
+    }
+
+    private LedEffectSimulator() {
+    }
+
+    // ==================== Simulation ====================
+
+    /**
+     * Simulate one mode over a capture sequence.
+     *
+     * @param timeline Receives the LED state after every sent frame, may be null
+     */
+    public static Result run(List<AudioData> captures, Options options, List<Snapshot> timeline) {
+        Result result = new Result();
+        result.mode = options.mode.name();
+        result.captures = captures.size();
+        if (captures.isEmpty()) {
+            return result;
+        }
+        long start = captures.get(0).timestamp;
+        result.durationMs = captures.get(captures.size() - 1).timestamp - start;
+
+        measureRenderCost(captures, options, result);
+
+        // Second pass with fresh effect state through the emulated scheduler
+        LedEffectRenderer renderer = new LedEffectRenderer();
+        PacedOutput output = new PacedOutput(options.roundTripMs, result, timeline);
+        for (AudioData data : captures) {
+            long t = data.timestamp - start;
+            output.advanceTo(t);
+            output.now = t;
+            renderer.render(options.mode, data, data.beatDetected, options.sensitivity, options.brightness,
+                    options.params, output);
+            output.advanceTo(t);
+        }
+        output.advanceTo(Long.MAX_VALUE);
+
+        float seconds = Math.max(1, result.durationMs) / 1000f;
+        result.framesPerSecond = result.framesSent / seconds;
+        result.commandsPerSecond = result.commands / seconds;
+        return result;
+    }
+
+    /**
+     * Render every capture into a sink that only counts, so the numbers are
+     * the effects' own cost.
+     */
+    private static void measureRenderCost(List<AudioData> captures, Options options, Result result) {
+        LedEffectRenderer renderer = new LedEffectRenderer();
+        int[] count = new int[1];
+        LedEffectRenderer.FrameSink sink = (internalMask, color, ringMask, brightness, tag) -> count[0]++;
+
+        long allocatedBefore = allocatedBytes();
+        long startNs = System.nanoTime();
+        for (AudioData data : captures) {
+            renderer.render(options.mode, data, data.beatDetected, options.sensitivity, options.brightness,
+                    options.params, sink);
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        long allocatedAfter = allocatedBytes();
+
+        result.framesRendered = count[0];
+        result.renderMicrosPerCapture = elapsedNs / 1000f / captures.size();
+        result.bytesPerCapture = allocatedBefore >= 0 && allocatedAfter >= 0
+                ? (allocatedAfter - allocatedBefore) / captures.size()
+                : -1;
+    }
+
+    /**
+     * Stand-in for LedCompositor + LedFrameScheduler on a virtual clock: one
+     * pending frame, sent when the pacing allows, into the LED model. Every
+     * frame takes the configured round trip to be answered.
+     */
+    private static class PacedOutput implements LedEffectRenderer.FrameSink {
+        private final Result result;
+        private final List<Snapshot> timeline;
+        private final long roundTripMs;
+        private final LedFramePacing pacing = new LedFramePacing();
+
+        long now;
+        private boolean pending = false;
+        private long pendingAt;
+        private long internalMask;
+        private int color;
+        private long ringMask;
+        private int brightness;
+
+        private long nextSendAt = 0;
+        private boolean internalSent = false;
+        private long lastInternalMask;
+        private int lastColor;
+        private boolean ringSent = false;
+        private long lastRingMask;
+        private int lastBrightness;
+
+        private final int[] internal = new int[LedLayout.INTERNAL_LEDS];
+        private final int[] ring = new int[LedLayout.RING_LEDS];
+
+        PacedOutput(long roundTripMs, Result result, List<Snapshot> timeline) {
+            this.result = result;
+            this.timeline = timeline;
+            this.roundTripMs = roundTripMs;
+        }
+
+        @Override
+        public void submit(long internalMask, int color, long ringMask, int brightness, String tag) {
+            if (pending) {
+                result.framesDropped++;
+            }
+            pending = true;
+            pendingAt = now;
+            this.internalMask = internalMask;
+            this.color = color & 0xffffff;
+            this.ringMask = ringMask;
+            this.brightness = Math.max(0, Math.min(255, brightness));
+        }
+
+        /**
+         * Send the pending frame if it is due by time t.
+         */
+        void advanceTo(long t) {
+            if (!pending) {
+                return;
+            }
+            long sendAt = Math.max(pendingAt, nextSendAt);
+            if (sendAt > t) {
+                return;
+            }
+            pending = false;
+
+            int selected = pacing.selectSegments(
+                    internalMask != 0 && (!internalSent || internalMask != lastInternalMask || color != lastColor),
+                    ringMask != 0 && (!ringSent || ringMask != lastRingMask || brightness != lastBrightness));
+            if (selected == 0) {
+                result.framesUnchanged++;
+                return;
+            }
+            boolean sendInternal = (selected & LedFramePacing.SEGMENT_INTERNAL) != 0;
+            boolean sendRing = (selected & LedFramePacing.SEGMENT_RING) != 0;
+
+            if (sendInternal) {
+                internalSent = true;
+                lastInternalMask = internalMask;
+                lastColor = color;
+                for (int i = 0; i < LedLayout.INTERNAL_LEDS; i++) {
+                    internal[i] = (internalMask & (1L << i)) != 0 ? color : 0;
+                }
+                result.commands++;
+            }
+            if (sendRing) {
+                ringSent = true;
+                lastRingMask = ringMask;
+                lastBrightness = brightness;
+                for (int i = 0; i < LedLayout.RING_LEDS; i++) {
+                    ring[i] = (ringMask & (1L << (LedLayout.INTERNAL_LEDS + i))) != 0 ? brightness : 0;
+                }
+                result.commands++;
+            }
+            result.framesSent++;
+            pacing.onRoundTrip(roundTripMs);
+            nextSendAt = sendAt + roundTripMs + pacing.delayAfter(roundTripMs);
+            if (timeline != null) {
+                timeline.add(new Snapshot(sendAt, internal, ring));
+            }
+        }
+    }
+
+    /**
+     * Bytes allocated by the current thread so far, or -1 where the JVM does
+     * not expose it (anything but HotSpot, including Android). Looked up
+     * reflectively so the class still loads on the device.
+     */
+    private static long allocatedBytes() {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                    .getMethod("getThreadAllocatedBytes", long.class);
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception | LinkageError e) {
+            return -1;
+        }
+    }
+
+    // ==================== Input ====================
+
+    /**
+     * Load captures from a WAV file (by extension) or a recorded trace.
+     */
+    public static List<AudioData> load(File input) throws IOException {
+        if (input.getName().toLowerCase(Locale.US).endsWith(".wav")) {
+            int[] sampleRate = new int[1];
+            short[] pcm = OnsetBenchmark.readWav(input, sampleRate);
+            return fromPcm(pcm, sampleRate[0], CAPTURE_SIZE, CAPTURE_RATE_HZ);
+        }
+        return readTrace(input);
+    }
+
+    /**
+     * Cut mono PCM into captures and analyze them as the visualizer would.
+     * Timestamps are offsets from the start in ms.
+     */
+    public static List<AudioData> fromPcm(short[] pcm, int sampleRate, int captureSize,
+            int captureRateHz) {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+        OnsetDetector detector = new OnsetDetector();
+        byte[] fft = new byte[captureSize];
+        double[] re = new double[captureSize];
+        double[] im = new double[captureSize];
+
+        List<AudioData> captures = new ArrayList<>();
+        int hop = sampleRate / captureRateHz;
+        for (int end = captureSize; end <= pcm.length; end += hop) {
+            OnsetBenchmark.captureFft(pcm, end - captureSize, re, im, fft);
+            AudioData data = new AudioData();
+            analyzer.analyze(fft, sampleRate * 1000, data);
+            data.timestamp = (long) end * 1000 / sampleRate;
+            data.beatDetected = detector.process(analyzer.getMagnitudes(), captureSize / 2,
+                    (float) sampleRate / captureSize, data.timestamp);
+            data.bpm = detector.getBpm();
+            captures.add(data);
+        }
+        return captures;
+    }
+
+    /**
+     * Read a trace written by TraceRecorder: one capture per line,
+     * "timestampMs amplitude bass mid treble beat bpm", '#' starts a comment.
+     */
+    public static List<AudioData> readTrace(File file) throws IOException {
+        List<AudioData> captures = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if (fields.length < 6) {
+                    throw new IOException(file.getName() + ":" + number + ": expected at least 6 fields");
+                }
+                try {
+                    AudioData data = new AudioData();
+                    data.timestamp = Long.parseLong(fields[0]);
+                    data.amplitude = Float.parseFloat(fields[1]);
+                    data.bass = Float.parseFloat(fields[2]);
+                    data.mid = Float.parseFloat(fields[3]);
+                    data.treble = Float.parseFloat(fields[4]);
+                    data.beatDetected = "1".equals(fields[5]);
+                    data.bpm = fields.length > 6 ? Float.parseFloat(fields[6]) : 0;
+                    captures.add(data);
+                } catch (NumberFormatException e) {
+                    throw new IOException(file.getName() + ":" + number + ": " + e.getMessage());
+                }
+            }
+        }
+        return captures;
+    }
+
+    // ==================== Output ====================
+
+    /**
+     * One line per sent frame: time, internal LEDs, ring LEDs, drawn as
+     * characters from dark to bright, and the internal color.
+     */
+    public static void writeTimeline(List<Snapshot> timeline, Writer out) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (Snapshot snapshot : timeline) {
+            line.setLength(0);
+            line.append(String.format(Locale.US, "%8d ms |", snapshot.timeMs));
+            int color = 0;
+            for (int rgb : snapshot.internal) {
+                line.append(levelChar(luminance(rgb)));
+                color = Math.max(color, rgb);
+            }
+            line.append("| |");
+            for (int brightness : snapshot.ring) {
+                line.append(levelChar(brightness));
+            }
+            line.append(String.format(Locale.US, "| #%06x\n", color));
+            out.write(line.toString());
+        }
+    }
+
+    /**
+     * Render the timeline as an RGB PNG: one column per stepMs, one band of
+     * PNG_ROW_HEIGHT pixels per LED, internal LEDs above the ring.
+     */
+    public static void writePng(List<Snapshot> timeline, long stepMs, OutputStream out) throws IOException {
+        long endMs = timeline.isEmpty() ? 0 : timeline.get(timeline.size() - 1).timeMs;
+        stepMs = Math.max(stepMs, endMs / PNG_MAX_WIDTH + 1);
+        int width = (int) (endMs / stepMs) + 1;
+        int separator = PNG_ROW_HEIGHT / 2;
+        int height = (LedLayout.INTERNAL_LEDS + LedLayout.RING_LEDS) * PNG_ROW_HEIGHT + separator;
+
+        // Pixel colors column by column, then written out row by row
+        int[] pixels = new int[width * height];
+        int index = -1;
+        for (int x = 0; x < width; x++) {
+            long t = x * stepMs;
+            while (index + 1 < timeline.size() && timeline.get(index + 1).timeMs <= t) {
+                index++;
+            }
+            Snapshot snapshot = index >= 0 ? timeline.get(index) : null;
+            for (int led = 0; led < LedLayout.INTERNAL_LEDS + LedLayout.RING_LEDS; led++) {
+                int rgb;
+                if (snapshot == null) {
+                    rgb = 0;
+                } else if (led < LedLayout.INTERNAL_LEDS) {
+                    rgb = snapshot.internal[led];
+                } else {
+                    int level = snapshot.ring[led - LedLayout.INTERNAL_LEDS];
+                    rgb = (level << 16) | (level << 8) | level;
+                }
+                int top = led * PNG_ROW_HEIGHT + (led >= LedLayout.INTERNAL_LEDS ? separator : 0);
+                for (int y = top; y < top + PNG_ROW_HEIGHT; y++) {
+                    pixels[y * width + x] = rgb;
+                }
+            }
+            int separatorTop = LedLayout.INTERNAL_LEDS * PNG_ROW_HEIGHT;
+            for (int y = separatorTop; y < separatorTop + separator; y++) {
+                pixels[y * width + x] = 0x404040;
+            }
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+            byte[] row = new byte[1 + width * 3]; // Filter type 0, then RGB
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int rgb = pixels[y * width + x];
+                    row[1 + x * 3] = (byte) (rgb >> 16);
+                    row[2 + x * 3] = (byte) (rgb >> 8);
+                    row[3 + x * 3] = (byte) rgb;
+                }
+                deflater.write(row);
+            }
+        }
+
+        DataOutputStream png = new DataOutputStream(out);
+        png.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' });
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.write(new byte[] { 8, 2, 0, 0, 0 }); // 8-bit RGB, no interlace
+        writeChunk(png, "IHDR", header.toByteArray());
+        writeChunk(png, "IDAT", compressed.toByteArray());
+        writeChunk(png, "IEND", new byte[0]);
+        png.flush();
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static int luminance(int rgb) {
+        return (((rgb >> 16) & 0xff) * 3 + ((rgb >> 8) & 0xff) * 6 + (rgb & 0xff)) / 10;
+    }
+
+    private static char levelChar(int level) {
+        return LEVELS.charAt(Math.min(LEVELS.length() - 1, level * LEVELS.length() / 256));
+    }
+
+    // ==================== Batch runs ====================
+
+    /**
+     * Simulate the given modes (all when null) and, with an output directory,
+     * write MODE.txt and MODE.png for each.
+     */
+    public static List<Result> runAll(File input, LedMode mode, long roundTripMs, File outDir) throws IOException {
+        List<AudioData> captures = load(input);
+        if (outDir != null && !outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Cannot create " + outDir);
+        }
+
+        List<Result> results = new ArrayList<>();
+        LedMode[] modes = mode != null ? new LedMode[] { mode } : LedMode.values();
+        for (LedMode m : modes) {
+            Options options = new Options();
+            options.mode = m;
+            options.roundTripMs = roundTripMs;
+            List<Snapshot> timeline = outDir != null ? new ArrayList<Snapshot>() : null;
+            results.add(run(captures, options, timeline));
+
+            if (outDir != null) {
+                try (Writer writer = new BufferedWriter(new FileWriter(new File(outDir, m.name() + ".txt")))) {
+                    writeTimeline(timeline, writer);
+                }
+                try (OutputStream png = new FileOutputStream(new File(outDir, m.name() + ".png"))) {
+                    writePng(timeline, 20, png);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Desktop entry point, see the class comment. Prints one line of stats
+     * per mode; with outDir also writes MODE.txt and MODE.png there.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: LedEffectSimulator <input.wav|trace.txt> [MODE|ALL] [outDir] [roundTripMs]");
+            System.exit(2);
+        }
+        LedMode mode = args.length > 1 && !"ALL".equalsIgnoreCase(args[1])
+                ? LedMode.valueOf(args[1].toUpperCase(Locale.US))
+                : null;
+        File outDir = args.length > 2 ? new File(args[2]) : null;
+        long roundTripMs = args.length > 3 ? Long.parseLong(args[3]) : 25;
+
+        System.out.println(String.format(Locale.US, "%-9s %8s %9s %7s %6s %7s %7s %7s %8s", "mode", "us/cap",
+                "bytes/cap", "fps", "cmd/s", "sent", "dropped", "unchgd", "commands"));
+        for (Result r : runAll(new File(args[0]), mode, roundTripMs, outDir)) {
+            System.out.println(String.format(Locale.US, "%-9s %8.2f %9d %7.1f %6.1f %7d %7d %7d %8d", r.mode,
+                    r.renderMicrosPerCapture, r.bytesPerCapture, r.framesPerSecond, r.commandsPerSecond,
+                    r.framesSent, r.framesDropped, r.framesUnchanged, r.commands));
+        }
+    }
+}
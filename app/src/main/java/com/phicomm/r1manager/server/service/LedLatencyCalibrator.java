@@ -0,0 +1,361 @@
+package com.phicomm.r1manager.server.service;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import com.phicomm.r1manager.server.manager.LedLayout;
+import com.phicomm.r1manager.server.manager.LedCompositor;
+import com.phicomm.r1manager.server.manager.LedManager;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * LedLatencyCalibrator - Measures how long after a Visualizer capture the
+ * captured audio is actually heard.
+ *
+ * A click track is played through an AudioTrack while the visualizer
+ * listens. AudioTrack.getTimestamp tells when each click leaves the
+ * speaker; the visualizer reports when it detected it. The median of
+ * (heard - detected) over all matched clicks is the capture-to-output
+ * latency music sync frames have to be delayed by.
+ *
+ * While it runs the LEDs flash at the predicted click times, with the
+ * current manual offset applied, so the offset can be trimmed by eye.
+ */
+public class LedLatencyCalibrator implements AudioVisualizerService.AudioDataListener {
+
+    private static final String TAG = "LedLatencyCalibrator";
+
+    public static final String AUDIO_SOURCE = "calibration";
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CLICK_COUNT = 16;
+    // Not a multiple of the usual 50 ms capture period, so clicks land at
+    // different capture phases and the median averages the quantization out
+    private static final int CLICK_INTERVAL_MS = 530;
+    private static final int LEAD_IN_MS = 600;
+    private static final int TAIL_MS = 1000;
+    private static final int CLICK_LENGTH_MS = 40;
+    private static final int CHUNK_FRAMES = 1024;
+    private static final long MAX_LATENCY_MS = 600;
+    private static final int MIN_MATCHES = 5;
+    private static final long FLASH_MS = 80;
+    private static final long FLASH_LOOKAHEAD_MS = 500;
+    private static final AudioVisualizerService.CaptureRequest CAPTURE_REQUEST =
+            new AudioVisualizerService.CaptureRequest(50, 512);
+
+    public enum State {
+        IDLE, RUNNING, DONE, FAILED
+    }
+
+    /**
+     * Receives the measured capture-to-output latency.
+     */
+    public interface Callback {
+        void onCalibrated(long captureToOutputMs);
+    }
+
+    private final AudioVisualizerService visualizer;
+    private final LedManager ledManager;
+    private final Callback callback;
+
+    private volatile State state = State.IDLE;
+    private volatile boolean stopRequested = false;
+    private volatile String message;
+    private volatile long measuredMs = -1;
+    private volatile int matched = 0;
+    private volatile long offsetMs = 0;
+    private long ledLatencyMs = 0;
+
+    // Onset detection times from the visualizer, guarded by this
+    private final List<Long> detections = new ArrayList<>();
+
+    public LedLatencyCalibrator(AudioVisualizerService visualizer, LedManager ledManager, Callback callback) {
+        this.visualizer = visualizer;
+        this.ledManager = ledManager;
+        this.callback = callback;
+    }
+
+    /**
+     * Start a run in the background. False if one is already running.
+     */
+    public synchronized boolean start(long offsetMs) {
+        if (state == State.RUNNING) {
+            return false;
+        }
+        this.offsetMs = offsetMs;
+        state = State.RUNNING;
+        stopRequested = false;
+        message = null;
+        measuredMs = -1;
+        matched = 0;
+        detections.clear();
+        ThreadManager.getInstance().executeIO(this::run);
+        return true;
+    }
+
+    public void stop() {
+        stopRequested = true;
+    }
+
+    public boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    /**
+     * The manual offset used for the flashes; can change while running.
+     */
+    public void setOffsetMs(long offsetMs) {
+        this.offsetMs = offsetMs;
+    }
+
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", state.name());
+        status.put("measuredMs", measuredMs);
+        status.put("matchedClicks", matched);
+        status.put("clicks", CLICK_COUNT);
+        if (message != null) {
+            status.put("message", message);
+        }
+        return status;
+    }
+
+    @Override
+    public void onAudioData(AudioData data) {
+        if (data.beatDetected) {
+            synchronized (this) {
+                detections.add(data.timestamp);
+            }
+        }
+    }
+
+    private void run() {
+        AudioTrack track = null;
+        visualizer.addListener(this, CAPTURE_REQUEST);
+        visualizer.setAudioPlaying(AUDIO_SOURCE, true);
+        try {
+            track = createTrack();
+            long[] clicksAt = play(track);
+            if (stopRequested) {
+                finish(State.IDLE, "Stopped");
+                return;
+            }
+            if (clicksAt == null) {
+                finish(State.FAILED, "Audio output gave no playback position");
+                return;
+            }
+            evaluate(clicksAt);
+        } catch (Exception e) {
+            AppLog.e(TAG, "Calibration failed", e);
+            finish(State.FAILED, e.getMessage());
+        } finally {
+            if (track != null) {
+                try {
+                    track.stop();
+                } catch (IllegalStateException ignored) {
+                }
+                track.release();
+            }
+            visualizer.setAudioPlaying(AUDIO_SOURCE, false);
+            visualizer.removeListener(this);
+            ledManager.clearLayer(LedCompositor.Layer.MUSIC, 0);
+        }
+    }
+
+    private AudioTrack createTrack() {
+        int minBufferSize = AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT);
+
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                .build();
+
+        AudioFormat format = new AudioFormat.Builder()
+                .setSampleRate(SAMPLE_RATE)
+                .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .build();
+
+        AudioTrack track = new AudioTrack(attributes, format, minBufferSize * 2, AudioTrack.MODE_STREAM,
+                AudioManager.AUDIO_SESSION_ID_GENERATE);
+        if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+            track.release();
+            throw new IllegalStateException("AudioTrack not initialized");
+        }
+        return track;
+    }
+
+    /**
+     * Stream the click track, tracking where output frames map to wall time.
+     *
+     * @return Wall clock time each click was heard, or null without any
+     *         usable playback position
+     */
+    private long[] play(AudioTrack track) {
+        int intervalFrames = SAMPLE_RATE * CLICK_INTERVAL_MS / 1000;
+        int leadInFrames = SAMPLE_RATE * LEAD_IN_MS / 1000;
+        int totalFrames = leadInFrames + CLICK_COUNT * intervalFrames + SAMPLE_RATE * TAIL_MS / 1000;
+        short[] click = buildClick();
+        short[] chunk = new short[CHUNK_FRAMES];
+
+        // Latest mapping of an output frame position to wall clock time
+        long anchorFrame = -1;
+        long anchorWallMs = 0;
+        AudioTimestamp timestamp = new AudioTimestamp();
+        boolean fromTimestamp = false;
+        int flashed = 0;
+        ledLatencyMs = ledManager.getFrameLatencyMs();
+
+        track.play();
+        for (int written = 0; written < totalFrames && !stopRequested; ) {
+            int count = Math.min(CHUNK_FRAMES, totalFrames - written);
+            Arrays.fill(chunk, (short) 0);
+            for (int i = 0; i < count; i++) {
+                int frame = written + i - leadInFrames;
+                if (frame >= 0 && frame < CLICK_COUNT * intervalFrames) {
+                    int offset = frame % intervalFrames;
+                    if (offset < click.length) {
+                        chunk[i] = click[offset];
+                    }
+                }
+            }
+            int result = track.write(chunk, 0, count);
+            if (result < 0) {
+                throw new IllegalStateException("AudioTrack write failed: " + result);
+            }
+            written += result;
+
+            // Prefer the presentation timestamp; the head position is a coarser fallback
+            if (track.getTimestamp(timestamp)) {
+                anchorFrame = timestamp.framePosition;
+                anchorWallMs = System.currentTimeMillis() - (System.nanoTime() - timestamp.nanoTime) / 1000000;
+                fromTimestamp = true;
+            } else if (!fromTimestamp && written >= SAMPLE_RATE) {
+                int head = track.getPlaybackHeadPosition();
+                if (head > 0) {
+                    anchorFrame = head;
+                    anchorWallMs = System.currentTimeMillis();
+                }
+            }
+
+            if (anchorFrame >= 0) {
+                flashed = scheduleFlashes(flashed, anchorFrame, anchorWallMs, leadInFrames, intervalFrames);
+            }
+        }
+        if (anchorFrame < 0) {
+            return null;
+        }
+
+        long[] clicksAt = new long[CLICK_COUNT];
+        for (int k = 0; k < CLICK_COUNT; k++) {
+            clicksAt[k] = frameToWall(leadInFrames + (long) k * intervalFrames, anchorFrame, anchorWallMs);
+        }
+        return clicksAt;
+    }
+
+    /**
+     * Queue LED flashes for the clicks that will be heard soon.
+     *
+     * @return Number of clicks flashed so far
+     */
+    private int scheduleFlashes(int flashed, long anchorFrame, long anchorWallMs, int leadInFrames,
+            int intervalFrames) {
+        long horizon = System.currentTimeMillis() + FLASH_LOOKAHEAD_MS;
+        while (flashed < CLICK_COUNT) {
+            long heardAt = frameToWall(leadInFrames + (long) flashed * intervalFrames, anchorFrame, anchorWallMs);
+            if (heardAt > horizon) {
+                break;
+            }
+            long showAt = heardAt + offsetMs - ledLatencyMs;
+            ledManager.submitFrameAt(LedLayout.INTERNAL_ALL, 0xffffff, LedLayout.RING_ALL, 0xff,
+                    "CALIBRATION_FLASH", showAt);
+            ledManager.submitFrameAt(LedLayout.INTERNAL_ALL, 0x000000, LedLayout.RING_ALL, 0x00,
+                    "CALIBRATION_DARK", showAt + FLASH_MS);
+            flashed++;
+        }
+        return flashed;
+    }
+
+    /**
+     * Pair each click with the first detection before it within
+     * MAX_LATENCY_MS and take the median difference.
+     */
+    private void evaluate(long[] clicksAt) {
+        List<Long> detected;
+        synchronized (this) {
+            detected = new ArrayList<>(detections);
+        }
+
+        List<Long> latencies = new ArrayList<>();
+        int next = 0;
+        for (long heardAt : clicksAt) {
+            while (next < detected.size() && detected.get(next) < heardAt - MAX_LATENCY_MS) {
+                next++;
+            }
+            // Detection can only come before the click is heard (plus a little jitter)
+            if (next < detected.size() && detected.get(next) <= heardAt + CLICK_LENGTH_MS) {
+                latencies.add(heardAt - detected.get(next));
+                next++;
+            }
+        }
+
+        matched = latencies.size();
+        if (latencies.size() < MIN_MATCHES) {
+            finish(State.FAILED, "Only " + latencies.size() + " of " + CLICK_COUNT
+                    + " clicks detected; raise the volume and stop other audio");
+            return;
+        }
+        Collections.sort(latencies);
+        long median = Math.max(0, latencies.get(latencies.size() / 2));
+        measuredMs = median;
+        AppLog.i(TAG, "Capture to output latency " + median + " ms from " + latencies.size() + " clicks "
+                + latencies);
+        callback.onCalibrated(median);
+        finish(State.DONE, null);
+    }
+
+    private void finish(State result, String reason) {
+        message = reason;
+        state = result;
+        if (reason != null) {
+            AppLog.w(TAG, "Calibration " + result.name().toLowerCase() + ": " + reason);
+        }
+    }
+
+    private static long frameToWall(long frame, long anchorFrame, long anchorWallMs) {
+        return anchorWallMs + (frame - anchorFrame) * 1000 / SAMPLE_RATE;
+    }
+
+    /**
+     * A short kick: decaying low sine with a noise burst on the attack, so
+     * the spectral flux jumps in both the low and the high bins.
+     */
+    private static short[] buildClick() {
+        int length = SAMPLE_RATE * CLICK_LENGTH_MS / 1000;
+        int noiseLength = SAMPLE_RATE * 5 / 1000;
+        short[] click = new short[length];
+        Random random = new Random(1);
+        for (int i = 0; i < length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double envelope = Math.exp(-t * 80);
+            double sample = Math.sin(2 * Math.PI * 90 * t) * envelope;
+            if (i < noiseLength) {
+                sample += (random.nextDouble() * 2 - 1) * (1 - (double) i / noiseLength);
+            }
+            click[i] = (short) Math.max(-32767, Math.min(32767, sample * 0.6 * 32767));
+        }
+        return click;
+    }
+}
@@ -0,0 +1,15 @@
+package com.phicomm.r1manager.server.service;
+
+/**
+ * Music sync LED effect modes, rendered by LedEffectRenderer
+ */
+public enum LedMode {
+    SPECTRUM, // VU Meter style
+    PULSE, // Brightness pulses with beat
+    WAVE, // Color wave based on amplitude
+    RAINBOW, // Rainbow cycle, speed based on tempo
+    PARTY, // Combined effects
+    METEOR, // Trailing chase on Ring
+    VORTEX, // Rotating internal pattern
+    SPIRAL // Continuous 39-LED spiral
+}
@@ -0,0 +1,321 @@
+package com.phicomm.r1manager.server.service;
+
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.phicomm.r1manager.util.AppLog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LedSyncSettingsStore - Music LED sync settings, held in memory and written
+ * to SharedPreferences in batches.
+ *
+ * Memory is authoritative: setters update it and return immediately, and a
+ * single write of every value follows once changes have settled for
+ * WRITE_DELAY_MS (but no later than MAX_WRITE_DELAY_MS after the first
+ * one), so dragging a slider costs one XML rewrite instead of dozens.
+ *
+ * The effect settings (mode, sensitivity, brightness, effect parameters)
+ * are one immutable {@link Effect} swapped as a whole. Named presets are
+ * kept in memory too, so applying one is a reference swap with no disk IO;
+ * the audio path reads a consistent Effect per capture.
+ */
+public class LedSyncSettingsStore {
+
+    private static final String TAG = "LedSyncSettingsStore";
+
+    private static final long WRITE_DELAY_MS = 1000;
+    private static final long MAX_WRITE_DELAY_MS = 5000;
+
+    private static final String KEY_MODE = "mode";
+    private static final String KEY_SENSITIVITY = "sensitivity";
+    private static final String KEY_BRIGHTNESS = "brightness";
+    private static final String KEY_EFFECT_PARAMS = "effect_params";
+    private static final String KEY_ENABLED = "enabled";
+    private static final String KEY_BEAT_MAP = "beat_map";
+    private static final String KEY_CALIBRATED_LATENCY = "calibrated_latency_ms";
+    private static final String KEY_LATENCY_OFFSET = "latency_offset_ms";
+    private static final String KEY_PRESETS = "presets";
+    private static final String KEY_ACTIVE_PRESET = "active_preset";
+
+    /**
+     * Everything an effect renders with. Immutable; change by copying.
+     */
+    public static class Effect {
+        public static final Effect DEFAULT = new Effect(LedMode.SPECTRUM, 0.7f, 80,
+                LedEffectRenderer.Params.DEFAULT);
+
+        public final LedMode mode;
+        public final float sensitivity; // 0.0 - 1.0
+        public final int brightness; // 0 - 100
+        public final LedEffectRenderer.Params params;
+
+        public Effect(LedMode mode, float sensitivity, int brightness, LedEffectRenderer.Params params) {
+            this.mode = mode != null ? mode : LedMode.SPECTRUM;
+            this.sensitivity = Math.max(0.0f, Math.min(1.0f, sensitivity));
+            this.brightness = Math.max(0, Math.min(100, brightness));
+            this.params = params != null ? params : LedEffectRenderer.Params.DEFAULT;
+        }
+
+        public Effect withMode(LedMode mode) {
+            return new Effect(mode, sensitivity, brightness, params);
+        }
+
+        public Effect withSensitivity(float sensitivity) {
+            return new Effect(mode, sensitivity, brightness, params);
+        }
+
+        public Effect withBrightness(int brightness) {
+            return new Effect(mode, sensitivity, brightness, params);
+        }
+
+        public Effect withParams(LedEffectRenderer.Params params) {
+            return new Effect(mode, sensitivity, brightness, params);
+        }
+
+        /**
+         * Gson bypasses the constructor; run its checks on loaded values.
+         */
+        Effect normalized() {
+            return new Effect(mode, sensitivity, brightness, params != null ? params.normalized() : null);
+        }
+    }
+
+    private final SharedPreferences prefs;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable writeRunnable = this::flush;
+    private final Gson gson = new Gson();
+
+    private volatile Effect effect = Effect.DEFAULT;
+    private volatile boolean enabled = false;
+    private volatile boolean beatMap = false;
+    private volatile long calibratedLatencyMs = -1;
+    private volatile long latencyOffsetMs = 0;
+    private volatile String activePreset;
+
+    // Guarded by this
+    private final Map<String, Effect> presets = new LinkedHashMap<>();
+    private long firstChangeAt = -1;
+    private int writes = 0;
+    private int changes = 0;
+
+    public LedSyncSettingsStore(SharedPreferences prefs) {
+        this.prefs = prefs;
+        load();
+    }
+
+    // ==================== Values ====================
+
+    public Effect getEffect() {
+        return effect;
+    }
+
+    public void setEffect(Effect effect) {
+        this.effect = effect;
+        activePreset = null; // Edited away from the preset
+        changed();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        changed();
+    }
+
+    public boolean isBeatMapEnabled() {
+        return beatMap;
+    }
+
+    public void setBeatMapEnabled(boolean beatMap) {
+        this.beatMap = beatMap;
+        changed();
+    }
+
+    /**
+     * Measured capture-to-output latency, -1 when not calibrated.
+     */
+    public long getCalibratedLatencyMs() {
+        return calibratedLatencyMs;
+    }
+
+    public void setCalibratedLatencyMs(long latencyMs) {
+        this.calibratedLatencyMs = latencyMs;
+        changed();
+    }
+
+    public long getLatencyOffsetMs() {
+        return latencyOffsetMs;
+    }
+
+    public void setLatencyOffsetMs(long offsetMs) {
+        this.latencyOffsetMs = offsetMs;
+        changed();
+    }
+
+    // ==================== Presets ====================
+
+    /**
+     * Store the current effect settings under a name, replacing any preset
+     * with that name.
+     */
+    public synchronized void savePreset(String name) {
+        presets.put(name, effect);
+        activePreset = name;
+        changed();
+    }
+
+    /**
+     * Switch to a preset: one reference swap, no disk IO.
+     *
+     * @return False if there is no such preset
+     */
+    public boolean applyPreset(String name) {
+        Effect preset;
+        synchronized (this) {
+            preset = presets.get(name);
+        }
+        if (preset == null) {
+            return false;
+        }
+        effect = preset;
+        activePreset = name;
+        changed();
+        return true;
+    }
+
+    public synchronized boolean deletePreset(String name) {
+        if (presets.remove(name) == null) {
+            return false;
+        }
+        if (name.equals(activePreset)) {
+            activePreset = null;
+        }
+        changed();
+        return true;
+    }
+
+    public synchronized Map<String, Effect> getPresets() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(presets));
+    }
+
+    public synchronized List<String> getPresetNames() {
+        return new ArrayList<>(presets.keySet());
+    }
+
+    /**
+     * Name of the preset the current effect settings came from, or null
+     * once they were changed.
+     */
+    public String getActivePreset() {
+        return activePreset;
+    }
+
+    // ==================== Persistence ====================
+
+    /**
+     * Write everything now, e.g. before the service goes away.
+     */
+    public void flush() {
+        Map<String, Effect> presetsCopy;
+        synchronized (this) {
+            handler.removeCallbacks(writeRunnable);
+            if (firstChangeAt < 0) {
+                return;
+            }
+            firstChangeAt = -1;
+            writes++;
+            presetsCopy = new LinkedHashMap<>(presets);
+        }
+
+        Effect current = effect;
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putString(KEY_MODE, current.mode.name());
+        editor.putFloat(KEY_SENSITIVITY, current.sensitivity);
+        editor.putInt(KEY_BRIGHTNESS, current.brightness);
+        editor.putString(KEY_EFFECT_PARAMS, gson.toJson(current.params));
+        editor.putBoolean(KEY_ENABLED, enabled);
+        editor.putBoolean(KEY_BEAT_MAP, beatMap);
+        editor.putLong(KEY_CALIBRATED_LATENCY, calibratedLatencyMs);
+        editor.putLong(KEY_LATENCY_OFFSET, latencyOffsetMs);
+        editor.putString(KEY_PRESETS, gson.toJson(presetsCopy));
+        editor.putString(KEY_ACTIVE_PRESET, activePreset);
+        editor.apply();
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("changes", changes);
+        stats.put("writes", writes);
+        stats.put("writePending", firstChangeAt >= 0);
+        return stats;
+    }
+
+    /**
+     * Schedule the batched write: WRITE_DELAY_MS after the latest change,
+     * capped at MAX_WRITE_DELAY_MS after the first unwritten one.
+     */
+    private synchronized void changed() {
+        changes++;
+        long now = SystemClock.uptimeMillis();
+        if (firstChangeAt < 0) {
+            firstChangeAt = now;
+        }
+        handler.removeCallbacks(writeRunnable);
+        handler.postAtTime(writeRunnable, Math.min(now + WRITE_DELAY_MS, firstChangeAt + MAX_WRITE_DELAY_MS));
+    }
+
+    private void load() {
+        LedMode mode;
+        try {
+            mode = LedMode.valueOf(prefs.getString(KEY_MODE, LedMode.SPECTRUM.name()));
+        } catch (IllegalArgumentException e) {
+            mode = LedMode.SPECTRUM;
+        }
+        LedEffectRenderer.Params params = null;
+        try {
+            params = gson.fromJson(prefs.getString(KEY_EFFECT_PARAMS, null), LedEffectRenderer.Params.class);
+        } catch (JsonSyntaxException e) {
+            AppLog.w(TAG, "Ignoring unreadable effect parameters: " + e.getMessage());
+        }
+        effect = new Effect(mode, prefs.getFloat(KEY_SENSITIVITY, 0.7f), prefs.getInt(KEY_BRIGHTNESS, 80),
+                params != null ? params.normalized() : null);
+
+        enabled = prefs.getBoolean(KEY_ENABLED, false);
+        beatMap = prefs.getBoolean(KEY_BEAT_MAP, false);
+        calibratedLatencyMs = prefs.getLong(KEY_CALIBRATED_LATENCY, -1);
+        latencyOffsetMs = prefs.getLong(KEY_LATENCY_OFFSET, 0);
+        activePreset = prefs.getString(KEY_ACTIVE_PRESET, null);
+
+        try {
+            Map<String, Effect> stored = gson.fromJson(prefs.getString(KEY_PRESETS, null),
+                    new TypeToken<LinkedHashMap<String, Effect>>() {
+                    }.getType());
+            if (stored != null) {
+                synchronized (this) {
+                    for (Map.Entry<String, Effect> entry : stored.entrySet()) {
+                        if (entry.getValue() != null) {
+                            presets.put(entry.getKey(), entry.getValue().normalized());
+                        }
+                    }
+                }
+            }
+        } catch (JsonSyntaxException e) {
+            AppLog.w(TAG, "Ignoring unreadable presets: " + e.getMessage());
+        }
+
+        AppLog.d(TAG, "Settings loaded: mode=" + effect.mode + ", sensitivity=" + effect.sensitivity
+                + ", brightness=" + effect.brightness + ", enabled=" + enabled + ", presets=" + presets.size());
+    }
+}
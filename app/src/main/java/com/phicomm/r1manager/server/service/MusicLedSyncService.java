@@ -3,14 +3,20 @@ package com.phicomm.r1manager.server.service;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.media.AudioManager;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import com.phicomm.r1manager.util.AppLog;
 
 import com.phicomm.r1manager.server.client.HardwareClient;
+import com.phicomm.r1manager.server.manager.BeatMapCache;
 import com.phicomm.r1manager.server.manager.MusicServiceManager;
+import com.phicomm.r1manager.server.model.Song;
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Service to synchronize LED effects with music playback
@@ -19,22 +25,40 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
 
     private static final String TAG = "MusicLedSyncService";
     private static final String PREFS_NAME = "MusicLedSyncPrefs";
-    private static final int LED_UPDATE_INTERVAL = 50; // 20 FPS for stability
+    // Frames are paced by LedManager at up to ~30 fps; the large capture keeps
+    // kicks apart in the low bins for beat detection
+    private static final AudioVisualizerService.CaptureRequest CAPTURE_REQUEST =
+            new AudioVisualizerService.CaptureRequest(20, 1024);
 
     private AudioVisualizerService visualizerService;
     private com.phicomm.r1manager.server.manager.LedManager ledManager;
-    private Handler handler = new Handler();
-
-    private boolean isEnabled = false;
-    private LedMode currentMode = LedMode.SPECTRUM;
-    private float sensitivity = 0.7f;
-    private int brightness = 80;
 
-    // Animation state
-    private float hue = 0; // For rainbow effect
-    private long lastUpdateTime = 0;
-    private boolean lastBeatState = false;
-    private float meteorPos = 0;
+    // In-memory settings with batched persistence; created in onCreate
+    private LedSyncSettingsStore settingsStore;
+
+    // Effects and their animation state (only touched from onAudioData, which never runs concurrently)
+    private final LedEffectRenderer renderer = new LedEffectRenderer();
+    private final LedEffectRenderer.FrameSink frameSink = this::submit;
+
+    // Beat map replay: beats of the playing track come from its precomputed
+    // map at the player position instead of live detection
+    private static final long BEAT_MAP_RETRY_MS = 2000;
+    private static final long MAX_POSITION_STEP_MS = 1000;
+    private Song beatMapSong;
+    private String beatMapKey;
+    private volatile BeatMap beatMap;
+    private long beatMapLookupAt = 0;
+    private long lastMapPosition = -1;
+    // Capture with the amplitude replaced from the beat map (visualizer thread only)
+    private final AudioData mappedData = new AudioData();
+
+    // Latency compensation: frames are shown when the audio they were
+    // computed from is heard, not when the Visualizer captured it
+    private static final long DEFAULT_OUTPUT_LATENCY_MS = 100;
+    private static final long MAX_OFFSET_MS = 500;
+    private long estimatedLatencyMs = DEFAULT_OUTPUT_LATENCY_MS;
+    private LedLatencyCalibrator calibrator;
+    private long frameDueAt = 0;
 
     private final IBinder binder = new LocalBinder();
 
@@ -44,20 +68,6 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
         }
     }
 
-    /**
-     * LED effect modes
-     */
-    public enum LedMode {
-        SPECTRUM, // VU Meter style
-        PULSE, // Brightness pulses with beat
-        WAVE, // Color wave based on amplitude
-        RAINBOW, // Rainbow cycle, speed based on tempo
-        PARTY, // Combined effects
-        METEOR, // Trailing chase on Ring
-        VORTEX, // Rotating internal pattern
-        SPIRAL // Continuous 39-LED spiral
-    }
-
     /**
      * LED sync settings
      */
@@ -66,12 +76,16 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
         public float sensitivity;
         public int brightness;
         public boolean enabled;
+        public boolean beatMap;
+        public LedEffectRenderer.Params params;
+        public String activePreset;
 
         public LedSyncSettings() {
             this.mode = LedMode.SPECTRUM;
             this.sensitivity = 0.7f;
             this.brightness = 80;
             this.enabled = false;
+            this.params = LedEffectRenderer.Params.DEFAULT;
         }
     }
 
@@ -81,7 +95,9 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
         AppLog.d(TAG, "MusicLedSyncService created");
 
         ledManager = com.phicomm.r1manager.server.manager.LedManager.getInstance();
-        loadSettings();
+        estimatedLatencyMs = estimateOutputLatency();
+        settingsStore = new LedSyncSettingsStore(getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+        BeatMapCache.getInstance().setEnabled(settingsStore.isBeatMapEnabled());
 
         // Register with manager
         MusicServiceManager.registerMusicLedSyncService(this);
@@ -104,10 +120,11 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
         AppLog.d(TAG, "MusicLedSyncService destroyed");
 
         disable();
+        settingsStore.flush();
     }
 
     public boolean isEnabled() {
-        return isEnabled;
+        return settingsStore.isEnabled();
     }
 
     /**
@@ -115,10 +132,9 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
      */
     public void setVisualizerService(AudioVisualizerService service) {
         this.visualizerService = service;
-        if (isEnabled) {
+        if (settingsStore.isEnabled()) {
             AppLog.d(TAG, "Auto-starting LED sync from settings");
-            visualizerService.addListener(this);
-            visualizerService.enable();
+            visualizerService.addListener(this, CAPTURE_REQUEST);
         }
     }
 
@@ -126,7 +142,7 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
      * Enable LED sync
      */
     public boolean enable() {
-        if (isEnabled) {
+        if (settingsStore.isEnabled()) {
             AppLog.d(TAG, "LED sync already enabled");
             return true;
         }
@@ -136,15 +152,11 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
             return false;
         }
 
-        visualizerService.addListener(this);
-        if (!visualizerService.enable()) {
-            AppLog.e(TAG, "Failed to enable visualizer");
-            return false;
-        }
-        isEnabled = true;
+        // The visualizer starts capturing once audio is playing
+        visualizerService.addListener(this, CAPTURE_REQUEST);
+        settingsStore.setEnabled(true);
 
-        AppLog.d(TAG, "LED sync enabled with mode: " + currentMode);
-        saveSettings();
+        AppLog.d(TAG, "LED sync enabled with mode: " + settingsStore.getEffect().mode);
 
         return true;
     }
@@ -153,22 +165,20 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
      * Disable LED sync
      */
     public boolean disable() {
-        if (!isEnabled) {
+        if (!settingsStore.isEnabled()) {
             return true;
         }
 
         if (visualizerService != null) {
             visualizerService.removeListener(this);
-            visualizerService.disable();
         }
 
-        isEnabled = false;
+        settingsStore.setEnabled(false);
 
         // Turn off LED
         ledManager.turnOffAll();
 
         AppLog.d(TAG, "LED sync disabled");
-        saveSettings();
 
         return true;
     }
@@ -177,358 +187,295 @@ public class MusicLedSyncService extends Service implements AudioVisualizerServi
      * Set LED mode
      */
     public void setMode(LedMode mode) {
-        this.currentMode = mode;
+        settingsStore.setEffect(settingsStore.getEffect().withMode(mode));
         AppLog.d(TAG, "LED mode set to: " + mode);
-        saveSettings();
     }
 
     /**
      * Set sensitivity (0.0 - 1.0)
      */
     public void setSensitivity(float sensitivity) {
-        this.sensitivity = Math.max(0.0f, Math.min(1.0f, sensitivity));
-        AppLog.d(TAG, "Sensitivity set to: " + this.sensitivity);
-        saveSettings();
+        settingsStore.setEffect(settingsStore.getEffect().withSensitivity(sensitivity));
+        AppLog.d(TAG, "Sensitivity set to: " + settingsStore.getEffect().sensitivity);
     }
 
     /**
      * Set brightness (0 - 100)
      */
     public void setBrightness(int brightness) {
-        this.brightness = Math.max(0, Math.min(100, brightness));
-        AppLog.d(TAG, "Brightness set to: " + this.brightness);
-        saveSettings();
+        settingsStore.setEffect(settingsStore.getEffect().withBrightness(brightness));
+        AppLog.d(TAG, "Brightness set to: " + settingsStore.getEffect().brightness);
     }
 
     /**
-     * Get current settings
+     * Set the per-effect parameters
      */
-    public LedSyncSettings getSettings() {
-        LedSyncSettings settings = new LedSyncSettings();
-        settings.mode = currentMode;
-        settings.sensitivity = sensitivity;
-        settings.brightness = brightness;
-        settings.enabled = isEnabled;
-        return settings;
+    public void setEffectParams(LedEffectRenderer.Params params) {
+        settingsStore.setEffect(settingsStore.getEffect().withParams(params));
+        AppLog.d(TAG, "Effect parameters set: speed=" + params.speed);
     }
 
+    // ==================== Presets ====================
+
     /**
-     * Get available modes
+     * Save the current mode, sensitivity, brightness and effect parameters
+     * as a named preset
      */
-    public static LedMode[] getAvailableModes() {
-        return LedMode.values();
+    public void savePreset(String name) {
+        settingsStore.savePreset(name);
+        AppLog.d(TAG, "Preset saved: " + name);
     }
 
     /**
-     * Audio data callback from visualizer
+     * Switch to a preset. Takes effect from the next capture; no disk IO.
      */
-    @Override
-    public void onAudioData(AudioVisualizerService.AudioData data) {
-        if (!isEnabled || !ledManager.isAnythingActive()) {
-            return;
+    public boolean applyPreset(String name) {
+        boolean applied = settingsStore.applyPreset(name);
+        if (applied) {
+            AppLog.d(TAG, "Preset applied: " + name);
         }
+        return applied;
+    }
 
-        // Throttle updates to ~30 FPS
-        long currentTime = System.currentTimeMillis();
-        if (currentTime - lastUpdateTime < LED_UPDATE_INTERVAL) {
-            return;
-        }
-        lastUpdateTime = currentTime;
-
-        // Apply sensitivity (Boost 1x to 20x)
-        float boost = 1.0f + (sensitivity * 19.0f);
-        float adjustedAmplitude = Math.min(1.0f, data.amplitude * boost);
-        float adjustedBass = Math.min(1.0f, data.bass * boost);
-        float adjustedMid = Math.min(1.0f, data.mid * boost);
-        float adjustedTreble = Math.min(1.0f, data.treble * boost);
+    public boolean deletePreset(String name) {
+        return settingsStore.deletePreset(name);
+    }
 
-        // Log occasionally
-        if (System.currentTimeMillis() % 1000 < 50) {
-            AppLog.d(TAG, "Processing LED: Mode=" + currentMode + ", Amp=" + adjustedAmplitude);
-        }
+    public Map<String, LedSyncSettingsStore.Effect> getPresets() {
+        return settingsStore.getPresets();
+    }
 
-        // Process based on mode
-        switch (currentMode) {
-            case SPECTRUM:
-                updateSpectrumMode(adjustedBass, adjustedMid, adjustedTreble);
-                break;
-            case PULSE:
-                updatePulseMode(data.beatDetected, adjustedAmplitude);
-                break;
-            case WAVE:
-                updateWaveMode(adjustedAmplitude);
-                break;
-            case RAINBOW:
-                updateRainbowMode(adjustedAmplitude);
-                break;
-            case PARTY:
-                updatePartyMode(data.beatDetected, adjustedBass, adjustedMid, adjustedTreble);
-                break;
-            case METEOR:
-                updateMeteorMode(adjustedAmplitude);
-                break;
-            case VORTEX:
-                updateVortexMode(data.beatDetected, adjustedAmplitude);
-                break;
-            case SPIRAL:
-                updateSpiralMode(adjustedAmplitude);
-                break;
-        }
+    public Map<String, Object> getSettingsStoreStats() {
+        return settingsStore.getStats();
     }
 
     /**
-     * SPECTRUM mode: VU Meter (Internal) + Frequency Color (Ring)
+     * Use precomputed beat maps for tracks played by the built-in player
      */
-    private void updateSpectrumMode(float bass, float mid, float treble) {
-        float total = (bass + mid + treble) / 3.0f;
-        int ledCount = (int) (total * 15);
-        if (ledCount < 0)
-            ledCount = 0;
-
-        long maskInt = (1L << ledCount) - 1;
-        int r = (int) (bass * 255);
-        int g = (int) (mid * 255);
-        int b = (int) (treble * 255);
-        String color = String.format("%02x%02x%02x", r, g, b);
-
-        ledManager.setInternalLed(Long.toHexString(maskInt), color, "VU_INT");
-
-        // Ring: Middle glow
-        int ringBri = (int) (total * 255 * brightness / 100);
-        ledManager.setRingLed("7ffff8000", String.format("%02x", ringBri), "VU_RING");
+    public void setBeatMapEnabled(boolean enabled) {
+        settingsStore.setBeatMapEnabled(enabled);
+        BeatMapCache.getInstance().setEnabled(enabled);
+        AppLog.d(TAG, "Beat map replay " + (enabled ? "enabled" : "disabled"));
     }
 
     /**
-     * PULSE mode: Brightness pulses with beat
+     * Beat map of the playing track, or null while there is none
      */
-    private void updatePulseMode(boolean beatDetected, float amplitude) {
-        int bri = (int) (amplitude * 255 * brightness / 100);
-        if (beatDetected) {
-            bri = (int) (255 * brightness / 100);
-            // Flash both
-            ledManager.setInternalLed("7fff", "ffffff", "PULSE_BEAT_INT");
-            ledManager.setRingLed("7ffff8000", "ff", "PULSE_BEAT_RING");
-        } else {
-            // Fade out
-            String color = String.format("%02x%02x%02x", bri, bri, bri);
-            ledManager.setInternalLed("7fff", color, "PULSE_FADE_INT");
-            ledManager.setRingLed("7ffff8000", String.format("%02x", bri / 2), "PULSE_FADE_RING");
-        }
-        lastBeatState = beatDetected;
+    public BeatMap getCurrentBeatMap() {
+        return beatMap;
     }
 
     /**
-     * SPIRAL mode: Continuous rotation through all 39 LEDs
+     * Time from a Visualizer capture until that audio is heard: the
+     * calibrated value if there is one, otherwise the platform estimate
      */
-    private float spiralPos = 0;
-
-    private void updateSpiralMode(float amplitude) {
-        // Move position based on volume
-        spiralPos = (spiralPos + 1.0f + amplitude * 3.0f) % 39;
-
-        long maskInt = 0;
-        long maskRing = 0;
-
-        // Light up 8 LEDs in a row across the 39-LED sequence
-        for (int i = 0; i < 8; i++) {
-            int pos = ((int) spiralPos + i) % 39;
-            if (pos < 15) {
-                maskInt |= (1L << pos);
-            } else {
-                maskRing |= (1L << (pos - 15 + 15)); // Still needs 15-bit shift for hardware
-            }
-        }
-
-        hue = (hue + 2) % 360;
-        int[] rgb = hsvToRgb(hue, 1.0f, 1.0f);
-        String color = String.format("%02x%02x%02x", rgb[0], rgb[1], rgb[2]);
-
-        if (maskInt > 0)
-            ledManager.setInternalLed(Long.toHexString(maskInt), color, "SPIRAL_INT");
-        if (maskRing > 0)
-            ledManager.setRingLed(Long.toHexString(maskRing), "ff", "SPIRAL_RING");
+    public long getCaptureToOutputMs() {
+        long calibrated = settingsStore.getCalibratedLatencyMs();
+        return calibrated >= 0 ? calibrated : estimatedLatencyMs;
     }
 
     /**
-     * WAVE mode: Smooth Circular chase on Ring LED + Rainbow Wave on Internal
+     * Manual trim on top of the measured latency; positive shows LEDs later
      */
-    private int ringStep = 0;
-
-    private void updateWaveMode(float amplitude) {
-        hue = (hue + 5 + amplitude * 10) % 360;
-        int[] rgb = hsvToRgb(hue, 1.0f, (float) brightness / 100);
-        String color = String.format("%02x%02x%02x", rgb[0], rgb[1], rgb[2]);
-        ledManager.setInternalLed("7fff", color, "WAVE_INT");
-
-        // Smoother Ring chase: 8 LEDs rotating
-        ringStep = (ringStep + 1) % 24;
-        long ringMask = 0;
-        for (int i = 0; i < 8; i++) {
-            int pos = (ringStep + i) % 24;
-            ringMask |= (1L << (pos + 15));
+    public void setLatencyOffsetMs(long offsetMs) {
+        long clamped = Math.max(-MAX_OFFSET_MS, Math.min(MAX_OFFSET_MS, offsetMs));
+        settingsStore.setLatencyOffsetMs(clamped);
+        if (calibrator != null) {
+            calibrator.setOffsetMs(clamped);
         }
-        ledManager.setRingLed(Long.toHexString(ringMask), String.format("%02x", (int) (amplitude * 255)), "WAVE_RING");
+        AppLog.d(TAG, "Latency offset set to: " + clamped + " ms");
     }
 
     /**
-     * Smoother METEOR mode (Anti-flicker)
+     * Forget the calibrated latency and fall back to the platform estimate
      */
-    private void updateMeteorMode(float amplitude) {
-        // Slower base speed, capped max speed to prevent flickering
-        meteorPos = (meteorPos + 0.3f + Math.min(amplitude, 0.8f) * 1.5f) % 24;
-        int head = (int) meteorPos;
-        long ringMask = 0;
-
-        for (int i = 0; i < 5; i++) {
-            int pos = (head - i + 24) % 24;
-            ringMask |= (1L << (pos + 15));
-        }
-
-        ledManager.setRingLed(Long.toHexString(ringMask), "ff", "METEOR_RING");
-
-        // Background internal glow
-        int[] rgb = hsvToRgb(hue, 0.5f, amplitude * 0.3f);
-        ledManager.setInternalLed("7fff", String.format("%02x%02x%02x", rgb[0], rgb[1], rgb[2]), "METEOR_INT");
-        hue = (hue + 1) % 360;
+    public void resetCalibration() {
+        settingsStore.setCalibratedLatencyMs(-1);
     }
 
     /**
-     * VORTEX mode: Rotating internal pattern + Beat flash ring
+     * Play a click track and measure the capture-to-output latency. LED sync
+     * pauses while it runs.
+     *
+     * @return Null when started, otherwise why not
      */
-    private int vortexStep = 0;
-
-    private void updateVortexMode(boolean beatDetected, float amplitude) {
-        if (beatDetected) {
-            vortexStep = (vortexStep + 3) % 15;
-            ledManager.setRingLed("7ffff8000", "ff", "VORTEX_BEAT_RING");
-        } else {
-            vortexStep = (vortexStep + 1) % 15;
-            ledManager.setRingLed("7ffff8000", "22", "VORTEX_IDLE_RING");
+    public synchronized String startCalibration() {
+        if (visualizerService == null) {
+            return "Visualizer service not available";
         }
+        if (visualizerService.isAudioPlaying()) {
+            return "Stop playback before calibrating";
+        }
+        if (calibrator == null) {
+            calibrator = new LedLatencyCalibrator(visualizerService, ledManager,
+                    measured -> settingsStore.setCalibratedLatencyMs(measured));
+        }
+        return calibrator.start(settingsStore.getLatencyOffsetMs()) ? null : "Calibration already running";
+    }
 
-        // Rotate 3-LED block internally
-        long maskInt = 0;
-        for (int i = 0; i < 3; i++) {
-            maskInt |= (1L << ((vortexStep + i) % 15));
+    public synchronized void stopCalibration() {
+        if (calibrator != null) {
+            calibrator.stop();
         }
+    }
 
-        hue = (hue + 10) % 360;
-        int[] rgb = hsvToRgb(hue, 1.0f, amplitude);
-        ledManager.setInternalLed(Long.toHexString(maskInt), String.format("%02x%02x%02x", rgb[0], rgb[1], rgb[2]),
-                "VORTEX_INT");
+    public Map<String, Object> getLatencyStatus() {
+        long ledLatency = ledManager.getFrameLatencyMs();
+        long latencyOffsetMs = settingsStore.getLatencyOffsetMs();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("captureToOutputMs", getCaptureToOutputMs());
+        status.put("source", settingsStore.getCalibratedLatencyMs() >= 0 ? "calibrated" : "estimated");
+        status.put("estimatedMs", estimatedLatencyMs);
+        status.put("offsetMs", latencyOffsetMs);
+        status.put("ledLatencyMs", ledLatency);
+        status.put("frameDelayMs", Math.max(0, getCaptureToOutputMs() + latencyOffsetMs - ledLatency));
+        LedLatencyCalibrator current = calibrator;
+        if (current != null) {
+            status.put("calibration", current.getStatus());
+        }
+        return status;
     }
 
     /**
-     * RAINBOW mode: Rainbow cycle on Internal, Glow on Ring
+     * Get current settings
      */
-    private void updateRainbowMode(float amplitude) {
-        hue = (hue + 5 + amplitude * 10) % 360;
-        int[] rgb = hsvToRgb(hue, 1.0f, (float) brightness / 100);
-        String color = String.format("%02x%02x%02x", rgb[0], rgb[1], rgb[2]);
-        ledManager.setInternalLed("7fff", color, "RAINBOW_INT");
-
-        // Ring glow
-        int ringBri = (int) (amplitude * 255 * brightness / 100);
-        ledManager.setRingLed("7ffff8000", String.format("%02x", ringBri), "RAINBOW_RING");
+    public LedSyncSettings getSettings() {
+        LedSyncSettings settings = new LedSyncSettings();
+        LedSyncSettingsStore.Effect effect = settingsStore.getEffect();
+        settings.mode = effect.mode;
+        settings.sensitivity = effect.sensitivity;
+        settings.brightness = effect.brightness;
+        settings.params = effect.params;
+        settings.activePreset = settingsStore.getActivePreset();
+        settings.enabled = settingsStore.isEnabled();
+        settings.beatMap = settingsStore.isBeatMapEnabled();
+        return settings;
     }
 
     /**
-     * PARTY mode: Fast Ring Rotation + Strobe effect on beat
+     * Get available modes
      */
-    private void updatePartyMode(boolean beatDetected, float bass, float mid, float treble) {
-        if (beatDetected) {
-            // Strobe
-            ledManager.setInternalLed("7fff", "ffffff", "PARTY_STROBE");
-            ledManager.setRingLed("7ffff8000", "ff", "PARTY_STROBE_RING");
-        } else {
-            // Random colors internal
-            int r = (int) (bass * 255);
-            int g = (int) (mid * 255);
-            int b = (int) (treble * 255);
-            ledManager.setInternalLed("7fff", String.format("%02x%02x%02x", r, g, b), "PARTY_INT");
-
-            // Fast rotation ring
-            ringStep = (ringStep + 2) % 24;
-            long mask = (0xF0L << (ringStep % 20 + 15)); // 4 LED block
-            ledManager.setRingLed(Long.toHexString(mask), "ff", "PARTY_RING");
-        }
+    public static LedMode[] getAvailableModes() {
+        return LedMode.values();
     }
 
     /**
-     * Convert HSV to RGB
+     * Audio data callback from visualizer
      */
-    private int[] hsvToRgb(float h, float s, float v) {
-        float c = v * s;
-        float x = c * (1 - Math.abs((h / 60) % 2 - 1));
-        float m = v - c;
-
-        float r, g, b;
-        if (h < 60) {
-            r = c;
-            g = x;
-            b = 0;
-        } else if (h < 120) {
-            r = x;
-            g = c;
-            b = 0;
-        } else if (h < 180) {
-            r = 0;
-            g = c;
-            b = x;
-        } else if (h < 240) {
-            r = 0;
-            g = x;
-            b = c;
-        } else if (h < 300) {
-            r = x;
-            g = 0;
-            b = c;
-        } else {
-            r = c;
-            g = 0;
-            b = x;
+    @Override
+    public void onAudioData(AudioData data) {
+        LedLatencyCalibrator current = calibrator;
+        if (!settingsStore.isEnabled() || !ledManager.isAnythingActive() || (current != null && current.isRunning())) {
+            return;
+        }
+
+        // No wall-clock throttle here: LedManager paces frames to the measured
+        // hardware round trip and drops the ones it cannot send in time.
+
+        // Show the frame when this audio comes out of the speaker, allowing
+        // for the time the LED command itself takes
+        long now = System.currentTimeMillis();
+        long ledLatency = ledManager.getFrameLatencyMs();
+        long latencyOffsetMs = settingsStore.getLatencyOffsetMs();
+        frameDueAt = data.timestamp + getCaptureToOutputMs() + latencyOffsetMs - ledLatency;
+
+        boolean beat = data.beatDetected;
+        BeatMap map = currentBeatMap();
+        if (map != null) {
+            // Map beats and loudness are in player time, which already tracks
+            // what is heard: replay both for where this frame will be seen
+            long position = ExoPlayerService.getInstance().getCurrentPosition()
+                    + Math.max(now, frameDueAt) - now + ledLatency - latencyOffsetMs;
+            beat = mapBeat(map, position);
+            mappedData.copyFrom(data);
+            mappedData.amplitude = map.amplitudeAt(position);
+            data = mappedData;
         }
 
-        return new int[] {
-                (int) ((r + m) * 255),
-                (int) ((g + m) * 255),
-                (int) ((b + m) * 255)
-        };
+        // One snapshot per capture, so a preset switch never mixes settings
+        LedSyncSettingsStore.Effect effect = settingsStore.getEffect();
+
+        // Log occasionally
+        if (System.currentTimeMillis() % 1000 < 50) {
+            AppLog.d(TAG, "Processing LED: Mode=" + effect.mode + ", Amp=" + data.amplitude);
+        }
+
+        renderer.render(effect.mode, data, beat, effect.sensitivity, effect.brightness, effect.params, frameSink);
     }
 
     /**
-     * Load settings from SharedPreferences
+     * Beat map of the track the player is on, looked up again every few
+     * seconds while missing (the proxy finishes analysis during playback).
+     * Local files without a map are queued for analysis.
      */
-    private void loadSettings() {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-
-        String modeStr = prefs.getString("mode", LedMode.SPECTRUM.name());
-        try {
-            currentMode = LedMode.valueOf(modeStr);
-        } catch (IllegalArgumentException e) {
-            currentMode = LedMode.SPECTRUM;
+    private BeatMap currentBeatMap() {
+        ExoPlayerService player = ExoPlayerService.getInstance();
+        if (!settingsStore.isBeatMapEnabled() || !player.isPlaying()) {
+            lastMapPosition = -1;
+            return null;
         }
 
-        sensitivity = prefs.getFloat("sensitivity", 0.7f);
-        brightness = prefs.getInt("brightness", 80);
-        isEnabled = prefs.getBoolean("enabled", false);
+        Song song = player.getCurrentSong();
+        if (song != beatMapSong) {
+            beatMapSong = song;
+            beatMapKey = BeatMapCache.keyForSong(song);
+            beatMap = null;
+            beatMapLookupAt = 0;
+            lastMapPosition = -1;
+        }
+        if (beatMapKey == null) {
+            return null;
+        }
 
-        AppLog.d(TAG, "Settings loaded: mode=" + currentMode + ", sensitivity=" + sensitivity +
-                ", brightness=" + brightness + ", enabled=" + isEnabled);
+        long now = System.currentTimeMillis();
+        if (beatMap == null && now - beatMapLookupAt >= BEAT_MAP_RETRY_MS) {
+            beatMapLookupAt = now;
+            BeatMapCache cache = BeatMapCache.getInstance();
+            beatMap = cache.get(beatMapKey);
+            File local = BeatMapCache.localFile(song);
+            if (beatMap == null && local != null) {
+                cache.analyzeLocal(beatMapKey, local);
+            }
+        }
+        return beatMap;
     }
 
     /**
-     * Save settings to SharedPreferences
+     * Whether the map has a beat between the previous and this player position
      */
-    private void saveSettings() {
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
+    private boolean mapBeat(BeatMap map, long position) {
+        long previous = lastMapPosition;
+        lastMapPosition = position;
+        // After a seek or a gap start over instead of firing every beat in between
+        if (previous < 0 || position < previous || position - previous > MAX_POSITION_STEP_MS) {
+            return false;
+        }
+        return map.hasBeatIn(previous, position);
+    }
 
-        editor.putString("mode", currentMode.name());
-        editor.putFloat("sensitivity", sensitivity);
-        editor.putInt("brightness", brightness);
-        editor.putBoolean("enabled", isEnabled);
+    /**
+     * Queue an effect frame for the due time of the current capture
+     */
+    private void submit(long internalMask, int color, long ringMask, int brightness, String tag) {
+        ledManager.submitFrameAt(internalMask, color, ringMask, brightness, tag, frameDueAt);
+    }
 
-        editor.apply();
+    /**
+     * Platform output latency of the music stream. AudioManager only
+     * exposes it as a hidden method, so fall back to a typical value.
+     */
+    private long estimateOutputLatency() {
+        try {
+            AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
+            Method method = AudioManager.class.getMethod("getOutputLatency", int.class);
+            int latency = (Integer) method.invoke(audioManager, AudioManager.STREAM_MUSIC);
+            if (latency > 0) {
+                AppLog.d(TAG, "Platform output latency: " + latency + " ms");
+                return latency;
+            }
+        } catch (Exception e) {
+            AppLog.w(TAG, "Output latency not available: " + e.getMessage());
+        }
+        return DEFAULT_OUTPUT_LATENCY_MS;
     }
 }
@@ -0,0 +1,351 @@
+package com.phicomm.r1manager.server.service;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * OnsetBenchmark - Runs the beat detector offline and scores it against
+ * reference beat times.
+ *
+ * PCM is cut into captures the way Visualizer delivers them (a window of
+ * captureSize samples every 1/captureRate seconds, 8-bit, FFT packed as
+ * bytes), then fed through the same SpectrumAnalyzer and OnsetDetector used
+ * at runtime. Detections within the tolerance of a reference beat count as
+ * hits; precision, recall, F-measure and the tempo estimate are reported.
+ *
+ * Test vectors are either recorded files (16-bit PCM WAV plus a text file
+ * with one beat time in seconds per line) or built-in synthetic tracks with
+ * known beats.
+ *
+ * The class has no Android dependencies, so the same vectors can be scored on
+ * a desktop JVM while tuning the detector:
+ * ./gradlew :app:onsetBenchmark --args="[captureSize] [captureRateHz] [song.wav song.beats.txt]..."
+ * Without files the synthetic tracks are used.
+ */
+public class OnsetBenchmark {
+
+    private static final long MIN_TOLERANCE_MS = 70;
+    private static final int SYNTH_SAMPLE_RATE = 44100;
+
+    public static class Result {
+        public String name;
+        public int referenceBeats;
+        public int detectedBeats;
+        public int hits;
+        public float precision;
+        public float recall;
+        public float fMeasure;
+        public float referenceBpm;
+        public float estimatedBpm;
+        public long toleranceMs;
+    }
+
+    private OnsetBenchmark() {
+    }
+
+    /**
+     * Score the detector on mono PCM against reference beat times.
+     */
+    public static Result evaluate(String name, short[] pcm, int sampleRate, long[] referenceMs, int captureSize,
+            int captureRateHz) {
+        SpectrumAnalyzer analyzer = new SpectrumAnalyzer();
+        OnsetDetector detector = new OnsetDetector();
+        AudioData data = new AudioData();
+        byte[] fft = new byte[captureSize];
+        double[] re = new double[captureSize];
+        double[] im = new double[captureSize];
+
+        List<Long> detected = new ArrayList<>();
+        int hop = sampleRate / captureRateHz;
+        for (int end = captureSize; end <= pcm.length; end += hop) {
+            captureFft(pcm, end - captureSize, re, im, fft);
+            long timeMs = (long) end * 1000 / sampleRate;
+            analyzer.analyze(fft, sampleRate * 1000, data);
+            if (detector.process(analyzer.getMagnitudes(), captureSize / 2, (float) sampleRate / captureSize,
+                    timeMs)) {
+                detected.add(timeMs);
+            }
+        }
+
+        Result result = new Result();
+        result.name = name;
+        result.toleranceMs = Math.max(MIN_TOLERANCE_MS, 1000 / captureRateHz);
+        result.referenceBeats = referenceMs.length;
+        result.detectedBeats = detected.size();
+        result.hits = countHits(referenceMs, detected, result.toleranceMs);
+        result.precision = detected.isEmpty() ? 0 : (float) result.hits / detected.size();
+        result.recall = referenceMs.length == 0 ? 0 : (float) result.hits / referenceMs.length;
+        result.fMeasure = result.precision + result.recall > 0
+                ? 2 * result.precision * result.recall / (result.precision + result.recall)
+                : 0;
+        result.referenceBpm = medianBpm(referenceMs);
+        result.estimatedBpm = detector.getBpm();
+        return result;
+    }
+
+    /**
+     * Built-in vectors: synthetic tracks at several tempos.
+     */
+    public static List<Result> runSynthetic(int captureSize, int captureRateHz) {
+        List<Result> results = new ArrayList<>();
+        float[] tempos = { 90, 120, 128, 150 };
+        for (int i = 0; i < tempos.length; i++) {
+            List<Long> beats = new ArrayList<>();
+            short[] pcm = synthesize(tempos[i], 30, SYNTH_SAMPLE_RATE, i, beats);
+            results.add(evaluate("synthetic_" + (int) tempos[i] + "bpm", pcm, SYNTH_SAMPLE_RATE, toArray(beats),
+                    captureSize, captureRateHz));
+        }
+        return results;
+    }
+
+    /**
+     * Score a recorded file against its annotation.
+     *
+     * @param pcmFile   16-bit PCM WAV (mono or stereo)
+     * @param beatsFile One beat time in seconds per line
+     */
+    public static Result evaluateFiles(File pcmFile, File beatsFile, int captureSize, int captureRateHz)
+            throws IOException {
+        int[] sampleRate = new int[1];
+        short[] pcm = readWav(pcmFile, sampleRate);
+        return evaluate(pcmFile.getName(), pcm, sampleRate[0], readBeats(beatsFile), captureSize, captureRateHz);
+    }
+
+    // ==================== Test vectors ====================
+
+    /**
+     * Kick on every beat, hi-hat on the off-beats, a sustained bass line and
+     * background noise, so a plain energy threshold is not enough.
+     */
+    static short[] synthesize(float bpm, int seconds, int sampleRate, long seed, List<Long> beatsOut) {
+        Random random = new Random(seed);
+        short[] pcm = new short[seconds * sampleRate];
+        double beatSamples = sampleRate * 60.0 / bpm;
+
+        for (int n = 0; n < pcm.length; n++) {
+            double t = (double) n / sampleRate;
+            double sample = 0.15 * Math.sin(2 * Math.PI * 55 * t) + 0.05 * (random.nextDouble() * 2 - 1);
+            pcm[n] = (short) (sample * 12000);
+        }
+
+        for (double pos = sampleRate * 0.5; pos < pcm.length; pos += beatSamples) {
+            int start = (int) pos;
+            beatsOut.add((long) start * 1000 / sampleRate);
+            addKick(pcm, start, sampleRate);
+            addHat(pcm, (int) (pos + beatSamples / 2), sampleRate, random);
+        }
+        return pcm;
+    }
+
+    private static void addKick(short[] pcm, int start, int sampleRate) {
+        int length = sampleRate / 5;
+        double phase = 0;
+        for (int i = 0; i < length && start + i < pcm.length; i++) {
+            double t = (double) i / sampleRate;
+            double freq = 50 + 100 * Math.exp(-t * 30); // Pitch drop
+            phase += 2 * Math.PI * freq / sampleRate;
+            mix(pcm, start + i, Math.sin(phase) * Math.exp(-t * 12) * 0.9);
+        }
+    }
+
+    private static void addHat(short[] pcm, int start, int sampleRate, Random random) {
+        int length = sampleRate / 25;
+        for (int i = 0; i < length && start + i < pcm.length; i++) {
+            double t = (double) i / sampleRate;
+            mix(pcm, start + i, (random.nextDouble() * 2 - 1) * Math.exp(-t * 80) * 0.25);
+        }
+    }
+
+    private static void mix(short[] pcm, int index, double value) {
+        int mixed = pcm[index] + (int) (value * 32767);
+        pcm[index] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
+    }
+
+    // ==================== Capture emulation ====================
+
+    /**
+     * FFT of captureSize samples packed like Visualizer.getFft(): 8-bit input,
+     * DC and Nyquist real parts first, then (re, im) pairs, clipped to bytes.
+     */
+    static void captureFft(short[] pcm, int offset, double[] re, double[] im, byte[] out) {
+        int n = re.length;
+        for (int i = 0; i < n; i++) {
+            re[i] = pcm[offset + i] >> 8;
+            im[i] = 0;
+        }
+        Fft.transform(re, im);
+
+        double scale = 2.0 / n;
+        out[0] = clipByte(re[0] * scale);
+        out[1] = clipByte(re[n / 2] * scale);
+        for (int k = 1; k < n / 2; k++) {
+            out[2 * k] = clipByte(re[k] * scale);
+            out[2 * k + 1] = clipByte(im[k] * scale);
+        }
+    }
+
+    private static byte clipByte(double v) {
+        return (byte) Math.max(-128, Math.min(127, Math.round(v)));
+    }
+
+    // ==================== Scoring ====================
+
+    private static int countHits(long[] reference, List<Long> detected, long toleranceMs) {
+        boolean[] used = new boolean[detected.size()];
+        int hits = 0;
+        for (long beat : reference) {
+            for (int i = 0; i < detected.size(); i++) {
+                if (!used[i] && Math.abs(detected.get(i) - beat) <= toleranceMs) {
+                    used[i] = true;
+                    hits++;
+                    break;
+                }
+            }
+        }
+        return hits;
+    }
+
+    private static float medianBpm(long[] beats) {
+        if (beats.length < 2) {
+            return 0;
+        }
+        long[] intervals = new long[beats.length - 1];
+        for (int i = 1; i < beats.length; i++) {
+            intervals[i - 1] = beats[i] - beats[i - 1];
+        }
+        java.util.Arrays.sort(intervals);
+        long median = intervals[intervals.length / 2];
+        return median > 0 ? 60000f / median : 0;
+    }
+
+    private static long[] toArray(List<Long> values) {
+        long[] array = new long[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+
+    // ==================== File input ====================
+
+    /**
+     * Read a 16-bit PCM WAV file, mixed down to mono.
+     */
+    static short[] readWav(File file, int[] sampleRateOut) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            DataInputStream data = new DataInputStream(in);
+            byte[] id = new byte[4];
+            data.readFully(id);
+            if (!"RIFF".equals(new String(id, "US-ASCII"))) {
+                throw new IOException("Not a RIFF/WAV file: " + file);
+            }
+            readIntLE(data); // RIFF size
+            data.readFully(id); // WAVE
+
+            int channels = 1;
+            int bits = 16;
+            while (true) {
+                data.readFully(id);
+                int size = readIntLE(data);
+                String chunk = new String(id, "US-ASCII");
+                if ("fmt ".equals(chunk)) {
+                    readShortLE(data); // Format
+                    channels = readShortLE(data);
+                    sampleRateOut[0] = readIntLE(data);
+                    readIntLE(data); // Byte rate
+                    readShortLE(data); // Block align
+                    bits = readShortLE(data);
+                    data.skipBytes(size - 16);
+                } else if ("data".equals(chunk)) {
+                    if (bits != 16) {
+                        throw new IOException("Only 16-bit PCM is supported, got " + bits + " bits");
+                    }
+                    int frames = size / (2 * channels);
+                    short[] pcm = new short[frames];
+                    for (int i = 0; i < frames; i++) {
+                        int sum = 0;
+                        for (int c = 0; c < channels; c++) {
+                            sum += (short) readShortLE(data);
+                        }
+                        pcm[i] = (short) (sum / channels);
+                    }
+                    return pcm;
+                } else {
+                    data.skipBytes(size + (size & 1));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read beat annotations, one time in seconds per line (extra columns ignored).
+     */
+    static long[] readBeats(File file) throws IOException {
+        List<Long> beats = new ArrayList<>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                beats.add(Math.round(Double.parseDouble(line.split("\\s+")[0]) * 1000));
+            }
+        } finally {
+            reader.close();
+        }
+        return toArray(beats);
+    }
+
+    private static int readIntLE(DataInputStream in) throws IOException {
+        return Integer.reverseBytes(in.readInt());
+    }
+
+    private static int readShortLE(DataInputStream in) throws IOException {
+        return Short.reverseBytes(in.readShort()) & 0xffff;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2 && (args.length - 2) % 2 != 0) {
+            System.err.println("Usage: OnsetBenchmark [captureSize] [captureRateHz] [<input.wav> <beats.txt>]...");
+            System.exit(2);
+        }
+        int captureSize = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+        int captureRate = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        List<Result> results;
+        if (args.length > 2) {
+            results = new ArrayList<>();
+            for (int i = 2; i < args.length; i += 2) {
+                results.add(evaluateFiles(new File(args[i]), new File(args[i + 1]), captureSize, captureRate));
+            }
+        } else {
+            results = runSynthetic(captureSize, captureRate);
+        }
+
+        System.out.println(String.format(Locale.US, "%-24s %5s %5s %5s %6s %6s %6s %7s %7s", "name", "ref", "det",
+                "hits", "prec", "recall", "F", "refBpm", "estBpm"));
+        float fSum = 0;
+        for (Result r : results) {
+            System.out.println(String.format(Locale.US, "%-24s %5d %5d %5d %6.3f %6.3f %6.3f %7.1f %7.1f", r.name,
+                    r.referenceBeats, r.detectedBeats, r.hits, r.precision, r.recall, r.fMeasure, r.referenceBpm,
+                    r.estimatedBpm));
+            fSum += r.fMeasure;
+        }
+        System.out.println(String.format(Locale.US, "mean F %.3f (capture %d @ %d Hz, tolerance %d ms)",
+                fSum / results.size(), captureSize, captureRate, results.get(0).toleranceMs));
+    }
+}
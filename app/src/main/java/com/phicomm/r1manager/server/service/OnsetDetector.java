@@ -0,0 +1,223 @@
+package com.phicomm.r1manager.server.service;
+
+/**
+ * OnsetDetector - Beat detection from spectral flux with an adaptive threshold.
+ *
+ * For every capture the positive change of each bin magnitude against the
+ * previous capture is summed (spectral flux), weighted toward low frequencies
+ * so kicks and bass notes count more than hi-hats. A capture is an onset when its
+ * flux rises above the median of the recent flux history times a multiplier,
+ * plus a floor that keeps silence and noise quiet, and the refractory period
+ * since the previous onset has passed.
+ *
+ * Tempo is estimated from inter-onset intervals: every onset votes for the
+ * BPM implied by its distance to the preceding onsets, folded into one
+ * octave, in a decaying histogram whose peak is the reported tempo. Closer
+ * onsets vote with more weight, so a 3-beat interval (which folds to the
+ * wrong octave) cannot outvote the beat itself.
+ *
+ * All state is preallocated; process() allocates nothing. The class has no
+ * Android dependencies so it can be run offline (see OnsetBenchmark, or
+ * ./gradlew :app:onsetBenchmark).
+ */
+public class OnsetDetector {
+
+    private static final int HISTORY = 24; // Flux values in the median window
+    private static final float THRESHOLD_MULTIPLIER = 1.6f;
+    private static final float THRESHOLD_FLOOR = 0.015f;
+    private static final long REFRACTORY_MS = 200;
+    private static final float WEIGHT_CORNER_HZ = 300f; // Flux weight halves at this frequency
+
+    private static final int MIN_BPM = 60;
+    private static final int MAX_BPM = 200;
+    private static final float FOLD_LOW_BPM = 80f; // Tempo is reported in [80, 160)
+    private static final long MIN_IOI_MS = 250;
+    private static final long MAX_IOI_MS = 2000;
+    private static final int ONSET_MEMORY = 8;
+    private static final float HISTOGRAM_DECAY = 0.92f;
+    private static final float MIN_TEMPO_CONFIDENCE = 2.0f;
+    private static final int TEMPO_KERNEL = 3; // BPM bins on each side
+
+    private float[] previous = new float[0];
+    private float[] weights = new float[0];
+    private float weightSum = 1;
+    private float binHz = 0;
+    private final float[] history = new float[HISTORY];
+    private final float[] sorted = new float[HISTORY];
+    private int historyCount = 0;
+    private int historyIndex = 0;
+    private float lastFlux = 0;
+    private long lastOnsetTime = -REFRACTORY_MS;
+
+    private final long[] onsetTimes = new long[ONSET_MEMORY];
+    private int onsetCount = 0;
+    private final float[] tempoHistogram = new float[MAX_BPM - MIN_BPM + 1];
+    private float bpm = 0;
+
+    // Results of the last process() call
+    private float flux = 0;
+    private float threshold = 0;
+
+    /**
+     * Feed the magnitudes of one capture.
+     *
+     * @param magnitudes Bin magnitudes (same scale as SpectrumAnalyzer)
+     * @param bins       Number of valid entries in magnitudes
+     * @param binHz      Width of one bin in Hz
+     * @param timeMs     Capture time
+     * @return true if this capture is an onset
+     */
+    public boolean process(float[] magnitudes, int bins, float binHz, long timeMs) {
+        if (previous.length != bins || binHz != this.binHz) {
+            configure(bins, binHz);
+        }
+
+        float sum = 0;
+        for (int i = 0; i < bins; i++) {
+            float diff = magnitudes[i] - previous[i];
+            if (diff > 0) {
+                sum += diff * weights[i];
+            }
+            previous[i] = magnitudes[i];
+        }
+        flux = sum / (weightSum * 32.0f);
+
+        threshold = median() * THRESHOLD_MULTIPLIER + THRESHOLD_FLOOR;
+        boolean onset = historyCount >= HISTORY / 2
+                && flux > threshold
+                && flux > lastFlux
+                && timeMs - lastOnsetTime >= REFRACTORY_MS;
+
+        // The current value joins the window after the decision, so a spike
+        // does not raise its own threshold
+        history[historyIndex] = flux;
+        historyIndex = (historyIndex + 1) % HISTORY;
+        if (historyCount < HISTORY) {
+            historyCount++;
+        }
+        lastFlux = flux;
+
+        if (onset) {
+            lastOnsetTime = timeMs;
+            updateTempo(timeMs);
+        }
+        return onset;
+    }
+
+    /**
+     * Estimated tempo in BPM, or 0 while not confident yet.
+     */
+    public float getBpm() {
+        return bpm;
+    }
+
+    public float getFlux() {
+        return flux;
+    }
+
+    public float getThreshold() {
+        return threshold;
+    }
+
+    public void reset() {
+        historyCount = 0;
+        historyIndex = 0;
+        lastFlux = 0;
+        lastOnsetTime = -REFRACTORY_MS;
+        onsetCount = 0;
+        bpm = 0;
+        for (int i = 0; i < previous.length; i++) {
+            previous[i] = 0;
+        }
+        for (int i = 0; i < tempoHistogram.length; i++) {
+            tempoHistogram[i] = 0;
+        }
+    }
+
+    private void configure(int bins, float binHz) {
+        this.binHz = binHz;
+        previous = new float[bins];
+        weights = new float[bins];
+        weightSum = 0;
+        for (int i = 0; i < bins; i++) {
+            weights[i] = 1.0f / (1.0f + i * binHz / WEIGHT_CORNER_HZ);
+            weightSum += weights[i];
+        }
+        historyCount = 0;
+    }
+
+    private float median() {
+        if (historyCount == 0) {
+            return 0;
+        }
+        // Insertion sort of a small copy; HISTORY is tiny
+        for (int i = 0; i < historyCount; i++) {
+            float v = history[i];
+            int j = i - 1;
+            while (j >= 0 && sorted[j] > v) {
+                sorted[j + 1] = sorted[j];
+                j--;
+            }
+            sorted[j + 1] = v;
+        }
+        return sorted[historyCount / 2];
+    }
+
+    private void updateTempo(long timeMs) {
+        for (int i = 0; i < tempoHistogram.length; i++) {
+            tempoHistogram[i] *= HISTOGRAM_DECAY;
+        }
+
+        int stored = Math.min(onsetCount, ONSET_MEMORY);
+        for (int k = 1; k <= stored; k++) {
+            long ioi = timeMs - onsetTimes[(onsetCount - k) % ONSET_MEMORY];
+            if (ioi < MIN_IOI_MS || ioi > MAX_IOI_MS) {
+                continue;
+            }
+            float candidate = 60000f / ioi;
+            // Fold multiples and fractions of the beat into one octave
+            while (candidate < FOLD_LOW_BPM) {
+                candidate *= 2;
+            }
+            while (candidate >= FOLD_LOW_BPM * 2) {
+                candidate /= 2;
+            }
+            int bin = Math.round(candidate) - MIN_BPM;
+            float vote = 1.0f / k;
+            // Triangular kernel absorbs the jitter of capture-rate timestamps
+            for (int d = -TEMPO_KERNEL; d <= TEMPO_KERNEL; d++) {
+                int b = bin + d;
+                if (b >= 0 && b < tempoHistogram.length) {
+                    tempoHistogram[b] += vote * (TEMPO_KERNEL + 1 - Math.abs(d)) / (TEMPO_KERNEL + 1);
+                }
+            }
+        }
+
+        onsetTimes[onsetCount % ONSET_MEMORY] = timeMs;
+        onsetCount++;
+
+        int best = 0;
+        for (int i = 1; i < tempoHistogram.length; i++) {
+            if (tempoHistogram[i] > tempoHistogram[best]) {
+                best = i;
+            }
+        }
+        if (tempoHistogram[best] < MIN_TEMPO_CONFIDENCE) {
+            bpm = 0;
+            return;
+        }
+
+        // Refine with the neighbours' weights
+        float weight = tempoHistogram[best];
+        float weighted = best * weight;
+        if (best > 0) {
+            weight += tempoHistogram[best - 1];
+            weighted += (best - 1) * tempoHistogram[best - 1];
+        }
+        if (best < tempoHistogram.length - 1) {
+            weight += tempoHistogram[best + 1];
+            weighted += (best + 1) * tempoHistogram[best + 1];
+        }
+        bpm = MIN_BPM + weighted / weight;
+    }
+}
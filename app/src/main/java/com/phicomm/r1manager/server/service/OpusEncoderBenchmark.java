@@ -0,0 +1,207 @@
+package com.phicomm.r1manager.server.service;
+
+import com.phicomm.r1manager.server.voicebot.OpusEncoder;
+import com.phicomm.r1manager.server.voicebot.OpusEncoderConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * OpusEncoderBenchmark - Times the uplink Opus encoder on the device across
+ * encoder settings.
+ *
+ * Audio is cut into the 60 ms, 16 kHz mono frames the voice bot sends and
+ * each setting encodes all of it on a fresh encoder, timing every
+ * opus_encode call. The settings are the configured ones, a complexity
+ * sweep, and the configured ones with DTX and with in-band FEC. Running the
+ * same request on the "neon" build type shows what the libopus NEON code
+ * paths save.
+ *
+ * Test audio is either a 16 kHz 16-bit PCM WAV on the device or a built-in
+ * synthetic speech-like signal with pauses (so DTX has silence to skip).
+ */
+public class OpusEncoderBenchmark {
+
+    public static final int SAMPLE_RATE = 16000;
+    public static final int FRAME_MS = 60;
+
+    private static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MS / 1000;
+    private static final int WARMUP_FRAMES = 10;
+    private static final int[] COMPLEXITIES = { 0, 3, 5, 8, 10 };
+
+    public static class Result {
+        public String name;
+        public Map<String, String> config;
+        public int frames;
+        public long meanUs;
+        public long p50Us;
+        public long p90Us;
+        public long maxUs;
+        public float cpuPercent; // Mean encode time as a share of the frame duration
+        public float kbps;
+        public int dtxFrames; // Packets of 2 bytes or less
+    }
+
+    public static class Report {
+        public boolean neonBuild;
+        public String source;
+        public int frameMs;
+        public int passes;
+        public List<Result> results;
+    }
+
+    private OpusEncoderBenchmark() {
+    }
+
+    /**
+     * Benchmark every setting on mono 16 kHz PCM.
+     *
+     * @param configured The encoder settings in use, the base of the others
+     * @param passes     How many times each setting encodes the whole signal
+     */
+    public static Report run(String source, short[] pcm, OpusEncoderConfig configured, int passes) {
+        Report report = new Report();
+        report.neonBuild = OpusEncoder.isNeonBuild();
+        report.source = source;
+        report.frameMs = FRAME_MS;
+        report.passes = passes;
+        report.results = new ArrayList<>();
+
+        report.results.add(measure("configured", configured, pcm, passes));
+        for (int complexity : COMPLEXITIES) {
+            OpusEncoderConfig config = configured.with(Collections.singletonMap(
+                    OpusEncoderConfig.KEY_COMPLEXITY, String.valueOf(complexity)));
+            report.results.add(measure("complexity_" + complexity, config, pcm, passes));
+        }
+        report.results.add(measure("dtx", new OpusEncoderConfig(configured.complexity, configured.bitrate,
+                configured.vbr, true, configured.inbandFec, configured.packetLossPercent), pcm, passes));
+        report.results.add(measure("inband_fec_10pct", new OpusEncoderConfig(configured.complexity,
+                configured.bitrate, configured.vbr, configured.dtx, true, 10), pcm, passes));
+        return report;
+    }
+
+    public static Report runSynthetic(int seconds, OpusEncoderConfig configured, int passes) {
+        return run("synthetic", synthesize(seconds, 1), configured, passes);
+    }
+
+    public static Report runFile(File wavFile, OpusEncoderConfig configured, int passes) throws IOException {
+        int[] sampleRate = new int[1];
+        short[] pcm = OnsetBenchmark.readWav(wavFile, sampleRate);
+        if (sampleRate[0] != SAMPLE_RATE) {
+            throw new IOException("WAV must be " + SAMPLE_RATE + " Hz, got " + sampleRate[0]);
+        }
+        if (pcm.length < FRAME_SAMPLES) {
+            throw new IOException("WAV is shorter than one frame");
+        }
+        return run(wavFile.getName(), pcm, configured, passes);
+    }
+
+    static Result measure(String name, OpusEncoderConfig config, short[] pcm, int passes) {
+        int frames = pcm.length / FRAME_SAMPLES;
+        ByteBuffer input = ByteBuffer.allocateDirect(FRAME_SAMPLES * 2).order(ByteOrder.nativeOrder());
+        ByteBuffer packet = ByteBuffer.allocateDirect(FRAME_SAMPLES * 2);
+        long[] timesNs = new long[frames * passes];
+        long bytes = 0;
+        int dtxFrames = 0;
+
+        OpusEncoder encoder = new OpusEncoder(SAMPLE_RATE, 1, FRAME_MS, config);
+        try {
+            for (int i = 0; i < Math.min(WARMUP_FRAMES, frames); i++) {
+                loadFrame(pcm, i, input);
+                encoder.encode(input, input.capacity(), packet);
+            }
+
+            int n = 0;
+            for (int pass = 0; pass < passes; pass++) {
+                for (int i = 0; i < frames; i++) {
+                    loadFrame(pcm, i, input);
+                    long start = System.nanoTime();
+                    int length = encoder.encode(input, input.capacity(), packet);
+                    timesNs[n++] = System.nanoTime() - start;
+                    if (pass == 0 && length > 0) {
+                        bytes += length;
+                        if (length <= 2) {
+                            dtxFrames++;
+                        }
+                    }
+                }
+            }
+        } finally {
+            encoder.release();
+        }
+
+        Result result = new Result();
+        result.name = name;
+        result.config = config.toMap();
+        result.frames = timesNs.length;
+        if (timesNs.length == 0) {
+            return result;
+        }
+        Arrays.sort(timesNs);
+        long sum = 0;
+        for (long time : timesNs) {
+            sum += time;
+        }
+        result.meanUs = sum / timesNs.length / 1000;
+        result.p50Us = timesNs[(timesNs.length - 1) / 2] / 1000;
+        result.p90Us = timesNs[(int) Math.ceil(0.9 * timesNs.length) - 1] / 1000;
+        result.maxUs = timesNs[timesNs.length - 1] / 1000;
+        result.cpuPercent = result.meanUs / (FRAME_MS * 10f);
+        result.kbps = bytes * 8f / (frames * FRAME_MS);
+        result.dtxFrames = dtxFrames;
+        return result;
+    }
+
+    private static void loadFrame(short[] pcm, int frame, ByteBuffer input) {
+        input.clear();
+        input.asShortBuffer().put(pcm, frame * FRAME_SAMPLES, FRAME_SAMPLES);
+    }
+
+    /**
+     * Speech-like test signal: syllables of a harmonic tone with a gliding
+     * pitch, a few noisy consonants, and pauses with low background noise.
+     */
+    static short[] synthesize(int seconds, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[seconds * SAMPLE_RATE];
+        int pos = 0;
+        double phase = 0;
+        while (pos < pcm.length) {
+            int voiced = SAMPLE_RATE * (150 + random.nextInt(250)) / 1000;
+            double f0 = 100 + random.nextInt(120);
+            double glide = (random.nextDouble() - 0.5) * 60;
+            for (int i = 0; i < voiced && pos < pcm.length; i++, pos++) {
+                double progress = (double) i / voiced;
+                double envelope = Math.sin(Math.PI * progress);
+                phase += 2 * Math.PI * (f0 + glide * progress) / SAMPLE_RATE;
+                double sample = 0;
+                for (int h = 1; h <= 12; h++) {
+                    sample += Math.sin(h * phase) / h;
+                }
+                pcm[pos] = (short) (6000 * envelope * sample);
+            }
+
+            if (random.nextInt(3) == 0) {
+                int fricative = SAMPLE_RATE * (40 + random.nextInt(60)) / 1000;
+                for (int i = 0; i < fricative && pos < pcm.length; i++, pos++) {
+                    pcm[pos] = (short) (random.nextGaussian() * 1500);
+                }
+            }
+
+            int pause = SAMPLE_RATE * (random.nextInt(4) == 0 ? 500 + random.nextInt(700) : 40 + random.nextInt(80))
+                    / 1000;
+            for (int i = 0; i < pause && pos < pcm.length; i++, pos++) {
+                pcm[pos] = (short) (random.nextGaussian() * 30);
+            }
+        }
+        return pcm;
+    }
+}
@@ -0,0 +1,124 @@
+package com.phicomm.r1manager.server.service;
+
+/**
+ * SpectrumAnalyzer - Turns Visualizer FFT captures into band levels.
+ *
+ * All buffers and band edges are computed once per capture size / sampling
+ * rate, so analyzing a capture allocates nothing. Bin magnitudes use the
+ * alpha-max-plus-beta-min approximation instead of a square root.
+ *
+ * Visualizer FFT layout: fft[0] is the DC real part, fft[1] the Nyquist real
+ * part, then (real, imaginary) pairs for bins 1 .. n/2-1.
+ */
+public class SpectrumAnalyzer {
+
+    public static final int NUM_BANDS = 16;
+
+    private static final float BASS_MAX_HZ = 250f;
+    private static final float MID_MAX_HZ = 4000f;
+    private static final float SPECTRUM_MIN_HZ = 60f;
+
+    // Heuristic scaling kept from the original analysis
+    private static final float BAND_SCALE = 3.0f / 32.0f;
+    private static final float AMPLITUDE_SCALE = 1.0f / 64.0f;
+
+    // alpha-max-plus-beta-min, max error ~4%
+    private static final float MAG_ALPHA = 0.960434f;
+    private static final float MAG_BETA = 0.397825f;
+
+    private int captureSize = 0;
+    private int samplingRate = 0;
+    private float[] magnitudes = new float[0];
+
+    private int bassEnd;
+    private int midEnd;
+    // Spectrum band i covers bins [bandStart[i], bandStart[i + 1])
+    private final int[] bandStart = new int[NUM_BANDS + 1];
+    private int bandCount;
+
+    /**
+     * Analyze one capture into out. Nothing is allocated unless the capture
+     * size or sampling rate changed since the previous call.
+     *
+     * @param samplingRate Sampling rate in milliHertz, as reported by Visualizer
+     */
+    public void analyze(byte[] fft, int samplingRate, AudioData out) {
+        if (fft.length != captureSize || samplingRate != this.samplingRate) {
+            configure(fft.length, samplingRate);
+        }
+
+        int bins = magnitudes.length;
+        float total = 0;
+        magnitudes[0] = Math.abs(fft[0]);
+        total += magnitudes[0];
+        for (int i = 1; i < bins; i++) {
+            float re = Math.abs(fft[2 * i]);
+            float im = Math.abs(fft[2 * i + 1]);
+            float m = re > im ? MAG_ALPHA * re + MAG_BETA * im : MAG_ALPHA * im + MAG_BETA * re;
+            magnitudes[i] = m;
+            total += m;
+        }
+
+        out.amplitude = Math.min(1.0f, total / bins * AMPLITUDE_SCALE);
+        out.bass = level(0, bassEnd);
+        out.mid = level(bassEnd, midEnd);
+        out.treble = level(midEnd, bins);
+
+        out.bandCount = bandCount;
+        for (int b = 0; b < bandCount; b++) {
+            out.bands[b] = level(bandStart[b], bandStart[b + 1]);
+        }
+        out.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * Magnitudes of the last analyzed capture (bins 0 .. n/2-1).
+     */
+    public float[] getMagnitudes() {
+        return magnitudes;
+    }
+
+    private float level(int from, int to) {
+        if (to <= from) {
+            return 0;
+        }
+        float sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += magnitudes[i];
+        }
+        return Math.min(1.0f, sum / (to - from) * BAND_SCALE);
+    }
+
+    private void configure(int captureSize, int samplingRate) {
+        this.captureSize = captureSize;
+        this.samplingRate = samplingRate;
+
+        int bins = captureSize / 2;
+        magnitudes = new float[bins];
+
+        float sampleHz = samplingRate > 0 ? samplingRate / 1000f : 44100f;
+        float binHz = sampleHz / captureSize;
+        float nyquist = sampleHz / 2;
+
+        // Bin k covers (k - 0.5) .. (k + 0.5) * binHz. Bass keeps DC plus at least
+        // one real bin, so coarse captures still react to kicks; the others keep one bin
+        bassEnd = clamp(Math.round(BASS_MAX_HZ / binHz + 0.5f), 2, bins - 2);
+        midEnd = clamp(Math.round(MID_MAX_HZ / binHz + 0.5f), bassEnd + 1, bins - 1);
+
+        // Log-spaced spectrum bands, merged where the FFT is too coarse to separate them
+        double ratio = Math.log(nyquist / SPECTRUM_MIN_HZ) / NUM_BANDS;
+        bandCount = 0;
+        bandStart[0] = 0;
+        for (int b = 1; b <= NUM_BANDS; b++) {
+            float edgeHz = (float) (SPECTRUM_MIN_HZ * Math.exp(ratio * b));
+            int edge = b == NUM_BANDS ? bins : clamp(Math.round(edgeHz / binHz + 0.5f), 1, bins);
+            if (edge > bandStart[bandCount]) {
+                bandStart[++bandCount] = edge;
+            }
+        }
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -0,0 +1,172 @@
+package com.phicomm.r1manager.server.service;
+
+import android.util.Base64;
+import com.phicomm.r1manager.util.AppLog;
+import com.phicomm.r1manager.util.SseEmitter;
+import com.phicomm.r1manager.util.ThreadManager;
+
+import java.util.Arrays;
+
+/**
+ * SpectrumStream - Pushes band levels and beats to one web client over SSE.
+ *
+ * The visualizer callback only copies the latest levels; a writer thread
+ * samples them at the client's rate, so a slow client never holds up audio
+ * analysis. Each frame is packed as bytes and sent base64-encoded as the
+ * "data" of an unnamed SSE event:
+ *
+ * <pre>
+ * byte 0   flags: bit 0 keyframe, bit 1 beat since the previous frame
+ * byte 1   tempo in BPM, 0 while unknown
+ * keyframe: byte 2 band count N, then N levels (0-255)
+ * delta:    ceil(N/8) bytes bitmap of changed bands (band i = byte i/8, bit i%8),
+ *           then one level per changed band
+ * </pre>
+ *
+ * Levels that moved by no more than DEADBAND are not resent, and frames
+ * with nothing to report are skipped, so silence costs only a keyframe
+ * every few seconds. A "meta" event with the rate is sent first.
+ */
+public class SpectrumStream implements AudioVisualizerService.AudioDataListener {
+
+    private static final String TAG = "SpectrumStream";
+
+    public static final int MIN_RATE_HZ = 1;
+    public static final int MAX_RATE_HZ = 30;
+    private static final int CAPTURE_SIZE = 1024; // Enough resolution for every band
+    private static final int DEADBAND = 2;
+    private static final long KEYFRAME_INTERVAL_MS = 5000;
+
+    private static final int FLAG_KEYFRAME = 0x01;
+    private static final int FLAG_BEAT = 0x02;
+
+    private final AudioVisualizerService visualizer;
+    private final SseEmitter emitter;
+    private final int rateHz;
+
+    // Latest values from the visualizer, guarded by this
+    private final float[] latest = new float[SpectrumAnalyzer.NUM_BANDS];
+    private int latestCount = 0;
+    private float latestBpm = 0;
+    private boolean beatLatch = false;
+
+    // Writer thread state
+    private final int[] sent = new int[SpectrumAnalyzer.NUM_BANDS];
+    private int sentCount = -1;
+    private int sentBpm = 0;
+    private long lastKeyframe = 0;
+    private final float[] levels = new float[SpectrumAnalyzer.NUM_BANDS];
+    private final byte[] frame = new byte[3 + SpectrumAnalyzer.NUM_BANDS * 2];
+
+    public SpectrumStream(AudioVisualizerService visualizer, SseEmitter emitter, int rateHz) {
+        this.visualizer = visualizer;
+        this.emitter = emitter;
+        this.rateHz = Math.max(MIN_RATE_HZ, Math.min(MAX_RATE_HZ, rateHz));
+    }
+
+    /**
+     * Register with the visualizer and stream until the client disconnects.
+     */
+    public void start() {
+        visualizer.addListener(this, new AudioVisualizerService.CaptureRequest(rateHz, CAPTURE_SIZE));
+        ThreadManager.getInstance().executeIO(this::run);
+    }
+
+    @Override
+    public synchronized void onAudioData(AudioData data) {
+        latestCount = data.bandCount;
+        System.arraycopy(data.bands, 0, latest, 0, data.bandCount);
+        latestBpm = data.bpm;
+        beatLatch |= data.beatDetected;
+    }
+
+    private void run() {
+        AppLog.d(TAG, "Spectrum stream started at " + rateHz + " Hz");
+        long interval = 1000 / rateHz;
+        try {
+            if (!emitter.send("meta", "{\"rateHz\":" + rateHz + ",\"maxBands\":" + SpectrumAnalyzer.NUM_BANDS + "}")) {
+                return;
+            }
+            while (!emitter.isClosed()) {
+                Thread.sleep(interval);
+                int length = encode(System.currentTimeMillis());
+                if (length > 0 && !emitter.send(null, Base64.encodeToString(frame, 0, length, Base64.NO_WRAP))) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            visualizer.removeListener(this);
+            emitter.close();
+            AppLog.d(TAG, "Spectrum stream stopped");
+        }
+    }
+
+    /**
+     * Pack the current state into frame.
+     *
+     * @return Number of bytes to send, 0 if there is nothing new
+     */
+    private int encode(long now) {
+        int count;
+        float bpm;
+        boolean beat;
+        // While the visualizer is released the last capture is stale: show silence
+        boolean live = visualizer.isEnabled();
+        synchronized (this) {
+            count = live ? latestCount : Math.max(0, sentCount);
+            if (live) {
+                System.arraycopy(latest, 0, levels, 0, count);
+            } else {
+                Arrays.fill(levels, 0, count, 0);
+            }
+            bpm = live ? latestBpm : 0;
+            beat = beatLatch;
+            beatLatch = false;
+        }
+
+        int bpmByte = Math.min(255, Math.round(bpm));
+        boolean keyframe = count != sentCount || now - lastKeyframe >= KEYFRAME_INTERVAL_MS;
+        int flags = (keyframe ? FLAG_KEYFRAME : 0) | (beat ? FLAG_BEAT : 0);
+        frame[0] = (byte) flags;
+        frame[1] = (byte) bpmByte;
+
+        if (keyframe) {
+            frame[2] = (byte) count;
+            for (int i = 0; i < count; i++) {
+                sent[i] = quantize(levels[i]);
+                frame[3 + i] = (byte) sent[i];
+            }
+            sentCount = count;
+            sentBpm = bpmByte;
+            lastKeyframe = now;
+            return 3 + count;
+        }
+
+        int maskBytes = (count + 7) / 8;
+        int length = 2 + maskBytes;
+        for (int i = 0; i < maskBytes; i++) {
+            frame[2 + i] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            int q = quantize(levels[i]);
+            // Falling to zero is always sent so bars do not hang just above the floor
+            if (Math.abs(q - sent[i]) > DEADBAND || (q == 0 && sent[i] != 0)) {
+                sent[i] = q;
+                frame[2 + i / 8] |= (byte) (1 << (i % 8));
+                frame[length++] = (byte) q;
+            }
+        }
+
+        if (length == 2 + maskBytes && !beat && bpmByte == sentBpm) {
+            return 0;
+        }
+        sentBpm = bpmByte;
+        return length;
+    }
+
+    private static int quantize(float level) {
+        return Math.max(0, Math.min(255, Math.round(level * 255)));
+    }
+}
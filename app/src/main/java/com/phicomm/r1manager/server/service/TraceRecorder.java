@@ -0,0 +1,70 @@
+package com.phicomm.r1manager.server.service;
+
+import com.phicomm.r1manager.util.AppLog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * TraceRecorder - Records live captures to a trace file for later
+ * simulation (see LedEffectSimulator.readTrace for the format). Removes
+ * itself from the visualizer after the given duration.
+ */
+public class TraceRecorder implements AudioVisualizerService.AudioDataListener {
+    private static final String TAG = "TraceRecorder";
+
+    private final AudioVisualizerService visualizer;
+    private final File file;
+    private final long durationMs;
+    private Writer writer;
+    private long startedAt = -1;
+    private int recorded = 0;
+
+    public TraceRecorder(AudioVisualizerService visualizer, File file, long durationMs) {
+        this.visualizer = visualizer;
+        this.file = file;
+        this.durationMs = durationMs;
+    }
+
+    public void start() throws IOException {
+        writer = new BufferedWriter(new FileWriter(file));
+        writer.write("# timestampMs amplitude bass mid treble beat bpm\n");
+        visualizer.addListener(this);
+        AppLog.i(TAG, "Recording captures to " + file + " for " + durationMs + " ms");
+    }
+
+    @Override
+    public synchronized void onAudioData(AudioData data) {
+        if (writer == null) {
+            return;
+        }
+        if (startedAt < 0) {
+            startedAt = data.timestamp;
+        }
+        try {
+            writer.write(String.format(Locale.US, "%d %.4f %.4f %.4f %.4f %d %.1f\n", data.timestamp,
+                    data.amplitude, data.bass, data.mid, data.treble, data.beatDetected ? 1 : 0, data.bpm));
+            recorded++;
+            if (data.timestamp - startedAt >= durationMs) {
+                finish();
+            }
+        } catch (IOException e) {
+            AppLog.w(TAG, "Trace write failed: " + e.getMessage());
+            finish();
+        }
+    }
+
+    private void finish() {
+        visualizer.removeListener(this);
+        try {
+            writer.close();
+        } catch (IOException ignored) {
+        }
+        writer = null;
+        AppLog.i(TAG, "Recorded " + recorded + " captures to " + file);
+    }
+}
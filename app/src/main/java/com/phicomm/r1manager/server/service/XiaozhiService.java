@@ -13,10 +13,12 @@ import com.phicomm.r1manager.mcp.McpManager;
 
 import org.json.JSONObject;
 
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import com.phicomm.r1manager.server.manager.LedManager;
+import com.phicomm.r1manager.server.voicebot.VoiceTurnTracer;
 import com.phicomm.r1manager.server.voicebot.protocol.WebsocketProtocol;
 import com.phicomm.r1manager.server.model.xiaozhi.XiaozhiBotProfile;
 import com.phicomm.r1manager.config.XiaozhiConfig;
@@ -48,6 +50,26 @@ public class XiaozhiService extends Service
     private volatile String lastError = null;
     private volatile boolean pendingStartConversation = false;
 
+    // Listen mode of the current turn, read from config on every "listen start"
+    private volatile String listenMode = XiaozhiConfig.LISTEN_MODE_AUTO;
+    // Set once local endpointing has sent "listen stop"; no audio is sent
+    // until the next "listen start"
+    private volatile boolean listenStopped = false;
+    // Set by a barge-in: TTS audio still in flight for the aborted reply is
+    // dropped until the next "tts start"
+    private volatile boolean discardTts = false;
+
+    // Voice status LEDs: state changes and level frames must not interleave,
+    // or a late level frame would bring the cleared speaking layer back
+    private final Object voiceLedLock = new Object();
+    private final AudioVisualizerService.AudioDataListener speakingLevelListener = data -> {
+        synchronized (voiceLedLock) {
+            if (currentState == State.SPEAKING) {
+                LedManager.getInstance().showSpeakingLevel(data.amplitude, data.timestamp);
+            }
+        }
+    };
+
     public String getStatus() {
         if (lastError != null)
             return "Error: " + lastError;
@@ -76,15 +98,29 @@ public class XiaozhiService extends Service
             AppLog.i(TAG, "State transition: " + currentState + " -> " + state);
             this.currentState = state;
 
+            // Speaking LEDs can follow the TTS level; the tap only runs while speaking
+            boolean followVoice = state == State.SPEAKING
+                    && XiaozhiConfig.getInstance(this).isSpeakingLedFollowsVoice();
+            if (audioEngine != null) {
+                audioEngine.setPlaybackLevelListener(followVoice ? speakingLevelListener : null);
+            }
+
             // Update LED based on state
-            LedManager ledManager = LedManager.getInstance();
-            if (state == State.LISTENING) {
-                ledManager.showListening();
-            } else if (state == State.SPEAKING) {
-                ledManager.showSpeaking();
-            } else {
-                // Notify LED manager if transition suggests idling
-                ledManager.checkAndGatedStop();
+            synchronized (voiceLedLock) {
+                LedManager ledManager = LedManager.getInstance();
+                if (state == State.LISTENING) {
+                    ledManager.showListening();
+                } else if (state == State.SPEAKING) {
+                    // With the level tap this shows until the first level frame replaces it
+                    ledManager.showSpeaking();
+                } else if (state == State.CONNECTING && pendingStartConversation) {
+                    // User is waiting on the connection after a wake word
+                    ledManager.showConnecting();
+                } else {
+                    // Notify LED manager if transition suggests idling
+                    ledManager.clearStatus();
+                    ledManager.checkAndGatedStop();
+                }
             }
         }
     }
@@ -112,8 +148,8 @@ public class XiaozhiService extends Service
         if (audioEngine != null) {
             audioEngine.startWakeDetection(() -> {
                 AppLog.i(TAG, "Wake word detected! Starting conversation...");
-                // Visual feedback: Light up the ring Blue
-                LedManager.getInstance().setRingLed("7fffff8000", "ff", "WAKE_LIGHT");
+                // Visual feedback: flash the ring
+                LedManager.getInstance().showWake();
                 mainHandler.post(this::startConversation);
             });
         }
@@ -243,7 +279,7 @@ public class XiaozhiService extends Service
 
         try {
             audioEngine.startRecording(sentenceListener);
-            protocol.sendStartListening();
+            sendStartListening();
             setState(State.LISTENING);
             return true;
         } catch (Exception e) {
@@ -260,9 +296,10 @@ public class XiaozhiService extends Service
             return;
         }
 
-        if (protocol != null) {
+        if (protocol != null && !listenStopped) {
             protocol.sendStopListening();
         }
+        listenStopped = true;
         audioEngine.stopRecording();
         setState(State.CONNECTED);
         startWakeDetection();
@@ -272,8 +309,15 @@ public class XiaozhiService extends Service
         stopConversation("Manual");
     }
 
+    public Map<String, Object> getPlaybackStats() {
+        return audioEngine.getPlaybackStats();
+    }
+
     @Override
     public void onAudioData(byte[] data) {
+        if (discardTts) {
+            return;
+        }
         // Received audio from server to play
         audioEngine.playAudio(data);
         if (currentState != State.SPEAKING) {
@@ -286,17 +330,22 @@ public class XiaozhiService extends Service
     @Override
     public void onJsonMessage(JSONObject json) {
         String type = json.optString("type");
-        if ("tts".equals(type) && "stop".equals(json.optString("state"))) {
+        traceServerMessage(type, json.optString("state"));
+        if ("tts".equals(type) && "start".equals(json.optString("state"))) {
+            discardTts = false;
+            audioEngine.beginPlaybackStream();
+        } else if ("tts".equals(type) && "stop".equals(json.optString("state"))) {
             // TTS Finished
+            audioEngine.endPlaybackStream();
             if (currentState == State.SPEAKING) {
-                // Run in background to avoid blocking WebSocket thread or connection management
-                backgroundExecutor.execute(() -> {
-                    audioEngine.waitForPlaybackCompletion();
+                // Continue once the last sample has been heard; run in background to
+                // avoid blocking the main thread the completion is reported on
+                audioEngine.onPlaybackComplete(() -> backgroundExecutor.execute(() -> {
                     if (keepListening) {
                         AppLog.i(TAG, "Auto-restarting listening...");
                         try {
                             if (protocol != null && protocol.isOpened()) {
-                                protocol.sendStartListening();
+                                sendStartListening();
                             }
                             audioEngine.startRecording(sentenceListener);
                             setState(State.LISTENING);
@@ -308,7 +357,7 @@ public class XiaozhiService extends Service
                         setState(State.CONNECTED);
                         startWakeDetection();
                     }
-                });
+                }));
             }
         } else if ("listen".equals(type) && "stop".equals(json.optString("state"))) {
             // Server commanded stop listening
@@ -383,11 +432,51 @@ public class XiaozhiService extends Service
     }
 
     private void handleOutgoingAudio(byte[] encodedData) {
-        if (currentState == State.LISTENING && protocol != null && protocol.isOpened()) {
+        if (isStreamingAudio()) {
             protocol.sendAudio(encodedData);
         }
     }
 
+    private boolean isStreamingAudio() {
+        return currentState == State.LISTENING && !listenStopped && protocol != null && protocol.isOpened();
+    }
+
+    private void traceServerMessage(String type, String state) {
+        VoiceTurnTracer tracer = VoiceTurnTracer.getInstance();
+        if ("stt".equals(type)) {
+            tracer.mark(VoiceTurnTracer.Mark.STT);
+        } else if ("llm".equals(type)) {
+            tracer.mark(VoiceTurnTracer.Mark.LLM);
+        } else if ("tts".equals(type) && "start".equals(state)) {
+            tracer.mark(VoiceTurnTracer.Mark.TTS_START);
+        }
+    }
+
+    /**
+     * Interrupt the reply being played and listen to the user instead. Runs
+     * on the recording thread before the frames of the new sentence, so
+     * they are streamed under the new "listen start".
+     */
+    private void bargeIn() {
+        if (protocol == null || !protocol.isOpened()) {
+            return;
+        }
+        AppLog.i(TAG, "Barge-in, aborting TTS");
+        discardTts = true;
+        protocol.sendAbort();
+        audioEngine.flushPlayback();
+        VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.RECORDER_START);
+        VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.SPEECH_START);
+        sendStartListening();
+        setState(State.LISTENING);
+    }
+
+    private void sendStartListening() {
+        listenMode = XiaozhiConfig.getInstance(this).getListenMode();
+        listenStopped = false;
+        protocol.sendStartListening(listenMode);
+    }
+
     /**
      * SentenceListener for VAD-based audio recording.
      */
@@ -400,12 +489,43 @@ public class XiaozhiService extends Service
 
         @Override
         public void onSpeechStart() {
-            // Could update UI or LED here
+            if (currentState == State.SPEAKING) {
+                // Speech over the TTS reply got past the echo gate
+                if (XiaozhiConfig.getInstance(XiaozhiService.this).isFullDuplex()) {
+                    bargeIn();
+                }
+                return;
+            }
+            VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.SPEECH_START);
+            // Spoke again after our "listen stop" and before any reply (e.g. the
+            // server heard nothing usable): open a new turn for this sentence
+            if (listenStopped && currentState == State.LISTENING
+                    && protocol != null && protocol.isOpened()) {
+                AppLog.d(TAG, "Speech after listen stop, restarting listen");
+                sendStartListening();
+            }
         }
 
         @Override
         public void onSentenceComplete() {
-            // All audio already sent via onAudioFrame()
+            VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.ENDPOINT);
+            // The engine has already flushed the last padded frame. Tell the
+            // server the sentence is over instead of leaving it to wait out
+            // its own silence timeout; realtime mode keeps streaming.
+            if (XiaozhiConfig.LISTEN_MODE_REALTIME.equals(listenMode) || listenStopped
+                    || currentState != State.LISTENING || protocol == null || !protocol.isOpened()) {
+                return;
+            }
+            listenStopped = true;
+            protocol.sendStopListening();
+            AppLog.d(TAG, "Local endpoint, sent listen stop");
+        }
+
+        @Override
+        public boolean isStreaming() {
+            // A barge-in switches to LISTENING in onSpeechStart, before the
+            // sentence's first frame
+            return isStreamingAudio();
         }
     };
 
@@ -0,0 +1,80 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Per-frame analysis of captured audio in a single JNI call.
+ *
+ * For one frame in a direct buffer this computes the RMS level, runs
+ * libfvad (when given an initialized VadDetector) and copies the samples
+ * into a reused short[] for the wake word detector (when asked to). The
+ * results stay readable until the next analyze(). Not thread-safe; owned
+ * by the recording thread.
+ */
+public class AudioFrontEnd {
+
+    static {
+        System.loadLibrary("app");
+    }
+
+    // VAD result codes in the low 2 bits (must match audio_frontend.cpp)
+    private static final int VAD_SPEECH = 1;
+    private static final int VAD_NOT_RUN = 2;
+    private static final int VAD_ERROR = 3;
+
+    private final short[] samples;
+    private int rms = 0;
+    private int vadResult = VAD_NOT_RUN;
+
+    /**
+     * @param frameSamples Samples per frame, the size of getSamples()
+     */
+    public AudioFrontEnd(int frameSamples) {
+        this.samples = new short[frameSamples];
+    }
+
+    /**
+     * Analyze one frame.
+     *
+     * @param frame       Direct buffer with 16-bit PCM from index 0
+     * @param length      Frame length in bytes
+     * @param vad         Detector to run, or null to skip VAD
+     * @param wantSamples Whether to fill getSamples()
+     * @return False if the frame could not be analyzed
+     */
+    public boolean analyze(ByteBuffer frame, int length, VadDetector vad, boolean wantSamples) {
+        long vadHandle = vad != null ? vad.getNativeHandle() : 0;
+        int result = nativeAnalyze(vadHandle, frame, length, wantSamples ? samples : null);
+        if (result < 0) {
+            rms = 0;
+            vadResult = VAD_ERROR;
+            return false;
+        }
+        rms = result >>> 2;
+        vadResult = result & 3;
+        return true;
+    }
+
+    /**
+     * RMS level of the last frame, 0 - 32768
+     */
+    public int getRms() {
+        return rms;
+    }
+
+    /**
+     * libfvad decision for the last frame; false if VAD did not run
+     */
+    public boolean isSpeech() {
+        return vadResult == VAD_SPEECH;
+    }
+
+    /**
+     * Samples of the last frame analyzed with wantSamples. Reused.
+     */
+    public short[] getSamples() {
+        return samples;
+    }
+
+    private static native int nativeAnalyze(long vadHandle, ByteBuffer frame, int length, short[] samplesOut);
+}
@@ -4,9 +4,12 @@ import android.annotation.SuppressLint;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
 import android.media.MediaRecorder;
+import android.os.SystemClock;
 import com.phicomm.r1manager.util.AppLog;
 import com.phicomm.r1manager.util.ThreadManager;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -14,14 +17,33 @@ import java.util.concurrent.atomic.AtomicBoolean;
  *
  * Uses libfvad (WebRTC) as primary VAD for accurate speech detection.
  * Automatically falls back to amplitude-based VAD for 4-mic array devices
- * that output low-level audio (detected by monitoring max RMS over ~3 seconds).
+ * that output low-level audio (detected by monitoring max RMS over ~3 seconds),
+ * and returns to libfvad when levels recover. The amplitude VAD compares
+ * against a tracked noise floor, with hysteresis between its on and off
+ * thresholds.
  *
  * State Machine:
  *   LISTENING -> (speech detected) -> SPEAKING -> (silence detected) -> SILENCE_CHECK
  *                                                                      |
  *                                     (speech resumes) <---------------+
  *                                                                      |
- *                                     (800ms silence) -> ENDPOINTING -> callback
+ *                                     (hangover silence) -> ENDPOINTING -> callback
+ *
+ * The hangover is shorter after a short command than after a long sentence;
+ * see EndpointingConfig, which can be replaced at runtime.
+ *
+ * With an EchoReference set, VAD keeps working while TTS plays: a frame
+ * only counts as speech if the mic is clearly louder than the echo expected
+ * from the current playback level. The echo coupling (mic level per unit of
+ * playback level) is learned from the frames that do not pass.
+ *
+ * Capture allocates nothing per frame: AudioRecord reads straight into a
+ * ring of preallocated direct buffers, and the same buffer goes to the raw
+ * listener, the VAD and the sentence listener in turn. Being direct, the
+ * VAD and the Opus encoder read it in place across JNI. The frames before
+ * the current one double as the pre-roll. Listeners run on the recording
+ * thread and must copy what they keep past the callback, as the slot is
+ * overwritten RING_FRAMES frames later.
  */
 public class AudioRecorder {
     private static final String TAG = "AudioRecorder";
@@ -39,30 +61,49 @@ public class AudioRecorder {
     private static final int VAD_FRAME_MS = 30;
     private static final int VAD_FRAME_BYTES = 960;    // 30ms @ 16kHz, 16-bit mono
 
-    // Endpointing configuration
-    private static final int SILENCE_THRESHOLD_MS = 800;  // 800ms silence = sentence end
-    private static final int SILENCE_FRAMES_THRESHOLD = SILENCE_THRESHOLD_MS / VAD_FRAME_MS; // ~27 frames
+    // Endpointing configuration: silence hangover, pre-roll, minimum speech
+    // and amplitude thresholds. Read once per frame.
+    private volatile EndpointingConfig endpointing = EndpointingConfig.DEFAULT;
 
-    // Pre-roll buffer (captures audio before speech for context)
-    private static final int PRE_ROLL_MS = 300;
-    private static final int PRE_ROLL_FRAMES = PRE_ROLL_MS / VAD_FRAME_MS; // 10 frames
-
-    // Minimum speech duration to avoid noise triggers
-    private static final int MIN_SPEECH_MS = 100;
-    private static final int MIN_SPEECH_FRAMES = MIN_SPEECH_MS / VAD_FRAME_MS; // ~3 frames
+    // Pre-roll (captures audio before speech for context), up to the configurable maximum
+    private static final int MAX_PRE_ROLL_FRAMES = EndpointingConfig.MAX_PRE_ROLL_MS / VAD_FRAME_MS; // 20 frames
 
     // ========== Hybrid VAD: libfvad + Amplitude fallback ==========
     // libfvad is more accurate but requires normal audio levels (RMS 500+)
     // Amplitude-based is less accurate but works with low-level 4-mic arrays
-    private static final int RMS_SPEECH_THRESHOLD = 20;     // For amplitude fallback
-    private static final int RMS_LOW_LEVEL_DETECT = 100;    // If max RMS < this, switch to amplitude mode
-    private static final int LOW_LEVEL_DETECT_FRAMES = 100; // Check after this many frames (~3 seconds)
+    private static final int RMS_SPEECH_THRESHOLD = 20;     // Lowest amplitude speech threshold
+    private static final int RMS_LOW_LEVEL_DETECT = 100;    // Max RMS below this over a window = low-level device
+    private static final int LOW_LEVEL_DETECT_FRAMES = 100; // Detection window (~3 seconds)
+    private static final int LOW_LEVEL_SWITCH_FRAMES = 5;   // Amplitude-only speech frames that switch within a window
+    // Noise floor follows the level down quickly and up slowly (per 30ms frame)
+    private static final float NOISE_FLOOR_FALL = 0.2f;     // ~150ms
+    private static final float NOISE_FLOOR_RISE = 0.006f;   // ~5s
     private boolean useAmplitudeMode = false;
     private int maxRmsObserved = 0;
     private int frameCountForDetection = 0;
+    private int amplitudeOnlyFrames = 0;
+    private int libfvadSpeechFrames = 0;
+    private float noiseFloor = RMS_SPEECH_THRESHOLD;
+    private boolean amplitudeSpeechActive = false;
+
+    // ========== Echo gate during playback ==========
+    private static final int ECHO_WINDOW_MS = 150;          // Playback this recent can be in the frame
+    private static final float ECHO_MARGIN = 2.8f;          // ~9dB above the expected echo
+    private static final float ECHO_COUPLING_INITIAL = 1.0f;
+    private static final float ECHO_COUPLING_RISE = 0.3f;   // Louder echo is taken on quickly
+    private static final float ECHO_COUPLING_FALL = 0.02f;  // ~1.5s
+    private static final int ECHO_MIN_SPEECH_MS = 210;      // Stricter speech start over playback
+    private volatile EchoReference echoReference;
+    private float echoCoupling = ECHO_COUPLING_INITIAL;
+    private boolean echoActive = false;
+    private volatile boolean vadResetRequested = false;
+    private volatile boolean keepPreRollOnReset = false;
+    private boolean preRollFromMark = false; // First sentence after markPreRollStart() takes all frames since
 
     // VAD components
     private VadDetector vadDetector;
+    // RMS, libfvad and wake word samples in one JNI call per frame
+    private final AudioFrontEnd frontEnd = new AudioFrontEnd(VAD_FRAME_BYTES / 2);
 
     // VAD state machine states
     private enum VadState {
@@ -74,16 +115,25 @@ public class AudioRecorder {
     private VadState vadState = VadState.LISTENING;
     private int silenceFrameCount = 0;
     private int speechFrameCount = 0;
+    private int voicedFrameCount = 0; // Speech frames in the current sentence, for the hangover
 
-    // Pre-roll circular buffer
-    private byte[][] preRollBuffer;
-    private int preRollIndex = 0;
+    // Capture ring: the current frame plus the pre-roll before it. Only the
+    // recording thread writes it.
+    private static final int RING_FRAMES = MAX_PRE_ROLL_FRAMES + 1;
+    private final ByteBuffer[] frameRing;
+    private int ringIndex = 0;
+    private int framesSinceReset = 0; // Including the current one; pre-roll never reaches back past a reset
 
     /**
      * Callback for raw audio data (used for wake word detection).
      */
     public interface AudioDataListener {
-        void onAudioData(byte[] data);
+        /**
+         * @param frame   Direct buffer holding one 30ms frame, position 0 and
+         *                limit at its end; reused after the call
+         * @param samples The same frame as 16-bit samples; reused after the call
+         */
+        void onAudioData(ByteBuffer frame, short[] samples);
     }
 
     /**
@@ -94,9 +144,10 @@ public class AudioRecorder {
         /**
          * Called for each audio frame DURING speech.
          * Frames are sent immediately as they are recorded.
-         * @param pcmFrame Raw PCM audio frame (30ms, 960 bytes)
+         * @param pcmFrame Direct buffer with a raw PCM audio frame (30ms, 960 bytes),
+         *                 position 0 and limit at its end; reused after the call
          */
-        void onAudioFrame(byte[] pcmFrame);
+        void onAudioFrame(ByteBuffer pcmFrame);
 
         /**
          * Called when speech starts.
@@ -124,8 +175,10 @@ public class AudioRecorder {
         // Use VAD frame size for optimal processing
         this.frameBytes = VAD_FRAME_BYTES;
 
-        // Initialize pre-roll buffer
-        this.preRollBuffer = new byte[PRE_ROLL_FRAMES][VAD_FRAME_BYTES];
+        this.frameRing = new ByteBuffer[RING_FRAMES];
+        for (int i = 0; i < RING_FRAMES; i++) {
+            frameRing[i] = ByteBuffer.allocateDirect(VAD_FRAME_BYTES).order(ByteOrder.nativeOrder());
+        }
     }
 
     /**
@@ -136,10 +189,50 @@ public class AudioRecorder {
         this.rawListener = listener;
     }
 
+    /**
+     * Replace the endpointing configuration; applies from the next frame.
+     */
+    public void setEndpointingConfig(EndpointingConfig config) {
+        this.endpointing = config != null ? config : EndpointingConfig.DEFAULT;
+    }
+
+    public EndpointingConfig getEndpointingConfig() {
+        return endpointing;
+    }
+
+    /**
+     * Gate VAD against the playback level while TTS plays; null turns the
+     * gate off.
+     */
+    public void setEchoReference(EchoReference reference) {
+        this.echoReference = reference;
+    }
+
+    /**
+     * Drop the sentence in progress and wait for new speech, without
+     * reopening the AudioRecord. Takes effect on the next frame.
+     *
+     * @param keepPreRoll Keep the frames since markPreRollStart() (or the
+     *                    last reset) as pre-roll, and send all of them with
+     *                    the first sentence
+     */
+    public void requestVadReset(boolean keepPreRoll) {
+        keepPreRollOnReset = keepPreRoll;
+        vadResetRequested = true;
+    }
+
+    /**
+     * Pre-roll starts after the current frame, e.g. the one that ended the
+     * wake word. Call from the raw listener only.
+     */
+    public void markPreRollStart() {
+        framesSinceReset = 0;
+    }
+
     /**
      * Set VAD sentence listener for client-side endpointing.
-     * Audio will be accumulated and only sent when a complete
-     * sentence is detected (speech followed by 800ms silence).
+     * Audio is streamed from speech start, and the sentence completes
+     * after the configured hangover of silence.
      *
      * @param listener Listener for sentence events
      */
@@ -195,23 +288,41 @@ public class AudioRecorder {
      * Main recording loop with VAD processing.
      */
     private void recordingLoop() {
-        byte[] frameBuffer = new byte[VAD_FRAME_BYTES];
-
         while (isRecording.get() && audioRecord != null) {
-            int read = audioRecord.read(frameBuffer, 0, VAD_FRAME_BYTES);
+            ByteBuffer frame = frameRing[ringIndex];
+            frame.clear();
+            int read = audioRecord.read(frame, VAD_FRAME_BYTES);
 
             if (read == VAD_FRAME_BYTES) {
-                // 1. Dispatch RAW Audio to Wake Word Engine (parallel path)
-                if (rawListener != null) {
-                    byte[] rawCopy = new byte[read];
-                    System.arraycopy(frameBuffer, 0, rawCopy, 0, read);
-                    rawListener.onAudioData(rawCopy);
+                if (vadResetRequested) {
+                    vadResetRequested = false;
+                    int keptFrames = framesSinceReset;
+                    resetVadState();
+                    if (keepPreRollOnReset) {
+                        framesSinceReset = keptFrames;
+                        preRollFromMark = true;
+                    }
                 }
+                framesSinceReset++;
 
-                // 2. Process through VAD state machine
-                if (vadSentenceListener != null) {
-                    processVadFrame(frameBuffer);
+                // 1. One native pass: RMS, VAD if endpointing, samples if wake word
+                AudioDataListener raw = rawListener;
+                boolean endpointing = vadSentenceListener != null;
+                frontEnd.analyze(frame, VAD_FRAME_BYTES, endpointing ? vadDetector : null, raw != null);
+
+                // 2. Dispatch RAW Audio to Wake Word Engine (parallel path)
+                if (raw != null) {
+                    raw.onAudioData(frame, frontEnd.getSamples());
+                }
+
+                // 3. Process through VAD state machine
+                if (endpointing) {
+                    frame.clear();
+                    processVadFrame(frame);
                 }
+
+                // Keep the frame as pre-roll; the next read goes to the oldest slot
+                ringIndex = (ringIndex + 1) % RING_FRAMES;
             } else if (read < 0) {
                 AppLog.e(TAG, "AudioRecord read error: " + read);
                 break;
@@ -220,85 +331,137 @@ public class AudioRecorder {
     }
 
     /**
-     * Calculate RMS (Root Mean Square) audio level from PCM data.
+     * Process a single VAD frame through the state machine.
+     * Uses libfvad primarily, with automatic fallback to amplitude-based for low-level devices.
+     * RMS and the libfvad decision come from the front-end pass over the frame.
      */
-    private int calculateRmsLevel(byte[] pcmData) {
-        long sum = 0;
-        int sampleCount = pcmData.length / 2;
+    private void processVadFrame(ByteBuffer frame) {
+        EndpointingConfig config = endpointing;
+        int rmsLevel = frontEnd.getRms();
+        boolean libfvadSpeech = frontEnd.isSpeech();
+        boolean amplitudeSpeech = detectAmplitudeSpeech(rmsLevel, config);
+        updateAmplitudeMode(rmsLevel, libfvadSpeech, amplitudeSpeech);
 
-        for (int i = 0; i < pcmData.length - 1; i += 2) {
-            short sample = (short) ((pcmData[i] & 0xFF) | (pcmData[i + 1] << 8));
-            sum += (long) sample * sample;
-        }
+        // Choose result based on mode
+        boolean isSpeech = useAmplitudeMode ? amplitudeSpeech : libfvadSpeech;
+        isSpeech = applyEchoGate(isSpeech, rmsLevel);
+
+        switch (vadState) {
+            case LISTENING:
+                handleListeningState(frame, isSpeech, config);
+                break;
 
-        return (int) Math.sqrt(sum / sampleCount);
+            case SPEAKING:
+                handleSpeakingState(frame, isSpeech);
+                break;
+
+            case SILENCE_CHECK:
+                handleSilenceCheckState(frame, isSpeech, config);
+                break;
+        }
     }
 
     /**
-     * Process a single VAD frame through the state machine.
-     * Uses libfvad primarily, with automatic fallback to amplitude-based for low-level devices.
+     * Amplitude VAD against the tracked noise floor. Turns on speechSnrDb
+     * above the floor and off again only hysteresisDb lower, so far-field
+     * speech hovering near the threshold does not chop up.
      */
-    private void processVadFrame(byte[] frame) {
-        int rmsLevel = calculateRmsLevel(frame);
-        boolean isSpeech;
+    private boolean detectAmplitudeSpeech(int rmsLevel, EndpointingConfig config) {
+        // Speech must not lift the floor; quieter frames always lower it
+        if (vadState == VadState.LISTENING || rmsLevel < noiseFloor) {
+            float coeff = rmsLevel < noiseFloor ? NOISE_FLOOR_FALL : NOISE_FLOOR_RISE;
+            noiseFloor = Math.max(1.0f, noiseFloor + coeff * (rmsLevel - noiseFloor));
+        }
 
+        float onThreshold = Math.max(RMS_SPEECH_THRESHOLD, noiseFloor * dbToRatio(config.speechSnrDb));
+        float offThreshold = onThreshold / dbToRatio(config.hysteresisDb);
+        amplitudeSpeechActive = rmsLevel > (amplitudeSpeechActive ? offThreshold : onThreshold);
+        return amplitudeSpeechActive;
+    }
+
+    /**
+     * Switch to amplitude mode once several frames in a window had speech
+     * by amplitude that libfvad missed while levels stayed low; switch back
+     * at the end of a window with normal levels where libfvad heard speech.
+     */
+    private void updateAmplitudeMode(int rmsLevel, boolean libfvadSpeech, boolean amplitudeSpeech) {
         // Track max RMS to detect low-level audio devices
         if (rmsLevel > maxRmsObserved) {
             maxRmsObserved = rmsLevel;
         }
         frameCountForDetection++;
+        if (amplitudeSpeech && !libfvadSpeech) {
+            amplitudeOnlyFrames++;
+        }
+        if (libfvadSpeech) {
+            libfvadSpeechFrames++;
+        }
 
-        // Use both methods and compare
-        boolean libfvadSpeech = vadDetector != null && vadDetector.isSpeech(frame, 0, VAD_FRAME_BYTES);
-        boolean amplitudeSpeech = rmsLevel > RMS_SPEECH_THRESHOLD;
-
-        // Auto-detect low-level audio: if amplitude detects speech but libfvad doesn't
-        if (!useAmplitudeMode && amplitudeSpeech && !libfvadSpeech) {
+        boolean lowLevel = maxRmsObserved < RMS_LOW_LEVEL_DETECT;
+        if (!useAmplitudeMode && lowLevel && amplitudeOnlyFrames >= LOW_LEVEL_SWITCH_FRAMES) {
             useAmplitudeMode = true;
-            AppLog.i(TAG, "Low-level audio detected (rms=" + rmsLevel + "), switching to amplitude mode");
+            AppLog.i(TAG, "Low-level audio detected (max rms=" + maxRmsObserved + "), switching to amplitude mode");
         }
 
-        // Choose result based on mode
-        isSpeech = useAmplitudeMode ? amplitudeSpeech : libfvadSpeech;
-
-        switch (vadState) {
-            case LISTENING:
-                handleListeningState(frame, isSpeech);
-                break;
+        if (frameCountForDetection >= LOW_LEVEL_DETECT_FRAMES) {
+            boolean vadAvailable = vadDetector != null && vadDetector.isInitialized();
+            if (useAmplitudeMode && vadAvailable && !lowLevel && libfvadSpeechFrames > 0) {
+                useAmplitudeMode = false;
+                AppLog.i(TAG, "Normal audio levels (max rms=" + maxRmsObserved + "), switching back to libfvad");
+            }
+            maxRmsObserved = 0;
+            frameCountForDetection = 0;
+            amplitudeOnlyFrames = 0;
+            libfvadSpeechFrames = 0;
+        }
+    }
 
-            case SPEAKING:
-                handleSpeakingState(frame, isSpeech);
-                break;
+    /**
+     * While playback is audible, keep only speech clearly above the echo
+     * expected from it, and learn the echo coupling from everything else.
+     */
+    private boolean applyEchoGate(boolean isSpeech, int rmsLevel) {
+        EchoReference reference = echoReference;
+        int playbackLevel = reference != null
+                ? reference.levelAround(SystemClock.elapsedRealtime(), ECHO_WINDOW_MS) : 0;
+        echoActive = playbackLevel > 0;
+        if (!echoActive) {
+            return isSpeech;
+        }
 
-            case SILENCE_CHECK:
-                handleSilenceCheckState(frame, isSpeech);
-                break;
+        float ratio = (float) rmsLevel / playbackLevel;
+        boolean aboveEcho = ratio > echoCoupling * ECHO_MARGIN;
+        if (!(isSpeech && aboveEcho)) {
+            float coeff = ratio > echoCoupling ? ECHO_COUPLING_RISE : ECHO_COUPLING_FALL;
+            echoCoupling += coeff * (ratio - echoCoupling);
         }
+        return isSpeech && aboveEcho;
+    }
+
+    private static float dbToRatio(int db) {
+        return (float) Math.pow(10, db / 20.0);
     }
 
     /**
-     * LISTENING state: Wait for speech, store audio in pre-roll buffer.
+     * LISTENING state: Wait for speech; the ring keeps the pre-roll.
      */
-    private void handleListeningState(byte[] frame, boolean isSpeech) {
-        // Store frame in pre-roll buffer (circular)
-        System.arraycopy(frame, 0, preRollBuffer[preRollIndex], 0, VAD_FRAME_BYTES);
-        preRollIndex = (preRollIndex + 1) % PRE_ROLL_FRAMES;
-
+    private void handleListeningState(ByteBuffer frame, boolean isSpeech, EndpointingConfig config) {
         if (isSpeech) {
             speechFrameCount++;
 
             // Require minimum consecutive speech frames to avoid false triggers
-            if (speechFrameCount >= MIN_SPEECH_FRAMES) {
+            int minSpeechMs = echoActive ? Math.max(config.minSpeechMs, ECHO_MIN_SPEECH_MS) : config.minSpeechMs;
+            if (speechFrameCount >= Math.max(1, minSpeechMs / VAD_FRAME_MS)) {
                 vadState = VadState.SPEAKING;
                 silenceFrameCount = 0;
+                voicedFrameCount = speechFrameCount;
 
                 if (vadSentenceListener != null) {
                     vadSentenceListener.onSpeechStart();
-                    sendPreRollFrames();
-
-                    byte[] frameCopy = new byte[VAD_FRAME_BYTES];
-                    System.arraycopy(frame, 0, frameCopy, 0, VAD_FRAME_BYTES);
-                    vadSentenceListener.onAudioFrame(frameCopy);
+                    sendPreRollFrames(preRollFromMark ? MAX_PRE_ROLL_FRAMES : config.preRollMs / VAD_FRAME_MS);
+                    preRollFromMark = false;
+                    frame.clear();
+                    vadSentenceListener.onAudioFrame(frame);
                 }
             }
         } else {
@@ -309,17 +472,16 @@ public class AudioRecorder {
     /**
      * SPEAKING state: Send audio frames in real-time, watch for silence.
      */
-    private void handleSpeakingState(byte[] frame, boolean isSpeech) {
+    private void handleSpeakingState(ByteBuffer frame, boolean isSpeech) {
         // Send audio frame immediately
         if (vadSentenceListener != null) {
-            byte[] frameCopy = new byte[VAD_FRAME_BYTES];
-            System.arraycopy(frame, 0, frameCopy, 0, VAD_FRAME_BYTES);
-            vadSentenceListener.onAudioFrame(frameCopy);
+            vadSentenceListener.onAudioFrame(frame);
         }
 
         if (isSpeech) {
             // Reset silence counter, stay in SPEAKING
             silenceFrameCount = 0;
+            voicedFrameCount++;
         } else {
             // Transition to SILENCE_CHECK
             vadState = VadState.SILENCE_CHECK;
@@ -330,24 +492,24 @@ public class AudioRecorder {
     /**
      * SILENCE_CHECK state: Check if silence persists long enough for endpointing.
      * Continue sending frames during silence check for natural trailing audio.
+     * The silence needed grows with the speech so far (see EndpointingConfig).
      */
-    private void handleSilenceCheckState(byte[] frame, boolean isSpeech) {
+    private void handleSilenceCheckState(ByteBuffer frame, boolean isSpeech, EndpointingConfig config) {
         // Continue sending frames during silence check (captures trailing audio)
         if (vadSentenceListener != null) {
-            byte[] frameCopy = new byte[VAD_FRAME_BYTES];
-            System.arraycopy(frame, 0, frameCopy, 0, VAD_FRAME_BYTES);
-            vadSentenceListener.onAudioFrame(frameCopy);
+            vadSentenceListener.onAudioFrame(frame);
         }
 
         if (isSpeech) {
             // Speech resumed, back to SPEAKING
             vadState = VadState.SPEAKING;
             silenceFrameCount = 0;
+            voicedFrameCount++;
         } else {
             silenceFrameCount++;
 
-            // Check if silence threshold exceeded (800ms)
-            if (silenceFrameCount >= SILENCE_FRAMES_THRESHOLD) {
+            // Check if the hangover for this utterance length has passed
+            if (silenceFrameCount * VAD_FRAME_MS >= config.hangoverMs(voicedFrameCount * VAD_FRAME_MS)) {
                 if (vadSentenceListener != null) {
                     vadSentenceListener.onSentenceComplete();
                 }
@@ -357,18 +519,19 @@ public class AudioRecorder {
     }
 
     /**
-     * Send pre-roll buffer frames to listener.
-     * Preserves audio just before speech was detected.
+     * Send the pre-roll frames to the listener, straight from the ring.
+     * Preserves audio just before speech was detected; the current frame
+     * is not part of it.
      */
-    private void sendPreRollFrames() {
+    private void sendPreRollFrames(int frames) {
         if (vadSentenceListener == null) return;
 
+        int count = Math.min(Math.min(frames, MAX_PRE_ROLL_FRAMES), framesSinceReset - 1);
         // Send frames in chronological order (oldest first)
-        for (int i = 0; i < PRE_ROLL_FRAMES; i++) {
-            int idx = (preRollIndex + i) % PRE_ROLL_FRAMES;
-            byte[] frameCopy = new byte[VAD_FRAME_BYTES];
-            System.arraycopy(preRollBuffer[idx], 0, frameCopy, 0, VAD_FRAME_BYTES);
-            vadSentenceListener.onAudioFrame(frameCopy);
+        for (int i = count; i > 0; i--) {
+            ByteBuffer preRoll = frameRing[(ringIndex - i + RING_FRAMES) % RING_FRAMES];
+            preRoll.clear();
+            vadSentenceListener.onAudioFrame(preRoll);
         }
     }
 
@@ -379,12 +542,11 @@ public class AudioRecorder {
         vadState = VadState.LISTENING;
         silenceFrameCount = 0;
         speechFrameCount = 0;
-        preRollIndex = 0;
-        // Keep useAmplitudeMode and maxRmsObserved - persist across resets
-
-        for (byte[] frame : preRollBuffer) {
-            java.util.Arrays.fill(frame, (byte) 0);
-        }
+        voicedFrameCount = 0;
+        framesSinceReset = 0;
+        preRollFromMark = false;
+        amplitudeSpeechActive = false;
+        // Keep useAmplitudeMode, maxRmsObserved, noiseFloor and echoCoupling - persist across resets
 
         if (vadDetector != null) {
             vadDetector.reset();
@@ -415,6 +577,9 @@ public class AudioRecorder {
         useAmplitudeMode = false;
         maxRmsObserved = 0;
         frameCountForDetection = 0;
+        amplitudeOnlyFrames = 0;
+        libfvadSpeechFrames = 0;
+        noiseFloor = RMS_SPEECH_THRESHOLD;
     }
 
     /**
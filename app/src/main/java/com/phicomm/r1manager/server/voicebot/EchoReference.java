@@ -0,0 +1,73 @@
+package com.phicomm.r1manager.server.voicebot;
+
+/**
+ * Level of the TTS audio coming out of the speaker, as a reference for
+ * telling echo from the user's voice in the mic.
+ *
+ * The player records the RMS level of each block it writes together with
+ * when the block will be heard; the recorder asks how loud playback was
+ * around the time of a capture frame. Times are SystemClock.elapsedRealtime().
+ */
+public class EchoReference {
+
+    private static final int BLOCKS = 32; // ~2s of 60ms blocks
+
+    private final long[] startMs = new long[BLOCKS];
+    private final long[] endMs = new long[BLOCKS];
+    private final int[] levels = new int[BLOCKS];
+    private int next = 0;
+
+    /**
+     * @param playAtMs When the block starts to be heard
+     * @param durationMs Block duration
+     * @param rms RMS level of the block, 0 - 32768
+     */
+    public synchronized void add(long playAtMs, int durationMs, int rms) {
+        startMs[next] = playAtMs;
+        endMs[next] = playAtMs + durationMs;
+        levels[next] = rms;
+        next = (next + 1) % BLOCKS;
+    }
+
+    /**
+     * Loudest playback between windowMs before nowMs and nowMs; 0 if
+     * nothing was playing.
+     */
+    public synchronized int levelAround(long nowMs, int windowMs) {
+        long from = nowMs - windowMs;
+        int level = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            if (endMs[i] > from && startMs[i] <= nowMs) {
+                level = Math.max(level, levels[i]);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Forget queued playback, e.g. after the player was flushed
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < BLOCKS; i++) {
+            startMs[i] = 0;
+            endMs[i] = 0;
+            levels[i] = 0;
+        }
+    }
+
+    /**
+     * RMS level of 16-bit little-endian PCM
+     */
+    public static int rms(byte[] pcm, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = offset; i < offset + samples * 2; i += 2) {
+            int s = (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            sum += s * s;
+        }
+        return (int) Math.sqrt((double) sum / samples);
+    }
+}
@@ -0,0 +1,82 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tuning of AudioRecorder's endpointing. Immutable; values are clamped to
+ * sane ranges on construction.
+ *
+ * The silence needed to end a sentence (the hangover) grows with the
+ * amount of speech so far: shortSilenceMs for a one-word command, rising
+ * linearly to silenceMs once longUtteranceMs of speech is reached. The
+ * amplitude fallback calls a frame speech when it is speechSnrDb above the
+ * tracked noise floor, and keeps doing so down to hysteresisDb below that.
+ */
+public class EndpointingConfig {
+
+    public static final String KEY_SILENCE_MS = "endpoint_silence_ms";
+    public static final String KEY_SHORT_SILENCE_MS = "endpoint_short_silence_ms";
+    public static final String KEY_LONG_UTTERANCE_MS = "endpoint_long_utterance_ms";
+    public static final String KEY_PRE_ROLL_MS = "endpoint_pre_roll_ms";
+    public static final String KEY_MIN_SPEECH_MS = "endpoint_min_speech_ms";
+    public static final String KEY_SPEECH_SNR_DB = "endpoint_speech_snr_db";
+    public static final String KEY_HYSTERESIS_DB = "endpoint_hysteresis_db";
+
+    public static final int MAX_PRE_ROLL_MS = 600;
+
+    public static final EndpointingConfig DEFAULT = new EndpointingConfig(800, 400, 2000, 300, 100, 8, 3);
+
+    public final int silenceMs;
+    public final int shortSilenceMs;
+    public final int longUtteranceMs;
+    public final int preRollMs;
+    public final int minSpeechMs;
+    public final int speechSnrDb;
+    public final int hysteresisDb;
+
+    public EndpointingConfig(int silenceMs, int shortSilenceMs, int longUtteranceMs, int preRollMs,
+            int minSpeechMs, int speechSnrDb, int hysteresisDb) {
+        this.silenceMs = TuningValues.clamp(silenceMs, 200, 5000);
+        this.shortSilenceMs = TuningValues.clamp(shortSilenceMs, 150, this.silenceMs);
+        this.longUtteranceMs = TuningValues.clamp(longUtteranceMs, 100, 20000);
+        this.preRollMs = TuningValues.clamp(preRollMs, 0, MAX_PRE_ROLL_MS);
+        this.minSpeechMs = TuningValues.clamp(minSpeechMs, 30, 1000);
+        this.speechSnrDb = TuningValues.clamp(speechSnrDb, 1, 40);
+        this.hysteresisDb = TuningValues.clamp(hysteresisDb, 0, this.speechSnrDb);
+    }
+
+    /**
+     * Silence that ends a sentence after voicedMs of speech
+     */
+    public int hangoverMs(int voicedMs) {
+        float progress = Math.min(1.0f, (float) voicedMs / longUtteranceMs);
+        return shortSilenceMs + Math.round((silenceMs - shortSilenceMs) * progress);
+    }
+
+    /**
+     * Copy with the values present in the map replaced, see {@link TuningValues}.
+     */
+    public EndpointingConfig with(Map<String, String> values) {
+        return new EndpointingConfig(
+                TuningValues.intValue(values, KEY_SILENCE_MS, silenceMs),
+                TuningValues.intValue(values, KEY_SHORT_SILENCE_MS, shortSilenceMs),
+                TuningValues.intValue(values, KEY_LONG_UTTERANCE_MS, longUtteranceMs),
+                TuningValues.intValue(values, KEY_PRE_ROLL_MS, preRollMs),
+                TuningValues.intValue(values, KEY_MIN_SPEECH_MS, minSpeechMs),
+                TuningValues.intValue(values, KEY_SPEECH_SNR_DB, speechSnrDb),
+                TuningValues.intValue(values, KEY_HYSTERESIS_DB, hysteresisDb));
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(KEY_SILENCE_MS, String.valueOf(silenceMs));
+        map.put(KEY_SHORT_SILENCE_MS, String.valueOf(shortSilenceMs));
+        map.put(KEY_LONG_UTTERANCE_MS, String.valueOf(longUtteranceMs));
+        map.put(KEY_PRE_ROLL_MS, String.valueOf(preRollMs));
+        map.put(KEY_MIN_SPEECH_MS, String.valueOf(minSpeechMs));
+        map.put(KEY_SPEECH_SNR_DB, String.valueOf(speechSnrDb));
+        map.put(KEY_HYSTERESIS_DB, String.valueOf(hysteresisDb));
+        return map;
+    }
+}
@@ -0,0 +1,300 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Jitter buffer for incoming TTS Opus packets, one frame per packet.
+ *
+ * Packets are numbered in arrival order (the WebSocket binary frames carry
+ * no sequence of their own, and TCP neither loses nor reorders them, so a
+ * missing frame is always a late one). Playback waits until the target
+ * depth is queued, then takes one frame per poll(). When the next frame is
+ * not there in time, poll() asks for up to MAX_CONCEALED_FRAMES of packet
+ * loss concealment before falling back to buffering again.
+ *
+ * The target depth follows the measured arrival jitter (RFC 3550 style
+ * estimate of how late frames arrive compared to their duration) plus a
+ * boost for each underrun that wears off after a stretch of clean playback.
+ * The depth is bounded; on overflow the oldest frames are dropped.
+ *
+ * push() is called from the network thread and poll() from the playback
+ * thread.
+ */
+public class JitterBuffer {
+
+    /** Returned by poll() when the caller should conceal one lost frame */
+    public static final byte[] CONCEAL = new byte[0];
+    /** Returned by poll() once the frames of an ended stream are all taken */
+    public static final byte[] END = new byte[0];
+    /** Returned by poll() after flush(): drop the audio already handed out */
+    public static final byte[] FLUSH = new byte[0];
+
+    // Consecutive concealed frames before the buffer refills instead
+    private static final int MAX_CONCEALED_FRAMES = 2;
+    // Clean frames after which one underrun boost wears off
+    private static final int BOOST_DECAY_FRAMES = 50;
+
+    private final int frameMs;
+
+    private byte[][] ring;
+    private long headSeq = 0; // Sequence of the next frame to play
+    private long tailSeq = 0; // Sequence the next pushed frame gets
+    private int minTargetFrames;
+    private int maxTargetFrames;
+
+    private boolean playing = false;
+    private boolean endOfStream = false;
+    private boolean endReported = true;
+    private boolean flushPending = false;
+    private boolean closed = false;
+    private int concealRun = 0;
+    private int boostFrames = 0;
+    private int cleanFrames = 0;
+
+    private long lastArrivalMs = 0; // 0 = next arrival starts a new measurement
+    private long oldestArrivalMs = 0; // Arrival of the first frame queued while buffering
+    private float jitterMs = 0;
+
+    private long packets = 0;
+    private long underruns = 0;
+    private long concealed = 0;
+    private long dropped = 0;
+
+    public JitterBuffer(int frameMs, JitterBufferConfig config) {
+        this.frameMs = frameMs;
+        setConfig(config);
+    }
+
+    /**
+     * Apply new tuning. Queued frames beyond the new capacity are dropped,
+     * oldest first.
+     */
+    public synchronized void setConfig(JitterBufferConfig config) {
+        minTargetFrames = Math.max(1, divideUp(config.minTargetMs, frameMs));
+        maxTargetFrames = Math.max(minTargetFrames, divideUp(config.maxTargetMs, frameMs));
+        int capacity = Math.max(maxTargetFrames, divideUp(config.capacityMs, frameMs));
+
+        if (ring != null && ring.length == capacity) {
+            return;
+        }
+        byte[][] resized = new byte[capacity][];
+        int size = size();
+        if (size > capacity) {
+            dropped += size - capacity;
+            headSeq = tailSeq - capacity;
+        }
+        for (long seq = headSeq; seq < tailSeq; seq++) {
+            resized[(int) (seq % capacity)] = ring[(int) (seq % ring.length)];
+        }
+        ring = resized;
+    }
+
+    /**
+     * Start of a new stream: buffer up to the target before playing and do
+     * not count the gap since the last stream as jitter.
+     */
+    public synchronized void startStream() {
+        playing = false;
+        endOfStream = false;
+        concealRun = 0;
+        lastArrivalMs = 0;
+    }
+
+    /**
+     * No more packets will follow: play out what is queued, even below the
+     * target, and stop without concealment once drained.
+     */
+    public synchronized void endStream() {
+        endOfStream = true;
+        endReported = false;
+        notifyAll();
+    }
+
+    public synchronized void push(byte[] packet) {
+        long now = SystemClock.elapsedRealtime();
+        if (lastArrivalMs != 0) {
+            long late = Math.max(0, now - lastArrivalMs - frameMs);
+            jitterMs += (late - jitterMs) / 16f;
+        }
+        lastArrivalMs = now;
+
+        if (size() == ring.length) {
+            ring[(int) (headSeq % ring.length)] = null;
+            headSeq++;
+            dropped++;
+        }
+        if (size() == 0) {
+            oldestArrivalMs = now;
+        }
+        ring[(int) (tailSeq % ring.length)] = packet;
+        tailSeq++;
+        packets++;
+        endOfStream = false;
+        notifyAll();
+    }
+
+    /**
+     * Take the next frame to play, blocking while buffering.
+     *
+     * @param concealAfterMs How long to wait for a late frame before asking
+     *                       for concealment, i.e. until the output runs dry
+     * @return The next packet, CONCEAL, END, FLUSH, or null once closed
+     */
+    public synchronized byte[] poll(long concealAfterMs) throws InterruptedException {
+        while (!closed) {
+            if (flushPending) {
+                flushPending = false;
+                return FLUSH;
+            }
+            if (endOfStream && size() == 0 && !endReported) {
+                endReported = true;
+                playing = false;
+                lastArrivalMs = 0;
+                return END;
+            }
+
+            if (!playing) {
+                long waitMs = waitBeforePlaying();
+                if (waitMs == 0) {
+                    playing = true;
+                    concealRun = 0;
+                } else {
+                    wait(Math.max(0, waitMs));
+                }
+                continue;
+            }
+
+            if (size() > 0) {
+                return take();
+            }
+            if (endOfStream) {
+                playing = false;
+                lastArrivalMs = 0;
+                continue;
+            }
+
+            long deadline = SystemClock.elapsedRealtime() + concealAfterMs;
+            long remaining = concealAfterMs;
+            while (size() == 0 && !endOfStream && !closed && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - SystemClock.elapsedRealtime();
+            }
+            if (size() > 0 || endOfStream || closed) {
+                continue;
+            }
+
+            // Underrun: the next frame is late
+            if (concealRun == 0) {
+                underruns++;
+                boostFrames = Math.min(boostFrames + 1, maxTargetFrames);
+                cleanFrames = 0;
+            }
+            if (concealRun < MAX_CONCEALED_FRAMES) {
+                concealRun++;
+                concealed++;
+                return CONCEAL;
+            }
+            playing = false;
+            lastArrivalMs = 0;
+        }
+        return null;
+    }
+
+    /**
+     * Drop everything queued and wait for a new stream
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = null;
+        }
+        headSeq = tailSeq;
+        playing = false;
+        endOfStream = false;
+        lastArrivalMs = 0;
+        notifyAll();
+    }
+
+    /**
+     * Drop everything queued, and have poll() tell the caller to drop what
+     * it has already played out too
+     */
+    public synchronized void flush() {
+        clear();
+        flushPending = true;
+    }
+
+    /**
+     * Drop everything and make poll() return null until reopen()
+     */
+    public synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    public synchronized void reopen() {
+        closed = false;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("playing", playing);
+        stats.put("depth_frames", size());
+        stats.put("target_frames", targetFrames());
+        stats.put("capacity_frames", ring.length);
+        stats.put("jitter_ms", Math.round(jitterMs));
+        stats.put("packets", packets);
+        stats.put("underruns", underruns);
+        stats.put("concealed_frames", concealed);
+        stats.put("dropped_frames", dropped);
+        return stats;
+    }
+
+    // ==================== Internals ====================
+
+    private int size() {
+        return (int) (tailSeq - headSeq);
+    }
+
+    private byte[] take() {
+        int index = (int) (headSeq % ring.length);
+        byte[] packet = ring[index];
+        ring[index] = null;
+        headSeq++;
+
+        concealRun = 0;
+        if (boostFrames > 0 && ++cleanFrames >= BOOST_DECAY_FRAMES) {
+            boostFrames--;
+            cleanFrames = 0;
+        }
+        return packet;
+    }
+
+    /**
+     * 0 when playback may start, otherwise how long to wait (-1: until a push)
+     */
+    private long waitBeforePlaying() {
+        int size = size();
+        if (size == 0) {
+            return -1;
+        }
+        if (size >= targetFrames() || endOfStream) {
+            return 0;
+        }
+        // A stream shorter than the target must not wait forever
+        long waited = SystemClock.elapsedRealtime() - oldestArrivalMs;
+        long targetMs = (long) targetFrames() * frameMs;
+        return waited >= targetMs ? 0 : targetMs - waited;
+    }
+
+    private int targetFrames() {
+        int target = minTargetFrames + divideUp(Math.round(2 * jitterMs), frameMs) + boostFrames;
+        return Math.min(target, maxTargetFrames);
+    }
+
+    private static int divideUp(int value, int divisor) {
+        return (value + divisor - 1) / divisor;
+    }
+}
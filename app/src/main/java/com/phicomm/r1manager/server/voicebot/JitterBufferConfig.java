@@ -0,0 +1,50 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tuning of the TTS playback jitter buffer. Immutable; values are clamped
+ * to sane ranges on construction.
+ *
+ * Playback starts once the buffer holds the target depth. The target never
+ * drops below minTargetMs and grows with measured arrival jitter and with
+ * underruns, up to maxTargetMs. Above capacityMs of queued audio the oldest
+ * frames are dropped.
+ */
+public class JitterBufferConfig {
+
+    public static final String KEY_MIN_TARGET_MS = "jitter_min_target_ms";
+    public static final String KEY_MAX_TARGET_MS = "jitter_max_target_ms";
+    public static final String KEY_CAPACITY_MS = "jitter_capacity_ms";
+
+    public static final JitterBufferConfig DEFAULT = new JitterBufferConfig(120, 600, 3000);
+
+    public final int minTargetMs;
+    public final int maxTargetMs;
+    public final int capacityMs;
+
+    public JitterBufferConfig(int minTargetMs, int maxTargetMs, int capacityMs) {
+        this.minTargetMs = TuningValues.clamp(minTargetMs, 0, 2000);
+        this.maxTargetMs = TuningValues.clamp(maxTargetMs, this.minTargetMs, 5000);
+        this.capacityMs = TuningValues.clamp(capacityMs, this.maxTargetMs, 30000);
+    }
+
+    /**
+     * Copy with the values present in the map replaced, see {@link TuningValues}.
+     */
+    public JitterBufferConfig with(Map<String, String> values) {
+        return new JitterBufferConfig(
+                TuningValues.intValue(values, KEY_MIN_TARGET_MS, minTargetMs),
+                TuningValues.intValue(values, KEY_MAX_TARGET_MS, maxTargetMs),
+                TuningValues.intValue(values, KEY_CAPACITY_MS, capacityMs));
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(KEY_MIN_TARGET_MS, String.valueOf(minTargetMs));
+        map.put(KEY_MAX_TARGET_MS, String.valueOf(maxTargetMs));
+        map.put(KEY_CAPACITY_MS, String.valueOf(capacityMs));
+        return map;
+    }
+}
@@ -2,8 +2,17 @@ package com.phicomm.r1manager.server.voicebot;
 
 import com.phicomm.r1manager.util.AppLog;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Opus decoder for one stream. Packets go in and PCM comes out through
+ * direct buffers owned by the instance, so the JNI call neither pins nor
+ * copies Java arrays. Not thread-safe; use one instance per thread.
+ */
 public class OpusDecoder {
     private static final String TAG = "OpusDecoder";
+    private static final int MAX_PACKET_BYTES = 1500;
 
     static {
         System.loadLibrary("opus");
@@ -13,10 +22,16 @@ public class OpusDecoder {
     private long nativeDecoderHandle = 0;
     private int frameSize;
     private int channels;
+    private final int maxPcmSize;
+    private ByteBuffer packetBuffer; // Staging for decode(byte[]), grown on demand
+    private final ByteBuffer pcmBuffer;
 
     public OpusDecoder(int sampleRate, int channels, int frameSizeMs) {
         this.channels = channels;
         this.frameSize = (sampleRate * frameSizeMs) / 1000;
+        this.maxPcmSize = frameSize * channels * 2; // 16-bit PCM
+        this.packetBuffer = ByteBuffer.allocateDirect(MAX_PACKET_BYTES);
+        this.pcmBuffer = ByteBuffer.allocateDirect(maxPcmSize).order(ByteOrder.nativeOrder());
 
         nativeDecoderHandle = nativeInitDecoder(sampleRate, channels);
         if (nativeDecoderHandle == 0) {
@@ -24,31 +39,53 @@ public class OpusDecoder {
         }
     }
 
+    /**
+     * Decode one packet into a new array sized to the decoded PCM, the only
+     * allocation per call.
+     */
     public byte[] decode(byte[] opusData) {
-        int maxPcmSize = frameSize * channels * 2; // 16-bit PCM
-        byte[] pcmBuffer = new byte[maxPcmSize];
-
-        int decodedBytes = nativeDecodeBytes(
-                nativeDecoderHandle,
-                opusData,
-                opusData.length,
-                pcmBuffer,
-                maxPcmSize);
+        if (opusData.length > packetBuffer.capacity()) {
+            packetBuffer = ByteBuffer.allocateDirect(opusData.length);
+        }
+        packetBuffer.clear();
+        packetBuffer.put(opusData);
 
+        int decodedBytes = decode(packetBuffer, opusData.length, pcmBuffer);
         if (decodedBytes > 0) {
-            if (decodedBytes < pcmBuffer.length) {
-                byte[] result = new byte[decodedBytes];
-                System.arraycopy(pcmBuffer, 0, result, 0, decodedBytes);
-                return result;
-            } else {
-                return pcmBuffer;
-            }
+            byte[] result = new byte[decodedBytes];
+            pcmBuffer.clear();
+            pcmBuffer.get(result);
+            return result;
         } else {
             AppLog.e(TAG, "Failed to decode frame");
             return null;
         }
     }
 
+    /**
+     * Decode one packet between caller-owned direct buffers, allocating
+     * nothing. Buffer positions are ignored and left unchanged.
+     *
+     * @param packet Direct buffer holding the packet from index 0
+     * @param length Packet length in bytes
+     * @param pcm    Direct buffer receiving 16-bit PCM from index 0
+     * @return Decoded length in bytes, or -1 on error
+     */
+    public int decode(ByteBuffer packet, int length, ByteBuffer pcm) {
+        return nativeDecodeDirect(nativeDecoderHandle, packet, length, pcm, Math.min(pcm.capacity(), maxPcmSize));
+    }
+
+    /**
+     * Packet loss concealment: synthesize one frame in place of a packet
+     * that did not arrive in time, continuing from the decoder state.
+     *
+     * @param pcm Direct buffer receiving 16-bit PCM from index 0
+     * @return Length in bytes, or -1 on error
+     */
+    public int conceal(ByteBuffer pcm) {
+        return nativeDecodeDirect(nativeDecoderHandle, null, 0, pcm, Math.min(pcm.capacity(), maxPcmSize));
+    }
+
     public void release() {
         if (nativeDecoderHandle != 0) {
             nativeReleaseDecoder(nativeDecoderHandle);
@@ -67,11 +104,11 @@ public class OpusDecoder {
 
     private native long nativeInitDecoder(int sampleRate, int channels);
 
-    private native int nativeDecodeBytes(
+    private native int nativeDecodeDirect(
             long decoderHandle,
-            byte[] inputBuffer,
+            ByteBuffer inputBuffer,
             int inputSize,
-            byte[] outputBuffer,
+            ByteBuffer outputBuffer,
             int maxOutputSize);
 
     private native void nativeReleaseDecoder(long decoderHandle);
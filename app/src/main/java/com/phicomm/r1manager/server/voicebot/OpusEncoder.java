@@ -2,6 +2,15 @@ package com.phicomm.r1manager.server.voicebot;
 
 import com.phicomm.r1manager.util.AppLog;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Opus encoder for one stream. PCM goes in and packets come out through
+ * direct buffers owned by the instance, so the JNI call neither pins nor
+ * copies Java arrays. Not thread-safe; use one instance per thread, except
+ * for setConfig(), which may be called from any thread.
+ */
 public class OpusEncoder {
     private static final String TAG = "OpusEncoder";
 
@@ -13,36 +22,71 @@ public class OpusEncoder {
     private long nativeEncoderHandle = 0;
     private int frameSize;
     private int channels;
+    private final int frameBytes;
+    private final ByteBuffer pcmBuffer; // Staging for encode(byte[])
+    private final ByteBuffer packetBuffer; // Reused; only the packet handed out is allocated
+
+    private volatile OpusEncoderConfig config; // Wanted tuning
+    private OpusEncoderConfig appliedConfig; // Tuning the native encoder has
 
     public OpusEncoder(int sampleRate, int channels, int frameSizeMs) {
+        this(sampleRate, channels, frameSizeMs, OpusEncoderConfig.DEFAULT);
+    }
+
+    public OpusEncoder(int sampleRate, int channels, int frameSizeMs, OpusEncoderConfig config) {
         this.channels = channels;
         this.frameSize = (sampleRate * frameSizeMs) / 1000;
+        this.frameBytes = frameSize * channels * 2; // 16-bit PCM
+        this.pcmBuffer = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.nativeOrder());
+        this.packetBuffer = ByteBuffer.allocateDirect(frameBytes);
 
         // OPUS_APPLICATION_VOIP = 2048
         nativeEncoderHandle = nativeInitEncoder(sampleRate, channels, 2048);
         if (nativeEncoderHandle == 0) {
             throw new IllegalStateException("Failed to initialize Opus encoder");
         }
+        this.config = config;
+        applyConfig(config);
+    }
+
+    /**
+     * Whether the native library was built with libopus NEON code paths
+     * (the "neon" build type)
+     */
+    public static boolean isNeonBuild() {
+        return nativeIsNeonBuild();
+    }
+
+    /**
+     * Change the tuning. Applied on the encoding thread before the next
+     * frame, so it is safe while another thread is encoding.
+     */
+    public void setConfig(OpusEncoderConfig config) {
+        this.config = config;
     }
 
     public byte[] encode(byte[] pcmData) {
-        int expectedBytes = frameSize * channels * 2; // 16-bit PCM
-        if (pcmData.length != expectedBytes) {
-            AppLog.e(TAG, "Input buffer size must be " + expectedBytes + " bytes (got " + pcmData.length + ")");
+        if (pcmData.length != frameBytes) {
+            AppLog.e(TAG, "Input buffer size must be " + frameBytes + " bytes (got " + pcmData.length + ")");
             return null;
         }
+        pcmBuffer.clear();
+        pcmBuffer.put(pcmData);
+        return encode(pcmBuffer);
+    }
 
-        byte[] outputBuffer = new byte[expectedBytes]; // Allocate sufficient buffer
-        int encodedBytes = nativeEncodeBytes(
-                nativeEncoderHandle,
-                pcmData,
-                pcmData.length,
-                outputBuffer,
-                outputBuffer.length);
-
+    /**
+     * Encode one frame from a direct buffer.
+     *
+     * @param pcm Direct buffer holding one frame of 16-bit PCM from index 0
+     * @return The packet, or null on error
+     */
+    public byte[] encode(ByteBuffer pcm) {
+        int encodedBytes = encode(pcm, frameBytes, packetBuffer);
         if (encodedBytes > 0) {
             byte[] result = new byte[encodedBytes];
-            System.arraycopy(outputBuffer, 0, result, 0, encodedBytes);
+            packetBuffer.clear();
+            packetBuffer.get(result);
             return result;
         } else {
             AppLog.e(TAG, "Failed to encode frame");
@@ -50,6 +94,27 @@ public class OpusEncoder {
         }
     }
 
+    /**
+     * Encode one frame between caller-owned direct buffers, allocating
+     * nothing. Buffer positions are ignored and left unchanged.
+     *
+     * @param pcm    Direct buffer holding the frame from index 0
+     * @param length Frame length in bytes
+     * @param packet Direct buffer receiving the packet from index 0
+     * @return Packet length in bytes, or -1 on error
+     */
+    public int encode(ByteBuffer pcm, int length, ByteBuffer packet) {
+        if (length != frameBytes) {
+            AppLog.e(TAG, "Input size must be " + frameBytes + " bytes (got " + length + ")");
+            return -1;
+        }
+        OpusEncoderConfig wanted = config;
+        if (wanted != appliedConfig) {
+            applyConfig(wanted);
+        }
+        return nativeEncodeDirect(nativeEncoderHandle, pcm, length, packet, packet.capacity());
+    }
+
     public void release() {
         if (nativeEncoderHandle != 0) {
             nativeReleaseEncoder(nativeEncoderHandle);
@@ -57,6 +122,20 @@ public class OpusEncoder {
         }
     }
 
+    private void applyConfig(OpusEncoderConfig config) {
+        if (nativeEncoderHandle == 0) {
+            return;
+        }
+        if (!config.equals(appliedConfig)) {
+            int error = nativeConfigure(nativeEncoderHandle, config.complexity, config.bitrate, config.vbr,
+                    config.dtx, config.inbandFec, config.packetLossPercent);
+            if (error != 0) {
+                AppLog.e(TAG, "Encoder rejected config " + config.toMap() + " (opus error " + error + ")");
+            }
+        }
+        appliedConfig = config;
+    }
+
     @Override
     protected void finalize() throws Throwable {
         try {
@@ -68,11 +147,16 @@ public class OpusEncoder {
 
     private native long nativeInitEncoder(int sampleRate, int channels, int application);
 
-    private native int nativeEncodeBytes(
+    private native int nativeConfigure(long encoderHandle, int complexity, int bitrate, boolean vbr, boolean dtx,
+            boolean inbandFec, int packetLossPercent);
+
+    private static native boolean nativeIsNeonBuild();
+
+    private native int nativeEncodeDirect(
             long encoderHandle,
-            byte[] inputBuffer,
+            ByteBuffer inputBuffer,
             int inputSize,
-            byte[] outputBuffer,
+            ByteBuffer outputBuffer,
             int maxOutputSize);
 
     private native void nativeReleaseEncoder(long encoderHandle);
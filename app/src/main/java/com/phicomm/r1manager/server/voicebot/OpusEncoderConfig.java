@@ -0,0 +1,82 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tuning of the Opus encoder for uplink audio. Immutable; values are
+ * clamped to what libopus accepts on construction.
+ *
+ * Complexity trades encoder CPU for quality (0 - 10). With DTX the encoder
+ * emits 1 - 2 byte packets during silence; in-band FEC adds a low bitrate
+ * copy of the previous frame, sized for the expected packet loss.
+ */
+public class OpusEncoderConfig {
+
+    public static final String KEY_COMPLEXITY = "opus_complexity";
+    public static final String KEY_BITRATE = "opus_bitrate";
+    public static final String KEY_VBR = "opus_vbr";
+    public static final String KEY_DTX = "opus_dtx";
+    public static final String KEY_INBAND_FEC = "opus_inband_fec";
+    public static final String KEY_PACKET_LOSS_PERCENT = "opus_packet_loss_percent";
+
+    // What the encoder has always been set up with
+    public static final OpusEncoderConfig DEFAULT = new OpusEncoderConfig(10, 64000, true, false, false, 0);
+
+    public final int complexity;
+    public final int bitrate;
+    public final boolean vbr;
+    public final boolean dtx;
+    public final boolean inbandFec;
+    public final int packetLossPercent;
+
+    public OpusEncoderConfig(int complexity, int bitrate, boolean vbr, boolean dtx, boolean inbandFec,
+            int packetLossPercent) {
+        this.complexity = TuningValues.clamp(complexity, 0, 10);
+        this.bitrate = TuningValues.clamp(bitrate, 6000, 510000);
+        this.vbr = vbr;
+        this.dtx = dtx;
+        this.inbandFec = inbandFec;
+        this.packetLossPercent = TuningValues.clamp(packetLossPercent, 0, 100);
+    }
+
+    /**
+     * Copy with the values present in the map replaced, see {@link TuningValues}.
+     */
+    public OpusEncoderConfig with(Map<String, String> values) {
+        return new OpusEncoderConfig(
+                TuningValues.intValue(values, KEY_COMPLEXITY, complexity),
+                TuningValues.intValue(values, KEY_BITRATE, bitrate),
+                TuningValues.booleanValue(values, KEY_VBR, vbr),
+                TuningValues.booleanValue(values, KEY_DTX, dtx),
+                TuningValues.booleanValue(values, KEY_INBAND_FEC, inbandFec),
+                TuningValues.intValue(values, KEY_PACKET_LOSS_PERCENT, packetLossPercent));
+    }
+
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<>();
+        map.put(KEY_COMPLEXITY, String.valueOf(complexity));
+        map.put(KEY_BITRATE, String.valueOf(bitrate));
+        map.put(KEY_VBR, String.valueOf(vbr));
+        map.put(KEY_DTX, String.valueOf(dtx));
+        map.put(KEY_INBAND_FEC, String.valueOf(inbandFec));
+        map.put(KEY_PACKET_LOSS_PERCENT, String.valueOf(packetLossPercent));
+        return map;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OpusEncoderConfig)) {
+            return false;
+        }
+        OpusEncoderConfig other = (OpusEncoderConfig) o;
+        return complexity == other.complexity && bitrate == other.bitrate && vbr == other.vbr
+                && dtx == other.dtx && inbandFec == other.inbandFec
+                && packetLossPercent == other.packetLossPercent;
+    }
+
+    @Override
+    public int hashCode() {
+        return toMap().hashCode();
+    }
+}
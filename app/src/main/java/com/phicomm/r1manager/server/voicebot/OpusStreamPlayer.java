@@ -3,27 +3,70 @@ package com.phicomm.r1manager.server.voicebot;
 import android.media.AudioAttributes;
 import android.media.AudioFormat;
 import android.media.AudioTrack;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import com.phicomm.r1manager.server.service.AudioVisualizerService;
 import com.phicomm.r1manager.util.AppLog;
 import com.phicomm.r1manager.util.ThreadManager;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+/**
+ * Plays a stream of Opus packets. Packets go through a JitterBuffer and are
+ * decoded on the writer thread, which also conceals late frames with Opus
+ * PLC when the buffer asks for it.
+ *
+ * Completion is tracked on the AudioTrack playback head: once an ended
+ * stream is fully written, a notification marker is set at its last frame,
+ * and callbacks from onPlaybackComplete() run when that frame is heard.
+ */
 public class OpusStreamPlayer {
     private static final String TAG = "OpusStreamPlayer";
 
+    // Ask for concealment this long before the AudioTrack runs dry
+    private static final int DRY_MARGIN_MS = 20;
+    // Fallback for a missed marker notification, past the expected time
+    private static final int MARKER_GRACE_MS = 150;
+
     private final int sampleRate;
     private final int channels;
     private AudioTrack audioTrack;
     private boolean isPlaying = false;
-    private final BlockingQueue<byte[]> audioQueue = new LinkedBlockingQueue<>();
+    private final JitterBuffer jitterBuffer;
     private final AtomicBoolean shouldRun = new AtomicBoolean(false);
 
-    public OpusStreamPlayer(int sampleRate, int channels, int frameSizeMs) {
+    // Writer thread only
+    private final OpusDecoder decoder;
+    private ByteBuffer packetBuffer = ByteBuffer.allocateDirect(1500);
+    private final ByteBuffer pcmBuffer;
+    private final byte[] pcm;
+
+    // Optional level analysis of the played PCM, off while no listener is set
+    private final PcmLevelTap levelTap;
+    private volatile AudioVisualizerService.AudioDataListener levelListener;
+    private volatile EchoReference echoReference;
+    private long framesWritten = 0; // Writer thread only
+
+    // Playback completion, guarded by completionLock
+    private final Object completionLock = new Object();
+    private final Handler markerHandler = new Handler(Looper.getMainLooper());
+    private final List<Runnable> completionCallbacks = new ArrayList<>();
+    private long streamEndFrame = -1; // Last frame of the ended stream, -1 while still streaming
+
+    public OpusStreamPlayer(int sampleRate, int channels, int frameSizeMs, JitterBufferConfig jitterConfig) {
         this.sampleRate = sampleRate;
         this.channels = channels;
-        // frameSizeMs unused in AudioTrack config but kept for signature consistency
+        this.levelTap = new PcmLevelTap(sampleRate, channels);
+        this.jitterBuffer = new JitterBuffer(frameSizeMs, jitterConfig);
+        this.decoder = new OpusDecoder(sampleRate, channels, frameSizeMs);
+        this.pcm = new byte[sampleRate * frameSizeMs / 1000 * channels * 2];
+        this.pcmBuffer = ByteBuffer.allocateDirect(pcm.length).order(ByteOrder.nativeOrder());
 
         int channelConfig = (channels == 1) ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
         int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, AudioFormat.ENCODING_PCM_16BIT);
@@ -46,6 +89,16 @@ public class OpusStreamPlayer {
                 bufferSize,
                 AudioTrack.MODE_STREAM,
                 AudioAttributes.CONTENT_TYPE_SPEECH);
+        audioTrack.setPlaybackPositionUpdateListener(new AudioTrack.OnPlaybackPositionUpdateListener() {
+            @Override
+            public void onMarkerReached(AudioTrack track) {
+                checkCompletion();
+            }
+
+            @Override
+            public void onPeriodicNotification(AudioTrack track) {
+            }
+        }, markerHandler);
     }
 
     public void start() {
@@ -53,6 +106,7 @@ public class OpusStreamPlayer {
             return;
 
         shouldRun.set(true);
+        jitterBuffer.reopen();
         if (audioTrack.getState() == AudioTrack.STATE_INITIALIZED) {
             audioTrack.play();
             isPlaying = true;
@@ -64,19 +118,52 @@ public class OpusStreamPlayer {
         ThreadManager.getInstance().executeAudio(() -> {
             while (shouldRun.get()) {
                 try {
-                    byte[] data = audioQueue.take();
-                    if (data.length == 0)
-                        continue; // End of stream or poison pill
+                    byte[] packet = jitterBuffer.poll(msUntilDry());
+                    if (packet == null)
+                        break; // Stopped
+                    if (packet == JitterBuffer.END) {
+                        onStreamWritten(framesWritten);
+                        continue;
+                    }
+                    if (packet == JitterBuffer.FLUSH) {
+                        discardWritten();
+                        continue;
+                    }
+
+                    int length = packet == JitterBuffer.CONCEAL ? -1 : decodePacket(packet);
+                    if (length <= 0) {
+                        // Late or undecodable frame
+                        length = decoder.conceal(pcmBuffer);
+                        if (length <= 0)
+                            continue;
+                    }
+                    pcmBuffer.clear();
+                    pcmBuffer.get(pcm, 0, length);
+
+                    AudioVisualizerService.AudioDataListener listener = levelListener;
+                    if (listener != null) {
+                        levelTap.process(pcm, 0, length, playTimeOfNextWrite(), listener);
+                    }
+                    EchoReference echo = echoReference;
+                    if (echo != null) {
+                        int durationMs = (int) (length / (2L * channels) * 1000 / sampleRate);
+                        echo.add(SystemClock.elapsedRealtime() + queuedMs(), durationMs,
+                                EchoReference.rms(pcm, 0, length));
+                    }
 
                     int written = 0;
-                    while (written < data.length && shouldRun.get()) {
-                        int result = audioTrack.write(data, written, data.length - written);
+                    while (written < length && shouldRun.get()) {
+                        int result = audioTrack.write(pcm, written, length - written);
                         if (result < 0) {
                             AppLog.e(TAG, "AudioTrack write error: " + result);
                             break;
                         }
                         written += result;
                     }
+                    if (packet != JitterBuffer.CONCEAL) {
+                        VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.FIRST_AUDIO_WRITTEN);
+                    }
+                    framesWritten += written / (2 * channels);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -85,19 +172,189 @@ public class OpusStreamPlayer {
         });
     }
 
-    public void play(byte[] pcmData) {
-        if (pcmData != null && pcmData.length > 0) {
-            audioQueue.offer(pcmData);
+    /**
+     * Feed the played PCM through a level analyzer. The listener is called on
+     * the writer thread with timestamps of when each block will be heard;
+     * null turns the analysis off.
+     */
+    public void setLevelListener(AudioVisualizerService.AudioDataListener listener) {
+        this.levelListener = listener;
+    }
+
+    /**
+     * When audio written now will be heard: after everything still queued in
+     * the AudioTrack buffer.
+     */
+    private long playTimeOfNextWrite() {
+        return System.currentTimeMillis() + queuedMs();
+    }
+
+    /**
+     * Writer thread: drop what is still in the AudioTrack buffer
+     */
+    private void discardWritten() {
+        try {
+            audioTrack.pause();
+            audioTrack.flush();
+            audioTrack.play();
+        } catch (IllegalStateException e) {
+            AppLog.e(TAG, "Error flushing AudioTrack", e);
+        }
+        // The head may or may not restart from 0 after a flush
+        framesWritten = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        EchoReference echo = echoReference;
+        if (echo != null) {
+            echo.clear();
+        }
+    }
+
+    private long msUntilDry() {
+        return Math.max(0, queuedMs() - DRY_MARGIN_MS);
+    }
+
+    private long queuedMs() {
+        long queued = Math.max(0, framesWritten - (audioTrack.getPlaybackHeadPosition() & 0xffffffffL));
+        return queued * 1000 / sampleRate;
+    }
+
+    /**
+     * Decode into pcmBuffer
+     *
+     * @return PCM length in bytes, or -1 on error
+     */
+    private int decodePacket(byte[] packet) {
+        if (packet.length > packetBuffer.capacity()) {
+            packetBuffer = ByteBuffer.allocateDirect(packet.length);
+        }
+        packetBuffer.clear();
+        packetBuffer.put(packet);
+        return decoder.decode(packetBuffer, packet.length, pcmBuffer);
+    }
+
+    /**
+     * Queue one Opus packet for playback
+     */
+    public void queuePacket(byte[] opusPacket) {
+        if (opusPacket != null && opusPacket.length > 0) {
+            jitterBuffer.push(opusPacket);
+        }
+    }
+
+    /**
+     * A new stream (TTS turn) begins: buffer up to the target depth again
+     */
+    public void startStream() {
+        synchronized (completionLock) {
+            streamEndFrame = -1;
+        }
+        jitterBuffer.startStream();
+    }
+
+    /**
+     * The current stream is complete: play out what is left without waiting
+     * for the target depth or concealing the silence after it.
+     */
+    public void endStream() {
+        jitterBuffer.endStream();
+    }
+
+    /**
+     * Stop the current stream right away (barge-in): queued and buffered
+     * audio is dropped. Pending completion callbacks are dropped too, as the
+     * stream will not play to its end.
+     */
+    public void flush() {
+        synchronized (completionLock) {
+            completionCallbacks.clear();
+            streamEndFrame = -1;
+        }
+        markerHandler.removeCallbacks(markerFallback);
+        jitterBuffer.flush();
+    }
+
+    /**
+     * Report the level of what is played, for echo-aware VAD; null stops it.
+     */
+    public void setEchoReference(EchoReference reference) {
+        this.echoReference = reference;
+    }
+
+    public void setJitterBufferConfig(JitterBufferConfig config) {
+        jitterBuffer.setConfig(config);
+    }
+
+    public Map<String, Object> getStats() {
+        return jitterBuffer.getStats();
+    }
+
+    /**
+     * Run the callback once the last sample of the current stream has been
+     * played, after endStream(). Runs on the main thread, or on the caller's
+     * thread when the player is stopped (pending callbacks run then too).
+     */
+    public void onPlaybackComplete(Runnable callback) {
+        synchronized (completionLock) {
+            completionCallbacks.add(callback);
         }
+        if (!shouldRun.get()) {
+            runCompletionCallbacks();
+            return;
+        }
+        markerHandler.post(this::checkCompletion);
+    }
+
+    /**
+     * Writer thread: every frame of the ended stream is in the AudioTrack
+     */
+    private void onStreamWritten(long endFrame) {
+        synchronized (completionLock) {
+            streamEndFrame = endFrame;
+        }
+        markerHandler.post(this::checkCompletion);
+    }
+
+    /**
+     * Main thread: run the callbacks if the end of the stream has been heard,
+     * otherwise arm the marker (plus a timed fallback) for it.
+     */
+    private void checkCompletion() {
+        long endFrame;
+        synchronized (completionLock) {
+            if (completionCallbacks.isEmpty() || streamEndFrame < 0 || audioTrack == null) {
+                return;
+            }
+            endFrame = streamEndFrame;
+        }
+
+        long head = audioTrack.getPlaybackHeadPosition() & 0xffffffffL;
+        long remaining = (endFrame & 0xffffffffL) - head;
+        if (remaining <= 0) {
+            runCompletionCallbacks();
+            return;
+        }
+        audioTrack.setNotificationMarkerPosition((int) endFrame);
+        markerHandler.removeCallbacks(markerFallback);
+        markerHandler.postDelayed(markerFallback, remaining * 1000 / sampleRate + MARKER_GRACE_MS);
     }
 
-    public void waitForPlaybackCompletion() {
-        while (!audioQueue.isEmpty() && shouldRun.get()) {
+    // The marker is not delivered if the head skips past it, e.g. after the track stalled
+    private final Runnable markerFallback = this::runCompletionCallbacks;
+
+    private void runCompletionCallbacks() {
+        List<Runnable> callbacks;
+        synchronized (completionLock) {
+            if (completionCallbacks.isEmpty()) {
+                return;
+            }
+            callbacks = new ArrayList<>(completionCallbacks);
+            completionCallbacks.clear();
+        }
+        markerHandler.removeCallbacks(markerFallback);
+        for (Runnable callback : callbacks) {
             try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                break;
+                callback.run();
+            } catch (Exception e) {
+                AppLog.e(TAG, "Playback completion callback error", e);
             }
         }
     }
@@ -106,8 +363,9 @@ public class OpusStreamPlayer {
         shouldRun.set(false);
         isPlaying = false;
 
-        // Wake up the thread if it's blocked on queue
-        audioQueue.offer(new byte[0]);
+        // Wake up the thread if it's blocked on the buffer
+        jitterBuffer.close();
+        runCompletionCallbacks();
 
         if (audioTrack != null) {
             try {
@@ -118,7 +376,6 @@ public class OpusStreamPlayer {
                 AppLog.e(TAG, "Error stopping AudioTrack", e);
             }
         }
-        audioQueue.clear();
     }
 
     public void release() {
@@ -127,5 +384,6 @@ public class OpusStreamPlayer {
             audioTrack.release();
             audioTrack = null;
         }
+        decoder.release();
     }
 }
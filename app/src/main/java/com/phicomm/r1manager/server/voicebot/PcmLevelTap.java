@@ -0,0 +1,131 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import com.phicomm.r1manager.server.service.AudioData;
+import com.phicomm.r1manager.server.service.AudioVisualizerService;
+
+/**
+ * PcmLevelTap - Cheap level analysis of PCM on its way to an AudioTrack.
+ *
+ * Reports in the same AudioData form as AudioVisualizerService, without the
+ * system Visualizer or an FFT: every BLOCK_MS the RMS of the block and of
+ * three bands split by one-pole filters (below 250 Hz, 250 Hz - 4 kHz,
+ * above) is mapped onto a 48 dB range as 0.0 - 1.0. beatDetected marks
+ * onsets (a block well above the slow envelope), which for speech are
+ * syllables. There is no band spectrum (bandCount is 0).
+ *
+ * The timestamp is when the block is expected to be heard, so consumers
+ * can schedule output for it. Listeners run on the writer thread and get
+ * the same AudioData object every time; copy what you keep.
+ */
+public class PcmLevelTap {
+
+    private static final int BLOCK_MS = 20;
+    private static final float RANGE_DB = 48f;
+    private static final float BASS_HZ = 250f;
+    private static final float TREBLE_HZ = 4000f;
+    private static final float SLOW_ENVELOPE_MS = 300f;
+    private static final float ONSET_RATIO = 2.0f;
+    private static final float ONSET_FLOOR = 0.01f; // Linear RMS; quieter blocks are never onsets
+    private static final long MIN_ONSET_INTERVAL_MS = 120;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int blockFrames;
+    private final float bassCoeff;
+    private final float trebleCoeff;
+    private final float slowCoeff;
+    private final AudioData data = new AudioData();
+
+    // Filter and block state, only touched by the writer thread
+    private float bassState = 0;
+    private float trebleState = 0;
+    private double sumAll = 0;
+    private double sumBass = 0;
+    private double sumMid = 0;
+    private double sumTreble = 0;
+    private int blockFill = 0;
+    private float slowEnvelope = 0;
+    private long lastOnsetAt = 0;
+    private boolean aboveEnvelope = false;
+
+    public PcmLevelTap(int sampleRate, int channels) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.blockFrames = Math.max(1, sampleRate * BLOCK_MS / 1000);
+        this.bassCoeff = onePole(BASS_HZ, sampleRate);
+        this.trebleCoeff = onePole(Math.min(TREBLE_HZ, sampleRate * 0.45f), sampleRate);
+        this.slowCoeff = 1 - (float) Math.exp(-BLOCK_MS / SLOW_ENVELOPE_MS);
+    }
+
+    /**
+     * Analyze 16-bit little-endian PCM, reporting every completed block.
+     *
+     * @param playAtMs Wall clock time the first sample will be heard
+     */
+    public void process(byte[] pcm, int offset, int length, long playAtMs,
+            AudioVisualizerService.AudioDataListener listener) {
+        int frameBytes = 2 * channels;
+        int frames = length / frameBytes;
+        for (int f = 0; f < frames; f++) {
+            int sum = 0;
+            int base = offset + f * frameBytes;
+            for (int c = 0; c < channels; c++) {
+                int i = base + 2 * c;
+                sum += (short) ((pcm[i] & 0xff) | (pcm[i + 1] << 8));
+            }
+            float x = (float) sum / channels / 32768f;
+
+            bassState += bassCoeff * (x - bassState);
+            trebleState += trebleCoeff * (x - trebleState);
+            float mid = trebleState - bassState;
+            float treble = x - trebleState;
+
+            sumAll += x * x;
+            sumBass += bassState * bassState;
+            sumMid += mid * mid;
+            sumTreble += treble * treble;
+
+            if (++blockFill == blockFrames) {
+                endBlock(playAtMs + (long) (f + 1) * 1000 / sampleRate, listener);
+            }
+        }
+    }
+
+    private void endBlock(long blockEndMs, AudioVisualizerService.AudioDataListener listener) {
+        float rms = (float) Math.sqrt(sumAll / blockFill);
+        data.amplitude = toLevel(rms);
+        data.bass = toLevel((float) Math.sqrt(sumBass / blockFill));
+        data.mid = toLevel((float) Math.sqrt(sumMid / blockFill));
+        data.treble = toLevel((float) Math.sqrt(sumTreble / blockFill));
+        data.bandCount = 0;
+        data.bpm = 0;
+
+        // Only the block that crosses above the envelope, not the ones after it
+        boolean above = rms > ONSET_FLOOR && rms > slowEnvelope * ONSET_RATIO;
+        boolean onset = above && !aboveEnvelope && blockEndMs - lastOnsetAt >= MIN_ONSET_INTERVAL_MS;
+        aboveEnvelope = above;
+        if (onset) {
+            lastOnsetAt = blockEndMs;
+        }
+        data.beatDetected = onset;
+        data.onsetStrength = slowEnvelope > 0 ? rms / (slowEnvelope * ONSET_RATIO) : 0;
+        slowEnvelope += slowCoeff * (rms - slowEnvelope);
+        data.timestamp = blockEndMs;
+
+        sumAll = sumBass = sumMid = sumTreble = 0;
+        blockFill = 0;
+        listener.onAudioData(data);
+    }
+
+    private static float toLevel(float rms) {
+        if (rms <= 0) {
+            return 0;
+        }
+        float db = 20 * (float) Math.log10(rms);
+        return Math.max(0, Math.min(1, 1 + db / RANGE_DB));
+    }
+
+    private static float onePole(float cutoffHz, int sampleRate) {
+        return 1 - (float) Math.exp(-2 * Math.PI * cutoffHz / sampleRate);
+    }
+}
@@ -0,0 +1,52 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import java.util.Map;
+
+/**
+ * Value parsing shared by the tuning classes (EndpointingConfig,
+ * JitterBufferConfig, OpusEncoderConfig).
+ *
+ * Each of them reads its settings from a string map under its KEY_* names,
+ * the form they arrive in from the Xiaozhi config API and are stored in by
+ * XiaozhiConfig. Missing keys and unparsable values keep the current value;
+ * range checks are left to the constructors via clamp().
+ */
+final class TuningValues {
+
+    private TuningValues() {
+    }
+
+    static int intValue(Map<String, String> values, String key, int fallback) {
+        String value = values.get(key);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    /**
+     * Accepts true/false and 1/0.
+     */
+    static boolean booleanValue(Map<String, String> values, String key, boolean fallback) {
+        String value = values.get(key);
+        if (value == null) {
+            return fallback;
+        }
+        value = value.trim();
+        if (value.equalsIgnoreCase("true") || value.equals("1")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false") || value.equals("0")) {
+            return false;
+        }
+        return fallback;
+    }
+
+    static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+}
@@ -2,6 +2,8 @@ package com.phicomm.r1manager.server.voicebot;
 
 import com.phicomm.r1manager.util.AppLog;
 
+import java.nio.ByteBuffer;
+
 /**
  * Voice Activity Detection (VAD) using native libfvad (WebRTC VAD).
  *
@@ -54,6 +56,7 @@ public class VadDetector {
     private native long nativeInitVad(int mode);
     private native int nativeIsSpeech(long handle, short[] audioFrame);
     private native int nativeIsSpeechBytes(long handle, byte[] audioData, int offset, int length);
+    private native int nativeIsSpeechDirect(long handle, ByteBuffer audioData, int offset, int length);
     private native void nativeResetVad(long handle);
     private native void nativeFreeVad(long handle);
     private native int nativeGetFrameSize();
@@ -155,6 +158,37 @@ public class VadDetector {
         return result == 1;
     }
 
+    /**
+     * Check if audio frame contains speech (direct buffer version).
+     * Reads native memory in place, with no array pinning or copy.
+     *
+     * @param audioData Direct buffer of raw PCM bytes (little-endian 16-bit)
+     * @param offset Start offset in the buffer
+     * @param length Number of bytes (must be 320/640/960 for 10/20/30ms)
+     * @return true if speech detected, false if silence
+     */
+    public boolean isSpeech(ByteBuffer audioData, int offset, int length) {
+        if (!initialized || nativeHandle == 0) {
+            throw new IllegalStateException("VAD not initialized");
+        }
+
+        if (!audioData.isDirect()) {
+            throw new IllegalArgumentException("Audio buffer must be direct");
+        }
+        if (length != FRAME_BYTES_10MS && length != FRAME_BYTES_20MS && length != FRAME_BYTES_30MS) {
+            throw new IllegalArgumentException(
+                    "Invalid frame size: " + length + " bytes. Must be 320/640/960 bytes.");
+        }
+
+        int result = nativeIsSpeechDirect(nativeHandle, audioData, offset, length);
+        if (result < 0) {
+            AppLog.e(TAG, "VAD processing error");
+            return false;
+        }
+
+        return result == 1;
+    }
+
     /**
      * Reset VAD state. Call when starting a new utterance detection session.
      */
@@ -176,6 +210,13 @@ public class VadDetector {
         AppLog.i(TAG, "VAD released");
     }
 
+    /**
+     * Native handle for AudioFrontEnd, or 0 when not initialized.
+     */
+    long getNativeHandle() {
+        return initialized ? nativeHandle : 0;
+    }
+
     /**
      * Check if VAD is initialized.
      */
@@ -0,0 +1,268 @@
+package com.phicomm.r1manager.server.voicebot;
+
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Latency tracing of voice turns, from wake word to the first TTS audio
+ * handed to the AudioTrack.
+ *
+ * Each stage of the voice stack calls mark() when it reaches a milestone;
+ * only the first occurrence per turn counts, so calling it from per-frame
+ * paths is fine. WAKE and RECORDER_START open a new turn (recording restarts
+ * without a wake word when the conversation continues), and the turn is
+ * closed by FIRST_AUDIO_WRITTEN or by the next one opening. Closed turns are
+ * folded into one histogram per span.
+ */
+public class VoiceTurnTracer {
+
+    public enum Mark {
+        WAKE("wake"),
+        RECORDER_START("recorder_start"),
+        SPEECH_START("speech_start"),
+        FIRST_FRAME_SENT("first_frame_sent"),
+        ENDPOINT("endpoint"),
+        STT("stt"),
+        LLM("llm"),
+        TTS_START("tts_start"),
+        FIRST_AUDIO_RECEIVED("first_audio_received"),
+        FIRST_AUDIO_WRITTEN("first_audio_written");
+
+        final String key;
+
+        Mark(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Span[] SPANS = {
+            new Span("wake_to_recorder", Mark.WAKE, Mark.RECORDER_START),
+            new Span("recorder_to_speech", Mark.RECORDER_START, Mark.SPEECH_START),
+            new Span("speech_to_first_frame", Mark.SPEECH_START, Mark.FIRST_FRAME_SENT),
+            new Span("speech_to_endpoint", Mark.SPEECH_START, Mark.ENDPOINT),
+            new Span("endpoint_to_stt", Mark.ENDPOINT, Mark.STT),
+            new Span("stt_to_llm", Mark.STT, Mark.LLM),
+            new Span("llm_to_tts_start", Mark.LLM, Mark.TTS_START),
+            new Span("tts_start_to_first_audio", Mark.TTS_START, Mark.FIRST_AUDIO_RECEIVED),
+            new Span("first_audio_to_playback", Mark.FIRST_AUDIO_RECEIVED, Mark.FIRST_AUDIO_WRITTEN),
+            new Span("endpoint_to_playback", Mark.ENDPOINT, Mark.FIRST_AUDIO_WRITTEN),
+            new Span("wake_to_playback", Mark.WAKE, Mark.FIRST_AUDIO_WRITTEN),
+    };
+
+    private static final int RECENT_TURNS = 20;
+
+    private static VoiceTurnTracer instance;
+
+    private final Histogram[] histograms = new Histogram[SPANS.length];
+    private final ArrayDeque<Map<String, Long>> recentTurns = new ArrayDeque<>();
+
+    // Timestamps of the open turn (elapsedRealtime ms, 0 = not reached)
+    private final long[] marks = new long[Mark.values().length];
+    private boolean turnOpen = false;
+    private int turns = 0;
+
+    private VoiceTurnTracer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    public static synchronized VoiceTurnTracer getInstance() {
+        if (instance == null) {
+            instance = new VoiceTurnTracer();
+        }
+        return instance;
+    }
+
+    /**
+     * Record that the current turn reached a milestone
+     */
+    public synchronized void mark(Mark mark) {
+        if (mark == Mark.WAKE || mark == Mark.RECORDER_START) {
+            if (turnOpen && reachedFrom(mark)) {
+                closeTurn();
+            }
+            if (!turnOpen) {
+                turnOpen = true;
+                for (int i = 0; i < marks.length; i++) {
+                    marks[i] = 0;
+                }
+            }
+        } else if (!turnOpen) {
+            return;
+        }
+
+        if (marks[mark.ordinal()] == 0) {
+            marks[mark.ordinal()] = SystemClock.elapsedRealtime();
+        }
+        if (mark == Mark.FIRST_AUDIO_WRITTEN) {
+            closeTurn();
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> spans = new LinkedHashMap<>();
+        for (int i = 0; i < SPANS.length; i++) {
+            spans.put(SPANS[i].name, histograms[i].toMap());
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("turns", turns);
+        stats.put("turn_open", turnOpen);
+        stats.put("spans", spans);
+        stats.put("recent_turns", new ArrayList<>(recentTurns));
+        return stats;
+    }
+
+    public synchronized void reset() {
+        for (Histogram histogram : histograms) {
+            histogram.clear();
+        }
+        recentTurns.clear();
+        turns = 0;
+    }
+
+    // ==================== Internals ====================
+
+    /**
+     * Whether the open turn has reached this mark or any later one
+     */
+    private boolean reachedFrom(Mark mark) {
+        for (int i = mark.ordinal(); i < marks.length; i++) {
+            if (marks[i] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void closeTurn() {
+        turnOpen = false;
+        turns++;
+
+        for (int i = 0; i < SPANS.length; i++) {
+            long from = marks[SPANS[i].from.ordinal()];
+            long to = marks[SPANS[i].to.ordinal()];
+            if (from != 0 && to >= from) {
+                histograms[i].add(to - from);
+            }
+        }
+
+        // Offsets from the first mark of the turn
+        long start = Long.MAX_VALUE;
+        for (long time : marks) {
+            if (time != 0) {
+                start = Math.min(start, time);
+            }
+        }
+        Map<String, Long> turn = new LinkedHashMap<>();
+        for (Mark mark : Mark.values()) {
+            if (marks[mark.ordinal()] != 0) {
+                turn.put(mark.key, marks[mark.ordinal()] - start);
+            }
+        }
+        if (recentTurns.size() == RECENT_TURNS) {
+            recentTurns.removeFirst();
+        }
+        recentTurns.addLast(turn);
+    }
+
+    private static class Span {
+        final String name;
+        final Mark from;
+        final Mark to;
+
+        Span(String name, Mark from, Mark to) {
+            this.name = name;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    /**
+     * Fixed-bucket latency histogram. Percentiles are the upper bound of the
+     * bucket they fall in, capped at the largest value seen.
+     */
+    private static class Histogram {
+        // Upper bounds in ms; one more bucket catches everything above
+        private static final long[] BOUNDS = {
+                10, 20, 50, 100, 150, 200, 300, 400, 500, 750, 1000, 1500, 2000, 3000, 5000, 10000
+        };
+
+        private final long[] counts = new long[BOUNDS.length + 1];
+        private long count = 0;
+        private long sum = 0;
+        private long min = Long.MAX_VALUE;
+        private long max = 0;
+
+        void add(long valueMs) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && valueMs > BOUNDS[bucket]) {
+                bucket++;
+            }
+            counts[bucket]++;
+            count++;
+            sum += valueMs;
+            min = Math.min(min, valueMs);
+            max = Math.max(max, valueMs);
+        }
+
+        void clear() {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = 0;
+            }
+            count = 0;
+            sum = 0;
+            min = Long.MAX_VALUE;
+            max = 0;
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(BOUNDS[i], max);
+                }
+            }
+            return max;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("count", count);
+            if (count == 0) {
+                return map;
+            }
+            map.put("mean_ms", sum / count);
+            map.put("min_ms", min);
+            map.put("p50_ms", percentile(0.50));
+            map.put("p90_ms", percentile(0.90));
+            map.put("p99_ms", percentile(0.99));
+            map.put("max_ms", max);
+
+            List<Map<String, Object>> buckets = new ArrayList<>();
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) {
+                    continue;
+                }
+                Map<String, Object> bucket = new LinkedHashMap<>();
+                if (i < BOUNDS.length) {
+                    bucket.put("le_ms", BOUNDS[i]);
+                } else {
+                    bucket.put("gt_ms", BOUNDS[BOUNDS.length - 1]);
+                }
+                bucket.put("count", counts[i]);
+                buckets.add(bucket);
+            }
+            map.put("buckets", buckets);
+            return map;
+        }
+    }
+}
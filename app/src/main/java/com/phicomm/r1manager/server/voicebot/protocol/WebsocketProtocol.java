@@ -1,5 +1,6 @@
 package com.phicomm.r1manager.server.voicebot.protocol;
 
+import com.phicomm.r1manager.server.voicebot.VoiceTurnTracer;
 import com.phicomm.r1manager.util.AppLog;
 
 import org.java_websocket.client.WebSocketClient;
@@ -115,6 +116,7 @@ public class WebsocketProtocol {
                 @Override
                 public void onMessage(ByteBuffer bytes) {
                     // AppLog.v(TAG, "Received audio binary: " + bytes.remaining());
+                    VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.FIRST_AUDIO_RECEIVED);
                     if (listener != null) {
                         byte[] data = new byte[bytes.remaining()];
                         bytes.get(data);
@@ -182,6 +184,7 @@ public class WebsocketProtocol {
     public void sendAudio(byte[] data) {
         if (webSocketClient != null && isOpened) {
             webSocketClient.send(data);
+            VoiceTurnTracer.getInstance().mark(VoiceTurnTracer.Mark.FIRST_FRAME_SENT);
         } else {
             AppLog.w(TAG, "Cannot send audio: socket not open");
         }
@@ -193,13 +196,17 @@ public class WebsocketProtocol {
         }
     }
 
-    public void sendStartListening() {
+    /**
+     * @param mode "auto" (server detects the end of speech), "manual" (the
+     *             client sends stop) or "realtime" (continuous listening)
+     */
+    public void sendStartListening(String mode) {
         try {
             JSONObject json = new JSONObject();
             json.put("session_id", sessionId);
             json.put("type", "listen");
             json.put("state", "start");
-            json.put("mode", "auto");
+            json.put("mode", mode);
             sendText(json.toString());
         } catch (Exception e) {
             AppLog.e(TAG, "Error sending start listening", e);
@@ -218,6 +225,20 @@ public class WebsocketProtocol {
         }
     }
 
+    /**
+     * Ask the server to stop the reply in progress
+     */
+    public void sendAbort() {
+        try {
+            JSONObject json = new JSONObject();
+            json.put("session_id", sessionId);
+            json.put("type", "abort");
+            sendText(json.toString());
+        } catch (Exception e) {
+            AppLog.e(TAG, "Error sending abort", e);
+        }
+    }
+
     public void close() {
         if (webSocketClient != null) {
             webSocketClient.close();
@@ -0,0 +1,92 @@
+package com.phicomm.r1manager.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Server-Sent Events writer backed by a pipe.
+ *
+ * The read side is handed to NanoHTTPD as a chunked response body; producers
+ * on other threads push events as they happen. When the client disconnects,
+ * NanoHTTPD closes the read side and further sends fail, which producers use
+ * as a signal to stop work.
+ */
+public class SseEmitter {
+
+    public static final String MIME_TYPE = "text/event-stream";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int PIPE_SIZE = 16 * 1024;
+
+    private final PipedInputStream input;
+    private final PipedOutputStream output;
+    private volatile boolean closed = false;
+
+    public SseEmitter() {
+        try {
+            input = new PipedInputStream(PIPE_SIZE);
+            output = new PipedOutputStream(input);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to create SSE pipe", e);
+        }
+    }
+
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    /**
+     * Send an event. Multi-line data is split into several "data:" lines.
+     *
+     * @return false if the stream is closed (client went away)
+     */
+    public synchronized boolean send(String event, String data) {
+        StringBuilder sb = new StringBuilder();
+        if (event != null) {
+            sb.append("event: ").append(event).append('\n');
+        }
+        for (String line : (data != null ? data : "").split("\n", -1)) {
+            sb.append("data: ").append(line).append('\n');
+        }
+        sb.append('\n');
+        return write(sb.toString());
+    }
+
+    /**
+     * Send a comment line, used as keep-alive while nothing else is happening.
+     */
+    public synchronized boolean comment(String text) {
+        return write(": " + text + "\n\n");
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            output.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private boolean write(String text) {
+        if (closed) {
+            return false;
+        }
+        try {
+            output.write(text.getBytes(UTF8));
+            output.flush();
+            return true;
+        } catch (IOException e) {
+            closed = true;
+            return false;
+        }
+    }
+}